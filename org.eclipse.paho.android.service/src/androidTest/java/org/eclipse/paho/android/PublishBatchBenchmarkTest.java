@@ -0,0 +1,91 @@
+package org.eclipse.paho.android;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.eclipse.paho.android.service.MqttAndroidClient;
+import org.eclipse.paho.android.service.MqttBatchToken;
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.IMqttToken;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+/**
+ * Measures the rate at which QoS 1 messages are published and delivered,
+ * one publish call at a time and with publishBatch in batches of 1, 10, 100
+ * and 1000, against the test server
+ */
+public class PublishBatchBenchmarkTest extends AndroidTestCase {
+
+    private static final String TAG = "PublishBatchBenchmark";
+    private static final int MESSAGES = 5000;
+    private static final int[] BATCH_SIZES = {1, 10, 100, 1000};
+
+    private String mqttServerURI;
+    private int waitForCompletionTime;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        TestProperties properties = new TestProperties(this.getContext());
+        mqttServerURI = properties.getServerURI();
+        waitForCompletionTime = properties.getWaitForCompletionTime();
+    }
+
+    private static MqttMessage message() {
+        MqttMessage message = new MqttMessage(new byte[128]);
+        message.setQos(1);
+        return message;
+    }
+
+    private static long rate(int count, long nanos) {
+        return count * 1000000000L / Math.max(1, nanos);
+    }
+
+    public void testPublishRates() throws Exception {
+        String topic = "PublishBatchBenchmarkTest/topic";
+        MqttAndroidClient client = new MqttAndroidClient(mContext, mqttServerURI,
+                "PublishBatchBenchmarkTest");
+        try {
+            client.connect().waitForCompletion(waitForCompletionTime);
+
+            long start = System.nanoTime();
+            List<IMqttDeliveryToken> tokens = new ArrayList<>(MESSAGES);
+            for (int i = 0; i < MESSAGES; i++) {
+                tokens.add(client.publish(topic, message()));
+            }
+            for (IMqttToken token : tokens) {
+                token.waitForCompletion(waitForCompletionTime);
+            }
+            long single = rate(MESSAGES, System.nanoTime() - start);
+            Log.i(TAG, "publish: " + single + " msgs/s");
+
+            for (int size : BATCH_SIZES) {
+                String[] topics = new String[size];
+                MqttMessage[] messages = new MqttMessage[size];
+                start = System.nanoTime();
+                List<MqttBatchToken> batches = new ArrayList<>();
+                for (int sent = 0; sent < MESSAGES; sent += size) {
+                    for (int i = 0; i < size; i++) {
+                        topics[i] = topic;
+                        messages[i] = message();
+                    }
+                    batches.add(client.publishBatch(topics.clone(), messages.clone()));
+                }
+                for (MqttBatchToken batch : batches) {
+                    batch.waitForCompletion(waitForCompletionTime);
+                    assertEquals(size, batch.getDeliveredCount());
+                }
+                Log.i(TAG, "publishBatch(" + size + "): "
+                        + rate(batches.size() * size, System.nanoTime() - start)
+                        + " msgs/s");
+            }
+
+            client.disconnect().waitForCompletion(waitForCompletionTime);
+        } finally {
+            client.close();
+        }
+    }
+}
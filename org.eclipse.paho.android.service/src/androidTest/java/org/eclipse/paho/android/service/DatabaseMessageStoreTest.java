@@ -0,0 +1,188 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ */
+package org.eclipse.paho.android.service;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import org.eclipse.paho.android.service.MessageStore.StoredMessage;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.sqlite.SQLiteDatabase;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+/**
+ * Tests the schema migration of {@link DatabaseMessageStore}, and measures how
+ * long it takes to replay a large backlog of arrived messages
+ */
+public class DatabaseMessageStoreTest extends AndroidTestCase {
+
+    private static final String TAG = "DatabaseMessageStoreTest";
+
+    private static final String DATABASE_NAME = "mqttAndroidService.db";
+    private static final String CLIENT_HANDLE = "tcp://localhost:1883:testClient:test";
+
+    private DatabaseMessageStore store;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        getContext().deleteDatabase(DATABASE_NAME);
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        if (store != null) {
+            store.close();
+        }
+        getContext().deleteDatabase(DATABASE_NAME);
+        super.tearDown();
+    }
+
+    /**
+     * Creates a version 1 database holding unacknowledged messages, and checks
+     * they are all still there, in order, after the upgrade
+     */
+    public void testUpgradeFromVersion1KeepsMessages() throws Exception {
+        SQLiteDatabase v1 = getContext().openOrCreateDatabase(DATABASE_NAME, Context.MODE_PRIVATE, null);
+        v1.execSQL("CREATE TABLE MqttArrivedMessageTable(messageId TEXT PRIMARY KEY, clientHandle TEXT, "
+                + "destinationName TEXT, payload BLOB, qos INTEGER, retained TEXT, duplicate TEXT, mtimestamp INTEGER);");
+        for (int i = 0; i < 3; i++) {
+            ContentValues values = new ContentValues();
+            values.put("messageId", java.util.UUID.randomUUID().toString());
+            values.put("clientHandle", CLIENT_HANDLE);
+            values.put("destinationName", "topic/" + i);
+            values.put("payload", ("payload" + i).getBytes());
+            values.put("qos", 1);
+            values.put("retained", i == 1);
+            values.put("duplicate", false);
+            values.put("mtimestamp", 1000L + i);
+            v1.insertOrThrow("MqttArrivedMessageTable", null, values);
+        }
+        v1.setVersion(1);
+        v1.close();
+
+        store = new DatabaseMessageStore(new MqttService(), getContext());
+        assertEquals(3, store.getArrivedMessageCount(CLIENT_HANDLE));
+
+        Iterator<StoredMessage> backlog = store.getAllArrivedMessages(CLIENT_HANDLE);
+        for (int i = 0; i < 3; i++) {
+            assertTrue(backlog.hasNext());
+            StoredMessage stored = backlog.next();
+            assertEquals("topic/" + i, stored.getTopic());
+            assertEquals("payload" + i, new String(stored.getMessage().getPayload()));
+            assertEquals(i == 1, stored.getMessage().isRetained());
+        }
+        assertFalse(backlog.hasNext());
+    }
+
+    public void testDiscardByMessageId() throws Exception {
+        store = new DatabaseMessageStore(new MqttService(), getContext());
+        String first = store.storeArrived(CLIENT_HANDLE, "topic", new MqttMessage("one".getBytes()));
+        String second = store.storeArrived(CLIENT_HANDLE, "topic", new MqttMessage("two".getBytes()));
+        assertFalse(first.equals(second));
+        assertTrue(store.discardArrived(CLIENT_HANDLE, first));
+        assertFalse(store.discardArrived(CLIENT_HANDLE, first));
+        assertEquals(1, store.getArrivedMessageCount(CLIENT_HANDLE));
+    }
+
+    /**
+     * A batch larger than one DELETE statement can take is discarded in full,
+     * and ids belonging to another client are left alone
+     */
+    public void testDiscardBatch() throws Exception {
+        store = new DatabaseMessageStore(new MqttService(), getContext());
+        List<String> ids = new ArrayList<>();
+        for (int i = 0; i < 1200; i++) {
+            ids.add(store.storeArrived(CLIENT_HANDLE, "topic", new MqttMessage(new byte[1])));
+        }
+        String other = store.storeArrived(CLIENT_HANDLE + "other", "topic", new MqttMessage(new byte[1]));
+        ids.add(other);
+        ids.add("no such id");
+
+        assertEquals(1200, store.discardArrived(CLIENT_HANDLE, ids));
+        assertEquals(0, store.getArrivedMessageCount(CLIENT_HANDLE));
+        assertEquals(1, store.getArrivedMessageCount(CLIENT_HANDLE + "other"));
+    }
+
+    /**
+     * A payload larger than a CursorWindow must still be replayed intact
+     */
+    public void testReplayLargePayload() throws Exception {
+        store = new DatabaseMessageStore(new MqttService(), getContext());
+        byte[] payload = new byte[3 * 1024 * 1024 + 7];
+        for (int i = 0; i < payload.length; i++) {
+            payload[i] = (byte) i;
+        }
+        store.storeArrived(CLIENT_HANDLE, "large", new MqttMessage(payload));
+        store.storeArrived(CLIENT_HANDLE, "small", new MqttMessage("small".getBytes()));
+
+        Iterator<StoredMessage> backlog = store.getAllArrivedMessages(CLIENT_HANDLE);
+        StoredMessage large = backlog.next();
+        assertEquals("large", large.getTopic());
+        assertEquals(CLIENT_HANDLE, large.getClientHandle());
+        assertTrue(java.util.Arrays.equals(payload, large.getMessage().getPayload()));
+        assertEquals("small", backlog.next().getTopic());
+        assertFalse(backlog.hasNext());
+    }
+
+    public void testReplayBacklog10k() throws Exception {
+        replayBacklog(10000);
+    }
+
+    public void testReplayBacklog100k() throws Exception {
+        replayBacklog(100000);
+    }
+
+    private void replayBacklog(int rows) {
+        store = new DatabaseMessageStore(new MqttService(), getContext());
+        store.setGroupCommit(1000, 100);
+        MessageStore.StoreListener ignore = new MessageStore.StoreListener() {
+            @Override
+            public void onStored(String messageId) {
+            }
+
+            @Override
+            public void onStoreFailure(Exception e) {
+                fail("store failed: " + e);
+            }
+        };
+        byte[] payload = new byte[64];
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < rows; i++) {
+            MqttMessage message = new MqttMessage(payload);
+            message.setQos(1);
+            store.storeArrived(CLIENT_HANDLE, "sensors/" + (i % 16), message, ignore);
+            // some noise from another client, which the replay must skip
+            if (i % 10 == 0) {
+                store.storeArrived(CLIENT_HANDLE + "other", "noise", message, ignore);
+            }
+        }
+        long stored = System.currentTimeMillis();
+
+        int replayed = 0;
+        Iterator<StoredMessage> backlog = store.getAllArrivedMessages(CLIENT_HANDLE);
+        while (backlog.hasNext()) {
+            backlog.next();
+            replayed++;
+        }
+        long done = System.currentTimeMillis();
+        assertEquals(rows, replayed);
+        Log.i(TAG, "Backlog of " + rows + " rows: stored in " + (stored - start) + "ms, replayed in "
+                + (done - stored) + "ms");
+    }
+}
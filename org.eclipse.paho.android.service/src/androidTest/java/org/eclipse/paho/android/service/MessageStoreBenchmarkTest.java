@@ -0,0 +1,125 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ */
+package org.eclipse.paho.android.service;
+
+import java.io.File;
+import java.util.Iterator;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.paho.android.service.MessageStore.StoredMessage;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+
+import android.content.Context;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+/**
+ * Compares the {@link DatabaseMessageStore} with the
+ * {@link AppendLogMessageStore} on the three things a store does for each
+ * arrived message: insert it, ack (discard) it, and replay it after a restart
+ */
+public class MessageStoreBenchmarkTest extends AndroidTestCase {
+
+    private static final String TAG = "MessageStoreBenchmarkTest";
+
+    private static final String DATABASE_NAME = "mqttAndroidService.db";
+    private static final String LOG_DIRECTORY = "MessageStoreBenchmarkTest";
+    private static final String CLIENT_HANDLE = "tcp://localhost:1883:testClient:test";
+
+    private static final int MESSAGES = 10000;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        clean();
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        clean();
+        super.tearDown();
+    }
+
+    private void clean() {
+        getContext().deleteDatabase(DATABASE_NAME);
+        File[] files = logDirectory().listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+    }
+
+    private File logDirectory() {
+        return getContext().getDir(LOG_DIRECTORY, Context.MODE_PRIVATE);
+    }
+
+    public void testDatabaseStore() throws Exception {
+        DatabaseMessageStore store = new DatabaseMessageStore(new MqttService(), getContext());
+        run("database", store);
+    }
+
+    public void testAppendLogStore() throws Exception {
+        AppendLogMessageStore store = new AppendLogMessageStore(new MqttService(), logDirectory(),
+                AppendLogMessageStore.DEFAULT_SEGMENT_BYTES);
+        run("append log", store);
+    }
+
+    private void run(String name, GroupCommitMessageStore store) throws Exception {
+        store.setGroupCommit(64, 10);
+        final String[] ids = new String[MESSAGES];
+        final CountDownLatch latch = new CountDownLatch(MESSAGES);
+        byte[] payload = new byte[256];
+
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < MESSAGES; i++) {
+            final int index = i;
+            MqttMessage message = new MqttMessage(payload);
+            message.setQos(1);
+            store.storeArrived(CLIENT_HANDLE, "sensors/" + (i % 16), message, new MessageStore.StoreListener() {
+                @Override
+                public void onStored(String messageId) {
+                    ids[index] = messageId;
+                    latch.countDown();
+                }
+
+                @Override
+                public void onStoreFailure(Exception e) {
+                    fail("store failed: " + e);
+                }
+            });
+        }
+        assertTrue(latch.await(120, TimeUnit.SECONDS));
+        long stored = System.currentTimeMillis();
+
+        int replayed = 0;
+        Iterator<StoredMessage> backlog = store.getAllArrivedMessages(CLIENT_HANDLE);
+        while (backlog.hasNext()) {
+            backlog.next();
+            replayed++;
+        }
+        long read = System.currentTimeMillis();
+        assertEquals(MESSAGES, replayed);
+
+        for (String id : ids) {
+            assertTrue(store.discardArrived(CLIENT_HANDLE, id));
+        }
+        long acked = System.currentTimeMillis();
+        assertEquals(0, store.getArrivedMessageCount(CLIENT_HANDLE));
+        store.close();
+
+        Log.i(TAG, name + ": " + MESSAGES + " messages inserted in " + (stored - start) + "ms, replayed in "
+                + (read - stored) + "ms, acked in " + (acked - read) + "ms");
+    }
+}
@@ -0,0 +1,164 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ */
+package org.eclipse.paho.android.service;
+
+import android.os.Bundle;
+
+/**
+ * The aggregates of the messages which arrived on one topic in one window,
+ * passed to a {@link MqttAggregateCallback}. The minimum, maximum, mean and
+ * last value are NaN if no payload in the window could be read.
+ */
+public final class AggregateSummary {
+
+	private final String topicFilter;
+	private final String topic;
+	private final long windowStart;
+	private final long windowEnd;
+	private final long count;
+	private final long unparsed;
+	private final double min;
+	private final double max;
+	private final double sum;
+	private final double last;
+
+	AggregateSummary(String topicFilter, String topic, long windowStart,
+			long windowEnd, long count, long unparsed, double min, double max,
+			double sum, double last) {
+		this.topicFilter = topicFilter;
+		this.topic = topic;
+		this.windowStart = windowStart;
+		this.windowEnd = windowEnd;
+		this.count = count;
+		this.unparsed = unparsed;
+		this.min = min;
+		this.max = max;
+		this.sum = sum;
+		this.last = last;
+	}
+
+	/**
+	 * @return the topic filter the aggregation was set for
+	 */
+	public String getTopicFilter() {
+		return topicFilter;
+	}
+
+	/**
+	 * @return the topic the messages arrived on
+	 */
+	public String getTopic() {
+		return topic;
+	}
+
+	/**
+	 * @return when the window opened, in milliseconds since the epoch
+	 */
+	public long getWindowStart() {
+		return windowStart;
+	}
+
+	/**
+	 * @return when the window closed, in milliseconds since the epoch
+	 */
+	public long getWindowEnd() {
+		return windowEnd;
+	}
+
+	/**
+	 * @return the number of messages whose payload was read as a number
+	 */
+	public long getCount() {
+		return count;
+	}
+
+	/**
+	 * @return the number of messages whose payload could not be read
+	 */
+	public long getUnparsed() {
+		return unparsed;
+	}
+
+	/**
+	 * @return the least value
+	 */
+	public double getMin() {
+		return min;
+	}
+
+	/**
+	 * @return the greatest value
+	 */
+	public double getMax() {
+		return max;
+	}
+
+	/**
+	 * @return the sum of the values
+	 */
+	public double getSum() {
+		return sum;
+	}
+
+	/**
+	 * @return the mean of the values
+	 */
+	public double getMean() {
+		return count == 0 ? Double.NaN : sum / count;
+	}
+
+	/**
+	 * @return the value of the last message in the window
+	 */
+	public double getLast() {
+		return last;
+	}
+
+	/**
+	 * Put the summary in a Bundle, to be passed to the client
+	 */
+	Bundle toBundle() {
+		Bundle bundle = new Bundle();
+		bundle.putString(MqttServiceConstants.CALLBACK_TOPIC_FILTER,
+				topicFilter);
+		bundle.putString(MqttServiceConstants.CALLBACK_DESTINATION_NAME, topic);
+		bundle.putLongArray(MqttServiceConstants.CALLBACK_AGGREGATE_COUNTS,
+				new long[] { windowStart, windowEnd, count, unparsed });
+		bundle.putDoubleArray(MqttServiceConstants.CALLBACK_AGGREGATE_VALUES,
+				new double[] { min, max, sum, last });
+		return bundle;
+	}
+
+	/**
+	 * Read a summary from a Bundle made by {@link #toBundle()}
+	 */
+	static AggregateSummary fromBundle(Bundle bundle) {
+		long[] counts = bundle
+				.getLongArray(MqttServiceConstants.CALLBACK_AGGREGATE_COUNTS);
+		double[] values = bundle
+				.getDoubleArray(MqttServiceConstants.CALLBACK_AGGREGATE_VALUES);
+		return new AggregateSummary(
+				bundle.getString(MqttServiceConstants.CALLBACK_TOPIC_FILTER),
+				bundle.getString(MqttServiceConstants.CALLBACK_DESTINATION_NAME),
+				counts[0], counts[1], counts[2], counts[3], values[0],
+				values[1], values[2], values[3]);
+	}
+
+	@Override
+	public String toString() {
+		return "AggregateSummary [topic=" + topic + ", windowStart="
+				+ windowStart + ", windowEnd=" + windowEnd + ", count=" + count
+				+ ", unparsed=" + unparsed + ", min=" + min + ", max=" + max
+				+ ", mean=" + getMean() + ", last=" + last + "]";
+	}
+}
@@ -0,0 +1,46 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ */
+package org.eclipse.paho.android.service;
+
+/**
+ * How the payload of a message on an aggregated topic is read as a number.
+ * See {@link AggregationOptions#setFormat(AggregationFormat)}. A payload
+ * which cannot be read is counted, but adds nothing to the aggregates.
+ */
+public enum AggregationFormat {
+	/**
+	 * A decimal number in ASCII, such as "21.5", "-3" or "1e-3", with
+	 * optional white space around it
+	 */
+	TEXT,
+
+	/**
+	 * A 4 byte big-endian signed integer, and nothing more
+	 */
+	INT32,
+
+	/**
+	 * An 8 byte big-endian signed integer, and nothing more
+	 */
+	INT64,
+
+	/**
+	 * A 4 byte big-endian IEEE 754 float, and nothing more
+	 */
+	FLOAT32,
+
+	/**
+	 * An 8 byte big-endian IEEE 754 double, and nothing more
+	 */
+	FLOAT64
+}
@@ -0,0 +1,74 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ */
+package org.eclipse.paho.android.service;
+
+/**
+ * <p>
+ * Options for aggregating the messages arriving on a topic filter in the
+ * {@link MqttService}, set with
+ * {@link MqttAndroidClient#setAggregation(String, AggregationOptions, MqttAggregateCallback)}.
+ * </p>
+ * <p>
+ * Each message's payload is read as a number, in the {@link AggregationFormat}
+ * set, and added to the count, minimum, maximum, sum and last value of its
+ * topic. Each window, the service passes one {@link AggregateSummary} for each
+ * topic which had messages, and starts again; the messages themselves are
+ * acknowledged to the server, but neither stored nor passed on.
+ * </p>
+ */
+public class AggregationOptions {
+
+	/**
+	 * The length of a window, unless set otherwise
+	 */
+	public static final long DEFAULT_WINDOW_MILLIS = 1000;
+
+	private long windowMillis = DEFAULT_WINDOW_MILLIS;
+	private AggregationFormat format = AggregationFormat.TEXT;
+
+	/**
+	 * @return the length of a window, in milliseconds
+	 */
+	public long getWindowMillis() {
+		return windowMillis;
+	}
+
+	/**
+	 * @param windowMillis
+	 *            the length of a window, in milliseconds
+	 */
+	public void setWindowMillis(long windowMillis) {
+		if (windowMillis < 1) {
+			throw new IllegalArgumentException("windowMillis must be positive");
+		}
+		this.windowMillis = windowMillis;
+	}
+
+	/**
+	 * @return how each payload is read as a number
+	 */
+	public AggregationFormat getFormat() {
+		return format;
+	}
+
+	/**
+	 * @param format
+	 *            how each payload is read as a number
+	 */
+	public void setFormat(AggregationFormat format) {
+		if (format == null) {
+			throw new IllegalArgumentException("format is null");
+		}
+		this.format = format;
+	}
+}
@@ -14,20 +14,10 @@ package org.eclipse.paho.android.service;
 
 import org.eclipse.paho.client.mqttv3.IMqttActionListener;
 import org.eclipse.paho.client.mqttv3.IMqttToken;
+import org.eclipse.paho.client.mqttv3.MqttException;
 import org.eclipse.paho.client.mqttv3.MqttPingSender;
 import org.eclipse.paho.client.mqttv3.internal.ClientComms;
 
-import android.annotation.SuppressLint;
-import android.app.AlarmManager;
-import android.app.PendingIntent;
-import android.app.Service;
-import android.content.BroadcastReceiver;
-import android.content.Context;
-import android.content.Intent;
-import android.content.IntentFilter;
-import android.os.Build;
-import android.os.PowerManager;
-import android.os.PowerManager.WakeLock;
 import android.util.Log;
 
 /**
@@ -35,6 +25,9 @@ import android.util.Log;
  *
  * <p>This class implements the {@link MqttPingSender} pinger interface
  * allowing applications to send ping packet to server every keep alive interval.
+ * The pings of every connection in the service are sent from the one
+ * {@link KeepAliveAlarm}, which wakes the device once for all the pings due
+ * together.
  * </p>
  *
  * @see MqttPingSender
@@ -43,138 +36,159 @@ class AlarmPingSender implements MqttPingSender {
 	// Identifier for Intents, log messages, etc..
 	private static final String TAG = "AlarmPingSender";
 
-	// TODO: Add log.
 	private ClientComms comms;
 	private MqttService service;
-	private BroadcastReceiver alarmReceiver;
-	private AlarmPingSender that;
-	private PendingIntent pendingIntent;
 	private volatile boolean hasStarted = false;
 
+	// the shortest interval pinged at in adaptive mode, or 0 to ping at the
+	// keep-alive interval
+	private volatile long adaptiveMinimum = 0;
+	// the keep-alive interval the server was given, and the one pinged at
+	private long keepAlive;
+	private long interval;
+
 	public AlarmPingSender(MqttService service) {
 		if (service == null) {
 			throw new IllegalArgumentException(
 					"Neither service nor client can be null.");
 		}
 		this.service = service;
-		that = this;
 	}
 
 	@Override
 	public void init(ClientComms comms) {
 		this.comms = comms;
-		this.alarmReceiver = new AlarmReceiver();
+	}
+
+	/**
+	 * Turn adaptive mode on or off. In adaptive mode the connection pings at
+	 * the interval its network has been found to allow, learned by the
+	 * {@link KeepAliveLearner}, up to the keep-alive interval the server was
+	 * given. It takes effect from the next ping.
+	 *
+	 * @param minimumMillis
+	 *            the shortest interval to ping at, or 0 to ping at the
+	 *            keep-alive interval
+	 */
+	void setAdaptiveMinimum(long minimumMillis) {
+		adaptiveMinimum = Math.max(0, minimumMillis);
 	}
 
 	@Override
 	public void start() {
-		String action = MqttServiceConstants.PING_SENDER
-				+ comms.getClient().getClientId();
-		Log.d(TAG, "Register alarmreceiver to MqttService"+ action);
-		service.registerReceiver(alarmReceiver, new IntentFilter(action));
-
-		pendingIntent = PendingIntent.getBroadcast(service, 0, new Intent(
-				action), PendingIntent.FLAG_UPDATE_CURRENT);
-
-		schedule(comms.getKeepAlive());
+		Log.d(TAG, "Start pinging " + comms.getClient().getClientId());
+		// set from the connect options on each connect
+		synchronized (this) {
+			keepAlive = comms.getKeepAlive();
+			interval = keepAlive;
+		}
 		hasStarted = true;
+		schedule(adapt());
 	}
 
 	@Override
 	public void stop() {
-
-		Log.d(TAG, "Unregister alarmreceiver to MqttService"+comms.getClient().getClientId());
-		if(hasStarted){
-			if(pendingIntent != null){
-				// Cancel Alarm.
-				AlarmManager alarmManager = (AlarmManager) service.getSystemService(Service.ALARM_SERVICE);
-				alarmManager.cancel(pendingIntent);
-			}
-
+		Log.d(TAG, "Stop pinging " + comms.getClient().getClientId());
+		if (hasStarted) {
 			hasStarted = false;
-			try{
-				service.unregisterReceiver(alarmReceiver);
-			}catch(IllegalArgumentException e){
-				//Ignore unregister errors.			
-			}
+			service.getKeepAliveAlarm().remove(this);
 		}
 	}
 
 	@Override
 	public void schedule(long delayInMilliseconds) {
-		long nextAlarmInMilliseconds = System.currentTimeMillis()
-				+ delayInMilliseconds;
-		Log.d(TAG, "Schedule next alarm at " + nextAlarmInMilliseconds);
-		AlarmManager alarmManager = (AlarmManager) service
-				.getSystemService(Service.ALARM_SERVICE);
-
-        if(Build.VERSION.SDK_INT >= 23){
-			// In SDK 23 and above, dosing will prevent setExact, setExactAndAllowWhileIdle will force
-			// the device to run this task whilst dosing.
-			Log.d(TAG, "Alarm scheule using setExactAndAllowWhileIdle, next: " + delayInMilliseconds);
-			alarmManager.setExactAndAllowWhileIdle(AlarmManager.RTC_WAKEUP, nextAlarmInMilliseconds,
-					pendingIntent);
-		} else if (Build.VERSION.SDK_INT >= 19) {
-			Log.d(TAG, "Alarm scheule using setExact, delay: " + delayInMilliseconds);
-			alarmManager.setExact(AlarmManager.RTC_WAKEUP, nextAlarmInMilliseconds,
-					pendingIntent);
-		} else {
-			alarmManager.set(AlarmManager.RTC_WAKEUP, nextAlarmInMilliseconds,
-					pendingIntent);
+		if (hasStarted) {
+			service.getKeepAliveAlarm().schedule(this, delayInMilliseconds);
+		}
+	}
+
+	/**
+	 * Traffic both ways has kept the connection alive, so its next ping is
+	 * not due until the ping interval from now
+	 */
+	void activity() {
+		if (hasStarted) {
+			service.getKeepAliveAlarm().activity(this);
 		}
 	}
 
-	/*
-	 * This class sends PingReq packet to MQTT broker
+	/**
+	 * Send a PingReq packet to the MQTT broker, if one is due
+	 *
+	 * @param done
+	 *            run once the ping response arrives or the ping fails, or at
+	 *            once if no ping was sent
 	 */
-	class AlarmReceiver extends BroadcastReceiver {
-		private WakeLock wakelock;
-		private final String wakeLockTag = MqttServiceConstants.PING_WAKELOCK
-				+ that.comms.getClient().getClientId();
-
-		@Override
-        @SuppressLint("Wakelock")
-		public void onReceive(Context context, Intent intent) {
-			// According to the docs, "Alarm Manager holds a CPU wake lock as
-			// long as the alarm receiver's onReceive() method is executing.
-			// This guarantees that the phone will not sleep until you have
-			// finished handling the broadcast.", but this class still get
-			// a wake lock to wait for ping finished.
-
-			Log.d(TAG, "Sending Ping at:" + System.currentTimeMillis());
-
-			PowerManager pm = (PowerManager) service
-					.getSystemService(Service.POWER_SERVICE);
-			wakelock = pm.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, wakeLockTag);
-			wakelock.acquire();
-
-			// Assign new callback to token to execute code after PingResq
-			// arrives. Get another wakelock even receiver already has one,
-			// release it until ping response returns.
-			IMqttToken token = comms.checkForActivity(new IMqttActionListener() {
+	void ping(final Runnable done) {
+		final long pingInterval = adapt();
+		final boolean adaptive = adaptiveMinimum > 0;
+		IMqttToken token = null;
+		try {
+			token = comms.checkForActivity(new IMqttActionListener() {
 
 				@Override
 				public void onSuccess(IMqttToken asyncActionToken) {
-					Log.d(TAG, "Success. Release lock(" + wakeLockTag + "):"
-							+ System.currentTimeMillis());
-					//Release wakelock when it is done.
-					wakelock.release();
+					Log.d(TAG, "Ping success:" + System.currentTimeMillis());
+					if (adaptive) {
+						service.getKeepAliveAlarm().getLearner()
+								.pingSucceeded(pingInterval);
+					}
+					done.run();
 				}
 
 				@Override
 				public void onFailure(IMqttToken asyncActionToken,
-									  Throwable exception) {
-					Log.d(TAG, "Failure. Release lock(" + wakeLockTag + "):"
-							+ System.currentTimeMillis());
-					//Release wakelock when it is done.
-					wakelock.release();
+						Throwable exception) {
+					Log.d(TAG, "Ping failure:" + System.currentTimeMillis());
+					if (adaptive && isLostConnection(exception)) {
+						service.getKeepAliveAlarm().getLearner()
+								.pingFailed(pingInterval,
+										System.currentTimeMillis());
+					}
+					done.run();
 				}
 			});
+		} catch (RuntimeException e) {
+			Log.e(TAG, "Ping failed", e);
+		}
 
+		if (token == null) {
+			done.run();
+		}
+	}
 
-			if (token == null && wakelock.isHeld()) {
-				wakelock.release();
-			}
+	/**
+	 * @return whether a ping failed for want of an answer or because the
+	 *         connection broke, rather than because the client disconnected
+	 */
+	private static boolean isLostConnection(Throwable exception) {
+		if (!(exception instanceof MqttException)) {
+			return false;
+		}
+		int reason = ((MqttException) exception).getReasonCode();
+		return reason == MqttException.REASON_CODE_CLIENT_TIMEOUT
+				|| reason == MqttException.REASON_CODE_CONNECTION_LOST;
+	}
+
+	/**
+	 * Set the interval the connection pings at, from what has been learned
+	 * of the network if in adaptive mode
+	 *
+	 * @return the interval
+	 */
+	private synchronized long adapt() {
+		long minimum = adaptiveMinimum;
+		long next = keepAlive;
+		if (minimum > 0) {
+			next = service.getKeepAliveAlarm().getLearner().getInterval(
+					minimum, keepAlive, System.currentTimeMillis());
+		}
+		if (next != interval) {
+			Log.d(TAG, "Ping " + comms.getClient().getClientId() + " every "
+					+ next + "ms");
+			interval = next;
+			comms.getClientState().setKeepAliveInterval(next);
 		}
+		return next;
 	}
 }
@@ -0,0 +1,941 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ */
+package org.eclipse.paho.android.service;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.CRC32;
+
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+
+/**
+ * <p>
+ * Implementation of the {@link MessageStore} interface, which appends arrived
+ * messages to a log of segment files rather than inserting them into a
+ * database table.
+ * </p>
+ * <p>
+ * Each arrived message is written as one record at the end of the newest
+ * segment. Discarding a message appends a small tombstone record naming it,
+ * and clearing a client's messages appends a single record saying so. The
+ * set of messages still held is kept in memory, and is rebuilt by reading the
+ * segments in order when the store is opened. A torn record at the end of a
+ * segment, left by a crash part way through a write, is cut off.
+ * </p>
+ * <p>
+ * Once less than half of the oldest segment is live, or less than half of the
+ * whole log, a background thread copies the live messages in the oldest
+ * segment to the end of the log and deletes it. Only the oldest segment is
+ * ever compacted, so any tombstone it holds names a message in that same
+ * segment, and no tombstone is lost while the message it names survives.
+ * </p>
+ * <p>
+ * An arrived message is forced to disk before it is reported as stored.
+ * Tombstones are not, so after a crash a few messages which had already
+ * reached the application may be delivered to it again.
+ * </p>
+ */
+class AppendLogMessageStore implements GroupCommitMessageStore {
+
+	// TAG used for indentify trace data etc.
+	private static final String TAG = "AppendLogMessageStore";
+
+	private static final String SEGMENT_PREFIX = "arrived-";
+	private static final String SEGMENT_SUFFIX = ".log";
+
+	// the size at which a new segment is started, by default
+	static final long DEFAULT_SEGMENT_BYTES = 4 * 1024 * 1024;
+
+	// record types
+	private static final byte RECORD_ARRIVED = 1;
+	private static final byte RECORD_DISCARDED = 2;
+	private static final byte RECORD_CLEARED = 3;
+
+	// every record starts with the length of its body, and a CRC32 of it
+	private static final int RECORD_HEADER_BYTES = 8;
+
+	// no record body is larger than the largest MQTT payload, plus a little
+	private static final int MAX_RECORD_BYTES = 257 * 1024 * 1024;
+
+	private static final byte FLAG_RETAINED = 1;
+	private static final byte FLAG_DUPLICATE = 2;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final MqttTraceHandler traceHandler;
+	private final File directory;
+	private final long maxSegmentBytes;
+
+	// the segments, by number, and the one being appended to
+	private final TreeMap<Long, Segment> segments = new TreeMap<>();
+	private Segment activeSegment;
+
+	// the messages still held, by id - ids are handed out in arrival order
+	private final TreeMap<Long, Entry> entries = new TreeMap<>();
+	private final Map<String, Integer> arrivedCounts = new HashMap<>();
+	private long nextMessageId = 1;
+
+	private boolean closed = false;
+
+	private final ExecutorService compactor;
+	private boolean compactionScheduled = false;
+
+	private final Runnable compactTask = new Runnable() {
+		@Override
+		public void run() {
+			compact();
+		}
+	};
+
+	private volatile GroupCommitQueue<PendingAppend> groupCommitQueue = null;
+
+	/**
+	 * One file of the log
+	 */
+	private static class Segment {
+		final long number;
+		final File file;
+		final RandomAccessFile access;
+		final FileChannel channel;
+		// bytes written to the file
+		long size = 0;
+		// bytes of records for messages which are still held
+		long liveBytes = 0;
+
+		Segment(File directory, long number) throws IOException {
+			this.number = number;
+			this.file = new File(directory, SEGMENT_PREFIX + number
+					+ SEGMENT_SUFFIX);
+			this.access = new RandomAccessFile(file, "rw");
+			this.channel = access.getChannel();
+		}
+
+		void close() {
+			try {
+				access.close();
+			} catch (IOException e) {
+				// nothing more we can do with it
+			}
+		}
+	}
+
+	/**
+	 * Where a message still held is in the log
+	 */
+	private static class Entry {
+		final long id;
+		final String clientHandle;
+		Segment segment;
+		long offset;
+		final int length;
+
+		Entry(long id, String clientHandle, Segment segment, long offset,
+				int length) {
+			this.id = id;
+			this.clientHandle = clientHandle;
+			this.segment = segment;
+			this.offset = offset;
+			this.length = length;
+		}
+	}
+
+	/**
+	 * Constructor - open the log in a directory, creating it if need be, and
+	 * read which messages it holds
+	 *
+	 * @param traceHandler
+	 *            where to send trace
+	 * @param directory
+	 *            the directory holding the segments, used by nothing else
+	 * @param maxSegmentBytes
+	 *            the size at which a new segment is started
+	 * @throws IOException
+	 *             if the log cannot be opened
+	 */
+	AppendLogMessageStore(MqttTraceHandler traceHandler, File directory,
+			long maxSegmentBytes) throws IOException {
+		this.traceHandler = traceHandler;
+		this.directory = directory;
+		this.maxSegmentBytes = maxSegmentBytes;
+		this.compactor = Executors
+				.newSingleThreadExecutor(new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread thread = new Thread(r, TAG + ".compactor");
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+		open();
+		traceHandler.traceDebug(TAG, "AppendLogMessageStore<init> complete - "
+				+ entries.size() + " messages in " + segments.size()
+				+ " segments");
+	}
+
+	/**
+	 * Find the segments in the directory and replay them, oldest first
+	 */
+	private synchronized void open() throws IOException {
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Cannot create " + directory);
+		}
+		File[] files = directory.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				String name = file.getName();
+				if (!name.startsWith(SEGMENT_PREFIX)
+						|| !name.endsWith(SEGMENT_SUFFIX)) {
+					continue;
+				}
+				long number;
+				try {
+					number = Long.parseLong(name.substring(
+							SEGMENT_PREFIX.length(), name.length()
+									- SEGMENT_SUFFIX.length()));
+				} catch (NumberFormatException e) {
+					continue;
+				}
+				segments.put(number, new Segment(directory, number));
+			}
+		}
+		for (Segment segment : segments.values()) {
+			replay(segment);
+		}
+		if (segments.isEmpty()) {
+			activeSegment = openSegment(1);
+		} else {
+			activeSegment = segments.lastEntry().getValue();
+		}
+		scheduleCompaction();
+	}
+
+	/**
+	 * Read every record in a segment, cutting off anything after the last
+	 * complete one
+	 */
+	private void replay(Segment segment) throws IOException {
+		long fileSize = segment.channel.size();
+		ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_BYTES);
+		CRC32 crc = new CRC32();
+		long position = 0;
+		while (position < fileSize) {
+			header.clear();
+			if (!readFully(segment.channel, header, position)) {
+				break;
+			}
+			header.flip();
+			int length = header.getInt();
+			int checksum = header.getInt();
+			if (length <= 0 || length > MAX_RECORD_BYTES
+					|| position + RECORD_HEADER_BYTES + length > fileSize) {
+				break;
+			}
+			ByteBuffer body = ByteBuffer.allocate(length);
+			if (!readFully(segment.channel, body, position
+					+ RECORD_HEADER_BYTES)) {
+				break;
+			}
+			crc.reset();
+			crc.update(body.array(), 0, length);
+			if ((int) crc.getValue() != checksum) {
+				break;
+			}
+			body.flip();
+			if (!apply(segment, position, RECORD_HEADER_BYTES + length, body)) {
+				break;
+			}
+			position += RECORD_HEADER_BYTES + length;
+		}
+		if (position < fileSize) {
+			traceHandler.traceError(TAG, "replay: discarding "
+					+ (fileSize - position) + " bytes after offset "
+					+ position + " of " + segment.file.getName());
+			segment.channel.truncate(position);
+		}
+		segment.size = position;
+	}
+
+	/**
+	 * Apply one record read from the log to what we hold in memory
+	 *
+	 * @return false if the record is not one we understand
+	 */
+	private boolean apply(Segment segment, long offset, int length,
+			ByteBuffer body) {
+		switch (body.get()) {
+		case RECORD_ARRIVED: {
+			long id = body.getLong();
+			String clientHandle = getString(body);
+			// a later copy of a message, made by compaction, replaces the
+			// earlier one
+			Entry previous = entries.put(id, new Entry(id, clientHandle,
+					segment, offset, length));
+			if (previous != null) {
+				previous.segment.liveBytes -= previous.length;
+			} else {
+				adjustArrivedCount(clientHandle, 1);
+			}
+			segment.liveBytes += length;
+			nextMessageId = Math.max(nextMessageId, id + 1);
+			return true;
+		}
+		case RECORD_DISCARDED:
+			removeEntry(body.getLong());
+			return true;
+		case RECORD_CLEARED:
+			removeEntries(body.get() == 0 ? null : getString(body));
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	@Override
+	public void setGroupCommit(int maxMessages, long maxDelayMillis) {
+		GroupCommitQueue<PendingAppend> oldQueue = groupCommitQueue;
+		if (maxMessages > 1) {
+			groupCommitQueue = new GroupCommitQueue<>(TAG + ".groupCommit",
+					new AppendCommitter(), maxMessages, maxDelayMillis);
+		} else {
+			groupCommitQueue = null;
+		}
+		if (oldQueue != null) {
+			oldQueue.close();
+		}
+		traceHandler.traceDebug(TAG, "setGroupCommit{" + maxMessages + "}, {"
+				+ maxDelayMillis + "}");
+	}
+
+	/**
+	 * Make sure any messages waiting for a group commit have been written
+	 */
+	private void drainGroupCommit() {
+		GroupCommitQueue<PendingAppend> queue = groupCommitQueue;
+		if (queue != null) {
+			queue.drain();
+		}
+	}
+
+	/**
+	 * Store an MQTT message, forcing it to disk before returning
+	 *
+	 * @param clientHandle
+	 *            identifier for the client storing the message
+	 * @param topic
+	 *            The topic on which the message was published
+	 * @param message
+	 *            the arrived MQTT message
+	 * @return an identifier for the message, so that it can be removed when
+	 *         appropriate
+	 * @throws IllegalStateException
+	 *             if the message could not be written
+	 */
+	@Override
+	public synchronized String storeArrived(String clientHandle,
+			String topic, MqttMessage message) {
+		long id = nextMessageId++;
+		try {
+			appendArrived(id, clientHandle,
+					encodeArrived(id, clientHandle, topic, message));
+			activeSegment.channel.force(false);
+		} catch (IOException e) {
+			removeEntry(id);
+			traceHandler.traceException(TAG, "storeArrived", e);
+			throw new IllegalStateException("Cannot write to message log", e);
+		}
+		return Long.toString(id);
+	}
+
+	/**
+	 * Store an MQTT message, either straight away or as part of the next group
+	 * commit, if that has been turned on by {@link #setGroupCommit(int, long)}
+	 *
+	 * @param clientHandle
+	 *            identifier for the client storing the message
+	 * @param topic
+	 *            The topic on which the message was published
+	 * @param message
+	 *            the arrived MQTT message
+	 * @param listener
+	 *            told once the message is on disk
+	 */
+	@Override
+	public void storeArrived(String clientHandle, String topic,
+			MqttMessage message, StoreListener listener) {
+		GroupCommitQueue<PendingAppend> queue = groupCommitQueue;
+		if (queue == null) {
+			String id;
+			try {
+				id = storeArrived(clientHandle, topic, message);
+			} catch (IllegalStateException e) {
+				listener.onStoreFailure(e);
+				return;
+			}
+			listener.onStored(id);
+			return;
+		}
+		long id;
+		synchronized (this) {
+			// ids follow submission order, so the log stays in arrival order
+			id = nextMessageId++;
+		}
+		queue.submit(new PendingAppend(id, clientHandle,
+				encodeArrived(id, clientHandle, topic, message), listener));
+	}
+
+	/**
+	 * Discard a message, by appending a tombstone for it
+	 *
+	 * @param clientHandle
+	 *            identifier for the client which stored the message
+	 * @param id
+	 *            the identifier of the message to discard
+	 * @return true if the message was held, and has now been discarded
+	 */
+	@Override
+	public synchronized boolean discardArrived(String clientHandle, String id) {
+		long messageId;
+		try {
+			messageId = Long.parseLong(id);
+		} catch (NumberFormatException e) {
+			return false;
+		}
+		Entry entry = entries.get(messageId);
+		if (entry == null || !entry.clientHandle.equals(clientHandle)) {
+			return false;
+		}
+		ByteBuffer tombstone = newRecord(1 + 8);
+		tombstone.put(RECORD_DISCARDED);
+		tombstone.putLong(messageId);
+		try {
+			append(seal(tombstone));
+		} catch (IOException e) {
+			traceHandler.traceException(TAG, "discardArrived", e);
+			return false;
+		}
+		removeEntry(messageId);
+		scheduleCompaction();
+		return true;
+	}
+
+	/**
+	 * Discard several messages, by appending a tombstone for each
+	 *
+	 * @param clientHandle
+	 *            identifier for the client which stored the messages
+	 * @param ids
+	 *            the identifiers of the messages to discard
+	 * @return the number of messages which were held, and have now been
+	 *         discarded
+	 */
+	@Override
+	public synchronized int discardArrived(String clientHandle,
+			List<String> ids) {
+		int discarded = 0;
+		for (String id : ids) {
+			if (discardArrived(clientHandle, id)) {
+				discarded++;
+			}
+		}
+		return discarded;
+	}
+
+	/**
+	 * Get the number of stored messages, from the counts kept in memory
+	 */
+	@Override
+	public synchronized int getArrivedMessageCount(String clientHandle) {
+		if (clientHandle == null) {
+			return entries.size();
+		}
+		Integer count = arrivedCounts.get(clientHandle);
+		return count == null ? 0 : count;
+	}
+
+	/**
+	 * Get an iterator over all messages stored (optionally for a specific
+	 * client). Messages are read from the log one at a time, as the iterator
+	 * reaches them.
+	 *
+	 * @param clientHandle
+	 *            identifier for the client.<br>
+	 *            If null, all messages are retrieved
+	 * @return iterator of all the arrived MQTT messages
+	 */
+	@Override
+	public Iterator<StoredMessage> getAllArrivedMessages(String clientHandle) {
+		drainGroupCommit();
+		long[] ids;
+		synchronized (this) {
+			ids = new long[clientHandle == null ? entries.size()
+					: getArrivedMessageCount(clientHandle)];
+			int count = 0;
+			for (Entry entry : entries.values()) {
+				if (clientHandle == null
+						|| entry.clientHandle.equals(clientHandle)) {
+					ids[count++] = entry.id;
+				}
+			}
+		}
+		return new LogIterator(ids);
+	}
+
+	/**
+	 * Walks a snapshot of the ids held, reading each message from the log as
+	 * it is reached, and skipping any discarded since the snapshot was taken
+	 */
+	private class LogIterator implements Iterator<StoredMessage> {
+
+		private final long[] ids;
+		private int index = 0;
+		private StoredMessage next = null;
+
+		LogIterator(long[] ids) {
+			this.ids = ids;
+		}
+
+		@Override
+		public boolean hasNext() {
+			while (next == null && index < ids.length) {
+				next = readMessage(ids[index++]);
+			}
+			return next != null;
+		}
+
+		@Override
+		public StoredMessage next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			StoredMessage message = next;
+			next = null;
+			return message;
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+	}
+
+	/**
+	 * Read a message held in the log
+	 *
+	 * @return the message, or null if it is no longer held or cannot be read
+	 */
+	private synchronized StoredMessage readMessage(long id) {
+		Entry entry = entries.get(id);
+		if (entry == null) {
+			return null;
+		}
+		ByteBuffer record = ByteBuffer.allocate(entry.length);
+		try {
+			if (!readFully(entry.segment.channel, record, entry.offset)) {
+				throw new IOException("Unexpected end of "
+						+ entry.segment.file.getName());
+			}
+		} catch (IOException e) {
+			traceHandler.traceException(TAG, "getAllArrivedMessages", e);
+			return null;
+		}
+		record.flip();
+		record.position(RECORD_HEADER_BYTES + 1 + 8);
+		String clientHandle = getString(record);
+		String topic = getString(record);
+		int qos = record.get();
+		byte flags = record.get();
+		byte[] payload = new byte[record.getInt()];
+		record.get(payload);
+
+		MqttMessageHack message = new MqttMessageHack(payload);
+		message.setQos(qos);
+		message.setRetained((flags & FLAG_RETAINED) != 0);
+		message.setDuplicate((flags & FLAG_DUPLICATE) != 0);
+		return new StoredArrivedMessage(Long.toString(id), clientHandle, topic,
+				message);
+	}
+
+	/**
+	 * Delete all messages (optionally for a specific client)
+	 *
+	 * @param clientHandle
+	 *            identifier for the client.<br>
+	 *            If null, all messages are deleted
+	 */
+	@Override
+	public void clearArrivedMessages(String clientHandle) {
+		drainGroupCommit();
+		synchronized (this) {
+			byte[] handle = clientHandle == null ? null : clientHandle
+					.getBytes(UTF8);
+			ByteBuffer record = newRecord(1 + 1
+					+ (handle == null ? 0 : 4 + handle.length));
+			record.put(RECORD_CLEARED);
+			if (handle == null) {
+				record.put((byte) 0);
+			} else {
+				record.put((byte) 1);
+				putBytes(record, handle);
+			}
+			try {
+				append(seal(record));
+				activeSegment.channel.force(false);
+			} catch (IOException e) {
+				traceHandler.traceException(TAG, "clearArrivedMessages", e);
+				return;
+			}
+			int removed = removeEntries(clientHandle);
+			traceHandler.traceDebug(TAG,
+					"clearArrivedMessages: messages removed = " + removed);
+			scheduleCompaction();
+		}
+	}
+
+	@Override
+	public void close() {
+		GroupCommitQueue<PendingAppend> queue = groupCommitQueue;
+		if (queue != null) {
+			queue.close();
+		}
+		synchronized (this) {
+			closed = true;
+			compactor.shutdown();
+			for (Segment segment : segments.values()) {
+				segment.close();
+			}
+		}
+	}
+
+	/**
+	 * Start compacting the oldest segment in the background, if it is worth
+	 * doing
+	 */
+	private void scheduleCompaction() {
+		if (compactionScheduled || closed || !needsCompaction()) {
+			return;
+		}
+		compactionScheduled = true;
+		compactor.execute(compactTask);
+	}
+
+	/**
+	 * @return true if less than half of the oldest segment, or of the whole
+	 *         log, is live
+	 */
+	private boolean needsCompaction() {
+		if (segments.size() < 2) {
+			return false;
+		}
+		Segment oldest = segments.firstEntry().getValue();
+		if (oldest.liveBytes * 2 <= oldest.size) {
+			return true;
+		}
+		long size = 0;
+		long liveBytes = 0;
+		for (Segment segment : segments.values()) {
+			size += segment.size;
+			liveBytes += segment.liveBytes;
+		}
+		return liveBytes * 2 < size;
+	}
+
+	/**
+	 * Compact the oldest segment for as long as that is worth doing - one
+	 * segment at a time, so that arriving messages are not held up for long.
+	 * Run on the compactor thread.
+	 */
+	void compact() {
+		// each segment is compacted at most once per run
+		int remaining;
+		synchronized (this) {
+			remaining = segments.size() - 1;
+		}
+		while (true) {
+			synchronized (this) {
+				if (closed || remaining-- <= 0 || !needsCompaction()) {
+					compactionScheduled = false;
+					return;
+				}
+				try {
+					compactOldest();
+				} catch (IOException e) {
+					traceHandler.traceException(TAG, "compact", e);
+					compactionScheduled = false;
+					return;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Copy the live messages in the oldest segment to the end of the log, then
+	 * delete it
+	 */
+	private void compactOldest() throws IOException {
+		Segment oldest = segments.firstEntry().getValue();
+		int moved = 0;
+		for (Entry entry : entries.values()) {
+			if (entry.segment != oldest) {
+				continue;
+			}
+			ByteBuffer record = ByteBuffer.allocate(entry.length);
+			if (!readFully(oldest.channel, record, entry.offset)) {
+				throw new IOException("Unexpected end of "
+						+ oldest.file.getName());
+			}
+			record.flip();
+			long offset = append(record);
+			oldest.liveBytes -= entry.length;
+			entry.segment = activeSegment;
+			entry.offset = offset;
+			activeSegment.liveBytes += entry.length;
+			moved++;
+		}
+		// the copies must be on disk before the originals go
+		activeSegment.channel.force(false);
+		segments.remove(oldest.number);
+		oldest.close();
+		if (!oldest.file.delete()) {
+			traceHandler.traceError(TAG, "compact: cannot delete "
+					+ oldest.file.getName());
+		}
+		traceHandler.traceDebug(TAG, "compact: deleted "
+				+ oldest.file.getName() + ", " + moved + " messages moved");
+	}
+
+	/**
+	 * Append an arrived message to the log, and note where it is
+	 */
+	private void appendArrived(long id, String clientHandle, ByteBuffer record)
+			throws IOException {
+		int length = record.remaining();
+		long offset = append(record);
+		entries.put(id, new Entry(id, clientHandle, activeSegment, offset,
+				length));
+		activeSegment.liveBytes += length;
+		adjustArrivedCount(clientHandle, 1);
+	}
+
+	/**
+	 * Append a record to the active segment, first starting a new segment if
+	 * this one is full
+	 *
+	 * @return the offset of the record in the active segment
+	 */
+	private long append(ByteBuffer record) throws IOException {
+		int length = record.remaining();
+		if (activeSegment.size > 0
+				&& activeSegment.size + length > maxSegmentBytes) {
+			activeSegment.channel.force(false);
+			activeSegment = openSegment(activeSegment.number + 1);
+		}
+		long offset = activeSegment.size;
+		while (record.hasRemaining()) {
+			activeSegment.channel.write(record, offset + length
+					- record.remaining());
+		}
+		activeSegment.size += length;
+		return offset;
+	}
+
+	private Segment openSegment(long number) throws IOException {
+		Segment segment = new Segment(directory, number);
+		segments.put(number, segment);
+		return segment;
+	}
+
+	private Entry removeEntry(long id) {
+		Entry entry = entries.remove(id);
+		if (entry != null) {
+			entry.segment.liveBytes -= entry.length;
+			adjustArrivedCount(entry.clientHandle, -1);
+		}
+		return entry;
+	}
+
+	/**
+	 * @return the number of messages removed
+	 */
+	private int removeEntries(String clientHandle) {
+		int removed = 0;
+		Iterator<Entry> it = entries.values().iterator();
+		while (it.hasNext()) {
+			Entry entry = it.next();
+			if (clientHandle == null
+					|| entry.clientHandle.equals(clientHandle)) {
+				it.remove();
+				entry.segment.liveBytes -= entry.length;
+				adjustArrivedCount(entry.clientHandle, -1);
+				removed++;
+			}
+		}
+		return removed;
+	}
+
+	private void adjustArrivedCount(String clientHandle, int delta) {
+		Integer count = arrivedCounts.get(clientHandle);
+		int newCount = (count == null ? 0 : count) + delta;
+		if (newCount > 0) {
+			arrivedCounts.put(clientHandle, newCount);
+		} else {
+			arrivedCounts.remove(clientHandle);
+		}
+	}
+
+	/**
+	 * Encode an arrived message as a complete record
+	 */
+	private static ByteBuffer encodeArrived(long id, String clientHandle,
+			String topic, MqttMessage message) {
+		byte[] handle = clientHandle.getBytes(UTF8);
+		byte[] topicBytes = topic.getBytes(UTF8);
+		byte[] payload = message.getPayload();
+		ByteBuffer record = newRecord(1 + 8 + 4 + handle.length + 4
+				+ topicBytes.length + 1 + 1 + 4 + payload.length);
+		record.put(RECORD_ARRIVED);
+		record.putLong(id);
+		putBytes(record, handle);
+		putBytes(record, topicBytes);
+		record.put((byte) message.getQos());
+		record.put((byte) ((message.isRetained() ? FLAG_RETAINED : 0) | (message
+				.isDuplicate() ? FLAG_DUPLICATE : 0)));
+		putBytes(record, payload);
+		return seal(record);
+	}
+
+	/**
+	 * @return a buffer for a record with a body of the given length,
+	 *         positioned at the start of the body
+	 */
+	private static ByteBuffer newRecord(int bodyLength) {
+		ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_BYTES
+				+ bodyLength);
+		record.putInt(bodyLength);
+		record.putInt(0);
+		return record;
+	}
+
+	/**
+	 * Fill in the checksum of a record whose body has been written, and ready
+	 * it for writing
+	 */
+	private static ByteBuffer seal(ByteBuffer record) {
+		CRC32 crc = new CRC32();
+		crc.update(record.array(), RECORD_HEADER_BYTES, record.position()
+				- RECORD_HEADER_BYTES);
+		record.putInt(4, (int) crc.getValue());
+		record.flip();
+		return record;
+	}
+
+	private static void putBytes(ByteBuffer buffer, byte[] bytes) {
+		buffer.putInt(bytes.length);
+		buffer.put(bytes);
+	}
+
+	private static String getString(ByteBuffer buffer) {
+		byte[] bytes = new byte[buffer.getInt()];
+		buffer.get(bytes);
+		return new String(bytes, UTF8);
+	}
+
+	/**
+	 * Fill a buffer from a channel, starting at a position in the file
+	 *
+	 * @return false if the end of the file was reached first
+	 */
+	private static boolean readFully(FileChannel channel, ByteBuffer buffer,
+			long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, position + buffer.position()) < 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * An arrived message on its way into the log
+	 */
+	private static class PendingAppend {
+		private final long id;
+		private final String clientHandle;
+		private final ByteBuffer record;
+		private final StoreListener listener;
+
+		PendingAppend(long id, String clientHandle, ByteBuffer record,
+				StoreListener listener) {
+			this.id = id;
+			this.clientHandle = clientHandle;
+			this.record = record;
+			this.listener = listener;
+		}
+	}
+
+	/**
+	 * Appends a group of arrived messages, forcing them to disk together
+	 */
+	private class AppendCommitter implements
+			GroupCommitQueue.Committer<PendingAppend> {
+
+		@Override
+		public void commit(List<PendingAppend> batch) throws IOException {
+			synchronized (AppendLogMessageStore.this) {
+				List<PendingAppend> appended = new ArrayList<>(batch.size());
+				try {
+					for (PendingAppend pending : batch) {
+						appendArrived(pending.id, pending.clientHandle,
+								pending.record);
+						appended.add(pending);
+					}
+					activeSegment.channel.force(false);
+				} catch (IOException e) {
+					// the server will send these again, as none are acked
+					for (PendingAppend pending : appended) {
+						removeEntry(pending.id);
+					}
+					throw e;
+				}
+			}
+		}
+
+		@Override
+		public void onCommitted(List<PendingAppend> batch) {
+			for (PendingAppend pending : batch) {
+				pending.listener.onStored(Long.toString(pending.id));
+			}
+		}
+
+		@Override
+		public void onCommitFailed(List<PendingAppend> batch, Exception e) {
+			traceHandler.traceException(TAG, "storeArrived", e);
+			for (PendingAppend pending : batch) {
+				pending.listener.onStoreFailure(e);
+			}
+		}
+	}
+}
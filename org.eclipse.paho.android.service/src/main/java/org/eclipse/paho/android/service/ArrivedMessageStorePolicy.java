@@ -0,0 +1,71 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ */
+package org.eclipse.paho.android.service;
+
+/**
+ * <p>
+ * Which arrived messages the service keeps only in memory until the
+ * application has received them, rather than writing them to its
+ * {@link MessageStore}.
+ * </p>
+ * <p>
+ * Messages kept in memory are held in a bounded buffer for each client. They
+ * are lost if the service is killed, and the oldest are dropped if the
+ * application falls too far behind.
+ * </p>
+ */
+public enum ArrivedMessageStorePolicy {
+	/**
+	 * Every arrived message is written to the message store
+	 */
+	DURABLE,
+
+	/**
+	 * QoS 0 messages are kept in memory - the server makes no promise to
+	 * deliver them at all
+	 */
+	MEMORY_FOR_QOS0,
+
+	/**
+	 * QoS 0 messages, and every message for a clean session, are kept in
+	 * memory. A clean session throws away stored messages when it reconnects,
+	 * so only QoS 1 and 2 messages for a durable session are written to the
+	 * message store.
+	 */
+	MEMORY_FOR_VOLATILE,
+
+	/**
+	 * Every arrived message is kept in memory
+	 */
+	MEMORY;
+
+	/**
+	 * @param qos
+	 *            the QoS of an arrived message
+	 * @param cleanSession
+	 *            whether the message arrived for a clean session
+	 * @return true if the message should be kept only in memory
+	 */
+	boolean inMemory(int qos, boolean cleanSession) {
+		switch (this) {
+		case MEMORY_FOR_QOS0:
+			return qos == 0;
+		case MEMORY_FOR_VOLATILE:
+			return qos == 0 || cleanSession;
+		case MEMORY:
+			return true;
+		default:
+			return false;
+		}
+	}
+}
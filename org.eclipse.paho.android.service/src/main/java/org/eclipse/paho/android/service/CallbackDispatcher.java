@@ -0,0 +1,205 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ */
+package org.eclipse.paho.android.service;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import android.os.Handler;
+import android.os.Looper;
+
+/**
+ * <p>
+ * Runs one client's callbacks on an application supplied {@link Executor},
+ * one at a time and in the order in which they were submitted, however many
+ * threads the executor has.
+ * </p>
+ * <p>
+ * At most <code>capacity</code> callbacks wait to be run. A thread submitting
+ * a callback to a full queue waits for room, which slows the service's
+ * network thread down to the rate at which the application takes its
+ * callbacks. The <code>noWaitThread</code> (the main thread, which must not
+ * block) and the thread running the callbacks are never made to wait - their
+ * callbacks are queued beyond the capacity, and counted as overflows.
+ * </p>
+ * <p>
+ * Once the executor rejects a task - it has been shut down, or its Looper
+ * has quit - no callback will be run again: those waiting are dropped, and
+ * so is every one submitted after, rather than leave a submitter waiting for
+ * room for ever.
+ * </p>
+ */
+class CallbackDispatcher implements Executor {
+
+	private final Executor target;
+	private final int capacity;
+	private final Thread noWaitThread;
+
+	private final ArrayDeque<Runnable> queue = new ArrayDeque<>();
+
+	// true while a task to run the next callback is with the target executor
+	private boolean scheduled = false;
+	// the thread running a callback, if one is running
+	private Thread runningThread = null;
+	// true once the target executor has rejected a task
+	private boolean rejected = false;
+
+	private long submitted = 0;
+	private long dispatched = 0;
+	private long waits = 0;
+	private long waitNanos = 0;
+	private long overflows = 0;
+	private long dropped = 0;
+	private int highWaterMark = 0;
+
+	private final Runnable runNext = new Runnable() {
+		@Override
+		public void run() {
+			Runnable callback;
+			synchronized (CallbackDispatcher.this) {
+				callback = queue.poll();
+				if (callback == null) {
+					scheduled = false;
+					return;
+				}
+				runningThread = Thread.currentThread();
+				// there is room for a waiting submitter now
+				CallbackDispatcher.this.notifyAll();
+			}
+			try {
+				callback.run();
+			}
+			finally {
+				synchronized (CallbackDispatcher.this) {
+					runningThread = null;
+					dispatched++;
+					if (queue.isEmpty()) {
+						scheduled = false;
+					}
+					else {
+						// one callback per task, so that a Looper's other
+						// messages are not held up behind a long queue
+						schedule();
+					}
+				}
+			}
+		}
+	};
+
+	/**
+	 * Constructor
+	 *
+	 * @param target
+	 *            runs the callbacks
+	 * @param capacity
+	 *            the largest number of callbacks which wait to be run
+	 * @param noWaitThread
+	 *            a thread which is never made to wait for room, or null
+	 */
+	CallbackDispatcher(Executor target, int capacity, Thread noWaitThread) {
+		if (capacity < 1) {
+			throw new IllegalArgumentException("capacity must be positive");
+		}
+		this.target = target;
+		this.capacity = capacity;
+		this.noWaitThread = noWaitThread;
+	}
+
+	/**
+	 * @param looper
+	 *            the Looper whose thread is to run tasks
+	 * @return an Executor which posts tasks to the Looper
+	 */
+	static Executor forLooper(Looper looper) {
+		final Handler handler = new Handler(looper);
+		return new Executor() {
+			@Override
+			public void execute(Runnable command) {
+				if (!handler.post(command)) {
+					throw new RejectedExecutionException("the Looper has quit");
+				}
+			}
+		};
+	}
+
+	/**
+	 * Queue a callback, waiting for room if the queue is full
+	 */
+	@Override
+	public synchronized void execute(Runnable callback) {
+		if (rejected) {
+			dropped++;
+			return;
+		}
+		if (queue.size() >= capacity) {
+			Thread current = Thread.currentThread();
+			if (current == noWaitThread || current == runningThread) {
+				overflows++;
+			}
+			else {
+				waits++;
+				long start = System.nanoTime();
+				try {
+					while (queue.size() >= capacity && !rejected) {
+						wait();
+					}
+				}
+				catch (InterruptedException e) {
+					// queue it anyway, rather than lose it
+					overflows++;
+					current.interrupt();
+				}
+				waitNanos += System.nanoTime() - start;
+				if (rejected) {
+					dropped++;
+					return;
+				}
+			}
+		}
+		queue.add(callback);
+		submitted++;
+		highWaterMark = Math.max(highWaterMark, queue.size());
+		if (!scheduled) {
+			scheduled = true;
+			schedule();
+		}
+	}
+
+	/**
+	 * Hand the target a task to run the next callback - or, if it will take
+	 * no more, drop the callbacks waiting and let any waiting submitter go.
+	 * Called holding the lock, with scheduled set.
+	 */
+	private void schedule() {
+		try {
+			target.execute(runNext);
+		}
+		catch (RejectedExecutionException e) {
+			rejected = true;
+			scheduled = false;
+			dropped += queue.size();
+			queue.clear();
+			notifyAll();
+		}
+	}
+
+	/**
+	 * @return a snapshot of the queue's counters
+	 */
+	synchronized CallbackQueueStats getStats() {
+		return new CallbackQueueStats(capacity, queue.size(), highWaterMark,
+				submitted, dispatched, waits, waitNanos / 1000000, overflows,
+				dropped);
+	}
+}
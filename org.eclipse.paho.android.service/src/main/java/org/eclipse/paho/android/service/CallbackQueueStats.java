@@ -0,0 +1,122 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ */
+package org.eclipse.paho.android.service;
+
+/**
+ * A snapshot of the queue of callbacks waiting to be passed to an
+ * {@link MqttAndroidClient}'s application, from
+ * {@link MqttAndroidClient#getCallbackQueueStats()}
+ */
+public final class CallbackQueueStats {
+
+	private final int capacity;
+	private final int queued;
+	private final int highWaterMark;
+	private final long submitted;
+	private final long dispatched;
+	private final long waitCount;
+	private final long waitMillis;
+	private final long overflowCount;
+	private final long droppedCount;
+
+	CallbackQueueStats(int capacity, int queued, int highWaterMark,
+			long submitted, long dispatched, long waitCount, long waitMillis,
+			long overflowCount, long droppedCount) {
+		this.capacity = capacity;
+		this.queued = queued;
+		this.highWaterMark = highWaterMark;
+		this.submitted = submitted;
+		this.dispatched = dispatched;
+		this.waitCount = waitCount;
+		this.waitMillis = waitMillis;
+		this.overflowCount = overflowCount;
+		this.droppedCount = droppedCount;
+	}
+
+	/**
+	 * @return the largest number of callbacks which wait to be run
+	 */
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * @return the number of callbacks waiting to be run now
+	 */
+	public int getQueued() {
+		return queued;
+	}
+
+	/**
+	 * @return the largest number of callbacks that have waited at once
+	 */
+	public int getHighWaterMark() {
+		return highWaterMark;
+	}
+
+	/**
+	 * @return the number of callbacks queued so far
+	 */
+	public long getSubmitted() {
+		return submitted;
+	}
+
+	/**
+	 * @return the number of callbacks run so far
+	 */
+	public long getDispatched() {
+		return dispatched;
+	}
+
+	/**
+	 * @return the number of times the service had to wait for room in the
+	 *         queue
+	 */
+	public long getWaitCount() {
+		return waitCount;
+	}
+
+	/**
+	 * @return the total time, in milliseconds, the service has waited for
+	 *         room in the queue
+	 */
+	public long getWaitMillis() {
+		return waitMillis;
+	}
+
+	/**
+	 * @return the number of callbacks queued beyond the capacity, because
+	 *         they came from a thread which must not wait
+	 */
+	public long getOverflowCount() {
+		return overflowCount;
+	}
+
+	/**
+	 * @return the number of callbacks dropped because the Executor or Looper
+	 *         running them would take no more - it was shut down, or quit
+	 */
+	public long getDroppedCount() {
+		return droppedCount;
+	}
+
+	@Override
+	public String toString() {
+		return "CallbackQueueStats [queued=" + queued + "/" + capacity
+				+ ", highWaterMark=" + highWaterMark + ", submitted="
+				+ submitted + ", dispatched=" + dispatched + ", waitCount="
+				+ waitCount + ", waitMillis=" + waitMillis
+				+ ", overflowCount=" + overflowCount + ", droppedCount="
+				+ droppedCount + "]";
+	}
+}
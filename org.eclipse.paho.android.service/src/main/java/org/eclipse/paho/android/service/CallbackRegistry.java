@@ -0,0 +1,248 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ */
+package org.eclipse.paho.android.service;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+
+import android.os.Bundle;
+
+/**
+ * <p>
+ * Clients in the same process as the {@link MqttService}, which take their
+ * callbacks directly rather than by broadcast, keyed by client handle.
+ * </p>
+ * <p>
+ * Each listener is called on the executor it registered with. Arrived and
+ * delivered messages are passed as they are; other callbacks carry the same
+ * Bundle as the broadcast would have. When no listener is registered for a
+ * client, each method returns false, and the caller broadcasts instead.
+ * </p>
+ */
+class CallbackRegistry {
+
+	/**
+	 * Receives callbacks for one client
+	 */
+	interface Listener {
+		/**
+		 * A message has arrived, and been stored
+		 *
+		 * @param messageId
+		 *            the message's identifier in the message store
+		 * @param topic
+		 *            the topic on which the message arrived
+		 * @param message
+		 *            the message itself
+		 * @param listenerIds
+		 *            the client's listeners for the subscriptions the topic
+		 *            matches, or an empty array if it is for the callback
+		 */
+		void messageArrived(String messageId, String topic,
+				MqttMessage message, int[] listenerIds);
+
+		/**
+		 * A batch of messages has arrived, and been stored
+		 *
+		 * @param messages
+		 *            the messages, in the order in which they arrived
+		 */
+		void messagesArrived(List<MessageStore.StoredMessage> messages);
+
+		/**
+		 * A message sent by the client has been delivered
+		 *
+		 * @param activityToken
+		 *            the token passed when the message was sent, or
+		 *            {@link MqttServiceConstants#NO_ACTIVITY_TOKEN} if there
+		 *            was none
+		 */
+		void messageDelivered(int activityToken);
+
+		/**
+		 * Any other callback
+		 *
+		 * @param data
+		 *            the callback's data, including its status
+		 */
+		void callback(Bundle data);
+	}
+
+	private static class Registration {
+		final Listener listener;
+		final Executor executor;
+
+		Registration(Listener listener, Executor executor) {
+			this.listener = listener;
+			this.executor = executor;
+		}
+	}
+
+	private final ConcurrentHashMap<String, CopyOnWriteArrayList<Registration>> registrations = new ConcurrentHashMap<>();
+
+	/**
+	 * Start passing a client's callbacks to a listener
+	 *
+	 * @param clientHandle
+	 *            identifier for the client
+	 * @param listener
+	 *            receives the callbacks
+	 * @param executor
+	 *            the listener is called on this - it should run tasks one at a
+	 *            time, in order
+	 */
+	synchronized void register(String clientHandle, Listener listener,
+			Executor executor) {
+		CopyOnWriteArrayList<Registration> list = registrations
+				.get(clientHandle);
+		if (list == null) {
+			list = new CopyOnWriteArrayList<>();
+			registrations.put(clientHandle, list);
+		}
+		for (Registration registration : list) {
+			if (registration.listener == listener) {
+				list.remove(registration);
+			}
+		}
+		list.add(new Registration(listener, executor));
+	}
+
+	/**
+	 * Stop passing a client's callbacks to a listener
+	 *
+	 * @param clientHandle
+	 *            identifier for the client
+	 * @param listener
+	 *            the listener to remove
+	 */
+	synchronized void unregister(String clientHandle, Listener listener) {
+		CopyOnWriteArrayList<Registration> list = registrations
+				.get(clientHandle);
+		if (list == null) {
+			return;
+		}
+		for (Registration registration : list) {
+			if (registration.listener == listener) {
+				list.remove(registration);
+			}
+		}
+		if (list.isEmpty()) {
+			registrations.remove(clientHandle);
+		}
+	}
+
+	/**
+	 * @param clientHandle
+	 *            identifier for the client
+	 * @return true if a listener is registered for the client
+	 */
+	boolean isRegistered(String clientHandle) {
+		return registrations.containsKey(clientHandle);
+	}
+
+	/**
+	 * @return true if the message was passed to a listener
+	 */
+	boolean messageArrived(String clientHandle, final String messageId,
+			final String topic, final MqttMessage message,
+			final int[] listenerIds) {
+		CopyOnWriteArrayList<Registration> list = registrations
+				.get(clientHandle);
+		if (list == null) {
+			return false;
+		}
+		boolean passed = false;
+		for (final Registration registration : list) {
+			registration.executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					registration.listener.messageArrived(messageId, topic,
+							message, listenerIds);
+				}
+			});
+			passed = true;
+		}
+		return passed;
+	}
+
+	/**
+	 * @return true if the batch was passed to a listener
+	 */
+	boolean messagesArrived(String clientHandle,
+			final List<MessageStore.StoredMessage> messages) {
+		CopyOnWriteArrayList<Registration> list = registrations
+				.get(clientHandle);
+		if (list == null) {
+			return false;
+		}
+		boolean passed = false;
+		for (final Registration registration : list) {
+			registration.executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					registration.listener.messagesArrived(messages);
+				}
+			});
+			passed = true;
+		}
+		return passed;
+	}
+
+	/**
+	 * @return true if the delivery was passed to a listener
+	 */
+	boolean messageDelivered(String clientHandle, final int activityToken) {
+		CopyOnWriteArrayList<Registration> list = registrations
+				.get(clientHandle);
+		if (list == null) {
+			return false;
+		}
+		boolean passed = false;
+		for (final Registration registration : list) {
+			registration.executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					registration.listener.messageDelivered(activityToken);
+				}
+			});
+			passed = true;
+		}
+		return passed;
+	}
+
+	/**
+	 * @return true if the callback was passed to a listener
+	 */
+	boolean callback(String clientHandle, final Bundle data) {
+		CopyOnWriteArrayList<Registration> list = registrations
+				.get(clientHandle);
+		if (list == null) {
+			return false;
+		}
+		boolean passed = false;
+		for (final Registration registration : list) {
+			registration.executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					registration.listener.callback(data);
+				}
+			});
+			passed = true;
+		}
+		return passed;
+	}
+}
@@ -15,7 +15,12 @@
  */
 package org.eclipse.paho.android.service;
 
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.eclipse.paho.client.mqttv3.MqttMessage;
 
@@ -30,7 +35,7 @@ import android.database.sqlite.SQLiteOpenHelper;
  * Implementation of the {@link MessageStore} interface, using a SQLite database
  * 
  */
-class DatabaseMessageStore implements MessageStore {
+class DatabaseMessageStore implements GroupCommitMessageStore {
 
 	// TAG used for indentify trace data etc.
 	private static final String TAG = "DatabaseMessageStore";
@@ -42,6 +47,48 @@ class DatabaseMessageStore implements MessageStore {
 	// the name of the table in the database to which we will save messages
 	private static final String ARRIVED_MESSAGE_TABLE_NAME = "MqttArrivedMessageTable";
 
+	// payloads larger than this are not fetched with the rest of their row,
+	// but read separately in chunks of this size, as a CursorWindow is only
+	// 2MB
+	private static final int PAYLOAD_CHUNK_BYTES = 512 * 1024;
+
+	// backlog pages are at most this many rows, and stop growing once they
+	// hold this many payload bytes
+	private static final int PAGE_ROWS = 64;
+	private static final int PAGE_BYTES = 1024 * 1024;
+
+	// a batch discard deletes at most this many ids per statement, well within
+	// SQLite's limit of 999 parameters
+	private static final int DISCARD_CHUNK = 500;
+
+	// the columns read for a backlog page, and their positions
+	private static final String[] PAGE_COLUMNS = {
+			MqttServiceConstants.MESSAGE_ID,
+			MqttServiceConstants.CLIENT_HANDLE,
+			MqttServiceConstants.DESTINATION_NAME,
+			"CASE WHEN length(" + MqttServiceConstants.PAYLOAD + ") <= "
+					+ PAYLOAD_CHUNK_BYTES + " THEN "
+					+ MqttServiceConstants.PAYLOAD + " END",
+			"length(" + MqttServiceConstants.PAYLOAD + ")",
+			MqttServiceConstants.QOS,
+			MqttServiceConstants.RETAINED,
+			MqttServiceConstants.DUPLICATE,
+			MTIMESTAMP };
+	private static final int COLUMN_MESSAGE_ID = 0;
+	private static final int COLUMN_CLIENT_HANDLE = 1;
+	private static final int COLUMN_DESTINATION_NAME = 2;
+	private static final int COLUMN_PAYLOAD = 3;
+	private static final int COLUMN_PAYLOAD_LENGTH = 4;
+	private static final int COLUMN_QOS = 5;
+	private static final int COLUMN_RETAINED = 6;
+	private static final int COLUMN_DUPLICATE = 7;
+	private static final int COLUMN_MTIMESTAMP = 8;
+
+	// the order in which arrived messages are returned - message ids are
+	// assigned in arrival order, so they break any timestamp ties
+	private static final String ARRIVED_MESSAGE_ORDER = MTIMESTAMP + " ASC, "
+			+ MqttServiceConstants.MESSAGE_ID + " ASC";
+
 	// the database
 	private SQLiteDatabase db = null;
 
@@ -51,6 +98,18 @@ class DatabaseMessageStore implements MessageStore {
 	// a place to send trace data
 	private MqttTraceHandler traceHandler = null;
 
+	// our parent service, asked whether tracing is on before we build trace
+	// strings
+	private MqttService service = null;
+
+	// number of arrived messages held for each client, seeded from the
+	// database the first time it is needed
+	private final ConcurrentHashMap<String, AtomicInteger> arrivedCounts = new ConcurrentHashMap<>();
+	private volatile boolean arrivedCountsLoaded = false;
+
+	// when not null, arrived messages are written in groups by this queue
+	private volatile GroupCommitQueue<PendingArrival> groupCommitQueue = null;
+
 	/**
 	 * We need a SQLiteOpenHelper to handle database creation and updating
 	 * 
@@ -62,8 +121,17 @@ class DatabaseMessageStore implements MessageStore {
 		private static final String DATABASE_NAME = "mqttAndroidService.db";
 
 		// database version, used to recognise when we need to upgrade
-		// (delete and recreate)
-		private static final int DATABASE_VERSION = 1;
+		// version 1 - TEXT (UUID) message ids, TEXT retained/duplicate flags
+		// version 2 - INTEGER (rowid) message ids, INTEGER flags and an index
+		// on (clientHandle, mtimestamp)
+		private static final int DATABASE_VERSION = 2;
+
+		// name of the index used for per-client, time ordered queries
+		private static final String ARRIVED_MESSAGE_INDEX_NAME = "MqttArrivedMessageIndex";
+
+		// the version 1 table is renamed to this while it is migrated
+		private static final String ARRIVED_MESSAGE_TABLE_NAME_V1 = ARRIVED_MESSAGE_TABLE_NAME
+				+ "_v1";
 
 		// a place to send trace data
 		private MqttTraceHandler traceHandler = null;
@@ -88,18 +156,25 @@ class DatabaseMessageStore implements MessageStore {
 		public void onCreate(SQLiteDatabase database) {
 			String createArrivedTableStatement = "CREATE TABLE "
 					+ ARRIVED_MESSAGE_TABLE_NAME + "("
-					+ MqttServiceConstants.MESSAGE_ID + " TEXT PRIMARY KEY, "
+					+ MqttServiceConstants.MESSAGE_ID
+					+ " INTEGER PRIMARY KEY AUTOINCREMENT, "
 					+ MqttServiceConstants.CLIENT_HANDLE + " TEXT, "
 					+ MqttServiceConstants.DESTINATION_NAME + " TEXT, "
 					+ MqttServiceConstants.PAYLOAD + " BLOB, "
 					+ MqttServiceConstants.QOS + " INTEGER, "
-					+ MqttServiceConstants.RETAINED + " TEXT, "
-					+ MqttServiceConstants.DUPLICATE + " TEXT, " + MTIMESTAMP
+					+ MqttServiceConstants.RETAINED + " INTEGER, "
+					+ MqttServiceConstants.DUPLICATE + " INTEGER, " + MTIMESTAMP
 					+ " INTEGER" + ");";
+			String createArrivedIndexStatement = "CREATE INDEX "
+					+ ARRIVED_MESSAGE_INDEX_NAME + " ON "
+					+ ARRIVED_MESSAGE_TABLE_NAME + "("
+					+ MqttServiceConstants.CLIENT_HANDLE + ", " + MTIMESTAMP
+					+ ");";
 			traceHandler.traceDebug(TAG, "onCreate {"
 					+ createArrivedTableStatement + "}");
 			try {
 				database.execSQL(createArrivedTableStatement);
+				database.execSQL(createArrivedIndexStatement);
 				traceHandler.traceDebug(TAG, "created the table");
 			} catch (SQLException e) {
 				traceHandler.traceException(TAG, "onCreate", e);
@@ -108,28 +183,71 @@ class DatabaseMessageStore implements MessageStore {
 		}
 
 		/**
-		 * To upgrade the database, drop and recreate our table
+		 * To upgrade the database, migrate the messages we hold into the
+		 * current schema. SQLiteOpenHelper runs this in a transaction, so
+		 * either every message is migrated or the database is left as it was.
 		 * 
 		 * @param db
 		 *            the database
 		 * @param oldVersion
-		 *            ignored
+		 *            the version of the schema found on disk
 		 * @param newVersion
 		 *            ignored
 		 */
 
 		@Override
 		public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-			traceHandler.traceDebug(TAG, "onUpgrade");
+			traceHandler.traceDebug(TAG, "onUpgrade {" + oldVersion + "} to {"
+					+ newVersion + "}");
 			try {
-				db.execSQL("DROP TABLE IF EXISTS " + ARRIVED_MESSAGE_TABLE_NAME);
+				if (oldVersion == 1) {
+					upgradeFromVersion1(db);
+				} else {
+					// we don't know this layout, so can't keep its contents
+					db.execSQL("DROP TABLE IF EXISTS "
+							+ ARRIVED_MESSAGE_TABLE_NAME);
+					onCreate(db);
+				}
 			} catch (SQLException e) {
 				traceHandler.traceException(TAG, "onUpgrade", e);
 				throw e;
 			}
-			onCreate(db);
 			traceHandler.traceDebug(TAG, "onUpgrade complete");
 		}
+
+		/**
+		 * Copy version 1 rows into a version 2 table. Message ids are
+		 * reassigned in arrival order; version 1 stored the flags as TEXT, so
+		 * either "1" or "true" is taken to mean set.
+		 * 
+		 * @param db
+		 *            the database
+		 */
+		private void upgradeFromVersion1(SQLiteDatabase db) {
+			db.execSQL("ALTER TABLE " + ARRIVED_MESSAGE_TABLE_NAME
+					+ " RENAME TO " + ARRIVED_MESSAGE_TABLE_NAME_V1);
+			onCreate(db);
+			db.execSQL("INSERT INTO " + ARRIVED_MESSAGE_TABLE_NAME + "("
+					+ MqttServiceConstants.CLIENT_HANDLE + ", "
+					+ MqttServiceConstants.DESTINATION_NAME + ", "
+					+ MqttServiceConstants.PAYLOAD + ", "
+					+ MqttServiceConstants.QOS + ", "
+					+ MqttServiceConstants.RETAINED + ", "
+					+ MqttServiceConstants.DUPLICATE + ", " + MTIMESTAMP
+					+ ") SELECT " + MqttServiceConstants.CLIENT_HANDLE + ", "
+					+ MqttServiceConstants.DESTINATION_NAME + ", "
+					+ MqttServiceConstants.PAYLOAD + ", "
+					+ MqttServiceConstants.QOS + ", "
+					+ flagFromText(MqttServiceConstants.RETAINED) + ", "
+					+ flagFromText(MqttServiceConstants.DUPLICATE) + ", "
+					+ MTIMESTAMP + " FROM " + ARRIVED_MESSAGE_TABLE_NAME_V1
+					+ " ORDER BY " + MTIMESTAMP + " ASC");
+			db.execSQL("DROP TABLE " + ARRIVED_MESSAGE_TABLE_NAME_V1);
+		}
+
+		private static String flagFromText(String column) {
+			return "CASE WHEN " + column + " IN ('1', 'true') THEN 1 ELSE 0 END";
+		}
 	}
 
 	/**
@@ -141,6 +259,7 @@ class DatabaseMessageStore implements MessageStore {
 	 *            a context to use for android calls
 	 */
 	public DatabaseMessageStore(MqttService service, Context context) {
+		this.service = service;
 		this.traceHandler = service;
 
 		// Open message database
@@ -153,6 +272,32 @@ class DatabaseMessageStore implements MessageStore {
 		traceHandler.traceDebug(TAG, "DatabaseMessageStore<init> complete");
 	}
 
+	@Override
+	public void setGroupCommit(int maxMessages, long maxDelayMillis) {
+		GroupCommitQueue<PendingArrival> oldQueue = groupCommitQueue;
+		if (maxMessages > 1) {
+			groupCommitQueue = new GroupCommitQueue<>(TAG + ".groupCommit",
+					new ArrivalCommitter(), maxMessages, maxDelayMillis);
+		} else {
+			groupCommitQueue = null;
+		}
+		if (oldQueue != null) {
+			oldQueue.close();
+		}
+		traceHandler.traceDebug(TAG, "setGroupCommit{" + maxMessages + "}, {"
+				+ maxDelayMillis + "}");
+	}
+
+	/**
+	 * Make sure any messages waiting for a group commit have been written
+	 */
+	private void drainGroupCommit() {
+		GroupCommitQueue<PendingArrival> queue = groupCommitQueue;
+		if (queue != null) {
+			queue.drain();
+		}
+	}
+
 	/**
 	 * Store an MQTT message
 	 * 
@@ -169,65 +314,129 @@ class DatabaseMessageStore implements MessageStore {
 			MqttMessage message) {
 		
 		db = mqttDb.getWritableDatabase();
+		loadArrivedCounts();
 		
-		traceHandler.traceDebug(TAG, "storeArrived{" + clientHandle + "}, {"
-				+ message.toString() + "}");
-
-		byte[] payload = message.getPayload();
-		int qos = message.getQos();
-		boolean retained = message.isRetained();
-		boolean duplicate = message.isDuplicate();
-
-		ContentValues values = new ContentValues();
-		String id = java.util.UUID.randomUUID().toString();
-		values.put(MqttServiceConstants.MESSAGE_ID, id);
-		values.put(MqttServiceConstants.CLIENT_HANDLE, clientHandle);
-		values.put(MqttServiceConstants.DESTINATION_NAME, topic);
-		values.put(MqttServiceConstants.PAYLOAD, payload);
-		values.put(MqttServiceConstants.QOS, qos);
-		values.put(MqttServiceConstants.RETAINED, retained);
-		values.put(MqttServiceConstants.DUPLICATE, duplicate);
-		values.put(MTIMESTAMP, System.currentTimeMillis());
+		if (service.isTraceEnabled()) {
+			traceHandler.traceDebug(TAG, "storeArrived{" + clientHandle
+					+ "}, {" + message.toString() + "}");
+		}
+
+		PendingArrival arrival = new PendingArrival(clientHandle, topic,
+				message, null);
 		try {
-			db.insertOrThrow(ARRIVED_MESSAGE_TABLE_NAME, null, values);
+			arrival.insert(db);
 		} catch (SQLException e) {
 			traceHandler.traceException(TAG, "onUpgrade", e);
 			throw e;
 		}
-		int count = getArrivedRowCount(clientHandle);
-		traceHandler
-				.traceDebug(
-						TAG,
-						"storeArrived: inserted message with id of {"
-								+ id
-								+ "} - Number of messages in database for this clientHandle = "
-								+ count);
-		return id;
+		int count = adjustArrivedCount(clientHandle, 1);
+		if (service.isTraceEnabled()) {
+			traceHandler.traceDebug(TAG,
+					"storeArrived: inserted message with id of {" + arrival.id
+							+ "} - Number of messages in database for this clientHandle = "
+							+ count);
+		}
+		return arrival.id;
 	}
 
-	private int getArrivedRowCount(String clientHandle) {
-        int count = 0;
-        String[] projection = {
-                MqttServiceConstants.MESSAGE_ID,
-        };
-  		String selection =  MqttServiceConstants.CLIENT_HANDLE + "=?";
-        String[] selectionArgs = new String[1];
-        selectionArgs[0] = clientHandle;
-		Cursor c = db.query(
-                ARRIVED_MESSAGE_TABLE_NAME, // Table Name
-                projection, // The columns to return;
-                selection, // Columns for WHERE Clause
-                selectionArgs , // The values for the WHERE Cause
-				null,  //Don't group the rows
-                null,  // Don't filter by row groups
-                null   // The sort order
-        );
-
-		if (c.moveToFirst()) {
-			count = c.getInt(0);
-		}
-		c.close();
-		return count;
+	/**
+	 * Store an MQTT message, either straight away or as part of the next group
+	 * commit, if that has been turned on by
+	 * {@link #setGroupCommit(int, long)}
+	 * 
+	 * @param clientHandle
+	 *            identifier for the client storing the message
+	 * @param topic
+	 *            The topic on which the message was published
+	 * @param message
+	 *            the arrived MQTT message
+	 * @param listener
+	 *            told once the message has been committed
+	 */
+	@Override
+	public void storeArrived(String clientHandle, String topic,
+			MqttMessage message, StoreListener listener) {
+		GroupCommitQueue<PendingArrival> queue = groupCommitQueue;
+		if (queue == null) {
+			listener.onStored(storeArrived(clientHandle, topic, message));
+			return;
+		}
+		queue.submit(new PendingArrival(clientHandle, topic, message,
+				listener));
+	}
+
+	/**
+	 * Read the number of arrived messages held for each client, if we have
+	 * not already done so. Later changes are tracked by
+	 * {@link #adjustArrivedCount(String, int)}.
+	 */
+	private void loadArrivedCounts() {
+		if (arrivedCountsLoaded) {
+			return;
+		}
+		synchronized (arrivedCounts) {
+			if (arrivedCountsLoaded) {
+				return;
+			}
+			db = mqttDb.getWritableDatabase();
+			Cursor c = db.rawQuery("SELECT "
+					+ MqttServiceConstants.CLIENT_HANDLE + ", COUNT(*) FROM "
+					+ ARRIVED_MESSAGE_TABLE_NAME + " GROUP BY "
+					+ MqttServiceConstants.CLIENT_HANDLE, null);
+			try {
+				while (c.moveToNext()) {
+					arrivedCounts.put(c.getString(0),
+							new AtomicInteger(c.getInt(1)));
+				}
+			} finally {
+				c.close();
+			}
+			arrivedCountsLoaded = true;
+		}
+	}
+
+	/**
+	 * Update the count of arrived messages held for a client
+	 * 
+	 * @param clientHandle
+	 *            identifier for the client
+	 * @param delta
+	 *            the number of messages added (or removed, if negative)
+	 * @return the new count
+	 */
+	private int adjustArrivedCount(String clientHandle, int delta) {
+		AtomicInteger count = arrivedCounts.get(clientHandle);
+		if (count == null) {
+			AtomicInteger newCount = new AtomicInteger();
+			count = arrivedCounts.putIfAbsent(clientHandle, newCount);
+			if (count == null) {
+				count = newCount;
+			}
+		}
+		return count.addAndGet(delta);
+	}
+
+	/**
+	 * Get the number of arrived messages held in the store, without querying
+	 * the database
+	 * 
+	 * @param clientHandle
+	 *            identifier for the client.<br>
+	 *            If null, the total for all clients is returned
+	 * @return the number of messages stored and not yet discarded
+	 */
+	@Override
+	public int getArrivedMessageCount(String clientHandle) {
+		loadArrivedCounts();
+		if (clientHandle != null) {
+			AtomicInteger count = arrivedCounts.get(clientHandle);
+			return count == null ? 0 : count.get();
+		}
+		int total = 0;
+		for (AtomicInteger count : arrivedCounts.values()) {
+			total += count.get();
+		}
+		return total;
 	}
 
 	/**
@@ -243,10 +452,15 @@ class DatabaseMessageStore implements MessageStore {
 	@Override
 	public boolean discardArrived(String clientHandle, String id) {
 		
+		// no need to drain any group commit here - ids are only handed out
+		// once their message has been committed
 		db = mqttDb.getWritableDatabase();
+		loadArrivedCounts();
 		
-		traceHandler.traceDebug(TAG, "discardArrived{" + clientHandle + "}, {"
-				+ id + "}");
+		if (service.isTraceEnabled()) {
+			traceHandler.traceDebug(TAG, "discardArrived{" + clientHandle
+					+ "}, {" + id + "}");
+		}
 		int rows;
         String[] selectionArgs = new String[2];
         selectionArgs[0] = id;
@@ -267,17 +481,75 @@ class DatabaseMessageStore implements MessageStore {
 							+ "} from database: Rows affected = " + rows);
 			return false;
 		}
-		int count = getArrivedRowCount(clientHandle);
-		traceHandler
-				.traceDebug(
-						TAG,
-						"discardArrived - Message deleted successfully. - messages in db for this clientHandle "
-								+ count);
+		int count = adjustArrivedCount(clientHandle, -1);
+		if (service.isTraceEnabled()) {
+			traceHandler.traceDebug(TAG,
+					"discardArrived - Message deleted successfully. - messages in db for this clientHandle "
+							+ count);
+		}
 		return true;
 	}
 
+	/**
+	 * Delete several messages in a single transaction, a few hundred at a
+	 * time, to stay within SQLite's limit on the number of parameters
+	 * 
+	 * @param clientHandle
+	 *            identifier for the client which stored the messages
+	 * @param ids
+	 *            the identifying strings returned when the messages were
+	 *            stored
+	 * 
+	 * @return the number of messages found and deleted
+	 */
+	@Override
+	public int discardArrived(String clientHandle, List<String> ids) {
+		db = mqttDb.getWritableDatabase();
+		loadArrivedCounts();
+
+		int rows = 0;
+		db.beginTransaction();
+		try {
+			for (int from = 0; from < ids.size(); from += DISCARD_CHUNK) {
+				List<String> chunk = ids.subList(from,
+						Math.min(ids.size(), from + DISCARD_CHUNK));
+				String[] selectionArgs = new String[chunk.size() + 1];
+				StringBuilder selection = new StringBuilder(
+						MqttServiceConstants.CLIENT_HANDLE + "=? AND "
+								+ MqttServiceConstants.MESSAGE_ID + " IN (");
+				selectionArgs[0] = clientHandle;
+				for (int i = 0; i < chunk.size(); i++) {
+					selection.append(i == 0 ? "?" : ",?");
+					selectionArgs[i + 1] = chunk.get(i);
+				}
+				selection.append(')');
+				rows += db.delete(ARRIVED_MESSAGE_TABLE_NAME,
+						selection.toString(), selectionArgs);
+			}
+			db.setTransactionSuccessful();
+		} catch (SQLException e) {
+			traceHandler.traceException(TAG, "discardArrived", e);
+			throw e;
+		} finally {
+			db.endTransaction();
+		}
+		int count = adjustArrivedCount(clientHandle, -rows);
+		if (service.isTraceEnabled()) {
+			traceHandler.traceDebug(TAG, "discardArrived - " + rows + " of "
+					+ ids.size()
+					+ " messages deleted - messages in db for this clientHandle "
+					+ count);
+		}
+		return rows;
+	}
+
 	/**
 	 * Get an iterator over all messages stored (optionally for a specific client)
+	 * <p>
+	 * Messages are read a page at a time, so that neither a large backlog nor
+	 * a large payload has to fit into a single CursorWindow, and no Cursor is
+	 * held open between calls to the iterator.
+	 * </p>
 	 * 
 	 * @param clientHandle
 	 *            identifier for the client.<br>
@@ -287,89 +559,154 @@ class DatabaseMessageStore implements MessageStore {
 	@Override
 	public Iterator<StoredMessage> getAllArrivedMessages(
 			final String clientHandle) {
-		return new Iterator<StoredMessage>() {
-			private Cursor c;
-			private boolean hasNext;
-            private final String[] selectionArgs = {
-                    clientHandle,
-            };
-
-
-			{
-				db = mqttDb.getWritableDatabase();
-				// anonymous initialiser to start a suitable query
-				// and position at the first row, if one exists
-				if (clientHandle == null) {
-					c = db.query(ARRIVED_MESSAGE_TABLE_NAME,
-                            null,
-                            null,
-                            null,
-							null,
-                            null,
-                            "mtimestamp ASC");
-				} else {
-					c = db.query(ARRIVED_MESSAGE_TABLE_NAME,
-                            null,
-							MqttServiceConstants.CLIENT_HANDLE + "=?",
-                            selectionArgs,
-                            null,
-                            null,
-							"mtimestamp ASC");
-				}
-				hasNext = c.moveToFirst();
-			}
+		drainGroupCommit();
+		return new ArrivedMessageIterator(clientHandle);
+	}
 
-			@Override
-			public boolean hasNext() {
-		        if (!hasNext){
-		          	c.close();
-				}
-				return hasNext;
+	/**
+	 * Walks the arrived messages in arrival order, reading them a page at a
+	 * time. Each page is keyed on the (mtimestamp, messageId) of the last
+	 * message read, so pages stay cheap however far into the table we are.
+	 */
+	private class ArrivedMessageIterator implements Iterator<StoredMessage> {
+
+		private final String clientHandle;
+		private final List<StoredMessage> page = new ArrayList<>(PAGE_ROWS);
+		private int pageIndex = 0;
+		private boolean lastPage = false;
+
+		// the key of the last message read
+		private long lastTimestamp = Long.MIN_VALUE;
+		private long lastMessageId = Long.MIN_VALUE;
+
+		ArrivedMessageIterator(String clientHandle) {
+			this.clientHandle = clientHandle;
+		}
+
+		@Override
+		public boolean hasNext() {
+			if (pageIndex < page.size()) {
+				return true;
+			}
+			if (lastPage) {
+				return false;
 			}
+			readPage();
+			return pageIndex < page.size();
+		}
 
-			@Override
-			public StoredMessage next() {
-				String messageId = c.getString(c
-						.getColumnIndex(MqttServiceConstants.MESSAGE_ID));
-				String clientHandle = c.getString(c
-						.getColumnIndex(MqttServiceConstants.CLIENT_HANDLE));
-				String topic = c.getString(c
-						.getColumnIndex(MqttServiceConstants.DESTINATION_NAME));
-				byte[] payload = c.getBlob(c
-						.getColumnIndex(MqttServiceConstants.PAYLOAD));
-				int qos = c.getInt(c.getColumnIndex(MqttServiceConstants.QOS));
-				boolean retained = Boolean.parseBoolean(c.getString(c
-						.getColumnIndex(MqttServiceConstants.RETAINED)));
-				boolean dup = Boolean.parseBoolean(c.getString(c
-						.getColumnIndex(MqttServiceConstants.DUPLICATE)));
-
-				// build the result
-				MqttMessageHack message = new MqttMessageHack(payload);
-				message.setQos(qos);
-				message.setRetained(retained);
-				message.setDuplicate(dup);
-
-				// move on
-				hasNext = c.moveToNext();
-				return new DbStoredData(messageId, clientHandle, topic, message);
+		@Override
+		public StoredMessage next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
 			}
+			StoredMessage next = page.get(pageIndex);
+			// let the payload go as soon as the caller has it
+			page.set(pageIndex++, null);
+			return next;
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
 
-			@Override
-			public void remove() {
-				throw new UnsupportedOperationException();
+		/**
+		 * Replace the current page with the next one, closing the Cursor
+		 * before returning
+		 */
+		private void readPage() {
+			page.clear();
+			pageIndex = 0;
+
+			String keyTimestamp = Long.toString(lastTimestamp);
+			String keyMessageId = Long.toString(lastMessageId);
+			String selection = MTIMESTAMP + ">=? AND (" + MTIMESTAMP
+					+ ">? OR " + MqttServiceConstants.MESSAGE_ID + ">?)";
+			String[] selectionArgs;
+			if (clientHandle == null) {
+				selectionArgs = new String[] { keyTimestamp, keyTimestamp,
+						keyMessageId };
+			} else {
+				selection = MqttServiceConstants.CLIENT_HANDLE + "=? AND "
+						+ selection;
+				selectionArgs = new String[] { clientHandle, keyTimestamp,
+						keyTimestamp, keyMessageId };
 			}
 
-      /* (non-Javadoc)
-       * @see java.lang.Object#finalize()
-       */
-      @Override
-      protected void finalize() throws Throwable {
-        c.close();
-        super.finalize();
-      }
+			db = mqttDb.getWritableDatabase();
+			Cursor c = db.query(ARRIVED_MESSAGE_TABLE_NAME, PAGE_COLUMNS,
+					selection, selectionArgs, null, null,
+					ARRIVED_MESSAGE_ORDER, Integer.toString(PAGE_ROWS));
+			int rows = 0;
+			long pageBytes = 0;
+			try {
+				while (pageBytes < PAGE_BYTES && c.moveToNext()) {
+					rows++;
+					long messageId = c.getLong(COLUMN_MESSAGE_ID);
+					byte[] payload;
+					if (c.isNull(COLUMN_PAYLOAD)) {
+						payload = readLargePayload(messageId,
+								c.getInt(COLUMN_PAYLOAD_LENGTH));
+					} else {
+						payload = c.getBlob(COLUMN_PAYLOAD);
+					}
+					pageBytes += payload.length;
+
+					MqttMessageHack message = new MqttMessageHack(payload);
+					message.setQos(c.getInt(COLUMN_QOS));
+					message.setRetained(c.getInt(COLUMN_RETAINED) != 0);
+					message.setDuplicate(c.getInt(COLUMN_DUPLICATE) != 0);
+					page.add(new DbStoredData(Long.toString(messageId), c
+							.getString(COLUMN_CLIENT_HANDLE), c
+							.getString(COLUMN_DESTINATION_NAME), message));
+
+					lastMessageId = messageId;
+					lastTimestamp = c.getLong(COLUMN_MTIMESTAMP);
+				}
+			} finally {
+				c.close();
+			}
+			lastPage = rows < PAGE_ROWS && pageBytes < PAGE_BYTES;
+		}
+	}
 
-    };
-  }
+	/**
+	 * Read a payload too large to be fetched with the rest of its row, in
+	 * chunks which each fit comfortably into a CursorWindow
+	 * 
+	 * @param messageId
+	 *            the message's id
+	 * @param length
+	 *            the length of its payload
+	 * @return the payload
+	 */
+	private byte[] readLargePayload(long messageId, int length) {
+		byte[] payload = new byte[length];
+		String[] selectionArgs = new String[] { Long.toString(messageId) };
+		int offset = 0;
+		while (offset < length) {
+			int chunk = Math.min(PAYLOAD_CHUNK_BYTES, length - offset);
+			// substr() on a BLOB counts bytes, from 1
+			Cursor c = db.query(ARRIVED_MESSAGE_TABLE_NAME,
+					new String[] { "substr(" + MqttServiceConstants.PAYLOAD
+							+ ", " + (offset + 1) + ", " + chunk + ")" },
+					MqttServiceConstants.MESSAGE_ID + "=?", selectionArgs,
+					null, null, null);
+			try {
+				if (!c.moveToFirst()) {
+					throw new SQLException("message " + messageId
+							+ " was deleted while being read");
+				}
+				byte[] part = c.getBlob(0);
+				System.arraycopy(part, 0, payload, offset, part.length);
+				offset += part.length;
+			} finally {
+				c.close();
+			}
+		}
+		return payload;
+	}
 
 	/**
 	 * Delete all messages (optionally for a specific client)
@@ -381,6 +718,7 @@ class DatabaseMessageStore implements MessageStore {
 	@Override
 	public void clearArrivedMessages(String clientHandle) {
 		
+		drainGroupCommit();
 		db = mqttDb.getWritableDatabase();
         String[] selectionArgs = new String[1];
         selectionArgs[0] = clientHandle;
@@ -390,6 +728,7 @@ class DatabaseMessageStore implements MessageStore {
 			traceHandler.traceDebug(TAG,
 					"clearArrivedMessages: clearing the table");
 			rows = db.delete(ARRIVED_MESSAGE_TABLE_NAME, null, null);
+			arrivedCounts.clear();
 		} else {
 			traceHandler.traceDebug(TAG,
 					"clearArrivedMessages: clearing the table of "
@@ -397,13 +736,87 @@ class DatabaseMessageStore implements MessageStore {
             rows = db.delete(ARRIVED_MESSAGE_TABLE_NAME,
                     MqttServiceConstants.CLIENT_HANDLE + "=?",
                     selectionArgs);
-
+			arrivedCounts.remove(clientHandle);
 		}
 		traceHandler.traceDebug(TAG, "clearArrivedMessages: rows affected = "
 				+ rows);
 	}
 
-	private class DbStoredData implements StoredMessage {
+	/**
+	 * An arrived message on its way into the database
+	 */
+	private static class PendingArrival {
+		// the message's rowid, as a string, once it has been inserted
+		private String id;
+		private final String clientHandle;
+		private final ContentValues values;
+		private final StoreListener listener;
+
+		PendingArrival(String clientHandle, String topic,
+				MqttMessage message, StoreListener listener) {
+			this.clientHandle = clientHandle;
+			this.listener = listener;
+			values = new ContentValues(7);
+			values.put(MqttServiceConstants.CLIENT_HANDLE, clientHandle);
+			values.put(MqttServiceConstants.DESTINATION_NAME, topic);
+			values.put(MqttServiceConstants.PAYLOAD, message.getPayload());
+			values.put(MqttServiceConstants.QOS, message.getQos());
+			values.put(MqttServiceConstants.RETAINED, message.isRetained() ? 1 : 0);
+			values.put(MqttServiceConstants.DUPLICATE, message.isDuplicate() ? 1 : 0);
+			values.put(MTIMESTAMP, System.currentTimeMillis());
+		}
+
+		void insert(SQLiteDatabase db) {
+			id = Long.toString(db.insertOrThrow(ARRIVED_MESSAGE_TABLE_NAME,
+					null, values));
+		}
+	}
+
+	/**
+	 * Writes a group of arrived messages in a single transaction
+	 */
+	private class ArrivalCommitter implements
+			GroupCommitQueue.Committer<PendingArrival> {
+
+		@Override
+		public void commit(List<PendingArrival> batch) {
+			db = mqttDb.getWritableDatabase();
+			db.beginTransaction();
+			try {
+				for (PendingArrival arrival : batch) {
+					arrival.insert(db);
+				}
+				db.setTransactionSuccessful();
+			} finally {
+				db.endTransaction();
+			}
+			loadArrivedCounts();
+			for (PendingArrival arrival : batch) {
+				adjustArrivedCount(arrival.clientHandle, 1);
+			}
+			if (service.isTraceEnabled()) {
+				traceHandler.traceDebug(TAG, "storeArrived: committed "
+						+ batch.size() + " messages");
+			}
+		}
+
+		@Override
+		public void onCommitted(List<PendingArrival> batch) {
+			for (PendingArrival arrival : batch) {
+				arrival.listener.onStored(arrival.id);
+			}
+		}
+
+		@Override
+		public void onCommitFailed(List<PendingArrival> batch, Exception e) {
+			traceHandler.traceException(TAG, "storeArrived", e);
+			for (PendingArrival arrival : batch) {
+				arrival.listener.onStoreFailure(e);
+			}
+		}
+	}
+
+	private static class DbStoredData implements StoredMessage {
 		private String messageId;
 		private String clientHandle;
 		private String topic;
@@ -412,6 +825,7 @@ class DatabaseMessageStore implements MessageStore {
 		DbStoredData(String messageId, String clientHandle, String topic,
 				MqttMessage message) {
 			this.messageId = messageId;
+			this.clientHandle = clientHandle;
 			this.topic = topic;
 			this.message = message;
 		}
@@ -437,23 +851,12 @@ class DatabaseMessageStore implements MessageStore {
 		}
 	}
 
-	/**
-	 * A way to get at the "setDuplicate" method of MqttMessage
-	 */
-	private class MqttMessageHack extends MqttMessage {
-
-		public MqttMessageHack(byte[] payload) {
-			super(payload);
-		}
-
-		@Override
-		protected void setDuplicate(boolean dup) {
-			super.setDuplicate(dup);
-		}
-	}
-
 	@Override
 	public void close() {
+		GroupCommitQueue<PendingArrival> queue = groupCommitQueue;
+		if (queue != null) {
+			queue.close();
+		}
 		if (this.db!=null)
 			this.db.close();
 		
@@ -0,0 +1,266 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ */
+package org.eclipse.paho.android.service;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.eclipse.paho.client.mqttv3.MqttTopic;
+
+/**
+ * <p>
+ * The {@link DeliveryPolicy} of each topic filter a client has set one for,
+ * deciding which arrived messages are passed on to the application.
+ * </p>
+ * <p>
+ * The filters are held in a {@link SubscriptionTrie}, so finding the policies
+ * for a topic costs the same however many there are. A message matching
+ * several filters is passed on if any of their policies accepts it; each
+ * policy counts and remembers only the messages it accepted itself.
+ * </p>
+ */
+class DeliveryFilter {
+
+	/**
+	 * The number of topics whose earlier messages each policy remembers
+	 */
+	static final int MAX_TRACKED_TOPICS = 1024;
+
+	/**
+	 * What a policy remembers of the messages on one topic
+	 */
+	private static final class TopicState {
+		long count = 0;
+		boolean delivered = false;
+		long deliveredAt;
+		byte[] lastPayload;
+	}
+
+	/**
+	 * A policy, copied so that the application cannot change it underneath
+	 * us, with its state and counters
+	 */
+	private static final class Rule {
+		final byte[] prefix;
+		final int rangeOffset;
+		final byte[] rangeMin;
+		final byte[] rangeMax;
+		final boolean dropDuplicates;
+		final int sampleEvery;
+		final long sampleInterval;
+		final int maxMessagesPerSecond;
+
+		// the least recently seen topic first
+		final LinkedHashMap<String, TopicState> topics = new LinkedHashMap<String, TopicState>(
+				16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(
+					Map.Entry<String, TopicState> eldest) {
+				return size() > MAX_TRACKED_TOPICS;
+			}
+		};
+
+		// the rate limit's token bucket
+		double tokens;
+		long refilledAt;
+		boolean refilled = false;
+
+		long delivered = 0;
+		long payloadRejected = 0;
+		long duplicates = 0;
+		long sampledOut = 0;
+		long rateLimited = 0;
+
+		Rule(DeliveryPolicy policy) {
+			prefix = policy.getPayloadPrefix();
+			rangeOffset = policy.getRangeOffset();
+			rangeMin = policy.getRangeMin();
+			rangeMax = policy.getRangeMax();
+			dropDuplicates = policy.isDropDuplicates();
+			sampleEvery = policy.getSampleEvery();
+			sampleInterval = policy.getSampleInterval();
+			maxMessagesPerSecond = policy.getMaxMessagesPerSecond();
+			tokens = maxMessagesPerSecond;
+		}
+
+		boolean accept(String topic, byte[] payload, long now) {
+			if (!payloadMatches(payload)) {
+				payloadRejected++;
+				return false;
+			}
+			TopicState state = null;
+			if (dropDuplicates || sampleEvery > 1 || sampleInterval > 0) {
+				state = topics.get(topic);
+				if (state == null) {
+					state = new TopicState();
+					topics.put(topic, state);
+				}
+			}
+			if (dropDuplicates && state.lastPayload != null
+					&& Arrays.equals(state.lastPayload, payload)) {
+				duplicates++;
+				return false;
+			}
+			if (sampleEvery > 1 && state.count++ % sampleEvery != 0) {
+				sampledOut++;
+				return false;
+			}
+			if (sampleInterval > 0 && state.delivered
+					&& now - state.deliveredAt < sampleInterval) {
+				sampledOut++;
+				return false;
+			}
+			if (maxMessagesPerSecond > 0 && !takeToken(now)) {
+				rateLimited++;
+				return false;
+			}
+			if (state != null) {
+				state.delivered = true;
+				state.deliveredAt = now;
+				if (dropDuplicates) {
+					state.lastPayload = payload.clone();
+				}
+			}
+			delivered++;
+			return true;
+		}
+
+		private boolean payloadMatches(byte[] payload) {
+			if (prefix != null) {
+				if (payload.length < prefix.length
+						|| compare(payload, 0, prefix) != 0) {
+					return false;
+				}
+			}
+			if (rangeMin != null) {
+				if (payload.length < rangeOffset + rangeMin.length
+						|| compare(payload, rangeOffset, rangeMin) < 0) {
+					return false;
+				}
+			}
+			if (rangeMax != null) {
+				if (payload.length < rangeOffset + rangeMax.length
+						|| compare(payload, rangeOffset, rangeMax) > 0) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		private boolean takeToken(long now) {
+			if (refilled) {
+				tokens = Math.min(maxMessagesPerSecond, tokens
+						+ (now - refilledAt) * maxMessagesPerSecond / 1000.0);
+			}
+			refilled = true;
+			refilledAt = now;
+			if (tokens < 1) {
+				return false;
+			}
+			tokens--;
+			return true;
+		}
+
+		DeliveryPolicyStats getStats() {
+			return new DeliveryPolicyStats(delivered, payloadRejected,
+					duplicates, sampledOut, rateLimited);
+		}
+	}
+
+	private final SubscriptionTrie filters = new SubscriptionTrie();
+	private final Map<Integer, Rule> rules = new HashMap<>();
+	private final Map<String, Integer> idsByFilter = new HashMap<>();
+	private int nextId = 0;
+
+	/**
+	 * Set the policy for a topic filter, in place of any it had before, and
+	 * start its counters again
+	 *
+	 * @param topicFilter
+	 *            the topic filter, which may contain wildcards
+	 * @param policy
+	 *            the policy, or null to pass on every message again
+	 * @throws IllegalArgumentException
+	 *             if the filter is not a valid topic filter
+	 */
+	synchronized void setPolicy(String topicFilter, DeliveryPolicy policy) {
+		MqttTopic.validate(topicFilter, true);
+		Integer id = idsByFilter.remove(topicFilter);
+		if (id != null) {
+			rules.remove(id);
+			filters.remove(topicFilter);
+		}
+		if (policy != null) {
+			id = ++nextId;
+			rules.put(id, new Rule(policy));
+			idsByFilter.put(topicFilter, id);
+			filters.add(topicFilter, id);
+		}
+	}
+
+	/**
+	 * Decide whether an arrived message is passed on to the application
+	 *
+	 * @param topic
+	 *            the topic the message arrived on
+	 * @param message
+	 *            the message
+	 * @param now
+	 *            the time, in milliseconds, from a clock that does not go
+	 *            backwards
+	 * @return true if no policy is set for the topic, or one accepts the
+	 *         message
+	 */
+	synchronized boolean accept(String topic, MqttMessage message, long now) {
+		int[] ids = filters.match(topic);
+		if (ids.length == 0) {
+			return true;
+		}
+		byte[] payload = message.getPayload();
+		boolean accepted = false;
+		for (int id : ids) {
+			accepted |= rules.get(id).accept(topic, payload, now);
+		}
+		return accepted;
+	}
+
+	/**
+	 * @param topicFilter
+	 *            a topic filter, exactly as its policy was set
+	 * @return a snapshot of the policy's counters, or null if the filter has
+	 *         no policy
+	 */
+	synchronized DeliveryPolicyStats getStats(String topicFilter) {
+		Integer id = idsByFilter.get(topicFilter);
+		return id == null ? null : rules.get(id).getStats();
+	}
+
+	/**
+	 * Compare the bytes of a payload from an offset with a bound, as unsigned
+	 * numbers, for the length of the bound
+	 */
+	private static int compare(byte[] payload, int offset, byte[] bound) {
+		for (int i = 0; i < bound.length; i++) {
+			int difference = (payload[offset + i] & 0xff) - (bound[i] & 0xff);
+			if (difference != 0) {
+				return difference;
+			}
+		}
+		return 0;
+	}
+}
@@ -0,0 +1,200 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ */
+package org.eclipse.paho.android.service;
+
+/**
+ * <p>
+ * Which of the messages arriving on a subscription the application wants,
+ * set with {@link MqttAndroidClient#setDeliveryPolicy(String, DeliveryPolicy)}.
+ * The {@link MqttService} applies the policy as each message arrives, and a
+ * message it discards is acknowledged to the server without being stored or
+ * passed to the application.
+ * </p>
+ * <p>
+ * A message is delivered only if it passes every rule set, which are applied
+ * in this order:
+ * </p>
+ * <ol>
+ * <li>the payload predicates - {@link #setPayloadPrefix(byte[])} and
+ * {@link #setPayloadRange(int, byte[], byte[])}</li>
+ * <li>{@link #setDropDuplicates(boolean)} - a payload the same as the last
+ * delivered on its topic is discarded</li>
+ * <li>{@link #setSampleEvery(int)} - only every Nth message on each topic is
+ * delivered</li>
+ * <li>{@link #setSampleInterval(long)} - at most one message on each topic is
+ * delivered in each interval</li>
+ * <li>{@link #setMaxMessagesPerSecond(int)} - the rate of the whole
+ * subscription is limited</li>
+ * </ol>
+ * <p>
+ * The rules which look at earlier messages on a topic remember a limited
+ * number of topics, the least recently seen being forgotten first.
+ * </p>
+ */
+public class DeliveryPolicy {
+
+	private byte[] payloadPrefix = null;
+	private int rangeOffset = 0;
+	private byte[] rangeMin = null;
+	private byte[] rangeMax = null;
+	private boolean dropDuplicates = false;
+	private int sampleEvery = 1;
+	private long sampleInterval = 0;
+	private int maxMessagesPerSecond = 0;
+
+	/**
+	 * @return the bytes each payload must start with, or null for any
+	 */
+	public byte[] getPayloadPrefix() {
+		return payloadPrefix == null ? null : payloadPrefix.clone();
+	}
+
+	/**
+	 * Deliver only messages whose payload starts with some bytes
+	 *
+	 * @param prefix
+	 *            the bytes, or null to deliver any payload
+	 */
+	public void setPayloadPrefix(byte[] prefix) {
+		this.payloadPrefix = prefix == null ? null : prefix.clone();
+	}
+
+	/**
+	 * @return the offset in the payload of the bytes compared by the range
+	 */
+	public int getRangeOffset() {
+		return rangeOffset;
+	}
+
+	/**
+	 * @return the least bytes delivered by the range, or null for no bound
+	 */
+	public byte[] getRangeMin() {
+		return rangeMin == null ? null : rangeMin.clone();
+	}
+
+	/**
+	 * @return the greatest bytes delivered by the range, or null for no bound
+	 */
+	public byte[] getRangeMax() {
+		return rangeMax == null ? null : rangeMax.clone();
+	}
+
+	/**
+	 * Deliver only messages with some bytes of their payload in a range. The
+	 * bytes at the offset are compared, as unsigned numbers one byte after
+	 * another, with each bound, for as many bytes as the bound has - so a
+	 * big-endian reading of a sensor can be compared with a threshold of the
+	 * same width. A payload too short to compare is not delivered.
+	 *
+	 * @param offset
+	 *            where in the payload the compared bytes start
+	 * @param min
+	 *            the least bytes delivered, or null for no lower bound
+	 * @param max
+	 *            the greatest bytes delivered, or null for no upper bound
+	 */
+	public void setPayloadRange(int offset, byte[] min, byte[] max) {
+		if (offset < 0) {
+			throw new IllegalArgumentException("offset must not be negative");
+		}
+		this.rangeOffset = offset;
+		this.rangeMin = min == null ? null : min.clone();
+		this.rangeMax = max == null ? null : max.clone();
+	}
+
+	/**
+	 * @return true if a payload the same as the last one delivered on its
+	 *         topic is discarded
+	 */
+	public boolean isDropDuplicates() {
+		return dropDuplicates;
+	}
+
+	/**
+	 * @param dropDuplicates
+	 *            whether a payload the same as the last one delivered on its
+	 *            topic is discarded
+	 */
+	public void setDropDuplicates(boolean dropDuplicates) {
+		this.dropDuplicates = dropDuplicates;
+	}
+
+	/**
+	 * @return N, where every Nth message on each topic is delivered
+	 */
+	public int getSampleEvery() {
+		return sampleEvery;
+	}
+
+	/**
+	 * Deliver only every Nth message on each topic - the first, then the
+	 * N+1th, and so on
+	 *
+	 * @param sampleEvery
+	 *            N, or 1 to deliver every message
+	 */
+	public void setSampleEvery(int sampleEvery) {
+		if (sampleEvery < 1) {
+			throw new IllegalArgumentException("sampleEvery must be positive");
+		}
+		this.sampleEvery = sampleEvery;
+	}
+
+	/**
+	 * @return the interval, in milliseconds, in which at most one message on
+	 *         each topic is delivered
+	 */
+	public long getSampleInterval() {
+		return sampleInterval;
+	}
+
+	/**
+	 * Deliver at most one message on each topic in each interval - the first
+	 * to arrive at least the interval after the last delivered
+	 *
+	 * @param sampleInterval
+	 *            the interval, in milliseconds, or 0 for no interval
+	 */
+	public void setSampleInterval(long sampleInterval) {
+		if (sampleInterval < 0) {
+			throw new IllegalArgumentException(
+					"sampleInterval must not be negative");
+		}
+		this.sampleInterval = sampleInterval;
+	}
+
+	/**
+	 * @return the most messages a second delivered on the subscription, or 0
+	 *         for no limit
+	 */
+	public int getMaxMessagesPerSecond() {
+		return maxMessagesPerSecond;
+	}
+
+	/**
+	 * Limit the rate at which the subscription's messages are delivered,
+	 * across all of its topics. Up to a second's worth may be delivered
+	 * together after a quiet spell.
+	 *
+	 * @param maxMessagesPerSecond
+	 *            the most messages a second, or 0 for no limit
+	 */
+	public void setMaxMessagesPerSecond(int maxMessagesPerSecond) {
+		if (maxMessagesPerSecond < 0) {
+			throw new IllegalArgumentException(
+					"maxMessagesPerSecond must not be negative");
+		}
+		this.maxMessagesPerSecond = maxMessagesPerSecond;
+	}
+}
@@ -0,0 +1,89 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ */
+package org.eclipse.paho.android.service;
+
+/**
+ * A snapshot of the messages a {@link DeliveryPolicy} has delivered and
+ * discarded, from
+ * {@link MqttAndroidClient#getDeliveryPolicyStats(String)}. The counts are
+ * since the policy was set, and each discarded message is counted against
+ * the first rule it failed.
+ */
+public final class DeliveryPolicyStats {
+
+	private final long delivered;
+	private final long payloadRejected;
+	private final long duplicates;
+	private final long sampledOut;
+	private final long rateLimited;
+
+	DeliveryPolicyStats(long delivered, long payloadRejected,
+			long duplicates, long sampledOut, long rateLimited) {
+		this.delivered = delivered;
+		this.payloadRejected = payloadRejected;
+		this.duplicates = duplicates;
+		this.sampledOut = sampledOut;
+		this.rateLimited = rateLimited;
+	}
+
+	/**
+	 * @return the number of messages which passed the policy
+	 */
+	public long getDelivered() {
+		return delivered;
+	}
+
+	/**
+	 * @return the number of messages discarded, for whatever reason
+	 */
+	public long getFiltered() {
+		return payloadRejected + duplicates + sampledOut + rateLimited;
+	}
+
+	/**
+	 * @return the number of messages whose payload failed the prefix or range
+	 */
+	public long getPayloadRejected() {
+		return payloadRejected;
+	}
+
+	/**
+	 * @return the number of messages discarded as duplicates
+	 */
+	public long getDuplicates() {
+		return duplicates;
+	}
+
+	/**
+	 * @return the number of messages discarded by sampling, by count or by
+	 *         interval
+	 */
+	public long getSampledOut() {
+		return sampledOut;
+	}
+
+	/**
+	 * @return the number of messages discarded by the rate limit
+	 */
+	public long getRateLimited() {
+		return rateLimited;
+	}
+
+	@Override
+	public String toString() {
+		return "DeliveryPolicyStats [delivered=" + delivered + ", filtered="
+				+ getFiltered() + ", payloadRejected=" + payloadRejected
+				+ ", duplicates=" + duplicates + ", sampledOut=" + sampledOut
+				+ ", rateLimited=" + rateLimited + "]";
+	}
+}
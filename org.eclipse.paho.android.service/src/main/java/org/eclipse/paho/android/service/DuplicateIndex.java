@@ -0,0 +1,223 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ */
+package org.eclipse.paho.android.service;
+
+import java.util.Arrays;
+
+/**
+ * <p>
+ * The fingerprints of messages seen lately, kept to tell when the server
+ * sends a message again.
+ * </p>
+ * <p>
+ * Fingerprints are 64 bit hashes, held in two generations, each an
+ * open-addressing table of longs kept at most half full. New fingerprints go
+ * into the current generation; when it is full, or half the window has
+ * passed, the previous generation is dropped and the current one takes its
+ * place. So the memory used is fixed when the index is made, nothing is
+ * allocated as messages arrive, and a fingerprint is remembered for between
+ * half the window and the whole of it - less only if the table fills first.
+ * </p>
+ * <p>
+ * Two different messages with the same fingerprint would be taken for
+ * duplicates, but with 64 bits the chance of that is negligible.
+ * </p>
+ */
+class DuplicateIndex {
+
+	// marks an empty slot, so a fingerprint of 0 is stored as 1
+	private static final long EMPTY = 0;
+
+	private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+	private static final long FNV_PRIME = 0x100000001b3L;
+
+	private final long windowMillis;
+	private final int maxEntries;
+	private final int generationEntries;
+	private long[] current;
+	private long[] previous;
+	private int currentSize = 0;
+	private int previousSize = 0;
+	private long currentStartedAt;
+
+	private long hits = 0;
+	private long misses = 0;
+	private long rotations = 0;
+
+	/**
+	 * Constructor
+	 *
+	 * @param maxEntries
+	 *            the most fingerprints held
+	 * @param windowMillis
+	 *            the longest time a fingerprint is held
+	 * @param now
+	 *            the time now, in milliseconds, from a clock that does not go
+	 *            backwards
+	 */
+	DuplicateIndex(int maxEntries, long windowMillis, long now) {
+		this.maxEntries = maxEntries;
+		this.windowMillis = windowMillis;
+		this.generationEntries = Math.max(1, maxEntries / 2);
+		int slots = Integer.highestOneBit(generationEntries * 2 - 1) << 1;
+		current = new long[slots];
+		previous = new long[slots];
+		currentStartedAt = now;
+	}
+
+	/**
+	 * Look for a fingerprint, counting a hit or a miss
+	 *
+	 * @param fingerprint
+	 *            the message's fingerprint
+	 * @param now
+	 *            the time now, in milliseconds
+	 * @return true if the fingerprint is held
+	 */
+	synchronized boolean contains(long fingerprint, long now) {
+		expire(now);
+		if (fingerprint == EMPTY) {
+			fingerprint = 1;
+		}
+		if (find(current, fingerprint) || find(previous, fingerprint)) {
+			hits++;
+			return true;
+		}
+		misses++;
+		return false;
+	}
+
+	/**
+	 * Hold a fingerprint, if it is not held already
+	 *
+	 * @param fingerprint
+	 *            the message's fingerprint
+	 * @param now
+	 *            the time now, in milliseconds
+	 */
+	synchronized void add(long fingerprint, long now) {
+		expire(now);
+		if (fingerprint == EMPTY) {
+			fingerprint = 1;
+		}
+		if (find(current, fingerprint) || find(previous, fingerprint)) {
+			return;
+		}
+		if (currentSize >= generationEntries) {
+			rotate(now);
+		}
+		int mask = current.length - 1;
+		int slot = spread(fingerprint) & mask;
+		while (current[slot] != EMPTY) {
+			slot = (slot + 1) & mask;
+		}
+		current[slot] = fingerprint;
+		currentSize++;
+	}
+
+	/**
+	 * @return a snapshot of the counters
+	 */
+	synchronized DuplicateSuppressionStats getStats() {
+		return new DuplicateSuppressionStats(hits, misses, currentSize
+				+ previousSize, maxEntries, rotations);
+	}
+
+	/**
+	 * @return the number of slots in the tables, which never changes
+	 */
+	int getSlots() {
+		return current.length * 2;
+	}
+
+	/**
+	 * Drop the generations that have outlived the window
+	 */
+	private void expire(long now) {
+		long age = now - currentStartedAt;
+		if (age >= windowMillis) {
+			// both generations are too old
+			rotate(now);
+			rotate(now);
+		} else if (age >= windowMillis / 2) {
+			rotate(now);
+		}
+	}
+
+	private void rotate(long now) {
+		long[] dropped = previous;
+		if (previousSize > 0) {
+			Arrays.fill(dropped, EMPTY);
+		}
+		previous = current;
+		previousSize = currentSize;
+		current = dropped;
+		currentSize = 0;
+		currentStartedAt = now;
+		rotations++;
+	}
+
+	private static boolean find(long[] table, long fingerprint) {
+		int mask = table.length - 1;
+		int slot = spread(fingerprint) & mask;
+		long key;
+		while ((key = table[slot]) != EMPTY) {
+			if (key == fingerprint) {
+				return true;
+			}
+			slot = (slot + 1) & mask;
+		}
+		return false;
+	}
+
+	private static int spread(long fingerprint) {
+		long h = fingerprint * 0x9e3779b97f4a7c15L;
+		return (int) (h ^ (h >>> 32));
+	}
+
+	/**
+	 * Hash a message's topic and the key in its payload, with 64 bit FNV-1a
+	 *
+	 * @param topic
+	 *            the topic the message arrived on
+	 * @param payload
+	 *            the message's payload
+	 * @param keyOffset
+	 *            where the key starts in the payload
+	 * @param keyLength
+	 *            the length of the key, or -1 for the whole payload - as it
+	 *            is too if the payload is too short to hold the key
+	 * @return the fingerprint
+	 */
+	static long fingerprint(String topic, byte[] payload, int keyOffset,
+			int keyLength) {
+		long hash = FNV_OFFSET;
+		for (int i = 0; i < topic.length(); i++) {
+			char c = topic.charAt(i);
+			hash = (hash ^ (c & 0xff)) * FNV_PRIME;
+			hash = (hash ^ (c >>> 8)) * FNV_PRIME;
+		}
+		// a separator, so that topic and payload cannot run into each other
+		hash = (hash ^ 0xff) * FNV_PRIME;
+		int start = 0;
+		int end = payload.length;
+		if (keyLength >= 0 && keyOffset + keyLength <= payload.length) {
+			start = keyOffset;
+			end = keyOffset + keyLength;
+		}
+		for (int i = start; i < end; i++) {
+			hash = (hash ^ (payload[i] & 0xff)) * FNV_PRIME;
+		}
+		return hash;
+	}
+}
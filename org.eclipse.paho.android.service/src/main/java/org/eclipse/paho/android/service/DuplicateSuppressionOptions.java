@@ -0,0 +1,137 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ */
+package org.eclipse.paho.android.service;
+
+/**
+ * <p>
+ * Options for dropping, in the {@link MqttService}, the copies of a message
+ * the server sends again - as it does, with the duplicate flag set, for QoS 1
+ * messages it had sent before a reconnect but had not seen acknowledged. Set
+ * with
+ * {@link MqttAndroidClient#setDuplicateSuppression(DuplicateSuppressionOptions)}.
+ * </p>
+ * <p>
+ * A fingerprint of each message stored is kept for a while: a hash of its
+ * topic and payload, or of its topic and a key taken from its payload, set by
+ * {@link #setKeyRange(int, int)}. A later message with the same fingerprint
+ * is acknowledged to the server, but neither stored nor passed on. The
+ * fingerprints are held in a table of fixed size; the oldest are forgotten
+ * once it fills or the window passes, whichever is sooner.
+ * </p>
+ */
+public class DuplicateSuppressionOptions {
+
+	/**
+	 * How long a fingerprint is kept, unless set otherwise
+	 */
+	public static final long DEFAULT_WINDOW_MILLIS = 5 * 60 * 1000;
+
+	/**
+	 * The most fingerprints kept, unless set otherwise
+	 */
+	public static final int DEFAULT_MAX_ENTRIES = 16384;
+
+	private long windowMillis = DEFAULT_WINDOW_MILLIS;
+	private int maxEntries = DEFAULT_MAX_ENTRIES;
+	private boolean duplicateFlagRequired = true;
+	private int keyOffset = 0;
+	private int keyLength = -1;
+
+	/**
+	 * @return how long, in milliseconds, a fingerprint is kept at most
+	 */
+	public long getWindowMillis() {
+		return windowMillis;
+	}
+
+	/**
+	 * @param windowMillis
+	 *            how long, in milliseconds, a fingerprint is kept at most -
+	 *            at least half of this, unless the table fills first
+	 */
+	public void setWindowMillis(long windowMillis) {
+		if (windowMillis < 1) {
+			throw new IllegalArgumentException("windowMillis must be positive");
+		}
+		this.windowMillis = windowMillis;
+	}
+
+	/**
+	 * @return the most fingerprints kept
+	 */
+	public int getMaxEntries() {
+		return maxEntries;
+	}
+
+	/**
+	 * @param maxEntries
+	 *            the most fingerprints kept, each costing 16 to 32 bytes
+	 */
+	public void setMaxEntries(int maxEntries) {
+		if (maxEntries < 2 || maxEntries > 1 << 26) {
+			throw new IllegalArgumentException(
+					"maxEntries must be between 2 and 2^26");
+		}
+		this.maxEntries = maxEntries;
+	}
+
+	/**
+	 * @return true if only messages with the duplicate flag set are dropped
+	 */
+	public boolean isDuplicateFlagRequired() {
+		return duplicateFlagRequired;
+	}
+
+	/**
+	 * @param duplicateFlagRequired
+	 *            true, as it is unless set otherwise, to drop only messages
+	 *            the server has marked as duplicates, and to keep the
+	 *            fingerprints only of QoS 1 and 2 messages; false to drop any
+	 *            message seen before, such as a payload published twice
+	 */
+	public void setDuplicateFlagRequired(boolean duplicateFlagRequired) {
+		this.duplicateFlagRequired = duplicateFlagRequired;
+	}
+
+	/**
+	 * @return where in the payload the key starts
+	 */
+	public int getKeyOffset() {
+		return keyOffset;
+	}
+
+	/**
+	 * @return the length of the key, or -1 if the whole payload is used
+	 */
+	public int getKeyLength() {
+		return keyLength;
+	}
+
+	/**
+	 * Fingerprint messages by their topic and some bytes of their payload,
+	 * such as a message identifier in a header, rather than their whole
+	 * payload. A payload too short to hold the key is fingerprinted whole.
+	 *
+	 * @param offset
+	 *            where in the payload the key starts
+	 * @param length
+	 *            the length of the key, or -1 to use the whole payload
+	 */
+	public void setKeyRange(int offset, int length) {
+		if (offset < 0 || length < -1) {
+			throw new IllegalArgumentException("invalid key range");
+		}
+		this.keyOffset = length == -1 ? 0 : offset;
+		this.keyLength = length;
+	}
+}
@@ -0,0 +1,79 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ */
+package org.eclipse.paho.android.service;
+
+/**
+ * A snapshot of a client's duplicate suppression, from
+ * {@link MqttAndroidClient#getDuplicateSuppressionStats()}. The counts are
+ * since it was last set up.
+ */
+public final class DuplicateSuppressionStats {
+
+	private final long hits;
+	private final long misses;
+	private final int entries;
+	private final int maxEntries;
+	private final long rotations;
+
+	DuplicateSuppressionStats(long hits, long misses, int entries,
+			int maxEntries, long rotations) {
+		this.hits = hits;
+		this.misses = misses;
+		this.entries = entries;
+		this.maxEntries = maxEntries;
+		this.rotations = rotations;
+	}
+
+	/**
+	 * @return the number of messages dropped as duplicates
+	 */
+	public long getHits() {
+		return hits;
+	}
+
+	/**
+	 * @return the number of messages checked and not found
+	 */
+	public long getMisses() {
+		return misses;
+	}
+
+	/**
+	 * @return the number of fingerprints held now
+	 */
+	public int getEntries() {
+		return entries;
+	}
+
+	/**
+	 * @return the most fingerprints held
+	 */
+	public int getMaxEntries() {
+		return maxEntries;
+	}
+
+	/**
+	 * @return the number of times the oldest fingerprints were forgotten
+	 *         together
+	 */
+	public long getRotations() {
+		return rotations;
+	}
+
+	@Override
+	public String toString() {
+		return "DuplicateSuppressionStats [hits=" + hits + ", misses="
+				+ misses + ", entries=" + entries + "/" + maxEntries
+				+ ", rotations=" + rotations + "]";
+	}
+}
@@ -0,0 +1,38 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ */
+package org.eclipse.paho.android.service;
+
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+
+/**
+ * A {@link MessageStore} which can write arrived messages in groups, sharing
+ * the cost of making them durable
+ */
+interface GroupCommitMessageStore extends MessageStore {
+
+	/**
+	 * Turn group commit of arrived messages on or off. When it is on, messages
+	 * passed to
+	 * {@link #storeArrived(String, String, MqttMessage, MessageStore.StoreListener)}
+	 * are written together once <code>maxMessages</code> have been queued, or
+	 * <code>maxDelayMillis</code> after the first of them was queued, and each
+	 * listener is told only once its group is durable.
+	 *
+	 * @param maxMessages
+	 *            the largest number of messages to write together - 1 or less
+	 *            turns group commit off
+	 * @param maxDelayMillis
+	 *            the longest time a message may wait before being written
+	 */
+	void setGroupCommit(int maxMessages, long maxDelayMillis);
+}
@@ -0,0 +1,241 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ */
+package org.eclipse.paho.android.service;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>
+ * Collects items and hands them to a {@link Committer} in groups, so that the
+ * cost of a commit (a database transaction, an fsync...) is shared by every
+ * item in the group.
+ * </p>
+ * <p>
+ * A group is committed as soon as it holds <code>maxBatchSize</code> items, or
+ * <code>maxDelayMillis</code> after its first item was submitted, whichever
+ * comes first, and never holds more than <code>maxBatchSize</code> items.
+ * Commits run on a single background thread, so groups are committed, and
+ * reported, in submission order.
+ * </p>
+ * <p>
+ * An item submitted once the queue has been closed - by a thread that found
+ * the queue before it was replaced - is committed on the submitting thread
+ * instead, after whatever the commit thread is still committing.
+ * </p>
+ *
+ * @param <T> the type of item being committed
+ */
+class GroupCommitQueue<T> {
+
+	/**
+	 * Does the actual work of committing a group of items
+	 */
+	interface Committer<T> {
+		/**
+		 * Commit a group of items - either all of them or none
+		 *
+		 * @param batch
+		 *            the items, in submission order
+		 * @throws Exception
+		 *             if the group could not be committed
+		 */
+		void commit(List<T> batch) throws Exception;
+
+		/**
+		 * Called once a group has been committed
+		 *
+		 * @param batch
+		 *            the items, in submission order
+		 */
+		void onCommitted(List<T> batch);
+
+		/**
+		 * Called when a group could not be committed
+		 *
+		 * @param batch
+		 *            the items, in submission order
+		 * @param e
+		 *            the reason for the failure
+		 */
+		void onCommitFailed(List<T> batch, Exception e);
+	}
+
+	private final Committer<T> committer;
+	private final int maxBatchSize;
+	private final long maxDelayMillis;
+	private final ScheduledExecutorService executor;
+
+	// the thread on which commits are run
+	private volatile Thread commitThread;
+
+	// items waiting for the next commit, and whether a timed commit is due
+	private List<T> pending;
+	private boolean flushScheduled = false;
+	private boolean closed = false;
+
+	// held while committing, so that commits made on other threads once the
+	// queue is closed still follow those made on the commit thread
+	private final Object commitLock = new Object();
+
+	private final Runnable flushTask = new Runnable() {
+		@Override
+		public void run() {
+			flush();
+		}
+	};
+
+	/**
+	 * Constructor
+	 *
+	 * @param name
+	 *            name of the thread on which commits will be run
+	 * @param committer
+	 *            does the actual work of committing items
+	 * @param maxBatchSize
+	 *            the largest number of items to wait for before committing
+	 * @param maxDelayMillis
+	 *            the longest time an item may wait before being committed
+	 */
+	GroupCommitQueue(final String name, Committer<T> committer,
+			int maxBatchSize, long maxDelayMillis) {
+		if (maxBatchSize < 1 || maxDelayMillis < 0) {
+			throw new IllegalArgumentException(
+					"maxBatchSize must be positive and maxDelayMillis not negative");
+		}
+		this.committer = committer;
+		this.maxBatchSize = maxBatchSize;
+		this.maxDelayMillis = maxDelayMillis;
+		this.pending = new ArrayList<>(maxBatchSize);
+		this.executor = Executors
+				.newSingleThreadScheduledExecutor(new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable r) {
+						commitThread = new Thread(r, name);
+						commitThread.setDaemon(true);
+						return commitThread;
+					}
+				});
+	}
+
+	/**
+	 * Queue an item for the next group commit
+	 *
+	 * @param item
+	 *            the item to commit
+	 */
+	void submit(T item) {
+		synchronized (this) {
+			pending.add(item);
+			if (!closed) {
+				if (pending.size() >= maxBatchSize) {
+					executor.execute(flushTask);
+				} else if (!flushScheduled) {
+					flushScheduled = true;
+					executor.schedule(flushTask, maxDelayMillis,
+							TimeUnit.MILLISECONDS);
+				}
+				return;
+			}
+		}
+		flush();
+	}
+
+	/**
+	 * @return the number of items waiting to be committed
+	 */
+	synchronized int size() {
+		return pending.size();
+	}
+
+	/**
+	 * Commit everything submitted so far, and wait for that to complete.
+	 */
+	void drain() {
+		if (Thread.currentThread() == commitThread) {
+			flush();
+			return;
+		}
+		Future<?> done;
+		try {
+			done = executor.submit(flushTask);
+		} catch (RejectedExecutionException e) {
+			// closed, so there is no commit thread to wait for
+			flush();
+			return;
+		}
+		try {
+			done.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			// the committer has already been told of the failure
+		}
+	}
+
+	/**
+	 * Commit everything submitted so far, then stop the commit thread. Items
+	 * submitted from now on are committed on the thread submitting them.
+	 */
+	void close() {
+		synchronized (this) {
+			closed = true;
+		}
+		drain();
+		executor.shutdown();
+	}
+
+	/**
+	 * Commit everything pending, at most maxBatchSize items at a time - run
+	 * on the commit thread, or once the queue is closed, on any
+	 */
+	private void flush() {
+		synchronized (commitLock) {
+			flushPending();
+		}
+	}
+
+	private void flushPending() {
+		while (true) {
+			List<T> batch;
+			synchronized (this) {
+				flushScheduled = false;
+				if (pending.isEmpty()) {
+					return;
+				}
+				if (pending.size() <= maxBatchSize) {
+					batch = pending;
+					pending = new ArrayList<>(maxBatchSize);
+				} else {
+					List<T> head = pending.subList(0, maxBatchSize);
+					batch = new ArrayList<>(head);
+					head.clear();
+				}
+			}
+			try {
+				committer.commit(batch);
+			} catch (Exception e) {
+				committer.onCommitFailed(batch, e);
+				continue;
+			}
+			committer.onCommitted(batch);
+		}
+	}
+}
@@ -0,0 +1,139 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ */
+package org.eclipse.paho.android.service;
+
+/**
+ * A snapshot of the messages a client has published which are not yet
+ * delivered, from {@link MqttAndroidClient#getInFlightStats()}
+ */
+public final class InFlightStats {
+
+	private final int capacity;
+	private final int depth;
+	private final int highWaterMark;
+	private final long added;
+	private final long completed;
+	private final long failed;
+	private final long reclaimed;
+	private final long rejected;
+	private final long refused;
+	private final long blockedCount;
+	private final long blockedMillis;
+
+	InFlightStats(int capacity, int depth, int highWaterMark, long added,
+			long completed, long failed, long reclaimed, long rejected,
+			long refused, long blockedCount, long blockedMillis) {
+		this.capacity = capacity;
+		this.depth = depth;
+		this.highWaterMark = highWaterMark;
+		this.added = added;
+		this.completed = completed;
+		this.failed = failed;
+		this.reclaimed = reclaimed;
+		this.rejected = rejected;
+		this.refused = refused;
+		this.blockedCount = blockedCount;
+		this.blockedMillis = blockedMillis;
+	}
+
+	/**
+	 * @return the largest number of messages which may be in flight - the
+	 *         in-flight window
+	 */
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * @return the number of messages in flight now
+	 */
+	public int getDepth() {
+		return depth;
+	}
+
+	/**
+	 * @return the largest number of messages that have been in flight at once
+	 */
+	public int getHighWaterMark() {
+		return highWaterMark;
+	}
+
+	/**
+	 * @return the number of messages published so far
+	 */
+	public long getAdded() {
+		return added;
+	}
+
+	/**
+	 * @return the number of messages delivered so far
+	 */
+	public long getCompleted() {
+		return completed;
+	}
+
+	/**
+	 * @return the number of publishes which failed
+	 */
+	public long getFailed() {
+		return failed;
+	}
+
+	/**
+	 * @return the number of messages forgotten because the client disconnected
+	 *         before they were delivered
+	 */
+	public long getReclaimed() {
+		return reclaimed;
+	}
+
+	/**
+	 * @return the number of publishes refused because too many messages were
+	 *         in flight
+	 */
+	public long getRejected() {
+		return rejected;
+	}
+
+	/**
+	 * @return the number of offers refused because the window was full
+	 */
+	public long getRefusedCount() {
+		return refused;
+	}
+
+	/**
+	 * @return the number of times the window filled up on an offer
+	 */
+	public long getBlockedCount() {
+		return blockedCount;
+	}
+
+	/**
+	 * @return the total time, in milliseconds, from offers being refused to
+	 *         the window draining to half full
+	 */
+	public long getBlockedMillis() {
+		return blockedMillis;
+	}
+
+	@Override
+	public String toString() {
+		return "InFlightStats [depth=" + depth + "/" + capacity
+				+ ", highWaterMark=" + highWaterMark + ", added=" + added
+				+ ", completed=" + completed + ", failed=" + failed
+				+ ", reclaimed=" + reclaimed + ", rejected=" + rejected
+				+ ", refused=" + refused + ", blockedCount=" + blockedCount
+				+ ", blockedMillis=" + blockedMillis + "]";
+	}
+}
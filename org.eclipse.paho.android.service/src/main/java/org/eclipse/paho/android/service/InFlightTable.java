@@ -0,0 +1,292 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ */
+package org.eclipse.paho.android.service;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+
+/**
+ * <p>
+ * The messages a connection has published which are not yet delivered, one
+ * {@link Record} each, safe to use from the application's publishing threads
+ * and the client's callback thread at once.
+ * </p>
+ * <p>
+ * The table holds at most <code>capacity</code> records - the connection's
+ * in-flight window; {@link #add(Record)} refuses any more, rather than let the
+ * table grow without limit while the server is unreachable. A record leaves
+ * the table when its message is delivered, when its publish fails, or when
+ * the connection is disconnected.
+ * </p>
+ * <p>
+ * A publisher which would rather wait than fail reserves a place first with
+ * {@link #reserve()}. If the window is full, the reservation is refused, and
+ * the {@link WindowListener} is told once the window has drained to half
+ * full, so that the publisher can pace itself.
+ * </p>
+ */
+class InFlightTable {
+
+	/**
+	 * The number of records held, unless the constructor is given another
+	 */
+	static final int DEFAULT_CAPACITY = 65536;
+
+	/**
+	 * Told when the window has room again, after a reservation was refused
+	 */
+	interface WindowListener {
+		void windowOpened();
+	}
+
+	/**
+	 * What is needed to report the delivery of one published message
+	 */
+	static final class Record {
+		final String topic;
+		final MqttMessage message;
+		final String invocationContext;
+		final int activityToken;
+
+		Record(String topic, MqttMessage message, String invocationContext,
+				int activityToken) {
+			this.topic = topic;
+			this.message = message;
+			this.invocationContext = invocationContext;
+			this.activityToken = activityToken;
+		}
+	}
+
+	private volatile int capacity;
+	private final WindowListener windowListener;
+	private final Set<Record> records = Collections
+			.newSetFromMap(new ConcurrentHashMap<Record, Boolean>());
+
+	private final AtomicInteger depth = new AtomicInteger();
+	private final AtomicInteger highWaterMark = new AtomicInteger();
+	private final AtomicLong added = new AtomicLong();
+	private final AtomicLong completed = new AtomicLong();
+	private final AtomicLong failed = new AtomicLong();
+	private final AtomicLong reclaimed = new AtomicLong();
+	private final AtomicLong rejected = new AtomicLong();
+	private final AtomicLong refused = new AtomicLong();
+
+	// when the window filled up on a publisher which reserves, or 0
+	private final AtomicLong blockedSince = new AtomicLong();
+	private final AtomicLong blockedCount = new AtomicLong();
+	private final AtomicLong blockedNanos = new AtomicLong();
+
+	/**
+	 * Constructor
+	 *
+	 * @param capacity
+	 *            the largest number of records held
+	 */
+	InFlightTable(int capacity) {
+		this(capacity, null);
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param capacity
+	 *            the largest number of records held
+	 * @param windowListener
+	 *            told when the window has room again, or null
+	 */
+	InFlightTable(int capacity, WindowListener windowListener) {
+		setCapacity(capacity);
+		this.windowListener = windowListener;
+	}
+
+	/**
+	 * Change the size of the window. Records already held stay, even if there
+	 * are more of them than the new capacity.
+	 *
+	 * @param capacity
+	 *            the largest number of records held
+	 */
+	void setCapacity(int capacity) {
+		if (capacity < 1) {
+			throw new IllegalArgumentException("capacity must be positive");
+		}
+		this.capacity = capacity;
+	}
+
+	/**
+	 * Reserve a place for a record, without waiting
+	 *
+	 * @return true if there was room, and the record is to be added with
+	 *         {@link #addReserved(Record)} or the place given back with
+	 *         {@link #cancelReservation()}
+	 */
+	boolean reserve() {
+		int size = depth.incrementAndGet();
+		if (size <= capacity) {
+			noteHighWater(size);
+			return true;
+		}
+		depth.decrementAndGet();
+		refused.incrementAndGet();
+		if (blockedSince.compareAndSet(0, Math.max(1, System.nanoTime()))) {
+			blockedCount.incrementAndGet();
+		}
+		// the window may have drained while this was refused
+		checkOpened();
+		return false;
+	}
+
+	/**
+	 * Hold a record in a place reserved for it
+	 *
+	 * @param record
+	 *            the record
+	 */
+	void addReserved(Record record) {
+		records.add(record);
+		added.incrementAndGet();
+	}
+
+	/**
+	 * Give back a reserved place which was not used
+	 */
+	void cancelReservation() {
+		depth.decrementAndGet();
+		checkOpened();
+	}
+
+	/**
+	 * Hold a record, before its message is published
+	 *
+	 * @param record
+	 *            the record
+	 * @return false if the table is full, and the message should not be
+	 *         published
+	 */
+	boolean add(Record record) {
+		int size = depth.incrementAndGet();
+		if (size > capacity) {
+			depth.decrementAndGet();
+			rejected.incrementAndGet();
+			return false;
+		}
+		records.add(record);
+		added.incrementAndGet();
+		noteHighWater(size);
+		return true;
+	}
+
+	private void noteHighWater(int size) {
+		int high = highWaterMark.get();
+		while (size > high && !highWaterMark.compareAndSet(high, size)) {
+			high = highWaterMark.get();
+		}
+	}
+
+	/**
+	 * If a reservation was refused, and the window has since drained to half
+	 * full, tell the listener - once
+	 */
+	private void checkOpened() {
+		if (blockedSince.get() == 0 || depth.get() > capacity / 2) {
+			return;
+		}
+		long since = blockedSince.getAndSet(0);
+		if (since != 0) {
+			blockedNanos.addAndGet(System.nanoTime() - since);
+			if (windowListener != null) {
+				windowListener.windowOpened();
+			}
+		}
+	}
+
+	/**
+	 * Release a record whose message has been delivered
+	 *
+	 * @param record
+	 *            the record
+	 * @return true if the record was held, and its delivery is to be reported
+	 */
+	boolean complete(Record record) {
+		if (release(record)) {
+			completed.incrementAndGet();
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Release a record whose publish failed
+	 *
+	 * @param record
+	 *            the record
+	 */
+	void fail(Record record) {
+		if (release(record)) {
+			failed.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Release every record, as the connection is going away and no delivery
+	 * will be reported for them
+	 *
+	 * @return the number of records released
+	 */
+	int clear() {
+		int count = 0;
+		for (Record record : records) {
+			if (release(record)) {
+				count++;
+			}
+		}
+		reclaimed.addAndGet(count);
+		return count;
+	}
+
+	private boolean release(Record record) {
+		if (records.remove(record)) {
+			depth.decrementAndGet();
+			checkOpened();
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * @return the number of records held
+	 */
+	int size() {
+		return depth.get();
+	}
+
+	/**
+	 * @return a snapshot of the table's counters
+	 */
+	InFlightStats getStats() {
+		long blocked = blockedNanos.get();
+		long since = blockedSince.get();
+		if (since != 0) {
+			blocked += System.nanoTime() - since;
+		}
+		return new InFlightStats(capacity, depth.get(), highWaterMark.get(),
+				added.get(), completed.get(), failed.get(), reclaimed.get(),
+				rejected.get(), refused.get(), blockedCount.get(),
+				blocked / 1000000);
+	}
+}
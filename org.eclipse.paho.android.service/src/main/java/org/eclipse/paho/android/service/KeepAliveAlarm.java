@@ -0,0 +1,291 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ */
+package org.eclipse.paho.android.service;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.annotation.SuppressLint;
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.app.Service;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.SharedPreferences;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.net.wifi.WifiInfo;
+import android.net.wifi.WifiManager;
+import android.os.Build;
+import android.os.PowerManager;
+import android.os.PowerManager.WakeLock;
+import android.os.SystemClock;
+import android.telephony.TelephonyManager;
+import android.util.Log;
+
+/**
+ * <p>
+ * The one alarm that sends the keep-alive pings of every connection in the
+ * service.
+ * </p>
+ * <p>
+ * Each connection's {@link AlarmPingSender} schedules its pings here, and a
+ * {@link PingScheduler} lines them up so that, when the alarm goes off,
+ * every ping then due is sent under one wake lock, held until the last of
+ * them is answered or fails.
+ * </p>
+ * <p>
+ * It also holds what has been learned of each network's keep-alive interval,
+ * for the connections in adaptive mode, saved in the service's shared
+ * preferences. A network is named by its Wi-Fi SSID, which needs the
+ * ACCESS_WIFI_STATE permission (and on newer releases location access) -
+ * without it every Wi-Fi network is taken as the same - or by its mobile
+ * operator.
+ * </p>
+ */
+class KeepAliveAlarm implements PingScheduler.Alarm {
+	// Identifier for Intents, log messages, etc..
+	private static final String TAG = "KeepAliveAlarm";
+
+	// where the learned keep-alive intervals are saved
+	private static final String PREFERENCES = MqttService.TAG + ".keepAlive";
+
+	private final MqttService service;
+	private final PingScheduler<AlarmPingSender> scheduler;
+	private final KeepAliveLearner learner;
+	private final String wakeLockTag;
+	private final PendingIntent pendingIntent;
+	private final BroadcastReceiver alarmReceiver = new AlarmReceiver();
+	// held, once for each wake-up, until its pings are answered
+	private final WakeLock wakelock;
+
+	/**
+	 * Constructor - registers the alarm's receiver, so {@link #close()} must
+	 * be called when the service is destroyed
+	 *
+	 * @param service
+	 *            the service whose connections are kept alive
+	 */
+	KeepAliveAlarm(MqttService service) {
+		this.service = service;
+		this.scheduler = new PingScheduler<>(this);
+		final SharedPreferences preferences = service.getSharedPreferences(
+				PREFERENCES, Context.MODE_PRIVATE);
+		this.learner = new KeepAliveLearner(new KeepAliveLearner.Store() {
+			@Override
+			public String get(String network) {
+				return preferences.getString(network, null);
+			}
+
+			@Override
+			public void put(String network, String value) {
+				preferences.edit().putString(network, value).apply();
+			}
+		});
+		networkChanged();
+
+		String packageName = service.getPackageName();
+		wakeLockTag = MqttServiceConstants.PING_WAKELOCK + packageName;
+		PowerManager pm = (PowerManager) service
+				.getSystemService(Service.POWER_SERVICE);
+		wakelock = pm.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, wakeLockTag);
+		wakelock.setReferenceCounted(true);
+
+		String action = MqttServiceConstants.PING_SENDER + packageName;
+		Log.d(TAG, "Register alarmreceiver to MqttService" + action);
+		service.registerReceiver(alarmReceiver, new IntentFilter(action));
+		pendingIntent = PendingIntent.getBroadcast(service, 0, new Intent(
+				action).setPackage(packageName),
+				PendingIntent.FLAG_UPDATE_CURRENT);
+	}
+
+	/**
+	 * @param slackMillis
+	 *            the longest a ping is delayed to share a wake-up, or 0 to
+	 *            wake for each ping when it is due
+	 */
+	void setSlack(long slackMillis) {
+		scheduler.setSlack(slackMillis);
+	}
+
+	/**
+	 * Ask for a connection to be pinged, in place of any ping it asked for
+	 * before
+	 *
+	 * @param sender
+	 *            the connection's ping sender
+	 * @param delayInMilliseconds
+	 *            how long from now the ping is due
+	 */
+	void schedule(AlarmPingSender sender, long delayInMilliseconds) {
+		scheduler.schedule(sender, SystemClock.elapsedRealtime(),
+				delayInMilliseconds);
+	}
+
+	/**
+	 * Traffic has kept a connection alive, so push its ping back - which only
+	 * now and then moves the alarm
+	 *
+	 * @param sender
+	 *            the connection's ping sender
+	 */
+	void activity(AlarmPingSender sender) {
+		scheduler.activity(sender, SystemClock.elapsedRealtime());
+	}
+
+	/**
+	 * Stop pinging a connection
+	 *
+	 * @param sender
+	 *            the connection's ping sender
+	 */
+	void remove(AlarmPingSender sender) {
+		scheduler.remove(sender);
+	}
+
+	/**
+	 * @return what has been learned of each network's keep-alive interval
+	 */
+	KeepAliveLearner getLearner() {
+		return learner;
+	}
+
+	/**
+	 * The device may have moved to another network: find which
+	 */
+	void networkChanged() {
+		String network = networkName();
+		Log.d(TAG, "Network is " + network);
+		learner.setNetwork(network);
+	}
+
+	/**
+	 * @return a snapshot of the wake-ups and pings so far
+	 */
+	KeepAliveStats getStats() {
+		return new KeepAliveStats(scheduler.getWakeUps(), scheduler.getPings(),
+				scheduler.getPingsAvoided(), scheduler.getAlarmsSet(),
+				scheduler.getSlack(), scheduler.size(), learner.getNetwork(),
+				learner.getSafeInterval());
+	}
+
+	/**
+	 * @return the name of the network the device is on, or null if it is on
+	 *         none
+	 */
+	private String networkName() {
+		ConnectivityManager cm = (ConnectivityManager) service
+				.getSystemService(Context.CONNECTIVITY_SERVICE);
+		NetworkInfo info = cm.getActiveNetworkInfo();
+		if (info == null || !info.isConnected()) {
+			return null;
+		}
+		if (info.getType() == ConnectivityManager.TYPE_WIFI) {
+			String ssid = null;
+			try {
+				WifiManager wifi = (WifiManager) service
+						.getApplicationContext().getSystemService(
+								Context.WIFI_SERVICE);
+				WifiInfo wifiInfo = wifi.getConnectionInfo();
+				ssid = wifiInfo == null ? null : wifiInfo.getSSID();
+			} catch (SecurityException e) {
+				// no permission to see the SSID
+			}
+			return "wifi:" + (ssid == null ? "" : ssid);
+		}
+		if (info.getType() == ConnectivityManager.TYPE_MOBILE) {
+			TelephonyManager telephony = (TelephonyManager) service
+					.getSystemService(Context.TELEPHONY_SERVICE);
+			return "mobile:" + telephony.getNetworkOperator();
+		}
+		return info.getTypeName();
+	}
+
+	/**
+	 * Cancel the alarm and unregister its receiver
+	 */
+	void close() {
+		cancel();
+		try {
+			service.unregisterReceiver(alarmReceiver);
+		} catch (IllegalArgumentException e) {
+			// Ignore unregister errors.
+		}
+	}
+
+	@Override
+	public void wakeAt(long time) {
+		Log.d(TAG, "Schedule next alarm at " + time);
+		AlarmManager alarmManager = (AlarmManager) service
+				.getSystemService(Service.ALARM_SERVICE);
+
+		if (Build.VERSION.SDK_INT >= 23) {
+			// In SDK 23 and above, dosing will prevent setExact, setExactAndAllowWhileIdle will force
+			// the device to run this task whilst dosing.
+			alarmManager.setExactAndAllowWhileIdle(
+					AlarmManager.ELAPSED_REALTIME_WAKEUP, time, pendingIntent);
+		} else if (Build.VERSION.SDK_INT >= 19) {
+			alarmManager.setExact(AlarmManager.ELAPSED_REALTIME_WAKEUP, time,
+					pendingIntent);
+		} else {
+			alarmManager.set(AlarmManager.ELAPSED_REALTIME_WAKEUP, time,
+					pendingIntent);
+		}
+	}
+
+	@Override
+	public void cancel() {
+		AlarmManager alarmManager = (AlarmManager) service
+				.getSystemService(Service.ALARM_SERVICE);
+		alarmManager.cancel(pendingIntent);
+	}
+
+	/*
+	 * This class sends the PingReq packets that are due to their MQTT brokers
+	 */
+	class AlarmReceiver extends BroadcastReceiver {
+
+		@Override
+		@SuppressLint("Wakelock")
+		public void onReceive(Context context, Intent intent) {
+			List<AlarmPingSender> due = scheduler.wake(SystemClock
+					.elapsedRealtime());
+			Log.d(TAG, "Sending " + due.size() + " pings at:"
+					+ System.currentTimeMillis());
+			if (due.isEmpty()) {
+				return;
+			}
+
+			// The Alarm Manager holds a wake lock only while onReceive() runs,
+			// so take ours to wait for the ping responses, and release it when
+			// the last has arrived or failed.
+			wakelock.acquire();
+			final AtomicInteger pending = new AtomicInteger(due.size());
+			Runnable done = new Runnable() {
+				@Override
+				public void run() {
+					if (pending.decrementAndGet() == 0 && wakelock.isHeld()) {
+						Log.d(TAG, "Release lock(" + wakeLockTag + "):"
+								+ System.currentTimeMillis());
+						wakelock.release();
+					}
+				}
+			};
+			for (AlarmPingSender sender : due) {
+				sender.ping(done);
+			}
+		}
+	}
+}
@@ -0,0 +1,256 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ */
+package org.eclipse.paho.android.service;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * <p>
+ * The longest keep-alive interval each network has been found to allow.
+ * </p>
+ * <p>
+ * NATs and firewalls, on carrier networks especially, forget idle TCP
+ * connections after a timeout nobody publishes, and drop them without a
+ * word. A connection pinging less often than that is lost; one pinging much
+ * more often wakes the device and the radio for nothing. So the interval is
+ * learned: for each network the longest interval at which pings have
+ * succeeded - the safe interval - and the shortest at which one has failed -
+ * the ceiling - are kept. Connections start at their minimum, then ping at
+ * a probe above the safe interval: double it while nothing has failed, or
+ * halfway to the ceiling once something has, until the gap is under
+ * {@link #PRECISION_MILLIS}. A
+ * probe becomes the safe interval after {@link #CONFIRMATIONS} successful
+ * pings. A failed ping lowers the ceiling, and if even the safe interval
+ * failed, halves it too.
+ * </p>
+ * <p>
+ * Each network's intervals are saved in a {@link Store}, so survive a
+ * restart. A ceiling is forgotten after {@link #CEILING_LIFETIME_MILLIS}, in
+ * case the failure that set it was not the NAT's doing.
+ * </p>
+ */
+class KeepAliveLearner {
+
+	/**
+	 * Probing stops once the safe interval is this close to the ceiling
+	 */
+	static final long PRECISION_MILLIS = 15000;
+
+	/**
+	 * The number of successful pings at a probe before it is taken as safe
+	 */
+	static final int CONFIRMATIONS = 2;
+
+	/**
+	 * How long a failure keeps the ceiling down
+	 */
+	static final long CEILING_LIFETIME_MILLIS = 24 * 60 * 60 * 1000L;
+
+	/**
+	 * Where the learned intervals are kept
+	 */
+	interface Store {
+		/**
+		 * @param network
+		 *            the network's name
+		 * @return what was saved for the network, or null if nothing was
+		 */
+		String get(String network);
+
+		/**
+		 * @param network
+		 *            the network's name
+		 * @param value
+		 *            what to save for the network
+		 */
+		void put(String network, String value);
+	}
+
+	/**
+	 * What is known of one network
+	 */
+	private static final class Network {
+		// 0 if unknown
+		long safe = 0;
+		// Long.MAX_VALUE if unknown
+		long ceiling = Long.MAX_VALUE;
+		long ceilingAt = 0;
+		// the probe being confirmed, and its successful pings so far
+		long confirming = 0;
+		int successes = 0;
+
+		@Override
+		public String toString() {
+			return safe + "," + ceiling + "," + ceilingAt;
+		}
+
+		static Network parse(String value) {
+			Network network = new Network();
+			if (value != null) {
+				String[] parts = value.split(",");
+				try {
+					if (parts.length == 3) {
+						network.safe = Long.parseLong(parts[0]);
+						network.ceiling = Long.parseLong(parts[1]);
+						network.ceilingAt = Long.parseLong(parts[2]);
+					}
+				} catch (NumberFormatException e) {
+					// start again
+					network = new Network();
+				}
+			}
+			return network;
+		}
+	}
+
+	private final Store store;
+	private final Map<String, Network> networks = new HashMap<>();
+	private String current = null;
+
+	/**
+	 * Constructor
+	 *
+	 * @param store
+	 *            where the learned intervals are kept
+	 */
+	KeepAliveLearner(Store store) {
+		this.store = store;
+	}
+
+	/**
+	 * @param network
+	 *            the name of the network the device is now on, or null if it
+	 *            is on none
+	 */
+	synchronized void setNetwork(String network) {
+		current = network;
+	}
+
+	/**
+	 * @return the name of the network the device is on, or null
+	 */
+	synchronized String getNetwork() {
+		return current;
+	}
+
+	/**
+	 * The interval a connection should ping at now
+	 *
+	 * @param min
+	 *            the shortest interval the connection pings at
+	 * @param max
+	 *            the longest interval the connection may ping at - the
+	 *            keep-alive interval it gave the server
+	 * @param now
+	 *            the time now, in milliseconds since the epoch
+	 * @return the interval, from min to max
+	 */
+	synchronized long getInterval(long min, long max, long now) {
+		if (max <= min) {
+			return max;
+		}
+		Network network = network();
+		if (network == null) {
+			return min;
+		}
+		if (network.ceiling != Long.MAX_VALUE
+				&& now - network.ceilingAt > CEILING_LIFETIME_MILLIS) {
+			network.ceiling = Long.MAX_VALUE;
+			save(network);
+		}
+		if (network.safe < min) {
+			// the minimum itself is still to be confirmed
+			return min;
+		}
+		long safe = Math.min(max, network.safe);
+		if (network.ceiling > max) {
+			// nothing has failed yet, within this connection's reach
+			return Math.min(2 * safe, max);
+		}
+		long probe = safe + (network.ceiling - safe) / 2;
+		return probe - safe < PRECISION_MILLIS ? safe : probe;
+	}
+
+	/**
+	 * A ping sent after the connection was idle for an interval was answered
+	 *
+	 * @param interval
+	 *            the interval
+	 */
+	synchronized void pingSucceeded(long interval) {
+		Network network = network();
+		if (network == null || interval <= network.safe) {
+			return;
+		}
+		if (network.confirming != interval) {
+			network.confirming = interval;
+			network.successes = 0;
+		}
+		if (++network.successes >= CONFIRMATIONS) {
+			network.safe = interval;
+			network.successes = 0;
+			save(network);
+		}
+	}
+
+	/**
+	 * A ping sent after the connection was idle for an interval was not
+	 * answered
+	 *
+	 * @param interval
+	 *            the interval
+	 * @param now
+	 *            the time now, in milliseconds since the epoch
+	 */
+	synchronized void pingFailed(long interval, long now) {
+		Network network = network();
+		if (network == null) {
+			return;
+		}
+		if (interval <= network.ceiling) {
+			network.ceiling = interval;
+			network.ceilingAt = now;
+		}
+		if (interval <= network.safe) {
+			network.safe = interval / 2;
+		}
+		network.successes = 0;
+		save(network);
+	}
+
+	/**
+	 * @return the safe interval learned for the current network, or 0 if
+	 *         there is none
+	 */
+	synchronized long getSafeInterval() {
+		Network network = network();
+		return network == null ? 0 : network.safe;
+	}
+
+	private Network network() {
+		if (current == null) {
+			return null;
+		}
+		Network network = networks.get(current);
+		if (network == null) {
+			network = Network.parse(store.get(current));
+			networks.put(current, network);
+		}
+		return network;
+	}
+
+	private void save(Network network) {
+		store.put(current, network.toString());
+	}
+}
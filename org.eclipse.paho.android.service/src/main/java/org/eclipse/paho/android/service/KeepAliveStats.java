@@ -0,0 +1,125 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ */
+package org.eclipse.paho.android.service;
+
+/**
+ * A snapshot of the keep-alive pings the service has sent for all its
+ * connections, and the wake-ups it sent them in, from
+ * {@link MqttAndroidClient#getKeepAliveStats()}. The counts are since the
+ * service was created.
+ */
+public final class KeepAliveStats {
+
+	private final long wakeUps;
+	private final long pings;
+	private final long pingsAvoided;
+	private final long alarmsSet;
+	private final long slackMillis;
+	private final int connections;
+	private final String network;
+	private final long learnedIntervalMillis;
+
+	KeepAliveStats(long wakeUps, long pings, long pingsAvoided,
+			long alarmsSet, long slackMillis, int connections, String network,
+			long learnedIntervalMillis) {
+		this.wakeUps = wakeUps;
+		this.pings = pings;
+		this.pingsAvoided = pingsAvoided;
+		this.alarmsSet = alarmsSet;
+		this.slackMillis = slackMillis;
+		this.connections = connections;
+		this.network = network;
+		this.learnedIntervalMillis = learnedIntervalMillis;
+	}
+
+	/**
+	 * @return the number of times the device was woken to send pings
+	 */
+	public long getWakeUps() {
+		return wakeUps;
+	}
+
+	/**
+	 * @return the number of times a connection was woken for, each of which
+	 *         sends a ping if the connection has been idle for its keep-alive
+	 *         interval
+	 */
+	public long getPings() {
+		return pings;
+	}
+
+	/**
+	 * @return the number of wake-ups saved by sending pings together, rather
+	 *         than waking for each
+	 */
+	public long getWakeUpsSaved() {
+		return pings - wakeUps;
+	}
+
+	/**
+	 * @return the number of pings made unnecessary by traffic both ways -
+	 *         published messages acknowledged, or arrived messages
+	 *         acknowledged, at QoS 1 or 2 - each a wake-up not needed
+	 */
+	public long getPingsAvoided() {
+		return pingsAvoided;
+	}
+
+	/**
+	 * @return the number of times the alarm was set, for the pings or because
+	 *         traffic pushed them back
+	 */
+	public long getAlarmsSet() {
+		return alarmsSet;
+	}
+
+	/**
+	 * @return the longest a ping may be delayed to share a wake-up
+	 */
+	public long getSlackMillis() {
+		return slackMillis;
+	}
+
+	/**
+	 * @return the number of connections waiting for their next ping
+	 */
+	public int getConnections() {
+		return connections;
+	}
+
+	/**
+	 * @return the name the service knows the network the device is on by,
+	 *         or null if it is on none
+	 */
+	public String getNetwork() {
+		return network;
+	}
+
+	/**
+	 * @return the longest keep-alive interval found safe on the network, for
+	 *         clients in adaptive mode, or 0 if none has been found yet
+	 */
+	public long getLearnedIntervalMillis() {
+		return learnedIntervalMillis;
+	}
+
+	@Override
+	public String toString() {
+		return "KeepAliveStats [wakeUps=" + wakeUps + ", pings=" + pings
+				+ ", wakeUpsSaved=" + getWakeUpsSaved() + ", pingsAvoided="
+				+ pingsAvoided + ", alarmsSet=" + alarmsSet + ", slackMillis="
+				+ slackMillis + ", connections=" + connections + ", network="
+				+ network + ", learnedIntervalMillis="
+				+ learnedIntervalMillis + "]";
+	}
+}
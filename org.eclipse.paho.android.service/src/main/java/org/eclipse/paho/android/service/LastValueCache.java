@@ -0,0 +1,258 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ */
+package org.eclipse.paho.android.service;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.eclipse.paho.client.mqttv3.MqttTopic;
+
+/**
+ * <p>
+ * The last message to arrive on each topic, kept so that the application can
+ * read the current value of a topic without waiting for the server.
+ * </p>
+ * <p>
+ * The cache is bounded by the bytes it holds - each topic's payload, the
+ * topic itself and a little more. When it is full, the topic least recently
+ * received or read by {@link #get(String)} is forgotten. Topics are also held
+ * in a trie, one level to a node, so that a wildcarded topic filter is
+ * matched by walking the levels it names rather than every topic held.
+ * </p>
+ * <p>
+ * A retained message with an empty payload clears the topic's retained
+ * value at the server, and so clears it here too.
+ * </p>
+ */
+class LastValueCache {
+
+	// what each entry costs beyond its topic and payload
+	private static final int ENTRY_OVERHEAD_BYTES = 64;
+
+	/**
+	 * One level of a topic, and the value of the topic ending there, if any
+	 */
+	private static final class Node {
+		final Node parent;
+		final String level;
+		final Map<String, Node> children = new HashMap<>(4);
+		String topic;
+		MqttMessage value;
+		int cost;
+
+		Node(Node parent, String level) {
+			this.parent = parent;
+			this.level = level;
+		}
+	}
+
+	private final Node root = new Node(null, null);
+
+	// the nodes holding a value, least recently used first
+	private final LinkedHashMap<String, Node> byTopic = new LinkedHashMap<>(
+			16, 0.75f, true);
+
+	private long maxBytes;
+	private long bytes = 0;
+
+	/**
+	 * Constructor
+	 *
+	 * @param maxBytes
+	 *            the largest number of bytes held
+	 */
+	LastValueCache(long maxBytes) {
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * Change the number of bytes held, forgetting the least recently used
+	 * topics if the cache now holds too many
+	 *
+	 * @param maxBytes
+	 *            the largest number of bytes held
+	 */
+	synchronized void setMaxBytes(long maxBytes) {
+		this.maxBytes = maxBytes;
+		trim();
+	}
+
+	/**
+	 * Remember a message as the value of its topic
+	 *
+	 * @param topic
+	 *            the topic the message arrived on
+	 * @param message
+	 *            the message
+	 */
+	synchronized void put(String topic, MqttMessage message) {
+		byte[] payload = message.getPayload();
+		if (message.isRetained() && payload.length == 0) {
+			remove(topic);
+			return;
+		}
+		int cost = ENTRY_OVERHEAD_BYTES + 2 * topic.length() + payload.length;
+		if (cost > maxBytes) {
+			remove(topic);
+			return;
+		}
+		Node node = byTopic.get(topic);
+		if (node == null) {
+			node = root;
+			for (String level : topic.split("/", -1)) {
+				Node child = node.children.get(level);
+				if (child == null) {
+					child = new Node(node, level);
+					node.children.put(level, child);
+				}
+				node = child;
+			}
+			node.topic = topic;
+			byTopic.put(topic, node);
+		} else {
+			bytes -= node.cost;
+		}
+		node.value = copy(message);
+		node.cost = cost;
+		bytes += cost;
+		trim();
+	}
+
+	/**
+	 * @param topic
+	 *            a topic, without wildcards
+	 * @return the last message to arrive on the topic, or null if none is
+	 *         held
+	 */
+	synchronized MqttMessage get(String topic) {
+		Node node = byTopic.get(topic);
+		return node == null ? null : copy(node.value);
+	}
+
+	/**
+	 * @param topicFilter
+	 *            a topic filter, which may contain wildcards
+	 * @return the last message to arrive on each topic held which matches
+	 *         the filter, by topic, in topic order
+	 * @throws IllegalArgumentException
+	 *             if the filter is not a valid topic filter
+	 */
+	synchronized Map<String, MqttMessage> query(String topicFilter) {
+		MqttTopic.validate(topicFilter, true);
+		Map<String, MqttMessage> values = new TreeMap<>();
+		match(root, topicFilter.split("/", -1), 0, values);
+		return values;
+	}
+
+	/**
+	 * @return the number of topics held
+	 */
+	synchronized int size() {
+		return byTopic.size();
+	}
+
+	/**
+	 * @return the number of bytes held
+	 */
+	synchronized long getBytes() {
+		return bytes;
+	}
+
+	private void match(Node node, String[] levels, int depth,
+			Map<String, MqttMessage> values) {
+		if (depth == levels.length) {
+			if (node.value != null) {
+				values.put(node.topic, copy(node.value));
+			}
+			return;
+		}
+		String level = levels[depth];
+		if ("#".equals(level)) {
+			// matches the parent level too, as "a/#" matches "a"
+			if (node.value != null && depth > 0) {
+				values.put(node.topic, copy(node.value));
+			}
+			for (Node child : node.children.values()) {
+				if (!(depth == 0 && child.level.startsWith("$"))) {
+					collect(child, values);
+				}
+			}
+		} else if ("+".equals(level)) {
+			for (Node child : node.children.values()) {
+				if (!(depth == 0 && child.level.startsWith("$"))) {
+					match(child, levels, depth + 1, values);
+				}
+			}
+		} else {
+			Node child = node.children.get(level);
+			if (child != null) {
+				match(child, levels, depth + 1, values);
+			}
+		}
+	}
+
+	private void collect(Node node, Map<String, MqttMessage> values) {
+		if (node.value != null) {
+			values.put(node.topic, copy(node.value));
+		}
+		for (Node child : node.children.values()) {
+			collect(child, values);
+		}
+	}
+
+	/**
+	 * Forget the least recently used topics until the cache is within its
+	 * bounds
+	 */
+	private void trim() {
+		Iterator<Node> it = byTopic.values().iterator();
+		while (bytes > maxBytes && it.hasNext()) {
+			Node node = it.next();
+			it.remove();
+			release(node);
+		}
+	}
+
+	private void remove(String topic) {
+		Node node = byTopic.remove(topic);
+		if (node != null) {
+			release(node);
+		}
+	}
+
+	/**
+	 * Clear a node's value, and prune the nodes left with nothing below them
+	 */
+	private void release(Node node) {
+		bytes -= node.cost;
+		node.value = null;
+		node.topic = null;
+		node.cost = 0;
+		while (node.parent != null && node.value == null
+				&& node.children.isEmpty()) {
+			node.parent.children.remove(node.level);
+			node = node.parent;
+		}
+	}
+
+	private static MqttMessage copy(MqttMessage message) {
+		MqttMessage copy = new MqttMessage(message.getPayload().clone());
+		copy.setQos(message.getQos());
+		copy.setRetained(message.isRetained());
+		return copy;
+	}
+}
@@ -0,0 +1,288 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ */
+package org.eclipse.paho.android.service;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+
+/**
+ * <p>
+ * Implementation of the {@link MessageStore} interface which holds arrived
+ * messages only in memory, for messages which need not survive a restart of
+ * the service.
+ * </p>
+ * <p>
+ * Each client has a ring buffer holding up to a fixed number of messages.
+ * When a client's buffer is full, its oldest message is dropped to make room
+ * - that message has already been passed to the application once, but will
+ * not be passed again by {@link #getAllArrivedMessages(String)}.
+ * </p>
+ * <p>
+ * A message is found by its place in the ring, so while an old message is
+ * still held, the ring spans every message stored since - acknowledged or
+ * not. If that span outgrows the ring, the ring grows rather than drop a
+ * message that still fits, and shrinks again once the old message goes -
+ * but only to twice the number of messages held, so that an old message the
+ * application never acknowledges is dropped once the span reaches that,
+ * rather than grow the ring without end.
+ * </p>
+ */
+class MemoryMessageStore implements MessageStore {
+
+	// TAG used for indentify trace data etc.
+	private static final String TAG = "MemoryMessageStore";
+
+	// starts every id this store hands out, to tell them from other stores'
+	private static final String ID_PREFIX = "memory:";
+
+	// the number of messages held for each client, by default
+	static final int DEFAULT_CAPACITY = 1000;
+
+	private final MqttTraceHandler traceHandler;
+	private final int capacity;
+
+	private final Map<String, Ring> rings = new HashMap<>();
+
+	// the number of messages dropped to make room for newer ones
+	private long droppedCount = 0;
+
+	/**
+	 * The messages held for one client. Message n, counting from the first
+	 * ever stored for the client, is held in slot n % slots.length while it
+	 * is between start and end; a discarded message leaves its slot empty.
+	 * The slots always cover the span from start to end, and start is always
+	 * a message held, unless the ring is empty.
+	 */
+	private static class Ring {
+		final int capacity;
+		StoredMessage[] slots;
+		long start = 0;
+		long end = 0;
+		int count = 0;
+
+		Ring(int capacity) {
+			this.capacity = capacity;
+			slots = new StoredMessage[capacity];
+		}
+
+		int slot(long sequence) {
+			return (int) (sequence % slots.length);
+		}
+
+		/**
+		 * @return true if the oldest message must go to make room for another
+		 */
+		boolean full() {
+			return count == capacity || end - start == 2L * capacity;
+		}
+
+		/**
+		 * Move start past any empty slots, and shrink the ring once the span
+		 * it must cover has fallen back
+		 */
+		void trim() {
+			while (start < end && slots[slot(start)] == null) {
+				start++;
+			}
+			if (slots.length > capacity && end - start <= slots.length / 4) {
+				resize(Math.max(capacity, slots.length / 2));
+			}
+		}
+
+		/**
+		 * Make room for the next message, whatever the span
+		 */
+		void extend() {
+			if (end - start == slots.length) {
+				resize(slots.length * 2);
+			}
+		}
+
+		private void resize(int length) {
+			StoredMessage[] old = slots;
+			slots = new StoredMessage[length];
+			for (long sequence = start; sequence < end; sequence++) {
+				slots[slot(sequence)] = old[(int) (sequence % old.length)];
+			}
+		}
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param traceHandler
+	 *            where to send trace
+	 * @param capacity
+	 *            the largest number of messages held for each client
+	 */
+	MemoryMessageStore(MqttTraceHandler traceHandler, int capacity) {
+		if (capacity < 1) {
+			throw new IllegalArgumentException("capacity must be positive");
+		}
+		this.traceHandler = traceHandler;
+		this.capacity = capacity;
+	}
+
+	/**
+	 * @param id
+	 *            the identifier of a stored message
+	 * @return true if the identifier was handed out by a MemoryMessageStore
+	 */
+	static boolean isMemoryId(String id) {
+		return id != null && id.startsWith(ID_PREFIX);
+	}
+
+	/**
+	 * @return the number of messages dropped because their client's buffer
+	 *         was full
+	 */
+	synchronized long getDroppedCount() {
+		return droppedCount;
+	}
+
+	@Override
+	public synchronized String storeArrived(String clientHandle, String topic,
+			MqttMessage message) {
+		Ring ring = rings.get(clientHandle);
+		if (ring == null) {
+			ring = new Ring(capacity);
+			rings.put(clientHandle, ring);
+		}
+		if (ring.full()) {
+			// start is the oldest message held
+			ring.slots[ring.slot(ring.start)] = null;
+			ring.count--;
+			droppedCount++;
+			traceHandler.traceError(TAG, "storeArrived: buffer full for {"
+					+ clientHandle + "}, dropped the oldest message");
+			ring.trim();
+		}
+		ring.extend();
+		long sequence = ring.end++;
+		String id = ID_PREFIX + sequence;
+		ring.slots[ring.slot(sequence)] = new StoredArrivedMessage(id,
+				clientHandle, topic, message);
+		ring.count++;
+		return id;
+	}
+
+	/**
+	 * Store a message - the listener is told straight away, on this thread
+	 */
+	@Override
+	public void storeArrived(String clientHandle, String topic,
+			MqttMessage message, StoreListener listener) {
+		listener.onStored(storeArrived(clientHandle, topic, message));
+	}
+
+	@Override
+	public synchronized boolean discardArrived(String clientHandle, String id) {
+		Ring ring = rings.get(clientHandle);
+		if (ring == null || !isMemoryId(id)) {
+			return false;
+		}
+		long sequence;
+		try {
+			sequence = Long.parseLong(id.substring(ID_PREFIX.length()));
+		} catch (NumberFormatException e) {
+			return false;
+		}
+		if (sequence < ring.start || sequence >= ring.end
+				|| ring.slots[ring.slot(sequence)] == null) {
+			return false;
+		}
+		ring.slots[ring.slot(sequence)] = null;
+		ring.count--;
+		ring.trim();
+		return true;
+	}
+
+	@Override
+	public synchronized int discardArrived(String clientHandle,
+			List<String> ids) {
+		int discarded = 0;
+		for (String id : ids) {
+			if (discardArrived(clientHandle, id)) {
+				discarded++;
+			}
+		}
+		return discarded;
+	}
+
+	@Override
+	public synchronized int getArrivedMessageCount(String clientHandle) {
+		if (clientHandle != null) {
+			Ring ring = rings.get(clientHandle);
+			return ring == null ? 0 : ring.count;
+		}
+		int count = 0;
+		for (Ring ring : rings.values()) {
+			count += ring.count;
+		}
+		return count;
+	}
+
+	/**
+	 * Get the messages held (optionally for a specific client), oldest first
+	 * for each client. The iterator works on a copy, so later changes to the
+	 * store are not seen.
+	 */
+	@Override
+	public synchronized Iterator<StoredMessage> getAllArrivedMessages(
+			String clientHandle) {
+		List<StoredMessage> messages = new ArrayList<>();
+		for (Map.Entry<String, Ring> entry : rings.entrySet()) {
+			if (clientHandle != null && !clientHandle.equals(entry.getKey())) {
+				continue;
+			}
+			Ring ring = entry.getValue();
+			for (long sequence = ring.start; sequence < ring.end; sequence++) {
+				StoredMessage message = ring.slots[ring.slot(sequence)];
+				if (message != null) {
+					messages.add(message);
+				}
+			}
+		}
+		return messages.iterator();
+	}
+
+	/**
+	 * Discard the messages held (optionally for a specific client). Ids are
+	 * not reused, so a late acknowledgement of a discarded message cannot
+	 * discard a newer one.
+	 */
+	@Override
+	public synchronized void clearArrivedMessages(String clientHandle) {
+		for (Map.Entry<String, Ring> entry : rings.entrySet()) {
+			if (clientHandle != null && !clientHandle.equals(entry.getKey())) {
+				continue;
+			}
+			Ring ring = entry.getValue();
+			for (long sequence = ring.start; sequence < ring.end; sequence++) {
+				ring.slots[ring.slot(sequence)] = null;
+			}
+			ring.start = ring.end;
+			ring.count = 0;
+		}
+	}
+
+	@Override
+	public synchronized void close() {
+		rings.clear();
+	}
+}
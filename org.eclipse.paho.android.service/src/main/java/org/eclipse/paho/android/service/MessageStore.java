@@ -13,6 +13,7 @@
 package org.eclipse.paho.android.service;
 
 import java.util.Iterator;
+import java.util.List;
 
 import org.eclipse.paho.client.mqttv3.MqttMessage;
 
@@ -30,8 +31,12 @@ import org.eclipse.paho.client.mqttv3.MqttMessage;
  * <li>When a clean session is started {@link #clearArrivedMessages(String)} is
  * used.
  * </ul>
+ * <p>
+ * The store used by the {@link MqttService} is chosen by a
+ * {@link MessageStoreFactory}.
+ * </p>
  */
-interface MessageStore {
+public interface MessageStore {
 
 	/**
 	 * External representation of a stored message
@@ -58,6 +63,25 @@ interface MessageStore {
 		MqttMessage getMessage();
 	}
 
+	/**
+	 * Notified when a message passed to
+	 * {@link MessageStore#storeArrived(String, String, MqttMessage, StoreListener)}
+	 * has been durably stored, or could not be
+	 */
+	interface StoreListener {
+		/**
+		 * @param messageId
+		 *            the identifier for the message within the store
+		 */
+		void onStored(String messageId);
+
+		/**
+		 * @param e
+		 *            the reason the message could not be stored
+		 */
+		void onStoreFailure(Exception e);
+	}
+
 	/**
 	 * Store a message and return an identifier for it
 	 * 
@@ -70,6 +94,24 @@ interface MessageStore {
 	String storeArrived(String clientHandle, String Topic,
 						MqttMessage message);
 
+	/**
+	 * Store a message, telling the listener once it is durable. The store may
+	 * defer the write in order to commit several messages together; the
+	 * listener is called in the order in which messages were stored, possibly
+	 * on another thread.
+	 * 
+	 * @param clientHandle
+	 *            identifier for the client
+	 * @param topic
+	 *            the topic on which the message was received
+	 * @param message
+	 *            message to be stored
+	 * @param listener
+	 *            notified when the message has been stored
+	 */
+	void storeArrived(String clientHandle, String topic, MqttMessage message,
+					  StoreListener listener);
+
 	/**
 	 * Discard a message - called when we are certain that an arrived message
 	 * has reached the application.
@@ -81,6 +123,29 @@ interface MessageStore {
 	 */
 	boolean discardArrived(String clientHandle, String id);
 
+	/**
+	 * Discard several messages at once - usually much more cheaply than
+	 * discarding them one at a time.
+	 * 
+	 * @param clientHandle
+	 *            identifier for the client
+	 * @param ids
+	 *            ids of the messages to be discarded
+	 * @return the number of messages discarded
+	 */
+	int discardArrived(String clientHandle, List<String> ids);
+
+	/**
+	 * Get the number of stored messages, usually for a specific client. This
+	 * is expected to be cheap enough to call on every store or discard.
+	 * 
+	 * @param clientHandle
+	 *            identifier for the client - if null, then the total for all
+	 *            clients is returned
+	 * @return the number of messages stored and not yet discarded
+	 */
+	int getArrivedMessageCount(String clientHandle);
+
 	/**
 	 * Get all the stored messages, usually for a specific client
 	 * 
@@ -99,5 +164,9 @@ interface MessageStore {
 	 */
 	void clearArrivedMessages(String clientHandle);
 
+	/**
+	 * Release whatever the store holds open - called when the service is
+	 * destroyed
+	 */
 	void close();
 }
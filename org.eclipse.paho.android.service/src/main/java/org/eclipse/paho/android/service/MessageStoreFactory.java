@@ -0,0 +1,85 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ */
+package org.eclipse.paho.android.service;
+
+import java.io.IOException;
+
+import android.content.Context;
+
+/**
+ * <p>
+ * Creates the {@link MessageStore} in which the {@link MqttService} keeps
+ * arrived messages until it is sure the application has received them.
+ * </p>
+ * <p>
+ * The store is created along with the service, so a factory must be set with
+ * {@link MqttService#setMessageStoreFactory(MessageStoreFactory)} before the
+ * service is first bound - in <code>Application.onCreate()</code>, for
+ * instance. Messages held by one kind of store are not seen by another.
+ * </p>
+ */
+public abstract class MessageStoreFactory {
+
+	// the directory, in the application's private storage, of the append log
+	private static final String APPEND_LOG_DIRECTORY = "MqttArrivedMessageLog";
+
+	private static final MessageStoreFactory DATABASE = new MessageStoreFactory() {
+		@Override
+		public MessageStore createMessageStore(MqttService service) {
+			return new DatabaseMessageStore(service, service);
+		}
+	};
+
+	private static final MessageStoreFactory APPEND_LOG = new MessageStoreFactory() {
+		@Override
+		public MessageStore createMessageStore(MqttService service) {
+			try {
+				return new AppendLogMessageStore(service, service.getDir(
+						APPEND_LOG_DIRECTORY, Context.MODE_PRIVATE),
+						AppendLogMessageStore.DEFAULT_SEGMENT_BYTES);
+			} catch (IOException e) {
+				service.traceException(MqttService.TAG,
+						"cannot open the message log, using the database", e);
+				return DATABASE.createMessageStore(service);
+			}
+		}
+	};
+
+	/**
+	 * @return a factory for the default store, which keeps arrived messages
+	 *         in a SQLite database
+	 */
+	public static MessageStoreFactory database() {
+		return DATABASE;
+	}
+
+	/**
+	 * @return a factory for a store which appends arrived messages to a log
+	 *         of files, and discards them by appending tombstones - much
+	 *         cheaper than the database for high message rates. If the log
+	 *         cannot be opened, the database is used instead.
+	 */
+	public static MessageStoreFactory appendLog() {
+		return APPEND_LOG;
+	}
+
+	/**
+	 * Create the store for a service - called from the service's
+	 * <code>onCreate()</code>
+	 *
+	 * @param service
+	 *            the service which will use the store
+	 * @return the store
+	 */
+	public abstract MessageStore createMessageStore(MqttService service);
+}
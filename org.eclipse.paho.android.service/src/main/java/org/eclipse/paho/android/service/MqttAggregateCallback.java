@@ -0,0 +1,29 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ */
+package org.eclipse.paho.android.service;
+
+/**
+ * Receives the summaries of aggregated topics, one for each topic in each
+ * window, in place of the messages which arrived on them. Set with
+ * {@link MqttAndroidClient#setAggregation(String, AggregationOptions, MqttAggregateCallback)}.
+ */
+public interface MqttAggregateCallback {
+
+	/**
+	 * A window has closed on a topic which had messages in it
+	 * 
+	 * @param summary
+	 *            the aggregates of the messages in the window
+	 */
+	void aggregateArrived(AggregateSummary summary);
+}
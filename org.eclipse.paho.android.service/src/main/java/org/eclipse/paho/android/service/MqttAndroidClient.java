@@ -23,8 +23,16 @@ import java.security.KeyStore;
 import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
 import java.security.cert.CertificateException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLSocketFactory;
@@ -46,6 +54,7 @@ import org.eclipse.paho.client.mqttv3.MqttMessage;
 import org.eclipse.paho.client.mqttv3.MqttPersistenceException;
 import org.eclipse.paho.client.mqttv3.MqttSecurityException;
 import org.eclipse.paho.client.mqttv3.MqttToken;
+import org.eclipse.paho.client.mqttv3.MqttTopic;
 
 import android.content.BroadcastReceiver;
 import android.content.ComponentName;
@@ -55,8 +64,9 @@ import android.content.IntentFilter;
 import android.content.ServiceConnection;
 import android.os.Bundle;
 import android.os.IBinder;
+import android.os.Looper;
+import android.os.Parcelable;
 import android.support.v4.content.LocalBroadcastManager;
-import android.util.SparseArray;
 
 /**
  * Enables an android application to communicate with an MQTT server using non-blocking methods.
@@ -101,6 +111,15 @@ public class MqttAndroidClient extends BroadcastReceiver implements
 
 	private static final ExecutorService pool = Executors.newCachedThreadPool();
 
+	/**
+	 * The number of callbacks which may wait to be passed to the application,
+	 * unless a constructor is given another
+	 */
+	public static final int DEFAULT_CALLBACK_QUEUE_CAPACITY = 1000;
+
+	// outstanding operations held without falling back to the overflow map
+	private static final int TOKEN_TABLE_CAPACITY = 4096;
+
 	/**
 	 * ServiceConnection to process when we bind to our service
 	 */
@@ -135,8 +154,7 @@ public class MqttAndroidClient extends BroadcastReceiver implements
 
 	// We hold the various tokens in a collection and pass identifiers for them
 	// to the service
-	private final SparseArray<IMqttToken> tokenMap = new SparseArray<>();
-	private int tokenNumber = 0;
+	private final TokenTable<IMqttToken> tokenMap = new TokenTable<>(TOKEN_TABLE_CAPACITY);
 
 	// Connection data
 	private final String serverURI;
@@ -152,6 +170,63 @@ public class MqttAndroidClient extends BroadcastReceiver implements
 	//The acknowledgment that a message has been processed by the application
 	private final Ack messageAck;
 	private boolean traceEnabled = false;
+
+	// group commit of arrived messages, off unless requested
+	private int groupCommitMaxMessages = 1;
+	private long groupCommitMaxDelay = 0;
+
+	// how long the service may delay keep-alive pings to send them together,
+	// if the application set it
+	private long keepAliveSlack = -1;
+
+	// how the service backs off reconnecting, or 0 if it has not been set
+	private long reconnectBaseDelay = 0;
+	private long reconnectMaxDelay = 0;
+	private int reconnectMaxConcurrent = 0;
+
+	// the shortest keep-alive interval in adaptive mode, or 0 if it is off
+	private long adaptiveKeepAliveMinimum = 0;
+
+	// takes callbacks straight from the service, rather than by broadcast
+	private final CallbackRegistry.Listener directCallbackListener = new DirectCallbackListener();
+	// runs every callback, direct or broadcast, in order - on the main thread
+	// unless the application supplied an Executor or Looper
+	private final CallbackDispatcher callbackExecutor;
+
+	// receives arrived messages in batches, if set, and how they are batched
+	private MqttBatchCallback batchCallback = null;
+	private int batchMaxMessages = 1;
+	private long batchMaxDelay = 0;
+
+	// which arrived messages the service keeps only in memory
+	private ArrivedMessageStorePolicy arrivedStorePolicy = ArrivedMessageStorePolicy.DURABLE;
+
+	// the in-flight window, if the application set one, and who to tell when
+	// it has room again
+	private int inFlightWindow = 0;
+	private volatile MqttPublishReadyCallback publishReadyCallback = null;
+
+	// where messages published while not connected are kept, if anywhere
+	private OfflineBufferOptions offlineBufferOptions = null;
+
+	// the size of the service's cache of the last value of each topic
+	private long lastValueCacheBytes = 0;
+
+	// how the service drops messages the server sends again, if it does
+	private DuplicateSuppressionOptions duplicateSuppressionOptions = null;
+
+	// which arrived messages the service passes on, by topic filter
+	private final Map<String, DeliveryPolicy> deliveryPolicies = new LinkedHashMap<>();
+
+	// the topic filters the service aggregates, and who receives the summaries
+	private final Map<String, AggregationOptions> aggregations = new LinkedHashMap<>();
+	private final ConcurrentHashMap<String, MqttAggregateCallback> aggregateCallbacks = new ConcurrentHashMap<>();
+
+	// the listeners of subscriptions made with one, by the identifier the
+	// service routes their messages with, and each topic filter's identifier
+	private final ConcurrentHashMap<Integer, IMqttMessageListener> messageListeners = new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<String, Integer> listenerIdsByFilter = new ConcurrentHashMap<>();
+	private final AtomicInteger nextListenerId = new AtomicInteger(0);
 	
 	private volatile boolean receiverRegistered = false;
 	private volatile boolean bindedService = false;
@@ -233,11 +308,104 @@ public class MqttAndroidClient extends BroadcastReceiver implements
 	 */
 	public MqttAndroidClient(Context context, String serverURI,
 			String clientId, MqttClientPersistence persistence, Ack ackType) {
+		this(context, serverURI, clientId, persistence, ackType, Looper
+				.getMainLooper(), DEFAULT_CALLBACK_QUEUE_CAPACITY);
+	}
+
+	/**
+	 * Constructor- create an MqttAndroidClient whose callbacks are run on the
+	 * thread of a given Looper, rather than on the main thread
+	 * 
+	 * @param context
+	 *            used to pass context to the callback.
+	 * @param serverURI
+	 *            specifies the protocol, host name and port to be used to
+	 *            connect to an MQTT server
+	 * @param clientId
+	 *            specifies the name by which this connection should be
+	 *            identified to the server
+	 * @param persistence
+	 *            the persistence class to use to store in-flight message. If
+	 *            null then the default persistence mechanism is used
+	 * @param ackType
+	 *            how the application wishes to acknowledge a message has been
+	 *            processed.
+	 * @param callbackLooper
+	 *            the Looper on whose thread callbacks are run
+	 * @param callbackQueueCapacity
+	 *            the number of callbacks which may wait to be run before the
+	 *            service waits for the application to catch up
+	 */
+	public MqttAndroidClient(Context context, String serverURI,
+			String clientId, MqttClientPersistence persistence, Ack ackType,
+			Looper callbackLooper, int callbackQueueCapacity) {
+		this(context, serverURI, clientId, persistence, ackType,
+				CallbackDispatcher.forLooper(callbackLooper),
+				callbackQueueCapacity);
+	}
+
+	/**
+	 * Constructor- create an MqttAndroidClient whose callbacks are run by a
+	 * given Executor, rather than on the main thread. Callbacks are run one at
+	 * a time, in the order in which they happened, even by an Executor with
+	 * many threads.
+	 * 
+	 * @param context
+	 *            used to pass context to the callback.
+	 * @param serverURI
+	 *            specifies the protocol, host name and port to be used to
+	 *            connect to an MQTT server
+	 * @param clientId
+	 *            specifies the name by which this connection should be
+	 *            identified to the server
+	 * @param persistence
+	 *            the persistence class to use to store in-flight message. If
+	 *            null then the default persistence mechanism is used
+	 * @param ackType
+	 *            how the application wishes to acknowledge a message has been
+	 *            processed.
+	 * @param callbackExecutor
+	 *            runs the callbacks
+	 * @param callbackQueueCapacity
+	 *            the number of callbacks which may wait to be run before the
+	 *            service waits for the application to catch up
+	 */
+	public MqttAndroidClient(Context context, String serverURI,
+			String clientId, MqttClientPersistence persistence, Ack ackType,
+			Executor callbackExecutor, int callbackQueueCapacity) {
 		myContext = context;
 		this.serverURI = serverURI;
 		this.clientId = clientId;
 		this.persistence = persistence;
 		messageAck = ackType;
+		this.callbackExecutor = new CallbackDispatcher(callbackExecutor,
+				callbackQueueCapacity, Looper.getMainLooper().getThread());
+	}
+
+	/**
+	 * Returns the state of the queue of callbacks waiting to be run: how
+	 * full it is, and how often the service has had to wait for room in it.
+	 * 
+	 * @return a snapshot of the queue's counters
+	 */
+	public CallbackQueueStats getCallbackQueueStats() {
+		return callbackExecutor.getStats();
+	}
+
+	/**
+	 * Returns the state of the messages this client has published which are
+	 * not yet delivered: how many there are, how many have been delivered,
+	 * failed, or been forgotten on disconnect, and how often and for how long
+	 * offers have been refused because the in-flight window was full.
+	 * 
+	 * @return a snapshot of the in-flight counters, or null if the client has
+	 *         not yet connected to the service
+	 */
+	public InFlightStats getInFlightStats() {
+		if (mqttService == null || clientHandle == null) {
+			return null;
+		}
+		return mqttService.getInFlightStats(clientHandle);
 	}
 
 	 /**
@@ -291,6 +459,8 @@ public class MqttAndroidClient extends BroadcastReceiver implements
 			if (clientHandle == null) {
 				clientHandle = mqttService.getClient(serverURI, clientId, myContext.getApplicationInfo().packageName,persistence);
 			}
+			mqttService.unregisterCallbackListener(clientHandle,
+					directCallbackListener);
 			mqttService.close(clientHandle);
 		}
 	}
@@ -461,8 +631,60 @@ public class MqttAndroidClient extends BroadcastReceiver implements
 		}
 		mqttService.setTraceEnabled(traceEnabled);
 		mqttService.setTraceCallbackId(clientHandle);
+		mqttService.registerCallbackListener(clientHandle,
+				directCallbackListener, callbackExecutor);
+		if (groupCommitMaxMessages > 1) {
+			mqttService.setArrivedGroupCommit(groupCommitMaxMessages,
+					groupCommitMaxDelay);
+		}
+		if (keepAliveSlack >= 0) {
+			mqttService.setKeepAliveSlack(keepAliveSlack);
+		}
+		if (reconnectBaseDelay > 0) {
+			mqttService.setReconnectBackoff(reconnectBaseDelay,
+					reconnectMaxDelay, reconnectMaxConcurrent);
+		}
+		mqttService.setArrivedMessageStorePolicy(clientHandle,
+				arrivedStorePolicy);
+		if (inFlightWindow > 0) {
+			mqttService.setInFlightWindow(clientHandle, inFlightWindow);
+		}
+		if (offlineBufferOptions != null) {
+			mqttService.setOfflineBufferOptions(clientHandle,
+					offlineBufferOptions);
+		}
+		if (lastValueCacheBytes > 0) {
+			mqttService.setLastValueCacheSize(clientHandle,
+					lastValueCacheBytes);
+		}
+		if (duplicateSuppressionOptions != null) {
+			mqttService.setDuplicateSuppression(clientHandle,
+					duplicateSuppressionOptions);
+		}
+		if (adaptiveKeepAliveMinimum > 0) {
+			mqttService.setAdaptiveKeepAlive(clientHandle,
+					adaptiveKeepAliveMinimum);
+		}
+		synchronized (deliveryPolicies) {
+			for (Map.Entry<String, DeliveryPolicy> policy : deliveryPolicies
+					.entrySet()) {
+				mqttService.setDeliveryPolicy(clientHandle, policy.getKey(),
+						policy.getValue());
+			}
+		}
+		synchronized (aggregations) {
+			for (Map.Entry<String, AggregationOptions> aggregation : aggregations
+					.entrySet()) {
+				mqttService.setAggregation(clientHandle, aggregation.getKey(),
+						aggregation.getValue());
+			}
+		}
+		if (batchMaxMessages > 1) {
+			mqttService.setArrivalBatching(clientHandle, batchMaxMessages,
+					batchMaxDelay);
+		}
 		
-		String activityToken = storeToken(connectToken);
+		int activityToken = storeToken(connectToken);
 		try {
 			mqttService.connect(clientHandle, connectOptions, null,
 					activityToken);
@@ -494,7 +716,7 @@ public class MqttAndroidClient extends BroadcastReceiver implements
 	public IMqttToken disconnect() throws MqttException {
 		IMqttToken token = new MqttTokenAndroid(this, null,
 				null);
-		String activityToken = storeToken(token);
+		int activityToken = storeToken(token);
 		mqttService.disconnect(clientHandle, null, activityToken);
 		return token;
 	}
@@ -523,7 +745,7 @@ public class MqttAndroidClient extends BroadcastReceiver implements
 	public IMqttToken disconnect(long quiesceTimeout) throws MqttException {
 		IMqttToken token = new MqttTokenAndroid(this, null,
 				null);
-		String activityToken = storeToken(token);
+		int activityToken = storeToken(token);
 		mqttService.disconnect(clientHandle, quiesceTimeout, null,
 				activityToken);
 		return token;
@@ -555,7 +777,7 @@ public class MqttAndroidClient extends BroadcastReceiver implements
 			IMqttActionListener callback) throws MqttException {
 		IMqttToken token = new MqttTokenAndroid(this, userContext,
 				callback);
-		String activityToken = storeToken(token);
+		int activityToken = storeToken(token);
 		mqttService.disconnect(clientHandle, null, activityToken);
 		return token;
 	}
@@ -608,7 +830,7 @@ public class MqttAndroidClient extends BroadcastReceiver implements
 			IMqttActionListener callback) throws MqttException {
 		IMqttToken token = new MqttTokenAndroid(this, userContext,
 				callback);
-		String activityToken = storeToken(token);
+		int activityToken = storeToken(token);
 		mqttService.disconnect(clientHandle, quiesceTimeout, null,
 				activityToken);
 		return token;
@@ -716,7 +938,7 @@ public class MqttAndroidClient extends BroadcastReceiver implements
 		message.setRetained(retained);
 		MqttDeliveryTokenAndroid token = new MqttDeliveryTokenAndroid(
 				this, userContext, callback, message);
-		String activityToken = storeToken(token);
+		int activityToken = storeToken(token);
 		IMqttDeliveryToken internalToken = mqttService.publish(clientHandle,
 				topic, payload, qos, retained, null, activityToken);
 		token.setDelegate(internalToken);
@@ -811,13 +1033,127 @@ public class MqttAndroidClient extends BroadcastReceiver implements
 			throws MqttException, MqttPersistenceException {
 		MqttDeliveryTokenAndroid token = new MqttDeliveryTokenAndroid(
 				this, userContext, callback, message);
-		String activityToken = storeToken(token);
+		int activityToken = storeToken(token);
 		IMqttDeliveryToken internalToken = mqttService.publish(clientHandle,
 				topic, message, null, activityToken);
 		token.setDelegate(internalToken);
 		return token;
 	}
 
+	/**
+	 * Publishes a message to a topic on the server, if the in-flight window
+	 * has room for it, without waiting.
+	 * 
+	 * @param topic
+	 *            to deliver the message to, for example "finance/stock/ibm".
+	 * @param message
+	 *            to deliver to the server
+	 * @return token used to track and wait for the publish to complete, or
+	 *         null if the window was full and the message was not published
+	 * @see #offer(String, MqttMessage, Object, IMqttActionListener)
+	 */
+	public IMqttDeliveryToken offer(String topic, MqttMessage message) {
+		return offer(topic, message, null, null);
+	}
+
+	/**
+	 * Publishes a message to a topic on the server, if the in-flight window
+	 * has room for it, without waiting.
+	 * <p>
+	 * When the window is full, nothing is published and null is returned;
+	 * the {@link MqttPublishReadyCallback} set by
+	 * {@link #setPublishReadyCallback(MqttPublishReadyCallback)} is told when
+	 * the window has drained to half full, so that a fast publisher can pace
+	 * itself rather than retry. Otherwise the message is published just as by
+	 * {@link #publish(String, MqttMessage, Object, IMqttActionListener)}.
+	 * </p>
+	 * 
+	 * @param topic
+	 *            to deliver the message to, for example "finance/stock/ibm".
+	 * @param message
+	 *            to deliver to the server
+	 * @param userContext
+	 *            optional object used to pass context to the callback. Use null
+	 *            if not required.
+	 * @param callback
+	 *            optional listener that will be notified when message delivery
+	 *            has completed to the requested quality of service
+	 * @return token used to track and wait for the publish to complete, or
+	 *         null if the window was full and the message was not published
+	 * @see #setInFlightWindow(int)
+	 */
+	public IMqttDeliveryToken offer(String topic, MqttMessage message,
+			Object userContext, IMqttActionListener callback) {
+		if (!mqttService.reservePublish(clientHandle)) {
+			return null;
+		}
+		MqttDeliveryTokenAndroid token = new MqttDeliveryTokenAndroid(
+				this, userContext, callback, message);
+		int activityToken = storeToken(token);
+		IMqttDeliveryToken internalToken = mqttService.publishReserved(
+				clientHandle, topic, message, null, activityToken);
+		token.setDelegate(internalToken);
+		return token;
+	}
+
+	/**
+	 * Publishes a batch of messages, each to its own topic, with one call to
+	 * the service.
+	 * 
+	 * @param topics
+	 *            the topic to deliver each message to
+	 * @param messages
+	 *            the messages to deliver, one for each topic
+	 * @return token used to track and wait for the whole batch to complete
+	 * @see #publishBatch(String[], MqttMessage[], Object, IMqttActionListener)
+	 */
+	public MqttBatchToken publishBatch(String[] topics, MqttMessage[] messages) {
+		return publishBatch(topics, messages, null, null);
+	}
+
+	/**
+	 * Publishes a batch of messages, each to its own topic, with one call to
+	 * the service.
+	 * <p>
+	 * The whole batch is tracked by one token, which completes when every
+	 * message has been delivered or has failed - successfully only if every
+	 * message was delivered. The outcome of each message can then be read
+	 * from the token, by the message's index. The deliveries are reported
+	 * together, through the token and its listener: the
+	 * {@link MqttCallback#deliveryComplete(IMqttDeliveryToken)} method is not
+	 * called for messages published in a batch.
+	 * </p>
+	 * 
+	 * @param topics
+	 *            the topic to deliver each message to
+	 * @param messages
+	 *            the messages to deliver, one for each topic
+	 * @param userContext
+	 *            optional object used to pass context to the callback. Use null
+	 *            if not required.
+	 * @param callback
+	 *            optional listener that will be notified when the whole batch
+	 *            has completed
+	 * @return token used to track and wait for the whole batch to complete.
+	 *         The token will be passed to callback methods if set.
+	 * @throws IllegalArgumentException
+	 *             if there is not one topic for each message
+	 */
+	public MqttBatchToken publishBatch(String[] topics,
+			MqttMessage[] messages, Object userContext,
+			IMqttActionListener callback) {
+		if (topics.length != messages.length) {
+			throw new IllegalArgumentException(
+					"there must be one topic for each message");
+		}
+		MqttBatchToken token = new MqttBatchToken(this, userContext,
+				callback, topics, messages);
+		int activityToken = storeToken(token);
+		mqttService.publishBatch(clientHandle, topics, messages, null,
+				activityToken);
+		return token;
+	}
+
 	/**
 	 * Subscribe to a topic, which may include wildcards.
 	 * 
@@ -905,7 +1241,7 @@ public class MqttAndroidClient extends BroadcastReceiver implements
 			IMqttActionListener callback) throws MqttException {
 		IMqttToken token = new MqttTokenAndroid(this, userContext,
 				callback, new String[]{topic});
-		String activityToken = storeToken(token);
+		int activityToken = storeToken(token);
 		mqttService.subscribe(clientHandle, topic, qos, null, activityToken);
 		return token;
 	}
@@ -1045,7 +1381,7 @@ public class MqttAndroidClient extends BroadcastReceiver implements
 			IMqttActionListener callback) throws MqttException {
 		IMqttToken token = new MqttTokenAndroid(this, userContext,
 				callback, topic);
-		String activityToken = storeToken(token);
+		int activityToken = storeToken(token);
 		mqttService.subscribe(clientHandle, topic, qos, null, activityToken);
 		return token;
 	}
@@ -1125,6 +1461,10 @@ public class MqttAndroidClient extends BroadcastReceiver implements
 	 * <p>Provides an optimized way to subscribe to multiple topics compared to
 	 * subscribing to each one individually.</p>
 	 *
+	 * <p>The service matches each message that arrives against the topic
+	 * filters subscribed to with a listener, and the message is passed to the
+	 * listeners of those it matches rather than to the {@link MqttCallback}.</p>
+	 *
 	 * @see #subscribe(String[], int[], Object, IMqttActionListener)
 	 *
 	 * @param topicFilters one or more topics to subscribe to, which can include wildcards
@@ -1143,10 +1483,35 @@ public class MqttAndroidClient extends BroadcastReceiver implements
 	 */
 	public IMqttToken subscribe(String[] topicFilters, int[] qos, Object userContext, IMqttActionListener callback, IMqttMessageListener[] messageListeners) throws MqttException {
 		IMqttToken token = new MqttTokenAndroid(this, userContext, callback, topicFilters);
-		String activityToken = storeToken(token);
-		mqttService.subscribe(clientHandle, topicFilters, qos, null, activityToken, messageListeners);
+		int activityToken = storeToken(token);
+		int[] listenerIds = new int[topicFilters.length];
+		for (int i = 0; i < topicFilters.length; i++) {
+			listenerIds[i] = nextListenerId.incrementAndGet();
+			this.messageListeners.put(listenerIds[i], messageListeners[i]);
+			Integer replaced = listenerIdsByFilter.put(topicFilters[i],
+					listenerIds[i]);
+			if (replaced != null) {
+				this.messageListeners.remove(replaced);
+			}
+		}
+		mqttService.subscribe(clientHandle, topicFilters, qos, null, activityToken, listenerIds);
 
-		return null;
+		return token;
+	}
+
+	/**
+	 * Forget the listeners of subscriptions which are being unsubscribed
+	 * 
+	 * @param topicFilters
+	 *            the topic filters
+	 */
+	private void removeMessageListeners(String[] topicFilters) {
+		for (String topicFilter : topicFilters) {
+			Integer listenerId = listenerIdsByFilter.remove(topicFilter);
+			if (listenerId != null) {
+				messageListeners.remove(listenerId);
+			}
+		}
 	}
 
 
@@ -1210,7 +1575,8 @@ public class MqttAndroidClient extends BroadcastReceiver implements
 			IMqttActionListener callback) throws MqttException {
 		IMqttToken token = new MqttTokenAndroid(this, userContext,
 				callback);
-		String activityToken = storeToken(token);
+		int activityToken = storeToken(token);
+		removeMessageListeners(new String[] { topic });
 		mqttService.unsubscribe(clientHandle, topic, null, activityToken);
 		return token;
 	}
@@ -1257,7 +1623,8 @@ public class MqttAndroidClient extends BroadcastReceiver implements
 			IMqttActionListener callback) throws MqttException {
 		IMqttToken token = new MqttTokenAndroid(this, userContext,
 				callback);
-		String activityToken = storeToken(token);
+		int activityToken = storeToken(token);
+		removeMessageListeners(topic);
 		mqttService.unsubscribe(clientHandle, topic, null, activityToken);
 		return token;
 	}
@@ -1339,6 +1706,215 @@ public class MqttAndroidClient extends BroadcastReceiver implements
 			mqttService.setTraceEnabled(traceEnabled);
 	}
 	
+	/**
+	 * Ask the service to store arrived messages in groups, rather than in one
+	 * database transaction per message. A message is passed to
+	 * {@link MqttCallback#messageArrived(String, MqttMessage)}, and acknowledged
+	 * to the server, only once its group has been written, so this trades a
+	 * little latency for a much higher sustainable arrival rate.
+	 * <p>
+	 * The setting applies to the whole service, and so to every client using
+	 * it.
+	 * </p>
+	 * 
+	 * @param maxMessages
+	 *            the largest number of messages to write together - 1 or less
+	 *            writes each message as it arrives
+	 * @param maxDelayMillis
+	 *            the longest time, in milliseconds, a message may wait to be
+	 *            written
+	 */
+	public void setArrivedGroupCommit(int maxMessages, long maxDelayMillis) {
+		this.groupCommitMaxMessages = maxMessages;
+		this.groupCommitMaxDelay = maxDelayMillis;
+		if (mqttService != null) {
+			mqttService.setArrivedGroupCommit(maxMessages, maxDelayMillis);
+		}
+	}
+
+	/**
+	 * <p>
+	 * Set how long the service may delay a keep-alive ping so that it can be
+	 * sent in the same wake-up as other connections' pings. The service
+	 * wakes the device once for every ping that falls due within the slack,
+	 * rather than once for each, and never delays a ping by more than a
+	 * quarter of the time until it is due.
+	 * </p>
+	 * <p>
+	 * The setting applies to the whole service, and so to every client using
+	 * it.
+	 * </p>
+	 * 
+	 * @param slackMillis
+	 *            the longest a ping may be delayed, in milliseconds, or 0 to
+	 *            wake for each ping when it is due - by default 10 seconds
+	 */
+	public void setKeepAliveSlack(long slackMillis) {
+		this.keepAliveSlack = Math.max(0, slackMillis);
+		if (mqttService != null) {
+			mqttService.setKeepAliveSlack(keepAliveSlack);
+		}
+	}
+
+	/**
+	 * <p>
+	 * Have the service find out how long the network lets the connection
+	 * idle, and ping no more often than it must. Carrier NATs drop idle
+	 * connections after a timeout they do not publish, so a fixed keep-alive
+	 * interval is either short, waking the device and radio more than needed,
+	 * or long, and the connection is lost.
+	 * </p>
+	 * <p>
+	 * In adaptive mode the keep-alive interval in the connect options, which
+	 * the server is told, is the longest the client pings at. The service
+	 * starts at the minimum, lengthens the interval while pings succeed and
+	 * backs off when one goes unanswered, and remembers the longest safe
+	 * interval for each network - Wi-Fi network or mobile operator - across
+	 * restarts. Naming Wi-Fi networks needs the ACCESS_WIFI_STATE
+	 * permission; without it they are all taken as one.
+	 * </p>
+	 * 
+	 * @param minimumMillis
+	 *            the shortest interval to ping at, in milliseconds, or 0 to
+	 *            ping at the keep-alive interval in the connect options
+	 */
+	public void setAdaptiveKeepAlive(long minimumMillis) {
+		this.adaptiveKeepAliveMinimum = Math.max(0, minimumMillis);
+		if (mqttService != null && clientHandle != null) {
+			mqttService.setAdaptiveKeepAlive(clientHandle,
+					adaptiveKeepAliveMinimum);
+		}
+	}
+
+	/**
+	 * Returns how many times the service has woken the device to send
+	 * keep-alive pings, for all the clients using it, and how many wake-ups
+	 * it saved by sending them together.
+	 * 
+	 * @return a snapshot of the counts, or null if the client has not yet
+	 *         connected to the service
+	 */
+	public KeepAliveStats getKeepAliveStats() {
+		if (mqttService == null) {
+			return null;
+		}
+		return mqttService.getKeepAliveStats();
+	}
+
+	/**
+	 * <p>
+	 * Set how the service backs off reconnecting when the network comes back,
+	 * or an attempt to reconnect fails. Each client waits a random time, up
+	 * to the base delay, before its first attempt, and up to twice as long
+	 * again after each failure, to the maximum delay. No more than
+	 * maxConcurrent handshakes are made at once. So a fleet of devices that
+	 * regain the network together, after a cell tower outage say, spread
+	 * their reconnects out rather than all reaching the server at once.
+	 * </p>
+	 * <p>
+	 * The setting applies to the whole service, and so to every client using
+	 * it.
+	 * </p>
+	 * 
+	 * @param baseDelayMillis
+	 *            the most a client waits before its first attempt - by
+	 *            default 1 second
+	 * @param maxDelayMillis
+	 *            the most a client waits between attempts - by default 128
+	 *            seconds
+	 * @param maxConcurrent
+	 *            the number of handshakes in progress at once - by default 2
+	 * @throws IllegalArgumentException
+	 *             if a delay is not positive, the maximum is less than the
+	 *             base, or maxConcurrent is less than 1
+	 */
+	public void setReconnectBackoff(long baseDelayMillis, long maxDelayMillis,
+			int maxConcurrent) {
+		if (baseDelayMillis <= 0 || maxDelayMillis < baseDelayMillis
+				|| maxConcurrent < 1) {
+			throw new IllegalArgumentException();
+		}
+		this.reconnectBaseDelay = baseDelayMillis;
+		this.reconnectMaxDelay = maxDelayMillis;
+		this.reconnectMaxConcurrent = maxConcurrent;
+		if (mqttService != null) {
+			mqttService.setReconnectBackoff(baseDelayMillis, maxDelayMillis,
+					maxConcurrent);
+		}
+	}
+
+	/**
+	 * Returns how many attempts the service has made to reconnect, for all
+	 * the clients using it, how many succeeded, and how long clients took to
+	 * reconnect.
+	 * 
+	 * @return a snapshot of the counts, or null if the client has not yet
+	 *         connected to the service
+	 */
+	public ReconnectStats getReconnectStats() {
+		if (mqttService == null) {
+			return null;
+		}
+		return mqttService.getReconnectStats();
+	}
+
+	/**
+	 * Choose which arrived messages the service keeps only in memory until
+	 * they have been passed to
+	 * {@link MqttCallback#messageArrived(String, MqttMessage)}, rather than
+	 * writing them to its message store. Messages kept in memory cost no disk
+	 * writes, but are lost if the service is killed.
+	 * 
+	 * @param policy
+	 *            which messages to keep in memory - by default,
+	 *            {@link ArrivedMessageStorePolicy#DURABLE}, so none are
+	 */
+	public void setArrivedMessageStorePolicy(ArrivedMessageStorePolicy policy) {
+		if (policy == null) {
+			throw new IllegalArgumentException("policy must not be null");
+		}
+		this.arrivedStorePolicy = policy;
+		if (mqttService != null && clientHandle != null) {
+			mqttService.setArrivedMessageStorePolicy(clientHandle, policy);
+		}
+	}
+
+	/**
+	 * Set the in-flight window: the largest number of messages this client
+	 * may have published but not yet had delivered. A
+	 * {@link #publish(String, MqttMessage)} beyond the window fails; an
+	 * {@link #offer(String, MqttMessage)} beyond it is refused, and the
+	 * {@link MqttPublishReadyCallback} is told when the window has room again.
+	 * <p>
+	 * For QoS 1 and 2 messages there is little point in a window larger than
+	 * {@link MqttConnectOptions#getMaxInflight()}, as the client beneath
+	 * fails publishes beyond that.
+	 * </p>
+	 * 
+	 * @param maxInFlight
+	 *            the size of the window
+	 */
+	public void setInFlightWindow(int maxInFlight) {
+		if (maxInFlight < 1) {
+			throw new IllegalArgumentException("maxInFlight must be positive");
+		}
+		this.inFlightWindow = maxInFlight;
+		if (mqttService != null && clientHandle != null) {
+			mqttService.setInFlightWindow(clientHandle, maxInFlight);
+		}
+	}
+
+	/**
+	 * Set the callback told when the in-flight window has room again, after
+	 * an {@link #offer(String, MqttMessage)} was refused
+	 * 
+	 * @param callback
+	 *            the callback, or null for none
+	 */
+	public void setPublishReadyCallback(MqttPublishReadyCallback callback) {
+		this.publishReadyCallback = callback;
+	}
+
 	/**
 	 * <p>
 	 * Process incoming Intent objects representing the results of operations
@@ -1362,6 +1938,23 @@ public class MqttAndroidClient extends BroadcastReceiver implements
 			return;
 		}
 
+		final Bundle callbackData = data;
+		callbackExecutor.execute(new Runnable() {
+			@Override
+			public void run() {
+				dispatchCallback(callbackData);
+			}
+		});
+	}
+
+	/**
+	 * Process the results of an operation, or an asynchronous activity, sent
+	 * by the service either by broadcast or directly
+	 * 
+	 * @param data
+	 *            the callback's data
+	 */
+	private void dispatchCallback(Bundle data) {
 		String action = data.getString(MqttServiceConstants.CALLBACK_ACTION);
 
 		if (MqttServiceConstants.CONNECT_ACTION.equals(action)) {
@@ -1373,6 +1966,9 @@ public class MqttAndroidClient extends BroadcastReceiver implements
 		else if (MqttServiceConstants.MESSAGE_ARRIVED_ACTION.equals(action)) {
 			messageArrivedAction(data);
 		}
+		else if (MqttServiceConstants.MESSAGES_ARRIVED_ACTION.equals(action)) {
+			messagesArrivedAction(data);
+		}
 		else if (MqttServiceConstants.SUBSCRIBE_ACTION.equals(action)) {
 			subscribeAction(data);
 		}
@@ -1385,6 +1981,23 @@ public class MqttAndroidClient extends BroadcastReceiver implements
 		else if (MqttServiceConstants.MESSAGE_DELIVERED_ACTION.equals(action)) {
 			messageDeliveredAction(data);
 		}
+		else if (MqttServiceConstants.PUBLISH_BATCH_ACTION.equals(action)) {
+			publishBatchAction(data);
+		}
+		else if (MqttServiceConstants.AGGREGATE_ACTION.equals(action)) {
+			AggregateSummary summary = AggregateSummary.fromBundle(data);
+			MqttAggregateCallback aggregateCallback = aggregateCallbacks
+					.get(summary.getTopicFilter());
+			if (aggregateCallback != null) {
+				aggregateCallback.aggregateArrived(summary);
+			}
+		}
+		else if (MqttServiceConstants.PUBLISH_READY_ACTION.equals(action)) {
+			MqttPublishReadyCallback readyCallback = publishReadyCallback;
+			if (readyCallback != null) {
+				readyCallback.readyToPublish();
+			}
+		}
 		else if (MqttServiceConstants.ON_CONNECTION_LOST_ACTION
 				.equals(action)) {
 			connectionLostAction(data);
@@ -1418,6 +2031,51 @@ public class MqttAndroidClient extends BroadcastReceiver implements
 		return false;
 
 	}
+
+	/**
+	 * Acknowledges a batch of messages received on the
+	 * {@link MqttBatchCallback#messagesArrived(List)}, all at once
+	 * 
+	 * @param messageIds
+	 *            the ids of the messages, from
+	 *            {@link MessageStore.StoredMessage#getMessageId()}
+	 * @return the number of messages successfully acknowledged
+	 */
+	public int acknowledgeMessages(List<String> messageIds) {
+		if (messageAck == Ack.MANUAL_ACK) {
+			return mqttService.acknowledgeMessageArrivals(clientHandle,
+					messageIds);
+		}
+		return 0;
+	}
+
+	/**
+	 * Receive arrived messages in batches, through an
+	 * {@link MqttBatchCallback}, rather than one at a time through
+	 * {@link MqttCallback#messageArrived(String, MqttMessage)}. The service
+	 * gathers messages for up to <code>maxDelayMillis</code>, or until it has
+	 * <code>maxMessages</code>, and passes them on together, so that a fast
+	 * stream of messages does not flood the main thread.
+	 * 
+	 * @param batchCallback
+	 *            receives the batches - null goes back to passing each
+	 *            message to the {@link MqttCallback}
+	 * @param maxMessages
+	 *            the largest number of messages in a batch
+	 * @param maxDelayMillis
+	 *            the longest time, in milliseconds, a message may wait for the
+	 *            rest of its batch
+	 */
+	public void setBatchCallback(MqttBatchCallback batchCallback,
+			int maxMessages, long maxDelayMillis) {
+		this.batchCallback = batchCallback;
+		this.batchMaxMessages = batchCallback == null ? 1 : maxMessages;
+		this.batchMaxDelay = maxDelayMillis;
+		if (mqttService != null && clientHandle != null) {
+			mqttService.setArrivalBatching(clientHandle, batchMaxMessages,
+					batchMaxDelay);
+		}
+	}
 	
 	public void messageArrivedComplete(int messageId, int qos) throws MqttException {
 		throw new UnsupportedOperationException();	
@@ -1511,8 +2169,31 @@ public class MqttAndroidClient extends BroadcastReceiver implements
 	 * @param data
 	 */
 	private void sendAction(Bundle data) {
-		IMqttToken token = getMqttToken(data); // get, don't remove - will
-		// remove on delivery
+		IMqttToken token;
+		if (data.getBoolean(MqttServiceConstants.CALLBACK_BUFFERED)) {
+			// the token of a message in the offline buffer completes now, as
+			// its delivery may happen in another process
+			token = removeMqttToken(data);
+		} else {
+			token = getMqttToken(data); // get, don't remove - will
+			// remove on delivery
+		}
+		simpleAction(token, data);
+	}
+
+	/**
+	 * Process notification that every message of a batch has been delivered,
+	 * or has failed
+	 * 
+	 * @param data
+	 */
+	private void publishBatchAction(Bundle data) {
+		IMqttToken token = removeMqttToken(data);
+		if (token instanceof MqttBatchToken) {
+			((MqttBatchToken) token).setOutcome(
+					data.getIntArray(MqttServiceConstants.CALLBACK_BATCH_STATUSES),
+					data.getStringArray(MqttServiceConstants.CALLBACK_BATCH_ERRORS));
+		}
 		simpleAction(token, data);
 	}
 
@@ -1560,14 +2241,49 @@ public class MqttAndroidClient extends BroadcastReceiver implements
 	 * @param data
 	 */
 	private void messageArrivedAction(Bundle data) {
-		if (callback != null) {
-			String messageId = data
-					.getString(MqttServiceConstants.CALLBACK_MESSAGE_ID);
-			String destinationName = data
-					.getString(MqttServiceConstants.CALLBACK_DESTINATION_NAME);
+		String messageId = data
+				.getString(MqttServiceConstants.CALLBACK_MESSAGE_ID);
+		String destinationName = data
+				.getString(MqttServiceConstants.CALLBACK_DESTINATION_NAME);
 
-			ParcelableMqttMessage message = data
-					.getParcelable(MqttServiceConstants.CALLBACK_MESSAGE_PARCEL);
+		ParcelableMqttMessage message = data
+				.getParcelable(MqttServiceConstants.CALLBACK_MESSAGE_PARCEL);
+		int[] listenerIds = data
+				.getIntArray(MqttServiceConstants.CALLBACK_LISTENER_IDS);
+		messageArrivedAction(messageId, destinationName, message, listenerIds);
+	}
+
+	/**
+	 * Pass an arrived message to the listeners the service routed it to, if
+	 * any are still subscribed, and otherwise to the callback - acknowledging
+	 * it if that is left to us
+	 * 
+	 * @param messageId
+	 *            the message's identifier in the service's message store
+	 * @param destinationName
+	 *            the topic on which the message arrived
+	 * @param message
+	 *            the message itself
+	 * @param listenerIds
+	 *            the listeners of the subscriptions the topic matches, or null
+	 *            or an empty array if there are none
+	 */
+	private void messageArrivedAction(String messageId,
+			String destinationName, ParcelableMqttMessage message,
+			int[] listenerIds) {
+		if (listenerIds != null && listenerIds.length > 0
+				&& messageArrivedToListeners(messageId, destinationName,
+						message, listenerIds)) {
+			return;
+		}
+		if (batchCallback != null) {
+			// one that arrived before batching started, or from the backlog
+			messagesArrivedAction(Collections
+					.<MessageStore.StoredMessage> singletonList(new StoredArrivedMessage(
+							messageId, clientHandle, destinationName, message)));
+			return;
+		}
+		if (callback != null) {
 			try {
 				if (messageAck == Ack.AUTO_ACK) {
 					callback.messageArrived(destinationName, message);
@@ -1585,7 +2301,98 @@ public class MqttAndroidClient extends BroadcastReceiver implements
 			}
 		}
 	}
+
+	/**
+	 * Pass an arrived message to the listeners of the subscriptions it
+	 * matches, acknowledging it once they have all had it if that is left to
+	 * us
+	 * 
+	 * @return false if none of the listeners is still subscribed
+	 */
+	private boolean messageArrivedToListeners(String messageId,
+			String destinationName, ParcelableMqttMessage message,
+			int[] listenerIds) {
+		List<IMqttMessageListener> listeners = new ArrayList<>(
+				listenerIds.length);
+		for (int listenerId : listenerIds) {
+			IMqttMessageListener listener = messageListeners.get(listenerId);
+			if (listener != null) {
+				listeners.add(listener);
+			}
+		}
+		if (listeners.isEmpty()) {
+			return false;
+		}
+		message.messageId = messageId;
+		for (IMqttMessageListener listener : listeners) {
+			try {
+				listener.messageArrived(destinationName, message);
+			}
+			catch (Exception e) {
+				// Swallow the exception, as messageArrivedAction does
+			}
+		}
+		if (messageAck == Ack.AUTO_ACK) {
+			mqttService.acknowledgeMessageArrival(clientHandle, messageId);
+		}
+		return true;
+	}
 	
+	/**
+	 * Process notification of a batch of messages' arrival
+	 * 
+	 * @param data
+	 */
+	private void messagesArrivedAction(Bundle data) {
+		String[] messageIds = data
+				.getStringArray(MqttServiceConstants.CALLBACK_MESSAGE_IDS);
+		String[] destinationNames = data
+				.getStringArray(MqttServiceConstants.CALLBACK_DESTINATION_NAMES);
+		Parcelable[] messages = data
+				.getParcelableArray(MqttServiceConstants.CALLBACK_MESSAGE_PARCELS);
+		List<MessageStore.StoredMessage> batch = new ArrayList<>(
+				messageIds.length);
+		for (int i = 0; i < messageIds.length; i++) {
+			batch.add(new StoredArrivedMessage(messageIds[i], clientHandle,
+					destinationNames[i], (ParcelableMqttMessage) messages[i]));
+		}
+		messagesArrivedAction(batch);
+	}
+
+	/**
+	 * Pass a batch of arrived messages to the batch callback, acknowledging
+	 * them together if that is left to us - or, if there is no batch
+	 * callback, to the callback one at a time
+	 * 
+	 * @param batch
+	 *            the messages, each holding a ParcelableMqttMessage
+	 */
+	private void messagesArrivedAction(List<MessageStore.StoredMessage> batch) {
+		if (batchCallback == null) {
+			for (MessageStore.StoredMessage arrived : batch) {
+				messageArrivedAction(arrived.getMessageId(),
+						arrived.getTopic(),
+						(ParcelableMqttMessage) arrived.getMessage(), null);
+			}
+			return;
+		}
+		List<String> messageIds = new ArrayList<>(batch.size());
+		for (MessageStore.StoredMessage arrived : batch) {
+			((ParcelableMqttMessage) arrived.getMessage()).messageId = arrived
+					.getMessageId();
+			messageIds.add(arrived.getMessageId());
+		}
+		try {
+			batchCallback.messagesArrived(Collections.unmodifiableList(batch));
+		}
+		catch (Exception e) {
+			// Swallow the exception, as messageArrivedAction does
+		}
+		if (messageAck == Ack.AUTO_ACK) {
+			mqttService.acknowledgeMessageArrivals(clientHandle, messageIds);
+		}
+	}
+
 	/**
 	 * Process trace action - pass trace data back to the callback
 	 * 
@@ -1615,39 +2422,46 @@ public class MqttAndroidClient extends BroadcastReceiver implements
 	 * @return an identifier for the token which can be passed to the Android
 	 *         Service
 	 */
-	private synchronized String storeToken(IMqttToken token) {
-		tokenMap.put(tokenNumber, token);
-		return Integer.toString(tokenNumber++);
+	private int storeToken(IMqttToken token) {
+		return tokenMap.put(token);
 	}
 
 	/**
-	 * Get a token identified by a string, and remove it from our map
+	 * Get a token identified by a Bundle's activity token, and remove it from
+	 * our map
 	 * 
 	 * @param data
 	 * @return the token
 	 */
-	private synchronized IMqttToken removeMqttToken(Bundle data) {
-		
-		String activityToken = data.getString(MqttServiceConstants.CALLBACK_ACTIVITY_TOKEN);
-		if (activityToken!=null){
-			int tokenNumber = Integer.parseInt(activityToken);
-			IMqttToken token = tokenMap.get(tokenNumber);
-			tokenMap.delete(tokenNumber);
-			return token;
-		}
-		return null;
+	private IMqttToken removeMqttToken(Bundle data) {
+		return removeMqttToken(data.getInt(
+				MqttServiceConstants.CALLBACK_ACTIVITY_TOKEN,
+				MqttServiceConstants.NO_ACTIVITY_TOKEN));
+	}
+
+	/**
+	 * Get a token identified by its number, and remove it from our map
+	 * 
+	 * @param activityToken
+	 *            the identifier returned by storeToken, or
+	 *            {@link MqttServiceConstants#NO_ACTIVITY_TOKEN}
+	 * @return the token
+	 */
+	private IMqttToken removeMqttToken(int activityToken) {
+		return tokenMap.remove(activityToken);
 	}
 
 	/**
-	 * Get a token identified by a string, and remove it from our map
+	 * Get a token identified by a Bundle's activity token, leaving it in our
+	 * map
 	 * 
 	 * @param data
 	 * @return the token
 	 */
-	private synchronized IMqttToken getMqttToken(Bundle data) {
-		String activityToken = data
-				.getString(MqttServiceConstants.CALLBACK_ACTIVITY_TOKEN);
-		return tokenMap.get(Integer.parseInt(activityToken));
+	private IMqttToken getMqttToken(Bundle data) {
+		return tokenMap.get(data.getInt(
+				MqttServiceConstants.CALLBACK_ACTIVITY_TOKEN,
+				MqttServiceConstants.NO_ACTIVITY_TOKEN));
 	}
 
 	/**
@@ -1658,6 +2472,258 @@ public class MqttAndroidClient extends BroadcastReceiver implements
 		mqttService.setBufferOpts(clientHandle, bufferOpts);
 	}
 
+	/**
+	 * <p>
+	 * Sets up the offline buffer: messages published while this client is not
+	 * connected are kept in files by the service, and sent, oldest first, when
+	 * it connects again. Unlike the buffer set up by
+	 * {@link #setBufferOpts(DisconnectedBufferOptions)}, the offline buffer
+	 * survives the service being killed; messages left in it are sent once a
+	 * client with the same server, client id and context sets it up again and
+	 * connects.
+	 * </p>
+	 * <p>
+	 * The token of a buffered message completes as soon as the message is in
+	 * the buffer, and its delivery is not reported to the
+	 * {@link MqttCallback}. Messages buffered beyond the options' bounds are
+	 * dropped, or refused, as their {@link OfflineBufferEvictionPolicy} says.
+	 * While the buffer drains, messages published are buffered too, so that
+	 * they reach the server in the order they were published. The drain is
+	 * paced by the in-flight window, see {@link #setInFlightWindow(int)}.
+	 * Messages on conflated topics replace each other, see
+	 * {@link OfflineBufferOptions#setConflatedTopics(String[])}. Once set up,
+	 * the offline buffer is what {@link #getBufferedMessageCount()},
+	 * {@link #getBufferedMessage(int)} and {@link #deleteBufferedMessage(int)}
+	 * look at.
+	 * </p>
+	 * 
+	 * @param options
+	 *            the bounds of the buffer, or null to stop buffering
+	 */
+	public void setOfflineBufferOptions(OfflineBufferOptions options) {
+		this.offlineBufferOptions = options;
+		if (mqttService != null && clientHandle != null) {
+			mqttService.setOfflineBufferOptions(clientHandle, options);
+		}
+	}
+
+	/**
+	 * <p>
+	 * Keep the last message to arrive on each topic in a cache in the
+	 * service, so that the current value of a topic can be read at once with
+	 * {@link #getLastValue(String)} or {@link #getLastValues(String)}, rather
+	 * than by subscribing and waiting for the server's retained message.
+	 * </p>
+	 * <p>
+	 * The cache is bounded by the bytes it holds: each topic's payload, the
+	 * topic and a little more. When it is full, the topic least recently
+	 * received or read is forgotten. The cache is kept in memory, so it is
+	 * empty again if the service is restarted.
+	 * </p>
+	 * 
+	 * @param maxBytes
+	 *            the size of the cache, or 0 to keep no cache
+	 */
+	public void setLastValueCacheSize(long maxBytes) {
+		this.lastValueCacheBytes = maxBytes;
+		if (mqttService != null && clientHandle != null) {
+			mqttService.setLastValueCacheSize(clientHandle, maxBytes);
+		}
+	}
+
+	/**
+	 * Returns the last message to arrive on a topic, from the cache set up by
+	 * {@link #setLastValueCacheSize(long)}, without waiting for the server.
+	 * 
+	 * @param topic
+	 *            a topic, without wildcards, such as "device/123/battery"
+	 * @return a copy of the message, or null if the topic is not cached
+	 */
+	public MqttMessage getLastValue(String topic) {
+		if (mqttService == null || clientHandle == null) {
+			return null;
+		}
+		return mqttService.getLastValue(clientHandle, topic);
+	}
+
+	/**
+	 * Returns the last message to arrive on each topic matching a filter,
+	 * from the cache set up by {@link #setLastValueCacheSize(long)}, without
+	 * waiting for the server. As for a subscription, topics beginning with
+	 * "$" are not matched by a wildcard at their first level.
+	 * 
+	 * @param topicFilter
+	 *            a topic filter, which may contain wildcards, such as
+	 *            "device/+/battery" or "device/123/#"
+	 * @return copies of the messages, by topic, in topic order
+	 */
+	public Map<String, MqttMessage> getLastValues(String topicFilter) {
+		if (mqttService == null || clientHandle == null) {
+			return Collections.emptyMap();
+		}
+		return mqttService.getLastValues(clientHandle, topicFilter);
+	}
+
+	/**
+	 * <p>
+	 * Have the service drop the copies of messages the server sends again.
+	 * After a reconnect to a persistent session, the server sends once more,
+	 * marked as duplicates, the QoS 1 messages whose acknowledgements it did
+	 * not see; without this each copy is stored and passed on again.
+	 * </p>
+	 * <p>
+	 * The service keeps a fingerprint of each message it has acknowledged, in
+	 * a table of fixed size, for the window the options give. A message with
+	 * a fingerprint held is acknowledged to the server, but neither stored
+	 * nor passed on. The fingerprints are kept in memory, so are lost if the
+	 * service is restarted.
+	 * </p>
+	 * 
+	 * @param options
+	 *            how messages are fingerprinted and for how long, or null to
+	 *            stop dropping them
+	 */
+	public void setDuplicateSuppression(DuplicateSuppressionOptions options) {
+		this.duplicateSuppressionOptions = options;
+		if (mqttService != null && clientHandle != null) {
+			mqttService.setDuplicateSuppression(clientHandle, options);
+		}
+	}
+
+	/**
+	 * Returns how many messages the duplicate suppression has dropped, and
+	 * how many fingerprints it holds.
+	 * 
+	 * @return a snapshot of the counters, or null if the client has not yet
+	 *         connected to the service or has no duplicate suppression
+	 */
+	public DuplicateSuppressionStats getDuplicateSuppressionStats() {
+		if (mqttService == null || clientHandle == null) {
+			return null;
+		}
+		return mqttService.getDuplicateSuppressionStats(clientHandle);
+	}
+
+	/**
+	 * <p>
+	 * Decide which of the messages arriving on a topic filter the application
+	 * wants. The service applies the policy as each message arrives, and a
+	 * message the policy discards is acknowledged to the server without being
+	 * stored or passed to the application - so high-frequency topics can be
+	 * sampled, rate limited, deduplicated or filtered on their payload at the
+	 * cost of neither a write nor a callback.
+	 * </p>
+	 * <p>
+	 * The filter need not be one subscribed to. A message matching several
+	 * filters with a policy is passed on if any of their policies accepts it.
+	 * The policy is copied, so changing it afterwards has no effect until it
+	 * is set again; setting it again starts its counters again.
+	 * </p>
+	 * 
+	 * @param topicFilter
+	 *            the topic filter, which may contain wildcards, such as
+	 *            "sensor/+/temperature"
+	 * @param policy
+	 *            the policy, or null to pass on every message again
+	 * @throws IllegalArgumentException
+	 *             if the filter is not a valid topic filter
+	 */
+	public void setDeliveryPolicy(String topicFilter, DeliveryPolicy policy) {
+		MqttTopic.validate(topicFilter, true);
+		synchronized (deliveryPolicies) {
+			if (policy == null) {
+				deliveryPolicies.remove(topicFilter);
+			}
+			else {
+				deliveryPolicies.put(topicFilter, policy);
+			}
+		}
+		if (mqttService != null && clientHandle != null) {
+			mqttService.setDeliveryPolicy(clientHandle, topicFilter, policy);
+		}
+	}
+
+	/**
+	 * <p>
+	 * Have the service aggregate the numbers arriving on a topic filter, and
+	 * pass on a summary of each topic once a window - the count, minimum,
+	 * maximum, mean and last value - in place of the messages themselves,
+	 * which are acknowledged to the server without being stored or passed on.
+	 * For a topic carrying many readings a second, a dashboard then receives
+	 * one callback a window instead of hundreds.
+	 * </p>
+	 * <p>
+	 * The options are read when they are set. When a topic matches several
+	 * aggregated filters, the one set first aggregates it. Aggregated topics
+	 * are not filtered by a {@link DeliveryPolicy}.
+	 * </p>
+	 * 
+	 * @param topicFilter
+	 *            the topic filter, which may contain wildcards, such as
+	 *            "sensor/+/temperature"
+	 * @param options
+	 *            the window and how payloads are read, or null to pass on
+	 *            each message again
+	 * @param callback
+	 *            receives the summaries, on the same thread as the
+	 *            {@link MqttCallback}
+	 * @throws IllegalArgumentException
+	 *             if the filter is not a valid topic filter, or there are
+	 *             options but no callback
+	 */
+	public void setAggregation(String topicFilter, AggregationOptions options,
+			MqttAggregateCallback callback) {
+		MqttTopic.validate(topicFilter, true);
+		if (options != null && callback == null) {
+			throw new IllegalArgumentException("callback is null");
+		}
+		synchronized (aggregations) {
+			if (options == null) {
+				aggregations.remove(topicFilter);
+				aggregateCallbacks.remove(topicFilter);
+			}
+			else {
+				aggregations.put(topicFilter, options);
+				aggregateCallbacks.put(topicFilter, callback);
+			}
+		}
+		if (mqttService != null && clientHandle != null) {
+			mqttService.setAggregation(clientHandle, topicFilter, options);
+		}
+	}
+
+	/**
+	 * Returns how many of the messages arriving on a topic filter its
+	 * {@link DeliveryPolicy} has passed on, and how many it has discarded, and
+	 * why.
+	 * 
+	 * @param topicFilter
+	 *            the topic filter, exactly as its policy was set
+	 * @return a snapshot of the policy's counters, or null if the client has
+	 *         not yet connected to the service or the filter has no policy
+	 */
+	public DeliveryPolicyStats getDeliveryPolicyStats(String topicFilter) {
+		if (mqttService == null || clientHandle == null) {
+			return null;
+		}
+		return mqttService.getDeliveryPolicyStats(clientHandle, topicFilter);
+	}
+
+	/**
+	 * Returns the state of the offline buffer: how many messages it holds,
+	 * and how many have been buffered, delivered, dropped or refused.
+	 * 
+	 * @return a snapshot of the offline buffer's counters, or null if the
+	 *         client has not yet connected to the service or has no offline
+	 *         buffer
+	 */
+	public OfflineBufferStats getOfflineBufferStats() {
+		if (mqttService == null || clientHandle == null) {
+			return null;
+		}
+		return mqttService.getOfflineBufferStats(clientHandle);
+	}
+
 	public int getBufferedMessageCount(){
 		return mqttService.getBufferedMessageCount(clientHandle);
 	}
@@ -1730,6 +2796,10 @@ public class MqttAndroidClient extends BroadcastReceiver implements
 	 * IntentReceiver leaks.
 	 */
 	public void unregisterResources(){
+		if (mqttService != null && clientHandle != null) {
+			mqttService.unregisterCallbackListener(clientHandle,
+					directCallbackListener);
+		}
 		if(myContext != null && receiverRegistered){
 			synchronized (MqttAndroidClient.this) {
 				LocalBroadcastManager.getInstance(myContext).unregisterReceiver(this);
@@ -1759,6 +2829,54 @@ public class MqttAndroidClient extends BroadcastReceiver implements
 			if(!receiverRegistered){
 				registerReceiver(this);
 			}
+			if (mqttService != null && clientHandle != null) {
+				mqttService.registerCallbackListener(clientHandle,
+						directCallbackListener, callbackExecutor);
+			}
+		}
+	}
+
+	/**
+	 * Takes callbacks for this client straight from the service, which is in
+	 * the same process, without building an Intent for each
+	 */
+	private class DirectCallbackListener implements CallbackRegistry.Listener {
+
+		@Override
+		public void messageArrived(String messageId, String topic,
+				MqttMessage message, int[] listenerIds) {
+			messageArrivedAction(messageId, topic, new ParcelableMqttMessage(
+					message), listenerIds);
+		}
+
+		@Override
+		public void messagesArrived(List<MessageStore.StoredMessage> messages) {
+			List<MessageStore.StoredMessage> batch = new ArrayList<>(
+					messages.size());
+			for (MessageStore.StoredMessage arrived : messages) {
+				batch.add(new StoredArrivedMessage(arrived.getMessageId(),
+						clientHandle, arrived.getTopic(),
+						new ParcelableMqttMessage(arrived.getMessage())));
+			}
+			messagesArrivedAction(batch);
+		}
+
+		@Override
+		public void messageDelivered(int activityToken) {
+			// the send completes, then the delivery is reported, just as for
+			// the SEND_ACTION and MESSAGE_DELIVERED_ACTION broadcasts
+			IMqttToken token = removeMqttToken(activityToken);
+			if (token != null) {
+				((MqttTokenAndroid) token).notifyComplete();
+				if (callback != null && token instanceof IMqttDeliveryToken) {
+					callback.deliveryComplete((IMqttDeliveryToken) token);
+				}
+			}
+		}
+
+		@Override
+		public void callback(Bundle data) {
+			dispatchCallback(data);
 		}
 	}
 }
@@ -0,0 +1,48 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ */
+package org.eclipse.paho.android.service;
+
+import java.util.List;
+
+import org.eclipse.paho.client.mqttv3.MqttCallback;
+
+/**
+ * <p>
+ * Receives arrived messages in batches, instead of one at a time through
+ * {@link MqttCallback#messageArrived(String, org.eclipse.paho.client.mqttv3.MqttMessage)}.
+ * Set with
+ * {@link MqttAndroidClient#setBatchCallback(MqttBatchCallback, int, long)}.
+ * </p>
+ * <p>
+ * Each message in a batch is a {@link ParcelableMqttMessage}, and its
+ * {@link MessageStore.StoredMessage#getMessageId()} is the id to acknowledge
+ * it with when the client uses {@link MqttAndroidClient.Ack#MANUAL_ACK} -
+ * {@link MqttAndroidClient#acknowledgeMessages(List)} acknowledges a whole
+ * batch at once.
+ * </p>
+ */
+public interface MqttBatchCallback {
+
+	/**
+	 * Messages have arrived from the server
+	 *
+	 * @param messages
+	 *            the messages, in the order in which they arrived
+	 * @throws Exception
+	 *             if the batch could not be processed - with
+	 *             {@link MqttAndroidClient.Ack#AUTO_ACK} the messages are
+	 *             still acknowledged
+	 */
+	void messagesArrived(List<MessageStore.StoredMessage> messages)
+			throws Exception;
+}
@@ -0,0 +1,136 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ */
+package org.eclipse.paho.android.service;
+
+import org.eclipse.paho.client.mqttv3.IMqttActionListener;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+
+/**
+ * <p>
+ * Tracks a batch of messages published together by
+ * {@link MqttAndroidClient#publishBatch(String[], MqttMessage[], Object, IMqttActionListener)}.
+ * </p>
+ * <p>
+ * The token completes once, when every message in the batch has been either
+ * delivered or failed: successfully if all were delivered, otherwise with the
+ * first failure. The outcome of each message can then be read by its index.
+ * </p>
+ */
+public class MqttBatchToken extends MqttTokenAndroid {
+
+	/**
+	 * The outcome of one message in the batch
+	 */
+	public enum MessageStatus {
+		/** Not yet delivered, or the batch has not yet completed */
+		PENDING,
+		/** Delivered, to the extent its QoS requires */
+		DELIVERED,
+		/** Not delivered, see {@link MqttBatchToken#getErrorMessage(int)} */
+		FAILED
+	}
+
+	private final MqttMessage[] messages;
+
+	// the outcome of each message, set when the batch completes
+	private volatile int[] statuses;
+	private volatile String[] errors;
+
+	MqttBatchToken(MqttAndroidClient client, Object userContext,
+			IMqttActionListener listener, String[] topics,
+			MqttMessage[] messages) {
+		super(client, userContext, listener, topics);
+		this.messages = messages;
+	}
+
+	/**
+	 * Record the outcome of each message, before the token completes
+	 */
+	void setOutcome(int[] statuses, String[] errors) {
+		this.errors = errors;
+		this.statuses = statuses;
+	}
+
+	/**
+	 * @return the number of messages in the batch
+	 */
+	public int getMessageCount() {
+		return messages.length;
+	}
+
+	/**
+	 * @param index
+	 *            the message's position in the batch
+	 * @return the message
+	 */
+	public MqttMessage getMessage(int index) {
+		return messages[index];
+	}
+
+	/**
+	 * @param index
+	 *            the message's position in the batch
+	 * @return what became of the message
+	 */
+	public MessageStatus getStatus(int index) {
+		int[] outcome = statuses;
+		if (outcome == null) {
+			return MessageStatus.PENDING;
+		}
+		switch (outcome[index]) {
+		case MqttServiceConstants.BATCH_MESSAGE_DELIVERED:
+			return MessageStatus.DELIVERED;
+		case MqttServiceConstants.BATCH_MESSAGE_FAILED:
+			return MessageStatus.FAILED;
+		default:
+			return MessageStatus.PENDING;
+		}
+	}
+
+	/**
+	 * @param index
+	 *            the message's position in the batch
+	 * @return why the message failed, or null if it did not
+	 */
+	public String getErrorMessage(int index) {
+		String[] outcome = errors;
+		return outcome == null ? null : outcome[index];
+	}
+
+	/**
+	 * @return the number of messages delivered
+	 */
+	public int getDeliveredCount() {
+		return count(MqttServiceConstants.BATCH_MESSAGE_DELIVERED);
+	}
+
+	/**
+	 * @return the number of messages which failed
+	 */
+	public int getFailedCount() {
+		return count(MqttServiceConstants.BATCH_MESSAGE_FAILED);
+	}
+
+	private int count(int status) {
+		int[] outcome = statuses;
+		int count = 0;
+		if (outcome != null) {
+			for (int s : outcome) {
+				if (s == status) {
+					count++;
+				}
+			}
+		}
+		return count;
+	}
+}
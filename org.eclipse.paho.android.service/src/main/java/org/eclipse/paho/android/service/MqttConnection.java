@@ -13,16 +13,32 @@
 package org.eclipse.paho.android.service;
 
 import java.io.File;
+import java.io.IOException;
+import java.net.URLEncoder;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
 
 import org.eclipse.paho.android.service.MessageStore.StoredMessage;
 import org.eclipse.paho.client.mqttv3.DisconnectedBufferOptions;
 import org.eclipse.paho.client.mqttv3.IMqttActionListener;
 import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
-import org.eclipse.paho.client.mqttv3.IMqttMessageListener;
 import org.eclipse.paho.client.mqttv3.IMqttToken;
 import org.eclipse.paho.client.mqttv3.MqttAsyncClient;
 import org.eclipse.paho.client.mqttv3.MqttCallbackExtended;
@@ -31,11 +47,13 @@ import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
 import org.eclipse.paho.client.mqttv3.MqttException;
 import org.eclipse.paho.client.mqttv3.MqttMessage;
 import org.eclipse.paho.client.mqttv3.MqttPersistenceException;
+import org.eclipse.paho.client.mqttv3.MqttTopic;
 import org.eclipse.paho.client.mqttv3.persist.MqttDefaultFilePersistence;
 
 import android.app.Service;
 import android.content.Context;
 import android.os.Bundle;
+import android.os.Parcelable;
 import android.os.PowerManager;
 import android.os.PowerManager.WakeLock;
 import android.util.Log;
@@ -54,7 +72,7 @@ import android.util.Log;
  * <li>invocationContext - a string passed from the application to identify the
  * context of the operation (mainly included for support of the javascript API
  * implementation)</li>
- * <li>activityToken - a string passed from the Activity to relate back to a
+ * <li>activityToken - an int passed from the Activity to relate back to a
  * callback method or other context-specific data</li>
  * </ul>
  * </p>
@@ -70,6 +88,12 @@ class MqttConnection implements MqttCallbackExtended {
 	private static final String TAG = "MqttConnection";
 	// Error status messages
 	private static final String NOT_CONNECTED = "not connected";
+	private static final String TOO_MANY_IN_FLIGHT = "too many messages in flight";
+	private static final String OFFLINE_BUFFER_FULL = "offline buffer full";
+
+	// the directory, in the application's private storage, of each client's
+	// offline buffer
+	private static final String OFFLINE_BUFFER_DIRECTORY = "MqttOfflineBuffer";
 
 	// fields for the connection definition
 	private String serverURI;
@@ -113,36 +137,101 @@ class MqttConnection implements MqttCallbackExtended {
 	}
 
 	//store connect ActivityToken for reconnect
-	private String reconnectActivityToken = null;
+	private int reconnectActivityToken = MqttServiceConstants.NO_ACTIVITY_TOKEN;
 
 	// our client object - instantiated on connect
 	private MqttAsyncClient myClient = null;
+	// the callback bound to it
+	private ClientCallback myCallback = null;
 
 	private AlarmPingSender alarmPingSender = null;
 
+	// the persistence, shared by the old and new clients during a handover
+	private SharedPersistence sharedPersistence = null;
+
+	// whether a client is being connected on a new network, to take over
+	private volatile boolean handingOver = false;
+	// whether the client stayed on a network the others were handed over from
+	private volatile boolean onOldNetwork = false;
+
+	// the shortest keep-alive interval pinged at in adaptive mode, or 0 to
+	// ping at the keep-alive interval
+	private volatile long adaptiveKeepAliveMinimum = 0;
+
 	// our (parent) service object
 	private MqttService service = null;
 
 	private volatile boolean disconnected = true;
 	private boolean cleanSession = true;
 
+	// gathers arrived messages into batches for the Activity, if asked to
+	private volatile GroupCommitQueue<StoredMessage> arrivalBatcher = null;
+
+	// which arrived messages go to the memoryMessageStore
+	private volatile ArrivedMessageStorePolicy arrivedStorePolicy = ArrivedMessageStorePolicy.DURABLE;
+
+	// the last message to arrive on each topic, if the application asked
+	private volatile LastValueCache lastValueCache = null;
+
+	// the topic filters subscribed to with a listener in the client
+	private final SubscriptionTrie subscriptions = new SubscriptionTrie();
+
+	// which arrived messages the application wants, by topic filter
+	private final DeliveryFilter deliveryFilter = new DeliveryFilter();
+
+	// the fingerprints of messages taken care of lately, if the application
+	// asked for duplicates to be dropped
+	private volatile DuplicateSuppression duplicateSuppression = null;
+
+	// the topic filters whose messages are passed on only as summaries, and
+	// the task closing each one's windows
+	private final TelemetryAggregator aggregator = new TelemetryAggregator();
+	private final Map<String, ScheduledFuture<?>> aggregationTicks = new HashMap<>();
+	private ScheduledExecutorService aggregationScheduler = null;
+
 	// Indicate this connection is connecting or not.
 	// This variable uses to avoid reconnect multiple times.
 	private volatile boolean isConnecting = false;
 
-	// Saved sent messages and their corresponding Topics, activityTokens and
-	// invocationContexts, so we can handle "deliveryComplete" callbacks
-	// from the mqttClient
-	private Map<IMqttDeliveryToken, String /* Topic */> savedTopics = new HashMap<>();
-	private Map<IMqttDeliveryToken, MqttMessage> savedSentMessages = new HashMap<>();
-	private Map<IMqttDeliveryToken, String> savedActivityTokens = new HashMap<>();
-	private Map<IMqttDeliveryToken, String> savedInvocationContexts = new HashMap<>();
+	// Sent messages, with their topics, activityTokens and invocationContexts,
+	// until they are delivered
+	private final InFlightTable inFlight = new InFlightTable(
+			InFlightTable.DEFAULT_CAPACITY, new InFlightTable.WindowListener() {
+				@Override
+				public void windowOpened() {
+					Bundle resultBundle = new Bundle();
+					resultBundle.putString(MqttServiceConstants.CALLBACK_ACTION,
+							MqttServiceConstants.PUBLISH_READY_ACTION);
+					service.callbackToActivity(clientHandle, Status.OK,
+							resultBundle);
+					scheduleDrain();
+				}
+			});
+	// batches published together which have not yet completed
+	private final Set<BatchPublish> outstandingBatches = Collections
+			.newSetFromMap(new ConcurrentHashMap<BatchPublish, Boolean>());
 
 	private WakeLock wakelock = null;
 	private String wakeLockTag = null;
 
 	private DisconnectedBufferOptions bufferOpts = null;
 
+	// messages published while not connected, kept in files until they are
+	// delivered, if the application asked for that
+	private volatile OfflinePublishBuffer offlineBuffer = null;
+	private volatile ExecutorService drainExecutor = null;
+	private final AtomicBoolean drainScheduled = new AtomicBoolean();
+	// buffered messages handed to the client and not yet delivered
+	private final AtomicInteger drainInFlight = new AtomicInteger();
+
+	private final Runnable drainTask = new Runnable() {
+		@Override
+		public void run() {
+			drainScheduled.set(false);
+			drainOfflineBuffer();
+		}
+	};
+
 	/**
 	 * Constructor - create an MqttConnection to communicate with MQTT server
 	 * 
@@ -188,7 +277,7 @@ class MqttConnection implements MqttCallbackExtended {
 	 *            arbitrary identifier to be passed back to the Activity
 	 */
 	public void connect(MqttConnectOptions options, String invocationContext,
-			String activityToken) {
+			int activityToken) {
 		
 		connectOptions = options;
 		reconnectActivityToken = activityToken;
@@ -199,12 +288,12 @@ class MqttConnection implements MqttCallbackExtended {
 
 		if (connectOptions.isCleanSession()) { // if it's a clean session,
 			// discard old data
-			service.messageStore.clearArrivedMessages(clientHandle);
+			clearArrivedMessages();
 		}
 
 		service.traceDebug(TAG, "Connecting {" + serverURI + "} as {" + clientId + "}");
 		final Bundle resultBundle = new Bundle();
-		resultBundle.putString(MqttServiceConstants.CALLBACK_ACTIVITY_TOKEN,
+		resultBundle.putInt(MqttServiceConstants.CALLBACK_ACTIVITY_TOKEN,
 				activityToken);
 		resultBundle.putString(
 				MqttServiceConstants.CALLBACK_INVOCATION_CONTEXT,
@@ -286,9 +375,15 @@ class MqttConnection implements MqttCallbackExtended {
 			// if myClient is null, then create a new connection
 			else {
 				alarmPingSender = new AlarmPingSender(service);
+				alarmPingSender.setAdaptiveMinimum(adaptiveKeepAliveMinimum);
+				sharedPersistence = new SharedPersistence(persistence);
 				myClient = new MqttAsyncClient(serverURI, clientId,
-						persistence, alarmPingSender);
-				myClient.setCallback(this);
+						sharedPersistence, alarmPingSender);
+				myCallback = new ClientCallback(myClient);
+				myClient.setCallback(myCallback);
+				// arrived messages are acknowledged to the server only once
+				// the messageStore has them, see ArrivalStoreListener
+				myClient.setManualAcks(true);
 
 				service.traceDebug(TAG,"Do Real connect!");
 				setConnectingState(true);
@@ -302,12 +397,15 @@ class MqttConnection implements MqttCallbackExtended {
 	}
 
 	private void doAfterConnectSuccess(final Bundle resultBundle) {
+		onOldNetwork = false;
+		service.getReconnectCoordinator().connected(clientHandle);
 		//since the device's cpu can go to sleep, acquire a wakelock and drop it later.
 		acquireWakeLock();
 		service.callbackToActivity(clientHandle, Status.OK, resultBundle);
 		deliverBacklog();
 		setConnectingState(false);
 		disconnected = false;
+		scheduleDrain();
 		releaseWakeLock();
 	}
 
@@ -319,6 +417,8 @@ class MqttConnection implements MqttCallbackExtended {
 		resultBundle.putBoolean(MqttServiceConstants.CALLBACK_RECONNECT, reconnect);
 		resultBundle.putString(MqttServiceConstants.CALLBACK_SERVER_URI, serverURI);
 		service.callbackToActivity(clientHandle, Status.OK, resultBundle);
+		service.getReconnectCoordinator().connected(clientHandle);
+		scheduleDrain();
 	}
 
 	private void doAfterConnectFail(final Bundle resultBundle){
@@ -345,18 +445,60 @@ class MqttConnection implements MqttCallbackExtended {
 	 * have already purged any such messages from our messageStore.
 	 */
 	private void deliverBacklog() {
-		Iterator<StoredMessage> backlog = service.messageStore
+		deliverBacklog(service.messageStore);
+		deliverBacklog(service.memoryMessageStore);
+	}
+
+	private void deliverBacklog(MessageStore store) {
+		Iterator<StoredMessage> backlog = store
 				.getAllArrivedMessages(clientHandle);
 		while (backlog.hasNext()) {
 			StoredMessage msgArrived = backlog.next();
-			Bundle resultBundle = messageToBundle(msgArrived.getMessageId(),
+			messageArrivedToActivity(msgArrived.getMessageId(),
 					msgArrived.getTopic(), msgArrived.getMessage());
-			resultBundle.putString(MqttServiceConstants.CALLBACK_ACTION,
-					MqttServiceConstants.MESSAGE_ARRIVED_ACTION);
-			service.callbackToActivity(clientHandle, Status.OK, resultBundle);
 		}
 	}
 
+	/**
+	 * Pass an arrived message to the Activity - directly, if it has registered
+	 * with the service's callbackRegistry, and by broadcast if not - with the
+	 * listeners of the subscriptions it matches
+	 * 
+	 * @param messageId
+	 *            the message's identifier in the messageStore
+	 * @param topic
+	 *            the topic on which the message was delivered
+	 * @param message
+	 *            the message itself
+	 */
+	private void messageArrivedToActivity(String messageId, String topic,
+			MqttMessage message) {
+		// a message for a subscription's own listener is passed on by itself,
+		// once the messages that arrived before it have been
+		int[] listenerIds = subscriptions.match(topic);
+		GroupCommitQueue<StoredMessage> batcher = arrivalBatcher;
+		if (batcher != null) {
+			if (listenerIds.length == 0) {
+				batcher.submit(new StoredArrivedMessage(messageId,
+						clientHandle, topic, message));
+				return;
+			}
+			batcher.drain();
+		}
+		if (service.callbackRegistry.messageArrived(clientHandle, messageId,
+				topic, message, listenerIds)) {
+			return;
+		}
+		Bundle resultBundle = messageToBundle(messageId, topic, message);
+		resultBundle.putString(MqttServiceConstants.CALLBACK_ACTION,
+				MqttServiceConstants.MESSAGE_ARRIVED_ACTION);
+		if (listenerIds.length > 0) {
+			resultBundle.putIntArray(
+					MqttServiceConstants.CALLBACK_LISTENER_IDS, listenerIds);
+		}
+		service.callbackToActivity(clientHandle, Status.OK, resultBundle);
+	}
+
 	/**
 	 * Create a bundle containing all relevant data pertaining to a message
 	 * 
@@ -385,6 +527,10 @@ class MqttConnection implements MqttCallbackExtended {
 	 */
 	void close() {
 		service.traceDebug(TAG, "close()");
+		setArrivalBatching(1, 0);
+		reclaimInFlight();
+		setOfflineBufferOptions(null);
+		stopAggregations();
 		try {
 			if (myClient != null) {
 				myClient.close();
@@ -406,11 +552,11 @@ class MqttConnection implements MqttCallbackExtended {
 	 *            arbitrary string to be passed back to the activity
 	 */
 	void disconnect(long quiesceTimeout, String invocationContext,
-			String activityToken) {
+			int activityToken) {
 		service.traceDebug(TAG, "disconnect()");
 		disconnected = true;
 		final Bundle resultBundle = new Bundle();
-		resultBundle.putString(MqttServiceConstants.CALLBACK_ACTIVITY_TOKEN,
+		resultBundle.putInt(MqttServiceConstants.CALLBACK_ACTIVITY_TOKEN,
 				activityToken);
 		resultBundle.putString(
 				MqttServiceConstants.CALLBACK_INVOCATION_CONTEXT,
@@ -418,11 +564,12 @@ class MqttConnection implements MqttCallbackExtended {
 		resultBundle.putString(MqttServiceConstants.CALLBACK_ACTION,
 				MqttServiceConstants.DISCONNECT_ACTION);
 		if ((myClient != null) && (myClient.isConnected())) {
-			IMqttActionListener listener = new MqttConnectionListener(
+			IMqttActionListener listener = new DisconnectListener(
 					resultBundle);
 			try {
 				myClient.disconnect(quiesceTimeout, invocationContext, listener);
 			} catch (Exception e) {
+				reclaimInFlight();
 				handleException(resultBundle, e);
 			}
 		} else {
@@ -431,11 +578,12 @@ class MqttConnection implements MqttCallbackExtended {
 			service.traceError(MqttServiceConstants.DISCONNECT_ACTION,
 					NOT_CONNECTED);
 			service.callbackToActivity(clientHandle, Status.ERROR, resultBundle);
+			reclaimInFlight();
 		}
 
 		if (connectOptions != null && connectOptions.isCleanSession()) {
 			// assume we'll clear the stored messages at this point
-			service.messageStore.clearArrivedMessages(clientHandle);
+			clearArrivedMessages();
 		}
 
 		releaseWakeLock();
@@ -449,11 +597,11 @@ class MqttConnection implements MqttCallbackExtended {
 	 * @param activityToken
 	 *            arbitrary string to be passed back to the activity
 	 */
-	void disconnect(String invocationContext, String activityToken) {
+	void disconnect(String invocationContext, int activityToken) {
 		service.traceDebug(TAG, "disconnect()");
 		disconnected = true;
 		final Bundle resultBundle = new Bundle();
-		resultBundle.putString(MqttServiceConstants.CALLBACK_ACTIVITY_TOKEN,
+		resultBundle.putInt(MqttServiceConstants.CALLBACK_ACTIVITY_TOKEN,
 				activityToken);
 		resultBundle.putString(
 				MqttServiceConstants.CALLBACK_INVOCATION_CONTEXT,
@@ -461,11 +609,12 @@ class MqttConnection implements MqttCallbackExtended {
 		resultBundle.putString(MqttServiceConstants.CALLBACK_ACTION,
 				MqttServiceConstants.DISCONNECT_ACTION);
 		if ((myClient != null) && (myClient.isConnected())) {
-			IMqttActionListener listener = new MqttConnectionListener(
+			IMqttActionListener listener = new DisconnectListener(
 					resultBundle);
 			try {
 				myClient.disconnect(invocationContext, listener);
 			} catch (Exception e) {
+				reclaimInFlight();
 				handleException(resultBundle, e);
 			}
 		} else {
@@ -474,11 +623,12 @@ class MqttConnection implements MqttCallbackExtended {
 			service.traceError(MqttServiceConstants.DISCONNECT_ACTION,
 					NOT_CONNECTED);
 			service.callbackToActivity(clientHandle, Status.ERROR, resultBundle);
+			reclaimInFlight();
 		}
 
 		if (connectOptions != null && connectOptions.isCleanSession()) {
 			// assume we'll clear the stored messages at this point
-			service.messageStore.clearArrivedMessages(clientHandle);
+			clearArrivedMessages();
 		}
 		releaseWakeLock();
 	}
@@ -509,11 +659,11 @@ class MqttConnection implements MqttCallbackExtended {
 	 * @return token for tracking the operation
 	 */
 	public IMqttDeliveryToken publish(String topic, byte[] payload, int qos,
-			boolean retained, String invocationContext, String activityToken) {
+			boolean retained, String invocationContext, int activityToken) {
 		final Bundle resultBundle = new Bundle();
 		resultBundle.putString(MqttServiceConstants.CALLBACK_ACTION,
 				MqttServiceConstants.SEND_ACTION);
-		resultBundle.putString(MqttServiceConstants.CALLBACK_ACTIVITY_TOKEN,
+		resultBundle.putInt(MqttServiceConstants.CALLBACK_ACTIVITY_TOKEN,
 				activityToken);
 		resultBundle.putString(
 				MqttServiceConstants.CALLBACK_INVOCATION_CONTEXT,
@@ -521,19 +671,26 @@ class MqttConnection implements MqttCallbackExtended {
 
 		IMqttDeliveryToken sendToken = null;
 
-		if ((myClient != null) && (myClient.isConnected())) {
-			IMqttActionListener listener = new MqttConnectionListener(
-					resultBundle);
-			try {
-				MqttMessage message = new MqttMessage(payload);
-				message.setQos(qos);
-				message.setRetained(retained);
-				sendToken = myClient.publish(topic, payload, qos, retained,
-						invocationContext, listener);
-				storeSendDetails(topic, message, sendToken, invocationContext,
-						activityToken);
-			} catch (Exception e) {
-				handleException(resultBundle, e);
+		OfflinePublishBuffer buffer = offlineBuffer;
+		if (buffer != null && (!isConnected() || buffer.size() > 0)) {
+			MqttMessage message = new MqttMessage(payload);
+			message.setQos(qos);
+			message.setRetained(retained);
+			bufferOffline(buffer, topic, message, resultBundle);
+		} else if ((myClient != null) && (myClient.isConnected())) {
+			MqttMessage message = new MqttMessage(payload);
+			message.setQos(qos);
+			message.setRetained(retained);
+			PublishListener listener = trackPublish(topic, message,
+					invocationContext, activityToken, resultBundle, false);
+			if (listener != null) {
+				try {
+					sendToken = myClient.publish(topic, payload, qos, retained,
+							invocationContext, listener);
+				} catch (Exception e) {
+					inFlight.fail(listener.record);
+					handleException(resultBundle, e);
+				}
 			}
 		} else {
 			resultBundle.putString(MqttServiceConstants.CALLBACK_ERROR_MESSAGE,
@@ -560,11 +717,46 @@ class MqttConnection implements MqttCallbackExtended {
 	 * @return token for tracking the operation
 	 */
 	public IMqttDeliveryToken publish(String topic, MqttMessage message,
-			String invocationContext, String activityToken) {
+			String invocationContext, int activityToken) {
+		return publish(topic, message, invocationContext, activityToken, false);
+	}
+
+	/**
+	 * Reserve a place in the in-flight window for a message, without waiting.
+	 * If there is no room, the Activity is told when there is.
+	 * 
+	 * @return true if there was room, and the message is to be published by
+	 *         {@link #publishReserved(String, MqttMessage, String, int)}
+	 */
+	boolean reservePublish() {
+		return inFlight.reserve();
+	}
+
+	/**
+	 * Publish a message, in a place reserved by {@link #reservePublish()}
+	 * 
+	 * @param topic
+	 *            the topic on which to publish - represented as a string, not
+	 *            an MqttTopic object
+	 * @param message
+	 *            the message to publish
+	 * @param invocationContext
+	 *            arbitrary data to be passed back to the application
+	 * @param activityToken
+	 *            arbitrary identifier to be passed back to the activity
+	 * @return token for tracking the operation
+	 */
+	IMqttDeliveryToken publishReserved(String topic, MqttMessage message,
+			String invocationContext, int activityToken) {
+		return publish(topic, message, invocationContext, activityToken, true);
+	}
+
+	private IMqttDeliveryToken publish(String topic, MqttMessage message,
+			String invocationContext, int activityToken, boolean reserved) {
 		final Bundle resultBundle = new Bundle();
 		resultBundle.putString(MqttServiceConstants.CALLBACK_ACTION,
 				MqttServiceConstants.SEND_ACTION);
-		resultBundle.putString(MqttServiceConstants.CALLBACK_ACTIVITY_TOKEN,
+		resultBundle.putInt(MqttServiceConstants.CALLBACK_ACTIVITY_TOKEN,
 				activityToken);
 		resultBundle.putString(
 				MqttServiceConstants.CALLBACK_INVOCATION_CONTEXT,
@@ -572,31 +764,44 @@ class MqttConnection implements MqttCallbackExtended {
 
 		IMqttDeliveryToken sendToken = null;
 
-		if ((myClient != null) && (myClient.isConnected())) {
-			IMqttActionListener listener = new MqttConnectionListener(
-					resultBundle);
-			try {
-				sendToken = myClient.publish(topic, message, invocationContext,
-						listener);
-				storeSendDetails(topic, message, sendToken, invocationContext,
-						activityToken);
-			} catch (Exception e) {
-				handleException(resultBundle, e);
+		OfflinePublishBuffer buffer = offlineBuffer;
+		if (buffer != null && (!isConnected() || buffer.size() > 0)) {
+			// while the buffer drains, new messages queue behind it, so that
+			// the server has them in the order they were published
+			if (reserved) {
+				inFlight.cancelReservation();
+			}
+			bufferOffline(buffer, topic, message, resultBundle);
+		} else if ((myClient != null) && (myClient.isConnected())) {
+			PublishListener listener = trackPublish(topic, message,
+					invocationContext, activityToken, resultBundle, reserved);
+			if (listener != null) {
+				try {
+					sendToken = myClient.publish(topic, message,
+							invocationContext, listener);
+				} catch (Exception e) {
+					inFlight.fail(listener.record);
+					handleException(resultBundle, e);
+				}
 			}
 		} else if ((myClient !=null) && (this.bufferOpts != null) && (this.bufferOpts.isBufferEnabled())){
 			// Client is not connected, but buffer is enabled, so sending message
-			IMqttActionListener listener = new MqttConnectionListener(
-					resultBundle);
-			try {
-				sendToken = myClient.publish(topic, message, invocationContext,
-						listener);
-				storeSendDetails(topic, message, sendToken, invocationContext,
-						activityToken);
-			} catch (Exception e) {
-				handleException(resultBundle, e);
+			PublishListener listener = trackPublish(topic, message,
+					invocationContext, activityToken, resultBundle, reserved);
+			if (listener != null) {
+				try {
+					sendToken = myClient.publish(topic, message,
+							invocationContext, listener);
+				} catch (Exception e) {
+					inFlight.fail(listener.record);
+					handleException(resultBundle, e);
+				}
 			}
 		}  else {
 			Log.i(TAG, "Client is not connected, so not sending message");
+			if (reserved) {
+				inFlight.cancelReservation();
+			}
 			resultBundle.putString(MqttServiceConstants.CALLBACK_ERROR_MESSAGE,
 					NOT_CONNECTED);
 			service.traceError(MqttServiceConstants.SEND_ACTION, NOT_CONNECTED);
@@ -605,6 +810,62 @@ class MqttConnection implements MqttCallbackExtended {
 		return sendToken;
 	}
 
+	/**
+	 * Publish a batch of messages, each on its own topic. The Activity is told
+	 * once, when every message has been delivered or has failed, with the
+	 * outcome of each, rather than once for each send and each delivery.
+	 * 
+	 * @param topics
+	 *            the topic of each message
+	 * @param messages
+	 *            the messages to publish
+	 * @param invocationContext
+	 *            arbitrary data to be passed back to the application
+	 * @param activityToken
+	 *            arbitrary identifier to be passed back to the Activity
+	 */
+	void publishBatch(String[] topics, MqttMessage[] messages,
+			String invocationContext, int activityToken) {
+		BatchPublish batch = new BatchPublish(topics, messages,
+				invocationContext, activityToken);
+		if (messages.length == 0) {
+			batch.report();
+			return;
+		}
+		boolean canSend = (myClient != null)
+				&& (myClient.isConnected() || ((this.bufferOpts != null) && (this.bufferOpts
+						.isBufferEnabled())));
+		if (!canSend) {
+			service.traceError(MqttServiceConstants.PUBLISH_BATCH_ACTION,
+					NOT_CONNECTED);
+			batch.failAll(new MqttException(
+					MqttException.REASON_CODE_CLIENT_NOT_CONNECTED));
+			return;
+		}
+		outstandingBatches.add(batch);
+		for (int i = 0; i < messages.length; i++) {
+			if (!batch.isPending(i)) {
+				// the batch was abandoned by a disconnect
+				continue;
+			}
+			if (!inFlight.add(batch.records[i])) {
+				batch.settle(i, MqttServiceConstants.BATCH_MESSAGE_FAILED,
+						new MqttException(MqttException.REASON_CODE_MAX_INFLIGHT));
+				continue;
+			}
+			if (!batch.isPending(i)) {
+				inFlight.fail(batch.records[i]);
+				continue;
+			}
+			try {
+				myClient.publish(topics[i], messages[i], Integer.valueOf(i),
+						batch);
+			} catch (Exception e) {
+				batch.settle(i, MqttServiceConstants.BATCH_MESSAGE_FAILED, e);
+			}
+		}
+	}
+
 	/**
 	 * Subscribe to a topic
 	 * 
@@ -618,13 +879,13 @@ class MqttConnection implements MqttCallbackExtended {
 	 *            arbitrary identifier to be passed back to the Activity
 	 */
 	public void subscribe(final String topic, final int qos,
-			String invocationContext, String activityToken) {
+			String invocationContext, int activityToken) {
 		service.traceDebug(TAG, "subscribe({" + topic + "}," + qos + ",{"
 				+ invocationContext + "}, {" + activityToken + "}");
 		final Bundle resultBundle = new Bundle();
 		resultBundle.putString(MqttServiceConstants.CALLBACK_ACTION,
 				MqttServiceConstants.SUBSCRIBE_ACTION);
-		resultBundle.putString(MqttServiceConstants.CALLBACK_ACTIVITY_TOKEN,
+		resultBundle.putInt(MqttServiceConstants.CALLBACK_ACTIVITY_TOKEN,
 				activityToken);
 		resultBundle.putString(
 				MqttServiceConstants.CALLBACK_INVOCATION_CONTEXT,
@@ -659,13 +920,13 @@ class MqttConnection implements MqttCallbackExtended {
 	 *            arbitrary identifier to be passed back to the Activity
 	 */
 	public void subscribe(final String[] topic, final int[] qos,
-			String invocationContext, String activityToken) {
+			String invocationContext, int activityToken) {
 		service.traceDebug(TAG, "subscribe({" + Arrays.toString(topic) + "}," + Arrays.toString(qos) + ",{"
 				+ invocationContext + "}, {" + activityToken + "}");
 		final Bundle resultBundle = new Bundle();
 		resultBundle.putString(MqttServiceConstants.CALLBACK_ACTION,
 				MqttServiceConstants.SUBSCRIBE_ACTION);
-		resultBundle.putString(MqttServiceConstants.CALLBACK_ACTIVITY_TOKEN,
+		resultBundle.putInt(MqttServiceConstants.CALLBACK_ACTIVITY_TOKEN,
 				activityToken);
 		resultBundle.putString(
 				MqttServiceConstants.CALLBACK_INVOCATION_CONTEXT,
@@ -687,23 +948,55 @@ class MqttConnection implements MqttCallbackExtended {
 		}
 	}
 
-	public void subscribe(String[] topicFilters, int[] qos, String invocationContext, String activityToken, IMqttMessageListener[] messageListeners) {
-		service.traceDebug(TAG, "subscribe({" + Arrays.toString(topicFilters) + "}," + Arrays.toString(qos) + ",{"
-				+ invocationContext + "}, {" + activityToken + "}");
+	/**
+	 * Subscribe to one or more topics, routing the messages which arrive on
+	 * each to a listener in the client
+	 * 
+	 * @param topicFilters
+	 *            a list of possibly wildcarded topic names
+	 * @param qos
+	 *            requested quality of service for each topic
+	 * @param invocationContext
+	 *            arbitrary data to be passed back to the application
+	 * @param activityToken
+	 *            arbitrary identifier to be passed back to the Activity
+	 * @param listenerIds
+	 *            identifies, to the client, the listener for each topic
+	 */
+	public void subscribe(String[] topicFilters, int[] qos,
+			String invocationContext, int activityToken, int[] listenerIds) {
+		service.traceDebug(TAG, "subscribe({" + Arrays.toString(topicFilters)
+				+ "}," + Arrays.toString(qos) + ",{" + invocationContext
+				+ "}, {" + activityToken + "}, " + Arrays.toString(listenerIds)
+				+ ")");
 		final Bundle resultBundle = new Bundle();
-		resultBundle.putString(MqttServiceConstants.CALLBACK_ACTION, MqttServiceConstants.SUBSCRIBE_ACTION);
-		resultBundle.putString(MqttServiceConstants.CALLBACK_ACTIVITY_TOKEN, activityToken);
-		resultBundle.putString(MqttServiceConstants.CALLBACK_INVOCATION_CONTEXT, invocationContext);
-		if((myClient != null) && (myClient.isConnected())){
-			IMqttActionListener listener = new MqttConnectionListener(resultBundle);
+		resultBundle.putString(MqttServiceConstants.CALLBACK_ACTION,
+				MqttServiceConstants.SUBSCRIBE_ACTION);
+		resultBundle.putInt(MqttServiceConstants.CALLBACK_ACTIVITY_TOKEN,
+				activityToken);
+		resultBundle.putString(
+				MqttServiceConstants.CALLBACK_INVOCATION_CONTEXT,
+				invocationContext);
+		if ((myClient != null) && (myClient.isConnected())) {
+			IMqttActionListener listener = new MqttConnectionListener(
+					resultBundle);
 			try {
-
-				myClient.subscribe(topicFilters, qos,messageListeners);
-			} catch (Exception e){
+				// route before subscribing, as retained messages may arrive
+				// before the subscribe has completed
+				for (int i = 0; i < topicFilters.length; i++) {
+					subscriptions.add(topicFilters[i], listenerIds[i]);
+				}
+				myClient.subscribe(topicFilters, qos, invocationContext,
+						listener);
+			} catch (Exception e) {
+				for (String topicFilter : topicFilters) {
+					subscriptions.remove(topicFilter);
+				}
 				handleException(resultBundle, e);
 			}
 		} else {
-			resultBundle.putString(MqttServiceConstants.CALLBACK_ERROR_MESSAGE, NOT_CONNECTED);
+			resultBundle.putString(MqttServiceConstants.CALLBACK_ERROR_MESSAGE,
+					NOT_CONNECTED);
 			service.traceError("subscribe", NOT_CONNECTED);
 			service.callbackToActivity(clientHandle, Status.ERROR, resultBundle);
 		}
@@ -720,13 +1013,13 @@ class MqttConnection implements MqttCallbackExtended {
          *            arbitrary identifier to be passed back to the Activity
          */
 	void unsubscribe(final String topic, String invocationContext,
-			String activityToken) {
+			int activityToken) {
 		service.traceDebug(TAG, "unsubscribe({" + topic + "},{"
 				+ invocationContext + "}, {" + activityToken + "})");
 		final Bundle resultBundle = new Bundle();
 		resultBundle.putString(MqttServiceConstants.CALLBACK_ACTION,
 				MqttServiceConstants.UNSUBSCRIBE_ACTION);
-		resultBundle.putString(MqttServiceConstants.CALLBACK_ACTIVITY_TOKEN,
+		resultBundle.putInt(MqttServiceConstants.CALLBACK_ACTIVITY_TOKEN,
 				activityToken);
 		resultBundle.putString(
 				MqttServiceConstants.CALLBACK_INVOCATION_CONTEXT,
@@ -735,6 +1028,7 @@ class MqttConnection implements MqttCallbackExtended {
 			IMqttActionListener listener = new MqttConnectionListener(
 					resultBundle);
 			try {
+				subscriptions.remove(topic);
 				myClient.unsubscribe(topic, invocationContext, listener);
 			} catch (Exception e) {
 				handleException(resultBundle, e);
@@ -759,13 +1053,13 @@ class MqttConnection implements MqttCallbackExtended {
 	 *            arbitrary identifier to be passed back to the Activity
 	 */
 	void unsubscribe(final String[] topic, String invocationContext,
-			String activityToken) {
+			int activityToken) {
 		service.traceDebug(TAG, "unsubscribe({" + Arrays.toString(topic) + "},{"
 				+ invocationContext + "}, {" + activityToken + "})");
 		final Bundle resultBundle = new Bundle();
 		resultBundle.putString(MqttServiceConstants.CALLBACK_ACTION,
 				MqttServiceConstants.UNSUBSCRIBE_ACTION);
-		resultBundle.putString(MqttServiceConstants.CALLBACK_ACTIVITY_TOKEN,
+		resultBundle.putInt(MqttServiceConstants.CALLBACK_ACTIVITY_TOKEN,
 				activityToken);
 		resultBundle.putString(
 				MqttServiceConstants.CALLBACK_INVOCATION_CONTEXT,
@@ -774,6 +1068,9 @@ class MqttConnection implements MqttCallbackExtended {
 			IMqttActionListener listener = new MqttConnectionListener(
 					resultBundle);
 			try {
+				for (String topicFilter : topic) {
+					subscriptions.remove(topicFilter);
+				}
 				myClient.unsubscribe(topic, invocationContext, listener);
 			} catch (Exception e) {
 				handleException(resultBundle, e);
@@ -807,6 +1104,10 @@ class MqttConnection implements MqttCallbackExtended {
 	public void connectionLost(Throwable why) {
 		service.traceDebug(TAG, "connectionLost(" + why.getMessage() + ")");
 		disconnected = true;
+		if (cleanSession) {
+			// the session's messages will not be delivered now
+			reclaimInFlight();
+		}
 		try {
 			if(!this.connectOptions.isAutomaticReconnect()) {
 				myClient.disconnect(null, new IMqttActionListener() {
@@ -861,21 +1162,52 @@ class MqttConnection implements MqttCallbackExtended {
 	@Override
 	public void deliveryComplete(IMqttDeliveryToken messageToken) {
 
-		service.traceDebug(TAG, "deliveryComplete(" + messageToken + ")");
+		if (service.isTraceEnabled()) {
+			service.traceDebug(TAG, "deliveryComplete(" + messageToken + ")");
+		}
 
-		MqttMessage message = savedSentMessages.remove(messageToken);
-		if (message != null) { // If I don't know about the message, it's
-			// irrelevant
-			String topic = savedTopics.remove(messageToken);
-			String activityToken = savedActivityTokens.remove(messageToken);
-			String invocationContext = savedInvocationContexts
-					.remove(messageToken);
+		// a QoS 1 or 2 publish went out and its acknowledgement came in, so
+		// the connection needs no ping for a keep-alive interval
+		try {
+			MqttMessage delivered = messageToken.getMessage();
+			if (delivered != null && delivered.getQos() > 0) {
+				noteKeepAliveActivity();
+			}
+		} catch (MqttException e) {
+			// no message, so nothing to go on
+		}
 
+		IMqttActionListener publishListener = messageToken.getActionCallback();
+		if (publishListener instanceof BufferedPublish) {
+			((BufferedPublish) publishListener).delivered();
+			return;
+		}
+		// the client's own limit on messages in flight has room again, which
+		// a drain may have stopped for
+		scheduleDrain();
+		if (publishListener instanceof BatchPublish) {
+			((BatchPublish) publishListener).settle(messageToken,
+					MqttServiceConstants.BATCH_MESSAGE_DELIVERED, null);
+			return;
+		}
+		if (publishListener instanceof PublishListener
+				&& inFlight.complete(((PublishListener) publishListener).record)) {
+			// If I don't know about the message, it's irrelevant
+			InFlightTable.Record record = ((PublishListener) publishListener).record;
+			String topic = record.topic;
+			MqttMessage message = record.message;
+			int activityToken = record.activityToken;
+			String invocationContext = record.invocationContext;
+
+			if (service.callbackRegistry.messageDelivered(clientHandle,
+					activityToken)) {
+				return;
+			}
 			Bundle resultBundle = messageToBundle(null, topic, message);
-			if (activityToken != null) {
+			if (activityToken != MqttServiceConstants.NO_ACTIVITY_TOKEN) {
 				resultBundle.putString(MqttServiceConstants.CALLBACK_ACTION,
 						MqttServiceConstants.SEND_ACTION);
-				resultBundle.putString(
+				resultBundle.putInt(
 						MqttServiceConstants.CALLBACK_ACTIVITY_TOKEN,
 						activityToken);
 				resultBundle.putString(
@@ -890,7 +1222,6 @@ class MqttConnection implements MqttCallbackExtended {
 			service.callbackToActivity(clientHandle, Status.OK, resultBundle);
 		}
 
-		// this notification will have kept the connection alive but send the previously sechudled ping anyway
 	}
 
 	/**
@@ -904,141 +1235,1037 @@ class MqttConnection implements MqttCallbackExtended {
 	@Override
 	public void messageArrived(String topic, MqttMessage message)
 			throws Exception {
+		myCallback.messageArrived(topic, message);
+	}
+
+	/**
+	 * Callback when a message is received, by one of the connection's clients
+	 * 
+	 * @param receiver
+	 *            the callback of the client the message arrived on, which
+	 *            acknowledges it
+	 * @param topic
+	 *            the topic on which the message was received
+	 * @param message
+	 *            the message itself
+	 */
+	private void messageArrived(ClientCallback receiver, String topic,
+			MqttMessage message) throws Exception {
 
-		service.traceDebug(TAG,
-				"messageArrived(" + topic + ",{" + message.toString() + "})");
+		if (service.isTraceEnabled()) {
+			service.traceDebug(TAG, "messageArrived(" + topic + ",{"
+					+ message.toString() + "})");
+		}
 
-		String messageId = service.messageStore.storeArrived(clientHandle,
-				topic, message);
-	
-		Bundle resultBundle = messageToBundle(messageId, topic, message);
-		resultBundle.putString(MqttServiceConstants.CALLBACK_ACTION,
-				MqttServiceConstants.MESSAGE_ARRIVED_ACTION);
-		resultBundle.putString(MqttServiceConstants.CALLBACK_MESSAGE_ID,
-				messageId);
-		service.callbackToActivity(clientHandle, Status.OK, resultBundle);
-				
-	}
+		if (message.getQos() > 0) {
+			// it came in, and its acknowledgement goes out
+			noteKeepAliveActivity();
+		}
+
+		DuplicateSuppression dedupe = duplicateSuppression;
+		long fingerprint = 0;
+		if (dedupe != null && dedupe.covers(message)) {
+			fingerprint = dedupe.fingerprint(topic, message);
+			if (dedupe.isDuplicate(fingerprint, message)) {
+				// already taken care of, so acknowledged and nothing more
+				receiver.acknowledge(message);
+				return;
+			}
+		} else {
+			dedupe = null;
+		}
+
+		LastValueCache cache = lastValueCache;
+		if (cache != null) {
+			cache.put(topic, message);
+		}
+
+		if (aggregator.add(topic, message.getPayload())) {
+			// passed on in the window's summary
+			remember(dedupe, fingerprint);
+			receiver.acknowledge(message);
+			return;
+		}
 
+		if (!deliveryFilter.accept(topic, message, System.nanoTime() / 1000000)) {
+			// not wanted, so neither stored nor passed on
+			remember(dedupe, fingerprint);
+			receiver.acknowledge(message);
+			return;
+		}
 
+		MessageStore store = arrivedStorePolicy.inMemory(message.getQos(),
+				cleanSession) ? service.memoryMessageStore
+				: service.messageStore;
+		store.storeArrived(clientHandle, topic, message,
+				new ArrivalStoreListener(receiver, topic, message, dedupe,
+						fingerprint));
+	}
 
 	/**
-	 * Store details of sent messages so we can handle "deliveryComplete"
-	 * callbacks from the mqttClient
+	 * Remember the fingerprint of a message about to be acknowledged, so that
+	 * if the server sends it again it is dropped
 	 * 
-	 * @param topic
-	 * @param msg
-	 * @param messageToken
-	 * @param invocationContext
-	 * @param activityToken
+	 * @param dedupe
+	 *            the duplicate suppression in force when the message arrived,
+	 *            or null if there was none or it did not cover the message
+	 * @param fingerprint
+	 *            the message's fingerprint
 	 */
-	private void storeSendDetails(final String topic, final MqttMessage msg,
-			final IMqttDeliveryToken messageToken,
-			final String invocationContext, final String activityToken) {
-		savedTopics.put(messageToken, topic);
-		savedSentMessages.put(messageToken, msg);
-		savedActivityTokens.put(messageToken, activityToken);
-		savedInvocationContexts.put(messageToken, invocationContext);
+	private static void remember(DuplicateSuppression dedupe, long fingerprint) {
+		if (dedupe != null) {
+			dedupe.index.add(fingerprint, System.nanoTime() / 1000000);
+		}
 	}
 
 	/**
-	 * Acquires a partial wake lock for this client
+	 * Pass arrived messages to the Activity in batches, rather than one at a
+	 * time
+	 * 
+	 * @param maxMessages
+	 *            the largest number of messages in a batch - 1 or less passes
+	 *            each message as it arrives
+	 * @param maxDelayMillis
+	 *            the longest time a message may wait for the rest of its batch
 	 */
-	private void acquireWakeLock() {
-		if (wakelock == null) {
-			PowerManager pm = (PowerManager) service
-					.getSystemService(Service.POWER_SERVICE);
-			wakelock = pm.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK,
-					wakeLockTag);
+	void setArrivalBatching(int maxMessages, long maxDelayMillis) {
+		GroupCommitQueue<StoredMessage> oldBatcher = arrivalBatcher;
+		if (maxMessages > 1) {
+			arrivalBatcher = new GroupCommitQueue<>(TAG + ".arrivalBatch",
+					new ArrivalBatchDelivery(), maxMessages, maxDelayMillis);
+		} else {
+			arrivalBatcher = null;
+		}
+		if (oldBatcher != null) {
+			// hand over whatever was waiting
+			oldBatcher.close();
 		}
-		wakelock.acquire();
-
 	}
 
 	/**
-	 * Releases the currently held wake lock for this client
+	 * Passes each batch of arrived messages to the Activity - directly, if it
+	 * has registered with the service's callbackRegistry, and as a single
+	 * broadcast if not
 	 */
-	private void releaseWakeLock() {
-		if(wakelock != null && wakelock.isHeld()){
-			wakelock.release();
+	private class ArrivalBatchDelivery implements
+			GroupCommitQueue.Committer<StoredMessage> {
+
+		@Override
+		public void commit(List<StoredMessage> batch) {
+			if (service.callbackRegistry.messagesArrived(clientHandle, batch)) {
+				return;
+			}
+			int size = batch.size();
+			String[] messageIds = new String[size];
+			String[] topics = new String[size];
+			Parcelable[] messages = new Parcelable[size];
+			for (int i = 0; i < size; i++) {
+				StoredMessage arrived = batch.get(i);
+				messageIds[i] = arrived.getMessageId();
+				topics[i] = arrived.getTopic();
+				messages[i] = new ParcelableMqttMessage(arrived.getMessage());
+			}
+			Bundle resultBundle = new Bundle();
+			resultBundle.putString(MqttServiceConstants.CALLBACK_ACTION,
+					MqttServiceConstants.MESSAGES_ARRIVED_ACTION);
+			resultBundle.putStringArray(
+					MqttServiceConstants.CALLBACK_MESSAGE_IDS, messageIds);
+			resultBundle.putStringArray(
+					MqttServiceConstants.CALLBACK_DESTINATION_NAMES, topics);
+			resultBundle.putParcelableArray(
+					MqttServiceConstants.CALLBACK_MESSAGE_PARCELS, messages);
+			service.callbackToActivity(clientHandle, Status.OK, resultBundle);
 		}
-	}
 
+		@Override
+		public void onCommitted(List<StoredMessage> batch) {
+			// nothing more to do
+		}
 
+		@Override
+		public void onCommitFailed(List<StoredMessage> batch, Exception e) {
+			// the messages are still in the messageStore, and will be passed
+			// on again with the backlog
+			service.traceException(TAG, "messageArrived: could not pass on "
+					+ batch.size() + " messages", e);
+		}
+	}
 
 	/**
-	 * General-purpose IMqttActionListener for the Client context
-	 * <p>
-	 * Simply handles the basic success/failure cases for operations which don't
-	 * return results
+	 * Choose which arrived messages are kept only in memory until the
+	 * application has received them
 	 * 
+	 * @param policy
+	 *            which messages to keep in memory
 	 */
-	private class MqttConnectionListener implements IMqttActionListener {
+	void setArrivedMessageStorePolicy(ArrivedMessageStorePolicy policy) {
+		arrivedStorePolicy = policy;
+	}
 
-		private final Bundle resultBundle;
+	/**
+	 * Discard any arrived messages the application has not yet received
+	 */
+	private void clearArrivedMessages() {
+		service.messageStore.clearArrivedMessages(clientHandle);
+		service.memoryMessageStore.clearArrivedMessages(clientHandle);
+	}
 
-		private MqttConnectionListener(Bundle resultBundle) {
-			this.resultBundle = resultBundle;
+	/**
+	 * Passes an arrived message on to the Activity, and acknowledges it to the
+	 * server on the client it arrived on, once the messageStore has made it
+	 * durable
+	 */
+	private class ArrivalStoreListener implements MessageStore.StoreListener {
+
+		private final ClientCallback receiver;
+		private final String topic;
+		private final MqttMessage message;
+		private final DuplicateSuppression dedupe;
+		private final long fingerprint;
+
+		ArrivalStoreListener(ClientCallback receiver, String topic,
+				MqttMessage message, DuplicateSuppression dedupe,
+				long fingerprint) {
+			this.receiver = receiver;
+			this.topic = topic;
+			this.message = message;
+			this.dedupe = dedupe;
+			this.fingerprint = fingerprint;
 		}
 
 		@Override
-		public void onSuccess(IMqttToken asyncActionToken) {
-			service.callbackToActivity(clientHandle, Status.OK, resultBundle);
+		public void onStored(String messageId) {
+			messageArrivedToActivity(messageId, topic, message);
+			// only now, as until it is stored a copy sent again is wanted
+			remember(dedupe, fingerprint);
+			receiver.acknowledge(message);
 		}
 
 		@Override
-		public void onFailure(IMqttToken asyncActionToken, Throwable exception) {
-			resultBundle.putString(MqttServiceConstants.CALLBACK_ERROR_MESSAGE,
-					exception.getLocalizedMessage());
+		public void onStoreFailure(Exception e) {
+			// not acknowledged, so the server will send it again
+			service.traceException(TAG, "messageArrived: could not store",
+					e);
+			receiver.abandon(message);
+		}
+	}
 
-			resultBundle.putSerializable(
-					MqttServiceConstants.CALLBACK_EXCEPTION, exception);
 
+
+	/**
+	 * Store details of a message about to be sent, so we can handle the
+	 * "deliveryComplete" callback from the mqttClient, or report that too many
+	 * messages are in flight already
+	 * 
+	 * @param topic
+	 * @param msg
+	 * @param invocationContext
+	 * @param activityToken
+	 * @param resultBundle
+	 *            the bundle of the send operation
+	 * @param reserved
+	 *            true if the message already has a place in the window
+	 * @return the listener to publish the message with, or null if the message
+	 *         must not be published
+	 */
+	private PublishListener trackPublish(String topic, MqttMessage msg,
+			String invocationContext, int activityToken, Bundle resultBundle,
+			boolean reserved) {
+		InFlightTable.Record record = new InFlightTable.Record(topic, msg,
+				invocationContext, activityToken);
+		if (reserved) {
+			inFlight.addReserved(record);
+		}
+		else if (!inFlight.add(record)) {
+			resultBundle.putString(MqttServiceConstants.CALLBACK_ERROR_MESSAGE,
+					TOO_MANY_IN_FLIGHT);
+			service.traceError(MqttServiceConstants.SEND_ACTION,
+					TOO_MANY_IN_FLIGHT);
 			service.callbackToActivity(clientHandle, Status.ERROR, resultBundle);
+			return null;
 		}
+		return new PublishListener(resultBundle, record);
 	}
 
 	/**
-	 * Receive notification that we are offline<br>
-	 * if cleanSession is true, we need to regard this as a disconnection
+	 * Set the in-flight window: the largest number of messages published but
+	 * not yet delivered
+	 * 
+	 * @param maxInFlight
+	 *            the size of the window
 	 */
-	void offline() {
-		
-		if (!disconnected && !cleanSession) {
+	void setInFlightWindow(int maxInFlight) {
+		inFlight.setCapacity(maxInFlight);
+	}
+
+	/**
+	 * @return a snapshot of the messages sent but not yet delivered
+	 */
+	InFlightStats getInFlightStats() {
+		return inFlight.getStats();
+	}
+
+	/**
+	 * Forget the messages still in flight, whose deliveries will not be
+	 * reported now, and fail any batch they belong to
+	 */
+	private void reclaimInFlight() {
+		inFlight.clear();
+		OfflinePublishBuffer buffer = offlineBuffer;
+		if (buffer != null) {
+			// sent again once connected
+			buffer.resetSending();
+		}
+		drainInFlight.set(0);
+		for (BatchPublish batch : outstandingBatches) {
+			batch.failAll(new MqttException(
+					MqttException.REASON_CODE_CONNECTION_LOST));
+		}
+	}
+
+	/**
+	 * Keep the last message to arrive on each topic, in a cache of the given
+	 * size
+	 * 
+	 * @param maxBytes
+	 *            the size of the cache, or 0 for none
+	 */
+	synchronized void setLastValueCacheSize(long maxBytes) {
+		if (maxBytes <= 0) {
+			lastValueCache = null;
+		} else if (lastValueCache == null) {
+			lastValueCache = new LastValueCache(maxBytes);
+		} else {
+			lastValueCache.setMaxBytes(maxBytes);
+		}
+	}
+
+	/**
+	 * Traffic both ways has kept the connection alive, so push its next ping
+	 * back. Traffic one way only does not, as the client pings when either
+	 * way has been idle for the keep-alive interval.
+	 */
+	private void noteKeepAliveActivity() {
+		AlarmPingSender sender = alarmPingSender;
+		if (sender != null) {
+			sender.activity();
+		}
+	}
+
+	/**
+	 * Ping at the keep-alive interval learned for the network, rather than
+	 * the one given in the connect options, which becomes the longest
+	 * 
+	 * @param minimumMillis
+	 *            the shortest interval to ping at, or 0 to ping at the
+	 *            keep-alive interval
+	 */
+	void setAdaptiveKeepAlive(long minimumMillis) {
+		adaptiveKeepAliveMinimum = minimumMillis;
+		AlarmPingSender sender = alarmPingSender;
+		if (sender != null) {
+			sender.setAdaptiveMinimum(minimumMillis);
+		}
+	}
+
+	/**
+	 * Drop the copies of messages the server sends again
+	 * 
+	 * @param options
+	 *            how messages are fingerprinted and for how long, or null to
+	 *            stop dropping them. Setting different options forgets the
+	 *            fingerprints held; setting the same ones, as each connect
+	 *            does, keeps them.
+	 */
+	synchronized void setDuplicateSuppression(
+			DuplicateSuppressionOptions options) {
+		DuplicateSuppression dedupe = duplicateSuppression;
+		if (options == null) {
+			duplicateSuppression = null;
+		} else if (dedupe == null || !dedupe.isSetUpBy(options)) {
+			duplicateSuppression = new DuplicateSuppression(options);
+		}
+	}
+
+	/**
+	 * @return a snapshot of the duplicate suppression's counters, or null if
+	 *         there is none
+	 */
+	DuplicateSuppressionStats getDuplicateSuppressionStats() {
+		DuplicateSuppression dedupe = duplicateSuppression;
+		return dedupe == null ? null : dedupe.index.getStats();
+	}
+
+	/**
+	 * The duplicate suppression options, read once, and the fingerprints held
+	 */
+	private static final class DuplicateSuppression {
+		final boolean duplicateFlagRequired;
+		final int keyOffset;
+		final int keyLength;
+		final DuplicateIndex index;
+
+		final int maxEntries;
+		final long windowMillis;
+
+		DuplicateSuppression(DuplicateSuppressionOptions options) {
+			duplicateFlagRequired = options.isDuplicateFlagRequired();
+			keyOffset = options.getKeyOffset();
+			keyLength = options.getKeyLength();
+			maxEntries = options.getMaxEntries();
+			windowMillis = options.getWindowMillis();
+			index = new DuplicateIndex(maxEntries, windowMillis,
+					System.nanoTime() / 1000000);
+		}
+
+		boolean isSetUpBy(DuplicateSuppressionOptions options) {
+			return duplicateFlagRequired == options.isDuplicateFlagRequired()
+					&& keyOffset == options.getKeyOffset()
+					&& keyLength == options.getKeyLength()
+					&& maxEntries == options.getMaxEntries()
+					&& windowMillis == options.getWindowMillis();
+		}
+
+		/**
+		 * @return true if the message's fingerprint is looked for and kept -
+		 *         only QoS 1 and 2 messages can be sent again, unless any
+		 *         repeat is to be dropped
+		 */
+		boolean covers(MqttMessage message) {
+			return !duplicateFlagRequired || message.getQos() > 0;
+		}
+
+		long fingerprint(String topic, MqttMessage message) {
+			return DuplicateIndex.fingerprint(topic, message.getPayload(),
+					keyOffset, keyLength);
+		}
+
+		boolean isDuplicate(long fingerprint, MqttMessage message) {
+			return (!duplicateFlagRequired || message.isDuplicate())
+					&& index.contains(fingerprint, System.nanoTime() / 1000000);
+		}
+	}
+
+	/**
+	 * Pass on the messages arriving on a topic filter as a summary of each
+	 * topic, once a window, rather than one at a time
+	 * 
+	 * @param topicFilter
+	 *            the topic filter, which may contain wildcards
+	 * @param options
+	 *            the window and format, or null to pass on each message again
+	 */
+	synchronized void setAggregation(final String topicFilter,
+			AggregationOptions options) {
+		ScheduledFuture<?> tick = aggregationTicks.remove(topicFilter);
+		if (tick != null) {
+			tick.cancel(false);
+		}
+		aggregator.setAggregation(topicFilter, options,
+				System.currentTimeMillis());
+		if (options == null) {
+			if (aggregationTicks.isEmpty() && aggregationScheduler != null) {
+				aggregationScheduler.shutdown();
+				aggregationScheduler = null;
+			}
+			return;
+		}
+		if (aggregationScheduler == null) {
+			aggregationScheduler = Executors
+					.newSingleThreadScheduledExecutor(new ThreadFactory() {
+						@Override
+						public Thread newThread(Runnable r) {
+							Thread thread = new Thread(r, TAG + ".aggregate");
+							thread.setDaemon(true);
+							return thread;
+						}
+					});
+		}
+		long window = options.getWindowMillis();
+		aggregationTicks.put(topicFilter,
+				aggregationScheduler.scheduleAtFixedRate(new Runnable() {
+					@Override
+					public void run() {
+						closeAggregationWindows(topicFilter);
+					}
+				}, window, window, TimeUnit.MILLISECONDS));
+	}
+
+	/**
+	 * Stop every aggregation, dropping the windows still open
+	 */
+	private synchronized void stopAggregations() {
+		for (String topicFilter : new ArrayList<>(aggregationTicks.keySet())) {
+			setAggregation(topicFilter, null);
+		}
+	}
+
+	/**
+	 * Pass the summaries of a topic filter's window to the Activity, and open
+	 * the next window
+	 */
+	private void closeAggregationWindows(String topicFilter) {
+		for (AggregateSummary summary : aggregator.closeWindows(topicFilter,
+				System.currentTimeMillis())) {
+			Bundle resultBundle = summary.toBundle();
+			resultBundle.putString(MqttServiceConstants.CALLBACK_ACTION,
+					MqttServiceConstants.AGGREGATE_ACTION);
+			service.callbackToActivity(clientHandle, Status.OK, resultBundle);
+		}
+	}
+
+	/**
+	 * Decide which of the messages arriving on a topic filter are passed on
+	 * 
+	 * @param topicFilter
+	 *            the topic filter, which may contain wildcards
+	 * @param policy
+	 *            the policy, or null to pass on every message
+	 */
+	void setDeliveryPolicy(String topicFilter, DeliveryPolicy policy) {
+		deliveryFilter.setPolicy(topicFilter, policy);
+	}
+
+	/**
+	 * @param topicFilter
+	 *            a topic filter, exactly as its policy was set
+	 * @return a snapshot of the policy's counters, or null if there is none
+	 */
+	DeliveryPolicyStats getDeliveryPolicyStats(String topicFilter) {
+		return deliveryFilter.getStats(topicFilter);
+	}
+
+	/**
+	 * @param topic
+	 *            a topic, without wildcards
+	 * @return the last message to arrive on the topic, or null if it is not
+	 *         cached
+	 */
+	MqttMessage getLastValue(String topic) {
+		LastValueCache cache = lastValueCache;
+		return cache == null ? null : cache.get(topic);
+	}
+
+	/**
+	 * @param topicFilter
+	 *            a topic filter, which may contain wildcards
+	 * @return the last message to arrive on each cached topic which matches
+	 *         the filter, by topic
+	 */
+	Map<String, MqttMessage> getLastValues(String topicFilter) {
+		LastValueCache cache = lastValueCache;
+		if (cache == null) {
+			return Collections.emptyMap();
+		}
+		return cache.query(topicFilter);
+	}
+
+	/**
+	 * Set up, change or close the offline buffer
+	 * 
+	 * @param options
+	 *            the bounds of the buffer, or null to close it. Messages held
+	 *            by a closed buffer stay in its files, to be sent once it is
+	 *            opened again.
+	 */
+	synchronized void setOfflineBufferOptions(OfflineBufferOptions options) {
+		if (options == null || !options.isBufferEnabled()) {
+			OfflinePublishBuffer buffer = offlineBuffer;
+			offlineBuffer = null;
+			if (buffer != null) {
+				drainExecutor.shutdown();
+				drainExecutor = null;
+				buffer.close();
+			}
+			return;
+		}
+		if (offlineBuffer == null) {
+			try {
+				File directory = new File(service.getDir(
+						OFFLINE_BUFFER_DIRECTORY, Context.MODE_PRIVATE),
+						URLEncoder.encode(clientHandle, "UTF-8"));
+				OfflinePublishBuffer buffer = new OfflinePublishBuffer(service,
+						directory, OfflinePublishBuffer.DEFAULT_SEGMENT_BYTES);
+				buffer.setLimits(options.getMaxMessages(),
+						options.getMaxBytes(), options.getEvictionPolicy());
+				buffer.setConflatedTopics(options.getConflatedTopics());
+				drainExecutor = Executors
+						.newSingleThreadExecutor(new ThreadFactory() {
+							@Override
+							public Thread newThread(Runnable r) {
+								Thread thread = new Thread(r, TAG + ".drain");
+								thread.setDaemon(true);
+								return thread;
+							}
+						});
+				offlineBuffer = buffer;
+			} catch (IOException e) {
+				service.traceException(TAG, "cannot open the offline buffer",
+						e);
+				return;
+			}
+		} else {
+			offlineBuffer.setConflatedTopics(options.getConflatedTopics());
+			offlineBuffer.setLimits(options.getMaxMessages(),
+					options.getMaxBytes(), options.getEvictionPolicy());
+		}
+		scheduleDrain();
+	}
+
+	/**
+	 * @return a snapshot of the offline buffer, or null if there is none
+	 */
+	OfflineBufferStats getOfflineBufferStats() {
+		OfflinePublishBuffer buffer = offlineBuffer;
+		return buffer == null ? null : buffer.getStats();
+	}
+
+	/**
+	 * Put a message published while not connected into the offline buffer,
+	 * and tell the Activity whether it was taken. A message the client would
+	 * refuse to publish is refused now, as once buffered it would be refused
+	 * only when it is drained.
+	 */
+	private void bufferOffline(OfflinePublishBuffer buffer, String topic,
+			MqttMessage message, Bundle resultBundle) {
+		try {
+			MqttTopic.validate(topic, false);
+		} catch (IllegalArgumentException e) {
+			service.traceException(TAG, "bufferOffline", e);
+			handleException(resultBundle, e);
+			return;
+		}
+		try {
+			if (buffer.add(topic, message)) {
+				resultBundle.putBoolean(MqttServiceConstants.CALLBACK_BUFFERED,
+						true);
+				service.callbackToActivity(clientHandle, Status.OK,
+						resultBundle);
+				scheduleDrain();
+				return;
+			}
+			resultBundle.putString(MqttServiceConstants.CALLBACK_ERROR_MESSAGE,
+					OFFLINE_BUFFER_FULL);
+			service.traceError(MqttServiceConstants.SEND_ACTION,
+					OFFLINE_BUFFER_FULL);
+			service.callbackToActivity(clientHandle, Status.ERROR, resultBundle);
+		} catch (IOException e) {
+			service.traceException(TAG, "bufferOffline", e);
+			handleException(resultBundle, e);
+		}
+	}
+
+	/**
+	 * Drain the offline buffer on the drain thread, if we are connected and
+	 * it is not draining already
+	 */
+	private void scheduleDrain() {
+		OfflinePublishBuffer buffer = offlineBuffer;
+		ExecutorService executor = drainExecutor;
+		if (buffer == null || executor == null || !isConnected()
+				|| !buffer.hasUnsent()
+				|| !drainScheduled.compareAndSet(false, true)) {
+			return;
+		}
+		try {
+			executor.execute(drainTask);
+		} catch (RejectedExecutionException e) {
+			// the buffer has just been closed
+			drainScheduled.set(false);
+		}
+	}
+
+	/**
+	 * Send buffered messages, oldest first, for as long as the in-flight
+	 * window and the client's own limit on messages in flight have room. As
+	 * each is delivered it leaves the buffer and the drain is scheduled
+	 * again, as it is when the window opens or any other publish is delivered
+	 * or fails, so the buffer is streamed to the server at the pace the
+	 * server takes it.
+	 */
+	private void drainOfflineBuffer() {
+		OfflinePublishBuffer buffer = offlineBuffer;
+		int maxInflight = connectOptions == null ? MqttConnectOptions.MAX_INFLIGHT_DEFAULT
+				: connectOptions.getMaxInflight();
+		while (buffer != null && isConnected()
+				&& drainInFlight.get() < maxInflight) {
+			if (!inFlight.reserve()) {
+				// the window listener drains again once there is room
+				return;
+			}
+			OfflinePublishBuffer.Message next = buffer.next();
+			if (next == null) {
+				inFlight.cancelReservation();
+				return;
+			}
+			InFlightTable.Record record = new InFlightTable.Record(next.topic,
+					next.message, null, MqttServiceConstants.NO_ACTIVITY_TOKEN);
+			inFlight.addReserved(record);
+			BufferedPublish listener = new BufferedPublish(buffer, next.id,
+					record);
+			drainInFlight.incrementAndGet();
+			try {
+				myClient.publish(next.topic, next.message, null, listener);
+			} catch (IllegalArgumentException e) {
+				// it would be refused every time, so it must not hold up the
+				// messages behind it
+				service.traceException(TAG, "buffered message " + next.id
+						+ " refused", e);
+				listener.refused();
+			} catch (Exception e) {
+				// most likely the client's own limit, shared with messages
+				// published directly - the next delivery, or failure, of any
+				// of them drains again
+				listener.failed();
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Acquires a partial wake lock for this client
+	 */
+	private void acquireWakeLock() {
+		if (wakelock == null) {
+			PowerManager pm = (PowerManager) service
+					.getSystemService(Service.POWER_SERVICE);
+			wakelock = pm.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK,
+					wakeLockTag);
+		}
+		wakelock.acquire();
+
+	}
+
+	/**
+	 * Releases the currently held wake lock for this client
+	 */
+	private void releaseWakeLock() {
+		if(wakelock != null && wakelock.isHeld()){
+			wakelock.release();
+		}
+	}
+
+
+
+	/**
+	 * General-purpose IMqttActionListener for the Client context
+	 * <p>
+	 * Simply handles the basic success/failure cases for operations which don't
+	 * return results
+	 * 
+	 */
+	private class MqttConnectionListener implements IMqttActionListener {
+
+		private final Bundle resultBundle;
+
+		private MqttConnectionListener(Bundle resultBundle) {
+			this.resultBundle = resultBundle;
+		}
+
+		@Override
+		public void onSuccess(IMqttToken asyncActionToken) {
+			service.callbackToActivity(clientHandle, Status.OK, resultBundle);
+		}
+
+		@Override
+		public void onFailure(IMqttToken asyncActionToken, Throwable exception) {
+			resultBundle.putString(MqttServiceConstants.CALLBACK_ERROR_MESSAGE,
+					exception.getLocalizedMessage());
+
+			resultBundle.putSerializable(
+					MqttServiceConstants.CALLBACK_EXCEPTION, exception);
+
+			service.callbackToActivity(clientHandle, Status.ERROR, resultBundle);
+		}
+	}
+
+	/**
+	 * Listener for a publish, which carries the message's in-flight record, so
+	 * that the record can be found from the delivery token, and released if
+	 * the publish fails
+	 */
+	private class PublishListener extends MqttConnectionListener {
+
+		private final InFlightTable.Record record;
+
+		private PublishListener(Bundle resultBundle, InFlightTable.Record record) {
+			super(resultBundle);
+			this.record = record;
+		}
+
+		@Override
+		public void onFailure(IMqttToken asyncActionToken, Throwable exception) {
+			inFlight.fail(record);
+			super.onFailure(asyncActionToken, exception);
+			scheduleDrain();
+		}
+	}
+
+	/**
+	 * A batch of messages published together, which is also the listener for
+	 * each of their publishes. Each publish's user context is its message's
+	 * index in the batch. The Activity is told once, when the last message is
+	 * settled.
+	 */
+	private class BatchPublish implements IMqttActionListener {
+
+		private final InFlightTable.Record[] records;
+		private final String invocationContext;
+		private final int activityToken;
+
+		private final AtomicIntegerArray statuses;
+		private final String[] errors;
+		private final AtomicInteger pending;
+		private volatile Throwable firstFailure = null;
+
+		private BatchPublish(String[] topics, MqttMessage[] messages,
+				String invocationContext, int activityToken) {
+			this.invocationContext = invocationContext;
+			this.activityToken = activityToken;
+			records = new InFlightTable.Record[messages.length];
+			for (int i = 0; i < messages.length; i++) {
+				records[i] = new InFlightTable.Record(topics[i], messages[i],
+						invocationContext, activityToken);
+			}
+			statuses = new AtomicIntegerArray(messages.length);
+			errors = new String[messages.length];
+			pending = new AtomicInteger(messages.length);
+		}
+
+		private boolean isPending(int index) {
+			return statuses.get(index) == MqttServiceConstants.BATCH_MESSAGE_PENDING;
+		}
+
+		private void settle(IMqttToken token, int status, Throwable why) {
+			Object index = token.getUserContext();
+			if (index instanceof Integer) {
+				settle((Integer) index, status, why);
+			}
+		}
+
+		/**
+		 * Record a message's outcome, if it has none yet, and report the batch
+		 * if it was the last
+		 */
+		private void settle(int index, int status, Throwable why) {
+			if (!statuses.compareAndSet(index,
+					MqttServiceConstants.BATCH_MESSAGE_PENDING, status)) {
+				return;
+			}
+			if (status == MqttServiceConstants.BATCH_MESSAGE_DELIVERED) {
+				inFlight.complete(records[index]);
+			}
+			else {
+				inFlight.fail(records[index]);
+				errors[index] = why == null ? null : why.getMessage();
+				if (firstFailure == null) {
+					firstFailure = why;
+				}
+			}
+			if (pending.decrementAndGet() == 0) {
+				report();
+			}
+		}
+
+		private void failAll(Throwable why) {
+			for (int i = 0; i < records.length; i++) {
+				settle(i, MqttServiceConstants.BATCH_MESSAGE_FAILED, why);
+			}
+		}
+
+		private void report() {
+			outstandingBatches.remove(this);
+			int[] outcome = new int[records.length];
+			for (int i = 0; i < outcome.length; i++) {
+				outcome[i] = statuses.get(i);
+			}
+			Bundle resultBundle = new Bundle();
+			resultBundle.putString(MqttServiceConstants.CALLBACK_ACTION,
+					MqttServiceConstants.PUBLISH_BATCH_ACTION);
+			resultBundle.putInt(MqttServiceConstants.CALLBACK_ACTIVITY_TOKEN,
+					activityToken);
+			resultBundle.putString(
+					MqttServiceConstants.CALLBACK_INVOCATION_CONTEXT,
+					invocationContext);
+			resultBundle.putIntArray(
+					MqttServiceConstants.CALLBACK_BATCH_STATUSES, outcome);
+			resultBundle.putStringArray(
+					MqttServiceConstants.CALLBACK_BATCH_ERRORS, errors);
+			Throwable failure = firstFailure;
+			if (failure == null) {
+				service.callbackToActivity(clientHandle, Status.OK,
+						resultBundle);
+				return;
+			}
+			resultBundle.putString(MqttServiceConstants.CALLBACK_ERROR_MESSAGE,
+					failure.getLocalizedMessage());
+			resultBundle.putSerializable(
+					MqttServiceConstants.CALLBACK_EXCEPTION, failure);
+			service.callbackToActivity(clientHandle, Status.ERROR, resultBundle);
+		}
+
+		@Override
+		public void onSuccess(IMqttToken asyncActionToken) {
+			// deliveryComplete has normally settled the message already
+			settle(asyncActionToken, MqttServiceConstants.BATCH_MESSAGE_DELIVERED,
+					null);
+		}
+
+		@Override
+		public void onFailure(IMqttToken asyncActionToken, Throwable exception) {
+			settle(asyncActionToken, MqttServiceConstants.BATCH_MESSAGE_FAILED,
+					exception);
+			scheduleDrain();
+		}
+	}
+
+	/**
+	 * Listener for the publish of a message from the offline buffer, which
+	 * removes it from the buffer once it is delivered, or returns it to be
+	 * sent again if it fails
+	 */
+	private class BufferedPublish implements IMqttActionListener {
+
+		private final OfflinePublishBuffer buffer;
+		private final long id;
+		private final InFlightTable.Record record;
+		private final AtomicBoolean settled = new AtomicBoolean();
+
+		private BufferedPublish(OfflinePublishBuffer buffer, long id,
+				InFlightTable.Record record) {
+			this.buffer = buffer;
+			this.id = id;
+			this.record = record;
+		}
+
+		private void delivered() {
+			if (settled.compareAndSet(false, true)) {
+				inFlight.complete(record);
+				drainInFlight.decrementAndGet();
+			}
+			buffer.remove(id);
+			scheduleDrain();
+		}
+
+		private void failed() {
+			if (settled.compareAndSet(false, true)) {
+				inFlight.fail(record);
+				drainInFlight.decrementAndGet();
+				buffer.unsend(id);
+			}
+		}
+
+		private void refused() {
+			if (settled.compareAndSet(false, true)) {
+				inFlight.fail(record);
+				drainInFlight.decrementAndGet();
+				buffer.discard(id);
+			}
+		}
+
+		@Override
+		public void onSuccess(IMqttToken asyncActionToken) {
+			// the delivery is reported by deliveryComplete
+		}
+
+		@Override
+		public void onFailure(IMqttToken asyncActionToken, Throwable exception) {
+			service.traceError(TAG, "buffered message " + id + " not sent: "
+					+ exception.getMessage());
+			failed();
+			scheduleDrain();
+		}
+	}
+
+	/**
+	 * Listener for a disconnect, which forgets the messages still in flight
+	 * once the disconnect is done, as their deliveries will not be reported
+	 */
+	private class DisconnectListener extends MqttConnectionListener {
+
+		private DisconnectListener(Bundle resultBundle) {
+			super(resultBundle);
+		}
+
+		@Override
+		public void onSuccess(IMqttToken asyncActionToken) {
+			reclaimInFlight();
+			super.onSuccess(asyncActionToken);
+		}
+
+		@Override
+		public void onFailure(IMqttToken asyncActionToken, Throwable exception) {
+			reclaimInFlight();
+			super.onFailure(asyncActionToken, exception);
+		}
+	}
+
+	/**
+	 * Receive notification that we are offline<br>
+	 * if cleanSession is true, we need to regard this as a disconnection
+	 */
+	void offline() {
+		
+		if (!disconnected && !cleanSession) {
 			Exception e = new Exception("Android offline");
 			connectionLost(e);
 		}
 	}
 	
+	/**
+	 * @return whether {@link #reconnect()} could ever start an attempt - not
+	 *         once the connection has been closed, nor for a connection that
+	 *         is connected, or that has a clean session and no automatic
+	 *         reconnect
+	 */
+	synchronized boolean canReconnect() {
+		if (myClient == null || connectOptions == null
+				|| myClient.isConnected()) {
+			return false;
+		}
+		return connectOptions.isAutomaticReconnect()
+				|| (disconnected && !cleanSession);
+	}
+
+	/**
+	 * @return whether a connect is in progress, whose outcome is still to be
+	 *         reported
+	 */
+	boolean isConnecting() {
+		return isConnecting;
+	}
+
 	/**
 	* Reconnect<br>
 	* Only appropriate if cleanSession is false and we were connected.
 	* Declare as synchronized to avoid multiple calls to this method to send connect 
 	* multiple times 
+	*
+	* @return whether an attempt to reconnect was started
 	*/
-	synchronized void reconnect() {
+	synchronized boolean reconnect() {
 
 		if (myClient == null) {
 			service.traceError(TAG,"Reconnect myClient = null. Will not do reconnect");
-			return;
+			return false;
 		}
 
 		if (isConnecting) {
 			service.traceDebug(TAG, "The client is connecting. Reconnect return directly.");
-			return ;
+			return false;
 		}
 		
 		if(!service.isOnline()){
 			service.traceDebug(TAG,
 					"The network is not reachable. Will not do reconnect");
-			return;
+			return false;
 		}
 
 		if(connectOptions.isAutomaticReconnect()){
 			//The Automatic reconnect functionality is enabled here
 			Log.i(TAG, "Requesting Automatic reconnect using New Java AC");
 			final Bundle resultBundle = new Bundle();
-			resultBundle.putString(
+			resultBundle.putInt(
 					MqttServiceConstants.CALLBACK_ACTIVITY_TOKEN,
 					reconnectActivityToken);
 			resultBundle.putString(
@@ -1047,6 +2274,7 @@ class MqttConnection implements MqttCallbackExtended {
 					MqttServiceConstants.CONNECT_ACTION);
 			try {
 				myClient.reconnect();
+				return true;
 			} catch (MqttException ex){
 				Log.e(TAG, "Exception occurred attempting to reconnect: " + ex.getMessage());
 				setConnectingState(false);
@@ -1056,7 +2284,7 @@ class MqttConnection implements MqttCallbackExtended {
 			// use the activityToke the same with action connect
 			service.traceDebug(TAG,"Do Real Reconnect!");
 			final Bundle resultBundle = new Bundle();
-			resultBundle.putString(
+			resultBundle.putInt(
 				MqttServiceConstants.CALLBACK_ACTIVITY_TOKEN,
 				reconnectActivityToken);
 			resultBundle.putString(
@@ -1088,12 +2316,13 @@ class MqttConnection implements MqttCallbackExtended {
 								resultBundle);
 
 						doAfterConnectFail(resultBundle);
-						
+						service.getReconnectCoordinator().failed(clientHandle);
 					}
 				};
 				
 				myClient.connect(connectOptions, null, listener);
 				setConnectingState(true);
+				return true;
 			} catch (MqttException e) {
 				service.traceError(TAG, "Cannot reconnect to remote server." + e.getMessage());
 				setConnectingState(false);
@@ -1111,8 +2340,228 @@ class MqttConnection implements MqttCallbackExtended {
 				handleException(resultBundle, newEx);
 			}
 		}
+		return false;
 	}
-	
+
+	/**
+	 * <p>
+	 * Move the connection to the network that has just become the default,
+	 * while the one it is on is still up: connect a new client, over the new
+	 * network, and only once the server has accepted it close the old one.
+	 * The server hands the session to the new client, so messages carry on
+	 * after no more than a handshake's gap.
+	 * </p>
+	 * <p>
+	 * This is done only for a connected client with a persistent session and
+	 * no messages in flight either way - the new client takes over the
+	 * session, but not the old client's delivery tokens, nor its packet ids
+	 * for the acknowledgements of arrived messages. Otherwise the connection stays where
+	 * it is until the old network goes, and reconnects then.
+	 * </p>
+	 */
+	synchronized void handover() {
+		final MqttAsyncClient old = myClient;
+		if (old == null || disconnected || handingOver) {
+			return;
+		}
+		if (isConnecting || cleanSession || !old.isConnected()
+				|| old.getPendingDeliveryTokens().length > 0
+				|| myCallback.hasUnacknowledged()) {
+			service.traceDebug(TAG, "Not handing over " + clientId);
+			onOldNetwork = true;
+			return;
+		}
+		service.traceDebug(TAG, "Handing over " + clientId);
+
+		final AlarmPingSender sender = new AlarmPingSender(service);
+		sender.setAdaptiveMinimum(adaptiveKeepAliveMinimum);
+		final MqttAsyncClient next;
+		final ClientCallback nextCallback;
+		try {
+			next = new MqttAsyncClient(serverURI, clientId, sharedPersistence,
+					sender);
+			nextCallback = new ClientCallback(next);
+			next.setCallback(nextCallback);
+			next.setManualAcks(true);
+			if (bufferOpts != null) {
+				next.setBufferOpts(bufferOpts);
+			}
+		} catch (MqttException e) {
+			service.traceError(TAG, "Cannot hand over: " + e.getMessage());
+			return;
+		}
+		// the old client carries on delivering until the new one takes over,
+		// but once the server drops it, that is no loss - see ClientCallback
+		handingOver = true;
+
+		try {
+			next.connect(connectOptions, null, new IMqttActionListener() {
+
+				@Override
+				public void onSuccess(IMqttToken asyncActionToken) {
+					synchronized (MqttConnection.this) {
+						myClient = next;
+						myCallback = nextCallback;
+						alarmPingSender = sender;
+						handingOver = false;
+						onOldNetwork = false;
+					}
+					service.traceDebug(TAG, "Handed over " + clientId);
+					retire(old);
+					scheduleDrain();
+				}
+
+				@Override
+				public void onFailure(IMqttToken asyncActionToken,
+						Throwable exception) {
+					service.traceError(TAG, "Handover failed: "
+							+ exception.getMessage());
+					handingOver = false;
+					onOldNetwork = true;
+					try {
+						next.close();
+					} catch (MqttException e) {
+						// ignore it - the old client carries on
+					}
+					if (!old.isConnected()) {
+						// the old network went while we tried
+						connectionLost(exception);
+					}
+				}
+			});
+		} catch (MqttException e) {
+			service.traceError(TAG, "Cannot hand over: " + e.getMessage());
+			handingOver = false;
+			try {
+				next.close();
+			} catch (MqttException e1) {
+				// ignore it - the old client carries on
+			}
+		}
+	}
+
+	/**
+	 * The network the connection was handed over from has gone: if the
+	 * connection stayed on it, it is lost, so connect again
+	 */
+	void oldNetworkLost() {
+		if (onOldNetwork && !handingOver) {
+			onOldNetwork = false;
+			if (!disconnected) {
+				connectionLost(new Exception("Android network lost"));
+			}
+			service.getReconnectCoordinator().request(clientHandle);
+		}
+	}
+
+	/**
+	 * Close a client that has been handed over from, away from the callback
+	 * thread, as it may take a moment to give up on the old network
+	 */
+	private void retire(final MqttAsyncClient old) {
+		Thread retirement = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					if (old.isConnected()) {
+						old.disconnectForcibly(0, 500);
+					}
+				} catch (MqttException e) {
+					// ignore it - the server has dropped it anyway
+				}
+				try {
+					old.close();
+				} catch (MqttException e) {
+					// ignore it - we've done our best
+				}
+			}
+		}, "MqttConnection.handover");
+		retirement.setDaemon(true);
+		retirement.start();
+	}
+
+	/**
+	 * The callback of one of the connection's clients. It passes on what the
+	 * client delivers, and acknowledges each message that arrived on it on
+	 * that client - whichever is the connection's client by then, as the
+	 * acknowledgement carries that client's packet id. The client's loss is
+	 * passed on only if it is still the connection's client once any
+	 * handover is over.
+	 */
+	private class ClientCallback implements MqttCallbackExtended {
+		private final MqttAsyncClient client;
+		// messages arrived at QoS 1 or 2 and not yet acknowledged
+		private final AtomicInteger unacknowledged = new AtomicInteger();
+
+		ClientCallback(MqttAsyncClient client) {
+			this.client = client;
+		}
+
+		/**
+		 * Tell the server we have taken responsibility for an arrived message
+		 * 
+		 * @param message
+		 *            the message, as passed to messageArrived
+		 */
+		void acknowledge(MqttMessage message) {
+			abandon(message);
+			try {
+				client.messageArrivedComplete(message.getId(),
+						message.getQos());
+			} catch (MqttException e) {
+				service.traceException(TAG, "messageArrivedComplete", e);
+			}
+		}
+
+		/**
+		 * An arrived message will not be acknowledged - the server sends it
+		 * again
+		 */
+		void abandon(MqttMessage message) {
+			if (message.getQos() > 0) {
+				unacknowledged.decrementAndGet();
+			}
+		}
+
+		boolean hasUnacknowledged() {
+			return unacknowledged.get() > 0;
+		}
+
+		@Override
+		public void connectionLost(Throwable cause) {
+			if (!handingOver && myClient == client) {
+				MqttConnection.this.connectionLost(cause);
+			}
+		}
+
+		@Override
+		public void messageArrived(String topic, MqttMessage message)
+				throws Exception {
+			if (message.getQos() > 0) {
+				unacknowledged.incrementAndGet();
+			}
+			try {
+				MqttConnection.this.messageArrived(this, topic, message);
+			} catch (Exception e) {
+				// the client drops the connection, and it is sent again
+				abandon(message);
+				throw e;
+			}
+		}
+
+		@Override
+		public void deliveryComplete(IMqttDeliveryToken token) {
+			MqttConnection.this.deliveryComplete(token);
+		}
+
+		@Override
+		public void connectComplete(boolean reconnect, String serverURI) {
+			if (myClient == client) {
+				MqttConnection.this.connectComplete(reconnect, serverURI);
+			}
+		}
+	}
+
 	/**
 	 * 
 	 * @param isConnecting
@@ -1130,15 +2579,52 @@ class MqttConnection implements MqttCallbackExtended {
 		myClient.setBufferOpts(bufferOpts);
 	}
 
+	/**
+	 * @return the number of messages in the offline buffer, if there is one,
+	 *         and otherwise in the client's buffer
+	 */
 	public int getBufferedMessageCount(){
+		OfflinePublishBuffer buffer = offlineBuffer;
+		if (buffer != null) {
+			return buffer.size();
+		}
 		return myClient.getBufferedMessageCount();
 	}
 
+	/**
+	 * @param bufferIndex
+	 *            the position of a message in the offline buffer, if there is
+	 *            one, and otherwise in the client's buffer
+	 * @return the message
+	 */
 	public MqttMessage getBufferedMessage(int bufferIndex){
+		OfflinePublishBuffer buffer = offlineBuffer;
+		if (buffer != null) {
+			try {
+				return buffer.get(bufferIndex);
+			} catch (IOException e) {
+				service.traceException(TAG, "getBufferedMessage", e);
+				return null;
+			}
+		}
 		return myClient.getBufferedMessage(bufferIndex);
 	}
 
+	/**
+	 * @param bufferIndex
+	 *            the position of a message in the offline buffer, if there is
+	 *            one, and otherwise in the client's buffer
+	 */
 	public void deleteBufferedMessage(int bufferIndex){
+		OfflinePublishBuffer buffer = offlineBuffer;
+		if (buffer != null) {
+			try {
+				buffer.delete(bufferIndex);
+			} catch (IOException e) {
+				service.traceException(TAG, "deleteBufferedMessage", e);
+			}
+			return;
+		}
 		myClient.deleteBufferedMessage(bufferIndex);
 	}
 }
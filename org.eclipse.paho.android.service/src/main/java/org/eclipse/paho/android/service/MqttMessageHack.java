@@ -0,0 +1,31 @@
+/*******************************************************************************
+ * Copyright (c) 1999, 2014 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution. 
+ *
+ * The Eclipse Public License is available at 
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at 
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ */
+package org.eclipse.paho.android.service;
+
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+
+/**
+ * A way to get at the "setDuplicate" method of MqttMessage, for message
+ * stores rebuilding the messages they hold
+ */
+class MqttMessageHack extends MqttMessage {
+
+	public MqttMessageHack(byte[] payload) {
+		super(payload);
+	}
+
+	@Override
+	protected void setDuplicate(boolean dup) {
+		super.setDuplicate(dup);
+	}
+}
@@ -0,0 +1,30 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ */
+package org.eclipse.paho.android.service;
+
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+
+/**
+ * Told when a client which refused an
+ * {@link MqttAndroidClient#offer(String, MqttMessage)}, because its in-flight
+ * window was full, has room for more messages. Set with
+ * {@link MqttAndroidClient#setPublishReadyCallback(MqttPublishReadyCallback)}.
+ */
+public interface MqttPublishReadyCallback {
+
+	/**
+	 * The in-flight window has drained to half full, so offers will be taken
+	 * again
+	 */
+	void readyToPublish();
+}
@@ -15,12 +15,14 @@
  */
 package org.eclipse.paho.android.service;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
 
 import org.eclipse.paho.client.mqttv3.DisconnectedBufferOptions;
 import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
-import org.eclipse.paho.client.mqttv3.IMqttMessageListener;
 import org.eclipse.paho.client.mqttv3.MqttClientPersistence;
 import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
 import org.eclipse.paho.client.mqttv3.MqttException;
@@ -108,7 +110,7 @@ import android.support.v4.content.LocalBroadcastManager;
  * <td align="left" valign="top">
  * {@link MqttServiceConstants#CALLBACK_ACTIVITY_TOKEN
  * MqttServiceConstants.CALLBACK_ACTIVITY_TOKEN}</td>
- * <td align="left" valign="top">String</td>
+ * <td align="left" valign="top">int</td>
  * <td align="left" valign="top">the activityToken passed into the operation</td>
  * <td align="left" valign="top">All operations</td>
  * </tr>
@@ -238,9 +240,24 @@ public class MqttService extends Service implements MqttTraceHandler {
 	// that they've reached the application
 	MessageStore messageStore;
 
-	// An intent receiver to deal with changes in network connectivity
+	// somewhere to hold received messages which need not survive a restart,
+	// as chosen by each connection's ArrivedMessageStorePolicy
+	MessageStore memoryMessageStore;
+
+	// clients in this process which take their callbacks directly
+	final CallbackRegistry callbackRegistry = new CallbackRegistry();
+
+	// what creates the messageStore
+	private static volatile MessageStoreFactory messageStoreFactory = MessageStoreFactory
+			.database();
+
+	// An intent receiver to deal with changes in network connectivity, below
+	// Lollipop
 	private NetworkConnectionIntentReceiver networkConnectionMonitor;
 
+	// a network callback to deal with them, on Lollipop and above
+	private NetworkMonitor networkMonitor;
+
   //a receiver to recognise when the user changes the "background data" preference
   // and a flag to track that preference
   // Only really relevant below android version ICE_CREAM_SANDWICH - see
@@ -251,6 +268,12 @@ public class MqttService extends Service implements MqttTraceHandler {
   // a way to pass ourself back to the activity
   private MqttServiceBinder mqttServiceBinder;
 
+  // the one alarm that sends every connection's keep-alive pings
+  private KeepAliveAlarm keepAliveAlarm;
+
+  // reconnects the connections, backing off
+  private ReconnectCoordinator reconnectCoordinator;
+
 	// mapping from client handle strings to actual client connections.
 	private Map<String/* clientHandle */, MqttConnection/* client */> connections = new ConcurrentHashMap<>();
 
@@ -273,6 +296,13 @@ public class MqttService extends Service implements MqttTraceHandler {
       Bundle dataBundle) {
     // Don't call traceDebug, as it will try to callbackToActivity leading
     // to recursion.
+    if (clientHandle != null && callbackRegistry.isRegistered(clientHandle)) {
+      Bundle data = dataBundle != null ? dataBundle : new Bundle();
+      data.putSerializable(MqttServiceConstants.CALLBACK_STATUS, status);
+      if (callbackRegistry.callback(clientHandle, data)) {
+        return;
+      }
+    }
     Intent callbackIntent = new Intent(
         MqttServiceConstants.CALLBACK_TO_ACTIVITY);
     if (clientHandle != null) {
@@ -286,6 +316,30 @@ public class MqttService extends Service implements MqttTraceHandler {
     LocalBroadcastManager.getInstance(this).sendBroadcast(callbackIntent);
   }
 
+  /**
+   * Pass a client's callbacks directly to a listener in this process, rather
+   * than broadcasting them
+   *
+   * @param clientHandle identifier for the client
+   * @param listener receives the callbacks
+   * @param executor the listener is called on this, one callback at a time
+   */
+  void registerCallbackListener(String clientHandle,
+      CallbackRegistry.Listener listener, Executor executor) {
+    callbackRegistry.register(clientHandle, listener, executor);
+  }
+
+  /**
+   * Go back to broadcasting a client's callbacks
+   *
+   * @param clientHandle identifier for the client
+   * @param listener the listener passed to registerCallbackListener
+   */
+  void unregisterCallbackListener(String clientHandle,
+      CallbackRegistry.Listener listener) {
+    callbackRegistry.unregister(clientHandle, listener);
+  }
+
   // The major API implementation follows :-
 
   /**
@@ -323,7 +377,7 @@ public class MqttService extends Service implements MqttTraceHandler {
    * @throws MqttException thrown for all other MqttExceptions
    */
   public void connect(String clientHandle, MqttConnectOptions connectOptions,
-      String invocationContext, String activityToken)
+      String invocationContext, int activityToken)
       throws MqttSecurityException, MqttException {
 	  	MqttConnection client = getConnection(clientHandle);
 	  	client.connect(connectOptions, null, activityToken);
@@ -331,7 +385,8 @@ public class MqttService extends Service implements MqttTraceHandler {
   }
 
   /**
-   * Request all clients to reconnect if appropriate
+   * Request all clients to reconnect if appropriate - each after a random
+   * delay, and only a few at a time, see {@link ReconnectCoordinator}
    */
   void reconnect() {
 	traceDebug(TAG, "Reconnect to server, client size=" + connections.size());
@@ -339,7 +394,7 @@ public class MqttService extends Service implements MqttTraceHandler {
 			traceDebug("Reconnect Client:",
 					client.getClientId() + '/' + client.getServerURI());
 		if(this.isOnline()){
-			client.reconnect();
+			reconnectCoordinator.request(client.getClientHandle());
 		}
 	}
   }
@@ -352,6 +407,7 @@ public class MqttService extends Service implements MqttTraceHandler {
    */
   public void close(String clientHandle) {
     MqttConnection client = getConnection(clientHandle);
+    reconnectCoordinator.cancel(clientHandle);
     client.close();
   }
 
@@ -366,8 +422,9 @@ public class MqttService extends Service implements MqttTraceHandler {
    *            arbitrary identifier to be passed back to the Activity
    */
   public void disconnect(String clientHandle, String invocationContext,
-      String activityToken) {
+      int activityToken) {
     MqttConnection client = getConnection(clientHandle);
+    reconnectCoordinator.cancel(clientHandle);
     client.disconnect(invocationContext, activityToken);
     connections.remove(clientHandle);
 
@@ -391,8 +448,9 @@ public class MqttService extends Service implements MqttTraceHandler {
    *            arbitrary identifier to be passed back to the Activity
    */
   public void disconnect(String clientHandle, long quiesceTimeout,
-      String invocationContext, String activityToken) {
+      String invocationContext, int activityToken) {
     MqttConnection client = getConnection(clientHandle);
+    reconnectCoordinator.cancel(clientHandle);
     client.disconnect(quiesceTimeout, invocationContext, activityToken);
     connections.remove(clientHandle);
 
@@ -437,7 +495,7 @@ public class MqttService extends Service implements MqttTraceHandler {
    */
   public IMqttDeliveryToken publish(String clientHandle, String topic,
       byte[] payload, int qos, boolean retained,
-      String invocationContext, String activityToken)
+      String invocationContext, int activityToken)
       throws MqttPersistenceException, MqttException {
     MqttConnection client = getConnection(clientHandle);
     return client.publish(topic, payload, qos, retained, invocationContext,
@@ -462,12 +520,83 @@ public class MqttService extends Service implements MqttTraceHandler {
    * @return token for tracking the operation
    */
   public IMqttDeliveryToken publish(String clientHandle, String topic,
-      MqttMessage message, String invocationContext, String activityToken)
+      MqttMessage message, String invocationContext, int activityToken)
       throws MqttPersistenceException, MqttException {
     MqttConnection client = getConnection(clientHandle);
     return client.publish(topic, message, invocationContext, activityToken);
   }
 
+  /**
+   * Reserve a place in a client's in-flight window for a message, without
+   * waiting. If there is no room, the Activity is told when there is, with a
+   * {@link MqttServiceConstants#PUBLISH_READY_ACTION} callback.
+   *
+   * @param clientHandle
+   *            identifies the MqttConnection to use
+   * @return true if there was room, and the message is to be published with
+   *         {@link #publishReserved(String, String, MqttMessage, String, int)}
+   */
+  public boolean reservePublish(String clientHandle) {
+    return getConnection(clientHandle).reservePublish();
+  }
+
+  /**
+   * Publish a message to a topic, in a place reserved in the in-flight
+   * window by {@link #reservePublish(String)}
+   *
+   * @param clientHandle
+   *            identifies the MqttConnection to use
+   * @param topic
+   *            the topic to which to publish
+   * @param message
+   *            the message to publish
+   * @param invocationContext
+   *            arbitrary data to be passed back to the application
+   * @param activityToken
+   *            arbitrary identifier to be passed back to the Activity
+   * @return token for tracking the operation
+   */
+  public IMqttDeliveryToken publishReserved(String clientHandle, String topic,
+      MqttMessage message, String invocationContext, int activityToken) {
+    MqttConnection client = getConnection(clientHandle);
+    return client.publishReserved(topic, message, invocationContext,
+        activityToken);
+  }
+
+  /**
+   * Set a client's in-flight window: the largest number of messages
+   * published but not yet delivered
+   *
+   * @param clientHandle
+   *            identifies the MqttConnection to use
+   * @param maxInFlight
+   *            the size of the window
+   */
+  public void setInFlightWindow(String clientHandle, int maxInFlight) {
+    getConnection(clientHandle).setInFlightWindow(maxInFlight);
+  }
+
+  /**
+   * Publish a batch of messages, each to its own topic. The Activity is told
+   * once, when every message has been delivered or has failed.
+   *
+   * @param clientHandle
+   *            identifies the MqttConnection to use
+   * @param topics
+   *            the topic to which to publish each message
+   * @param messages
+   *            the messages to publish
+   * @param invocationContext
+   *            arbitrary data to be passed back to the application
+   * @param activityToken
+   *            arbitrary identifier to be passed back to the Activity
+   */
+  public void publishBatch(String clientHandle, String[] topics,
+      MqttMessage[] messages, String invocationContext, int activityToken) {
+    MqttConnection client = getConnection(clientHandle);
+    client.publishBatch(topics, messages, invocationContext, activityToken);
+  }
+
   /**
    * Subscribe to a topic
    *
@@ -483,7 +612,7 @@ public class MqttService extends Service implements MqttTraceHandler {
    *            arbitrary identifier to be passed back to the Activity
    */
   public void subscribe(String clientHandle, String topic, int qos,
-      String invocationContext, String activityToken) {
+      String invocationContext, int activityToken) {
     MqttConnection client = getConnection(clientHandle);
     client.subscribe(topic, qos, invocationContext, activityToken);
   }
@@ -503,13 +632,14 @@ public class MqttService extends Service implements MqttTraceHandler {
    *            arbitrary identifier to be passed back to the Activity
    */
   public void subscribe(String clientHandle, String[] topic, int[] qos,
-      String invocationContext, String activityToken) {
+      String invocationContext, int activityToken) {
     MqttConnection client = getConnection(clientHandle);
     client.subscribe(topic, qos, invocationContext, activityToken);
   }
 
   /**
-   * Subscribe using topic filters
+   * Subscribe using topic filters, routing the messages which arrive on each
+   * to a listener in the client
    *
    * @param clientHandle
    *            identifies the MqttConnection to use
@@ -521,11 +651,14 @@ public class MqttService extends Service implements MqttTraceHandler {
    *            arbitrary data to be passed back to the application
    * @param activityToken
    *            arbitrary identifier to be passed back to the Activity
-   * @param messageListeners a callback to handle incoming messages
+   * @param listenerIds
+   *            identifies, to the client, the listener for each topic filter
    */
-  public void subscribe(String clientHandle, String[] topicFilters, int[] qos, String invocationContext, String activityToken, IMqttMessageListener[] messageListeners){
+  public void subscribe(String clientHandle, String[] topicFilters, int[] qos,
+      String invocationContext, int activityToken, int[] listenerIds) {
     MqttConnection client = getConnection(clientHandle);
-    client.subscribe(topicFilters, qos, invocationContext, activityToken, messageListeners);
+    client.subscribe(topicFilters, qos, invocationContext, activityToken,
+        listenerIds);
   }
 
   /**
@@ -541,7 +674,7 @@ public class MqttService extends Service implements MqttTraceHandler {
    *            arbitrary identifier to be passed back to the Activity
    */
   public void unsubscribe(String clientHandle, final String topic,
-      String invocationContext, String activityToken) {
+      String invocationContext, int activityToken) {
     MqttConnection client = getConnection(clientHandle);
     client.unsubscribe(topic, invocationContext, activityToken);
   }
@@ -559,7 +692,7 @@ public class MqttService extends Service implements MqttTraceHandler {
    *            arbitrary identifier to be passed back to the Activity
    */
   public void unsubscribe(String clientHandle, final String[] topic,
-      String invocationContext, String activityToken) {
+      String invocationContext, int activityToken) {
     MqttConnection client = getConnection(clientHandle);
     client.unsubscribe(topic, invocationContext, activityToken);
   }
@@ -590,6 +723,15 @@ public class MqttService extends Service implements MqttTraceHandler {
     return client;
   }
 
+  /**
+   * @param clientHandle identifies the MqttConnection
+   * @return the MqttConnection identified by this handle, or null if there is
+   *         none
+   */
+  MqttConnection findConnection(String clientHandle) {
+    return connections.get(clientHandle);
+  }
+
   /**
    * Called by the Activity when a message has been passed back to the
    * application
@@ -599,7 +741,9 @@ public class MqttService extends Service implements MqttTraceHandler {
    * @return {@link Status}
    */
   public Status acknowledgeMessageArrival(String clientHandle, String id) {
-    if (messageStore.discardArrived(clientHandle, id)) {
+    MessageStore store = MemoryMessageStore.isMemoryId(id) ? memoryMessageStore
+        : messageStore;
+    if (store.discardArrived(clientHandle, id)) {
       return Status.OK;
     }
     else {
@@ -607,6 +751,91 @@ public class MqttService extends Service implements MqttTraceHandler {
     }
   }
 
+  /**
+   * Called by the Activity when a batch of messages has been passed back to
+   * the application - each message store discards its share of the batch
+   * together
+   *
+   * @param clientHandle identifier for the client which received the messages
+   * @param ids identifiers for the MQTT messages
+   * @return the number of messages acknowledged
+   */
+  public int acknowledgeMessageArrivals(String clientHandle, List<String> ids) {
+    List<String> durableIds = new ArrayList<>(ids.size());
+    List<String> memoryIds = new ArrayList<>();
+    for (String id : ids) {
+      if (MemoryMessageStore.isMemoryId(id)) {
+        memoryIds.add(id);
+      }
+      else {
+        durableIds.add(id);
+      }
+    }
+    int acknowledged = 0;
+    if (!durableIds.isEmpty()) {
+      acknowledged += messageStore.discardArrived(clientHandle, durableIds);
+    }
+    if (!memoryIds.isEmpty()) {
+      acknowledged += memoryMessageStore.discardArrived(clientHandle,
+          memoryIds);
+    }
+    return acknowledged;
+  }
+
+  /**
+   * Get the number of arrived messages the service is holding for a client,
+   * because the application has not yet acknowledged them
+   *
+   * @param clientHandle identifier for the client - if null, the total for all
+   *            clients is returned
+   * @return the number of unacknowledged messages in the message store
+   */
+  public int getArrivedMessageCount(String clientHandle) {
+    return messageStore.getArrivedMessageCount(clientHandle)
+        + memoryMessageStore.getArrivedMessageCount(clientHandle);
+  }
+
+  /**
+   * Get the state of a client's messages which have been published but not
+   * yet delivered
+   *
+   * @param clientHandle identifier for the client
+   * @return a snapshot of the client's in-flight counters
+   */
+  public InFlightStats getInFlightStats(String clientHandle) {
+    return getConnection(clientHandle).getInFlightStats();
+  }
+
+  /**
+   * Pass a client's arrived messages to the Activity in batches, rather than
+   * one at a time
+   *
+   * @param clientHandle identifier for the client
+   * @param maxMessages the largest number of messages in a batch - 1 or less
+   *            passes each message as it arrives
+   * @param maxDelayMillis the longest time a message may wait for the rest
+   *            of its batch
+   */
+  public void setArrivalBatching(String clientHandle, int maxMessages,
+      long maxDelayMillis) {
+    MqttConnection client = getConnection(clientHandle);
+    client.setArrivalBatching(maxMessages, maxDelayMillis);
+  }
+
+  /**
+   * Choose which of a client's arrived messages are kept only in memory until
+   * the application has received them, rather than being written to the
+   * message store
+   *
+   * @param clientHandle identifier for the client
+   * @param policy which messages to keep in memory
+   */
+  public void setArrivedMessageStorePolicy(String clientHandle,
+      ArrivedMessageStorePolicy policy) {
+    MqttConnection client = getConnection(clientHandle);
+    client.setArrivedMessageStorePolicy(policy);
+  }
+
   // Extend Service
 
   /**
@@ -622,7 +851,12 @@ public class MqttService extends Service implements MqttTraceHandler {
 
     // create somewhere to buffer received messages until
     // we know that they have been passed to the application
-    messageStore = new DatabaseMessageStore(this, this);
+    messageStore = messageStoreFactory.createMessageStore(this);
+    memoryMessageStore = new MemoryMessageStore(this,
+        MemoryMessageStore.DEFAULT_CAPACITY);
+
+    keepAliveAlarm = new KeepAliveAlarm(this);
+    reconnectCoordinator = new ReconnectCoordinator(this);
 	}
 
 
@@ -634,7 +868,7 @@ public class MqttService extends Service implements MqttTraceHandler {
 	public void onDestroy() {
 		// disconnect immediately
 		for (MqttConnection client : connections.values()) {
-			client.disconnect(null, null);
+			client.disconnect(null, MqttServiceConstants.NO_ACTIVITY_TOKEN);
 		}
 
     // clear down
@@ -644,8 +878,14 @@ public class MqttService extends Service implements MqttTraceHandler {
 
 		unregisterBroadcastReceivers();
 
+		if (this.reconnectCoordinator != null)
+			this.reconnectCoordinator.close();
+		if (this.keepAliveAlarm != null)
+			this.keepAliveAlarm.close();
 		if (this.messageStore !=null )
 			this.messageStore.close();
+		if (this.memoryMessageStore != null)
+			this.memoryMessageStore.close();
 
 		super.onDestroy();
 	}
@@ -695,6 +935,105 @@ public class MqttService extends Service implements MqttTraceHandler {
     this.traceEnabled = traceEnabled;
   }
 
+  /**
+   * Turn group commit of arrived messages on or off. With group commit on,
+   * arrived messages are written to the message store in a single
+   * transaction per group, and each one is passed to the Activity only once
+   * its group has been written.
+   *
+   * @param maxMessages the largest number of messages to write together - 1 or
+   *            less writes each message as it arrives
+   * @param maxDelayMillis the longest time a message may wait to be written
+   */
+  public void setArrivedGroupCommit(int maxMessages, long maxDelayMillis) {
+    if (messageStore instanceof GroupCommitMessageStore) {
+      ((GroupCommitMessageStore) messageStore).setGroupCommit(maxMessages,
+          maxDelayMillis);
+    }
+  }
+
+  /**
+   * Set how long a keep-alive ping may be delayed so that it can be sent in
+   * the same wake-up as other connections' pings. A ping is never delayed by
+   * more than a quarter of the time until it is due, so a connection is
+   * never pinged too late for its server.
+   *
+   * @param slackMillis the longest a ping is delayed, or 0 to wake for each
+   *          ping when it is due - by default 10 seconds
+   */
+  public void setKeepAliveSlack(long slackMillis) {
+    keepAliveAlarm.setSlack(slackMillis);
+  }
+
+  /**
+   * Get the counts of keep-alive wake-ups and pings, across every connection
+   *
+   * @return a snapshot of the counts
+   */
+  public KeepAliveStats getKeepAliveStats() {
+    return keepAliveAlarm.getStats();
+  }
+
+  /**
+   * @return the one alarm that sends every connection's keep-alive pings
+   */
+  KeepAliveAlarm getKeepAliveAlarm() {
+    return keepAliveAlarm;
+  }
+
+  /**
+   * Set how the service backs off reconnecting its connections when the
+   * network comes back or an attempt fails. Each connection waits a random
+   * time up to the base delay before its first attempt, and up to twice as
+   * long again after each failure, and only a few handshakes are made at
+   * once, so that devices regaining the network together do not all reach
+   * the server at the same moment.
+   *
+   * @param baseDelayMillis the most a connection waits before its first
+   *          attempt - by default 1 second
+   * @param maxDelayMillis the most a connection waits between attempts - by
+   *          default 128 seconds
+   * @param maxConcurrent the number of handshakes in progress at once - by
+   *          default 2
+   */
+  public void setReconnectBackoff(long baseDelayMillis, long maxDelayMillis,
+      int maxConcurrent) {
+    reconnectCoordinator.setBackoff(baseDelayMillis, maxDelayMillis,
+        maxConcurrent);
+  }
+
+  /**
+   * Get the counts of attempts to reconnect, across every connection, and
+   * how long connections took to reconnect
+   *
+   * @return a snapshot of the counts
+   */
+  public ReconnectStats getReconnectStats() {
+    return reconnectCoordinator.getStats();
+  }
+
+  /**
+   * @return what reconnects the connections
+   */
+  ReconnectCoordinator getReconnectCoordinator() {
+    return reconnectCoordinator;
+  }
+
+  /**
+   * Choose how arrived messages are stored until the application has received
+   * them. The store is created along with the service, so this only affects
+   * services created after it is called.
+   *
+   * @param factory creates the store - by default,
+   *            {@link MessageStoreFactory#database()}
+   */
+  public static void setMessageStoreFactory(MessageStoreFactory factory) {
+    if (factory == null) {
+      throw new IllegalArgumentException("factory must not be null");
+    }
+    messageStoreFactory = factory;
+  }
+
   /**
    * Check whether trace is on or off.
    *
@@ -768,7 +1107,12 @@ public class MqttService extends Service implements MqttTraceHandler {
 
   @SuppressWarnings("deprecation")
   private void registerBroadcastReceivers() {
-		if (networkConnectionMonitor == null) {
+		if (Build.VERSION.SDK_INT >= 21 /**Build.VERSION_CODES.LOLLIPOP**/) {
+			if (networkMonitor == null) {
+				networkMonitor = new NetworkMonitor(this);
+				networkMonitor.register();
+			}
+		} else if (networkConnectionMonitor == null) {
 			networkConnectionMonitor = new NetworkConnectionIntentReceiver();
 			registerReceiver(networkConnectionMonitor, new IntentFilter(
 					ConnectivityManager.CONNECTIVITY_ACTION));
@@ -789,6 +1133,11 @@ public class MqttService extends Service implements MqttTraceHandler {
   }
 
   private void unregisterBroadcastReceivers(){
+  	if(networkMonitor != null){
+  		networkMonitor.unregister();
+  		networkMonitor = null;
+  	}
+
   	if(networkConnectionMonitor != null){
   		unregisterReceiver(networkConnectionMonitor);
   		networkConnectionMonitor = null;
@@ -819,6 +1168,9 @@ public class MqttService extends Service implements MqttTraceHandler {
 			WakeLock wl = pm
 					.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, "MQTT");
 			wl.acquire();
+			if (keepAliveAlarm != null) {
+				keepAliveAlarm.networkChanged();
+			}
 			traceDebug(TAG,"Reconnect for Network recovery.");
 			if (isOnline()) {
 				traceDebug(TAG,"Online,reconnect.");
@@ -833,6 +1185,46 @@ public class MqttService extends Service implements MqttTraceHandler {
 		}
   }
 
+	/**
+	 * The network the connections are on has changed, as the
+	 * {@link NetworkMonitor} sees it
+	 *
+	 * @param action
+	 *            what to do with the connections
+	 */
+	void networkChanged(NetworkTracker.Action action) {
+		if (keepAliveAlarm != null) {
+			keepAliveAlarm.networkChanged();
+		}
+		switch (action) {
+		case RECONNECT:
+			traceDebug(TAG, "Online,reconnect.");
+			reconnect();
+			break;
+		case HANDOVER:
+			traceDebug(TAG, "Hand over to the new network.");
+			for (MqttConnection client : connections.values()) {
+				client.handover();
+			}
+			break;
+		case RELEASE:
+			for (MqttConnection client : connections.values()) {
+				client.oldNetworkLost();
+			}
+			break;
+		case SWITCH:
+			traceDebug(TAG, "Network gone, reconnect on the new one.");
+			notifyClientsOffline();
+			reconnect();
+			break;
+		case OFFLINE:
+			notifyClientsOffline();
+			break;
+		default:
+			break;
+		}
+	}
+
 	/**
 	 * @return whether the android service can be regarded as online
 	 */
@@ -854,6 +1246,7 @@ public class MqttService extends Service implements MqttTraceHandler {
 	 * Notify clients we're offline
 	 */
     private void notifyClientsOffline() {
+		reconnectCoordinator.clear();
 		for (MqttConnection connection : connections.values()) {
 			connection.offline();
 		}
@@ -894,6 +1287,140 @@ public class MqttService extends Service implements MqttTraceHandler {
     client.setBufferOpts(bufferOpts);
   }
 
+  /**
+   * Sets up, changes or closes a client's offline buffer, which keeps
+   * messages published while the client is not connected in files until
+   * they are delivered
+   *
+   * @param clientHandle identifier for the client
+   * @param options the bounds of the buffer, or null to close it
+   */
+  public void setOfflineBufferOptions(String clientHandle,
+      OfflineBufferOptions options) {
+    getConnection(clientHandle).setOfflineBufferOptions(options);
+  }
+
+  /**
+   * Keep the last message to arrive on each of a client's topics, so that it
+   * can be read with {@link #getLastValue(String, String)}
+   *
+   * @param clientHandle identifier for the client
+   * @param maxBytes the size of the cache, or 0 for none
+   */
+  public void setLastValueCacheSize(String clientHandle, long maxBytes) {
+    getConnection(clientHandle).setLastValueCacheSize(maxBytes);
+  }
+
+  /**
+   * Get the last message to arrive on a topic, from a client's last value
+   * cache
+   *
+   * @param clientHandle identifier for the client
+   * @param topic a topic, without wildcards
+   * @return the message, or null if the topic is not cached
+   */
+  public MqttMessage getLastValue(String clientHandle, String topic) {
+    return getConnection(clientHandle).getLastValue(topic);
+  }
+
+  /**
+   * Get the last message to arrive on each topic matching a filter, from a
+   * client's last value cache
+   *
+   * @param clientHandle identifier for the client
+   * @param topicFilter a topic filter, which may contain wildcards
+   * @return the messages, by topic
+   */
+  public Map<String, MqttMessage> getLastValues(String clientHandle,
+      String topicFilter) {
+    return getConnection(clientHandle).getLastValues(topicFilter);
+  }
+
+  /**
+   * Have a client ping at the keep-alive interval learned for the network
+   * the device is on, up to the one in its connect options
+   *
+   * @param clientHandle identifier for the client
+   * @param minimumMillis the shortest interval to ping at, or 0 to ping at
+   *          the keep-alive interval in the connect options
+   */
+  public void setAdaptiveKeepAlive(String clientHandle, long minimumMillis) {
+    getConnection(clientHandle).setAdaptiveKeepAlive(minimumMillis);
+  }
+
+  /**
+   * Drop the copies of messages the server sends a client again
+   *
+   * @param clientHandle identifier for the client
+   * @param options how messages are fingerprinted and for how long, or null
+   *          to stop dropping them
+   */
+  public void setDuplicateSuppression(String clientHandle,
+      DuplicateSuppressionOptions options) {
+    getConnection(clientHandle).setDuplicateSuppression(options);
+  }
+
+  /**
+   * Get the counters of a client's duplicate suppression
+   *
+   * @param clientHandle identifier for the client
+   * @return a snapshot of the counters, or null if there is no duplicate
+   *         suppression
+   */
+  public DuplicateSuppressionStats getDuplicateSuppressionStats(
+      String clientHandle) {
+    return getConnection(clientHandle).getDuplicateSuppressionStats();
+  }
+
+  /**
+   * Pass on the messages arriving for a client on a topic filter only as a
+   * summary of each topic, once a window
+   *
+   * @param clientHandle identifier for the client
+   * @param topicFilter the topic filter, which may contain wildcards
+   * @param options the window and format, or null to pass on each message
+   */
+  public void setAggregation(String clientHandle, String topicFilter,
+      AggregationOptions options) {
+    getConnection(clientHandle).setAggregation(topicFilter, options);
+  }
+
+  /**
+   * Decide which of the messages arriving for a client on a topic filter are
+   * stored and passed on to the client
+   *
+   * @param clientHandle identifier for the client
+   * @param topicFilter the topic filter, which may contain wildcards
+   * @param policy the policy, or null to pass on every message
+   */
+  public void setDeliveryPolicy(String clientHandle, String topicFilter,
+      DeliveryPolicy policy) {
+    getConnection(clientHandle).setDeliveryPolicy(topicFilter, policy);
+  }
+
+  /**
+   * Get the counters of a client's delivery policy
+   *
+   * @param clientHandle identifier for the client
+   * @param topicFilter the topic filter, exactly as its policy was set
+   * @return a snapshot of the policy's counters, or null if there is none
+   */
+  public DeliveryPolicyStats getDeliveryPolicyStats(String clientHandle,
+      String topicFilter) {
+    return getConnection(clientHandle).getDeliveryPolicyStats(topicFilter);
+  }
+
+  /**
+   * Get the state of a client's offline buffer
+   *
+   * @param clientHandle identifier for the client
+   * @return a snapshot of the buffer's counters, or null if the client has
+   *         no offline buffer
+   */
+  public OfflineBufferStats getOfflineBufferStats(String clientHandle) {
+    return getConnection(clientHandle).getOfflineBufferStats();
+  }
+
   public int getBufferedMessageCount(String clientHandle){
     MqttConnection client = getConnection(clientHandle);
     return client.getBufferedMessageCount();
@@ -43,7 +43,11 @@ interface MqttServiceConstants {
   String CONNECT_ACTION = "connect";
   String CONNECT_EXTENDED_ACTION = "connectExtended";
   String MESSAGE_ARRIVED_ACTION = "messageArrived";
+  String MESSAGES_ARRIVED_ACTION = "messagesArrived";
   String MESSAGE_DELIVERED_ACTION = "messageDelivered";
+  String PUBLISH_BATCH_ACTION = "publishBatch";
+  String PUBLISH_READY_ACTION = "publishReady";
+  String AGGREGATE_ACTION = "aggregate";
   String ON_CONNECTION_LOST_ACTION = "onConnectionLost";
   String TRACE_ACTION = "trace";
 
@@ -64,6 +68,8 @@ interface MqttServiceConstants {
                                                     + "invocationContext";
   String CALLBACK_ACTIVITY_TOKEN = MqttService.TAG + "."
                                                 + "activityToken";
+  /* The CALLBACK_ACTIVITY_TOKEN of an operation with no token to complete */
+  int NO_ACTIVITY_TOKEN = 0;
   String CALLBACK_DESTINATION_NAME = MqttService.TAG + '.'
                                                   + DESTINATION_NAME;
   String CALLBACK_MESSAGE_ID = MqttService.TAG + '.'
@@ -71,6 +77,19 @@ interface MqttServiceConstants {
   String CALLBACK_RECONNECT = MqttService.TAG + ".reconnect";
   String CALLBACK_SERVER_URI = MqttService.TAG + ".serverURI";
   String CALLBACK_MESSAGE_PARCEL = MqttService.TAG + ".PARCEL";
+  String CALLBACK_MESSAGE_IDS = CALLBACK_MESSAGE_ID + "s";
+  String CALLBACK_DESTINATION_NAMES = CALLBACK_DESTINATION_NAME + "s";
+  String CALLBACK_MESSAGE_PARCELS = MqttService.TAG + ".PARCELS";
+  /* An aggregation window's summary */
+  String CALLBACK_TOPIC_FILTER = MqttService.TAG + ".topicFilter";
+  String CALLBACK_AGGREGATE_COUNTS = MqttService.TAG + ".aggregateCounts";
+  String CALLBACK_AGGREGATE_VALUES = MqttService.TAG + ".aggregateValues";
+  /* The client's listeners for an arrived message, by subscription */
+  String CALLBACK_LISTENER_IDS = MqttService.TAG + ".listenerIds";
+  String CALLBACK_BATCH_STATUSES = MqttService.TAG + ".batchStatuses";
+  String CALLBACK_BATCH_ERRORS = MqttService.TAG + ".batchErrors";
+  /* Set on a send callback for a message taken by the offline buffer */
+  String CALLBACK_BUFFERED = MqttService.TAG + ".buffered";
   String CALLBACK_TRACE_SEVERITY = MqttService.TAG
                                                 + ".traceSeverity";
   String CALLBACK_TRACE_TAG = MqttService.TAG + ".traceTag";
@@ -93,6 +112,11 @@ interface MqttServiceConstants {
   String TRACE_EXCEPTION = "exception";
   
   
+  //status of each message of a published batch, in CALLBACK_BATCH_STATUSES
+  int BATCH_MESSAGE_PENDING = 0;
+  int BATCH_MESSAGE_DELIVERED = 1;
+  int BATCH_MESSAGE_FAILED = 2;
+
   //exception code for non MqttExceptions
   int NON_MQTT_EXCEPTION = -1;
 
@@ -80,7 +80,9 @@ class MqttTokenAndroid implements IMqttToken {
   public void waitForCompletion() throws MqttException, MqttSecurityException {
     synchronized (waitObject) {
       try {
-        waitObject.wait();
+        if (!isComplete) {
+          waitObject.wait();
+        }
       }
       catch (InterruptedException e) {
         // do nothing
@@ -99,7 +101,9 @@ class MqttTokenAndroid implements IMqttToken {
       MqttSecurityException {
     synchronized (waitObject) {
       try {
-        waitObject.wait(timeout);
+        if (!isComplete) {
+          waitObject.wait(timeout);
+        }
       }
       catch (InterruptedException e) {
         // do nothing
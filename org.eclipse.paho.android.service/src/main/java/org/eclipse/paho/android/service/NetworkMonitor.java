@@ -0,0 +1,157 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ */
+package org.eclipse.paho.android.service;
+
+import android.annotation.SuppressLint;
+import android.annotation.TargetApi;
+import android.app.Service;
+import android.content.Context;
+import android.net.ConnectivityManager;
+import android.net.Network;
+import android.net.NetworkCapabilities;
+import android.net.NetworkInfo;
+import android.net.NetworkRequest;
+import android.os.Build;
+import android.os.PowerManager;
+import android.os.PowerManager.WakeLock;
+
+/**
+ * <p>
+ * Watches the networks that reach the internet through
+ * {@link ConnectivityManager.NetworkCallback}, on Lollipop and above, in
+ * place of the CONNECTIVITY_ACTION broadcast.
+ * </p>
+ * <p>
+ * A {@link NetworkTracker} keeps which network the connections are on, so
+ * that the service acts only when that changes - and, when Wi-Fi becomes
+ * the default while mobile data is still up, can move the connections over
+ * before the old network goes.
+ * </p>
+ */
+@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+class NetworkMonitor extends ConnectivityManager.NetworkCallback {
+	// Identifier for log messages
+	private static final String TAG = "NetworkMonitor";
+
+	private final MqttService service;
+	private final ConnectivityManager connectivityManager;
+	private final NetworkTracker<Network> tracker = new NetworkTracker<>();
+	// held while the connections are told of a change
+	private final WakeLock wakelock;
+
+	/**
+	 * Constructor
+	 *
+	 * @param service
+	 *            the service whose connections follow the network
+	 */
+	NetworkMonitor(MqttService service) {
+		this.service = service;
+		connectivityManager = (ConnectivityManager) service
+				.getSystemService(Context.CONNECTIVITY_SERVICE);
+		PowerManager pm = (PowerManager) service
+				.getSystemService(Service.POWER_SERVICE);
+		wakelock = pm.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, "MQTT");
+	}
+
+	/**
+	 * Start watching the networks
+	 */
+	void register() {
+		NetworkRequest request = new NetworkRequest.Builder().addCapability(
+				NetworkCapabilities.NET_CAPABILITY_INTERNET).build();
+		connectivityManager.registerNetworkCallback(request, this);
+	}
+
+	/**
+	 * Stop watching the networks
+	 */
+	void unregister() {
+		try {
+			connectivityManager.unregisterNetworkCallback(this);
+		} catch (IllegalArgumentException e) {
+			// Ignore unregister errors.
+		}
+	}
+
+	@Override
+	public void onAvailable(Network network) {
+		tracker.available(network);
+		changed();
+	}
+
+	@Override
+	public void onLost(Network network) {
+		tracker.lost(network);
+		changed();
+	}
+
+	@Override
+	public void onCapabilitiesChanged(Network network,
+			NetworkCapabilities networkCapabilities) {
+		// a network may only now have been found to reach the internet
+		changed();
+	}
+
+	@SuppressLint("Wakelock")
+	private void changed() {
+		Network defaultNetwork = defaultNetwork();
+		NetworkTracker.Action action = tracker.update(defaultNetwork,
+				defaultNetwork != null && isValidated(defaultNetwork));
+		service.traceDebug(TAG, "Network " + defaultNetwork + ": " + action);
+		wakelock.acquire();
+		try {
+			service.networkChanged(action);
+		} finally {
+			wakelock.release();
+		}
+	}
+
+	/**
+	 * @return the network new connections are made on, or null if there is
+	 *         none
+	 */
+	@SuppressLint("NewApi")
+	private Network defaultNetwork() {
+		if (Build.VERSION.SDK_INT >= 23) {
+			return connectivityManager.getActiveNetwork();
+		}
+		NetworkInfo active = connectivityManager.getActiveNetworkInfo();
+		if (active == null || !active.isConnected()) {
+			return null;
+		}
+		for (Network network : connectivityManager.getAllNetworks()) {
+			NetworkInfo info = connectivityManager.getNetworkInfo(network);
+			if (info != null && info.isConnected()
+					&& info.getType() == active.getType()) {
+				return network;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @return whether a network has been found to reach the internet - which
+	 *         is taken as so before Marshmallow, which does not say
+	 */
+	private boolean isValidated(Network network) {
+		if (Build.VERSION.SDK_INT < 23) {
+			return true;
+		}
+		NetworkCapabilities capabilities = connectivityManager
+				.getNetworkCapabilities(network);
+		return capabilities != null
+				&& capabilities
+						.hasCapability(NetworkCapabilities.NET_CAPABILITY_VALIDATED);
+	}
+}
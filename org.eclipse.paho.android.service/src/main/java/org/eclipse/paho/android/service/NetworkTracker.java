@@ -0,0 +1,149 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ */
+package org.eclipse.paho.android.service;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * <p>
+ * Which network the service's connections are on, and what to do as
+ * networks come and go.
+ * </p>
+ * <p>
+ * The tracker is told of each network that comes up or goes, and after each
+ * change which network is now the default and whether it has been found to
+ * reach the internet. It answers with the {@link Action} for the
+ * connections, so that only changes that matter to them are acted on. It
+ * knows nothing of Android, and is told the networks by whatever stands for
+ * them.
+ * </p>
+ *
+ * @param <N>
+ *            identifies a network
+ */
+class NetworkTracker<N> {
+
+	/**
+	 * What to do with the connections
+	 */
+	enum Action {
+		/**
+		 * Nothing - the change does not affect them
+		 */
+		NONE,
+		/**
+		 * Connect them again - there was no network, and now there is
+		 */
+		RECONNECT,
+		/**
+		 * Move them to the new default network, while the old is still up
+		 */
+		HANDOVER,
+		/**
+		 * Drop them and connect again - the network they were on has gone,
+		 * but there is another
+		 */
+		SWITCH,
+		/**
+		 * Reconnect any that stayed on a network handed over from, which has
+		 * now gone
+		 */
+		RELEASE,
+		/**
+		 * Take them offline - there is no network
+		 */
+		OFFLINE
+	}
+
+	private final Set<N> available = new HashSet<>();
+	// the network the connections were last made on
+	private N current = null;
+	// networks handed over from, which some connections may still be on
+	private final Set<N> handedOver = new HashSet<>();
+
+	/**
+	 * A network has come up - which may not yet be the default
+	 *
+	 * @param network
+	 *            the network
+	 */
+	synchronized void available(N network) {
+		available.add(network);
+	}
+
+	/**
+	 * A network has gone
+	 *
+	 * @param network
+	 *            the network
+	 */
+	synchronized void lost(N network) {
+		available.remove(network);
+	}
+
+	/**
+	 * Decide what the connections should do, now that networks have changed
+	 *
+	 * @param defaultNetwork
+	 *            the network new connections are made on, or null if there is
+	 *            none
+	 * @param validated
+	 *            whether the default network has been found to reach the
+	 *            internet - connections on a network still up wait for it
+	 *            to be before moving
+	 * @return the action
+	 */
+	synchronized Action update(N defaultNetwork, boolean validated) {
+		if (defaultNetwork == null) {
+			handedOver.clear();
+			if (current == null) {
+				return Action.NONE;
+			}
+			current = null;
+			return Action.OFFLINE;
+		}
+		if (defaultNetwork.equals(current)) {
+			if (handedOver.retainAll(available)) {
+				return Action.RELEASE;
+			}
+			return Action.NONE;
+		}
+		N previous = current;
+		boolean previousUp = previous != null && available.contains(previous);
+		if (previousUp && !validated) {
+			// stay where they are until the new network is known to work
+			return Action.NONE;
+		}
+		current = defaultNetwork;
+		handedOver.remove(defaultNetwork);
+		if (previous == null) {
+			return Action.RECONNECT;
+		}
+		if (previousUp) {
+			handedOver.add(previous);
+			return Action.HANDOVER;
+		}
+		// all of them connect again, wherever they were
+		handedOver.clear();
+		return Action.SWITCH;
+	}
+
+	/**
+	 * @return the network the connections were last made on, or null if
+	 *         there is none
+	 */
+	synchronized N getCurrent() {
+		return current;
+	}
+}
@@ -0,0 +1,40 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ */
+package org.eclipse.paho.android.service;
+
+/**
+ * Which message the offline buffer gives up when a message is published
+ * while it is full, by count or by size. See
+ * {@link OfflineBufferOptions#setEvictionPolicy(OfflineBufferEvictionPolicy)}.
+ */
+public enum OfflineBufferEvictionPolicy {
+	/**
+	 * The oldest messages are dropped to make room - the newest data is worth
+	 * most
+	 */
+	DROP_OLDEST,
+
+	/**
+	 * The message being published is refused, and its token fails - what was
+	 * buffered first is sent first
+	 */
+	DROP_NEWEST,
+
+	/**
+	 * The oldest message of the lowest QoS held is dropped, so QoS 0 messages
+	 * go before QoS 1 messages, and those before QoS 2 messages. The message
+	 * being published is refused if its QoS is lower than that of every
+	 * message held.
+	 */
+	DROP_LOWEST_QOS
+}
@@ -0,0 +1,151 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ */
+package org.eclipse.paho.android.service;
+
+import org.eclipse.paho.client.mqttv3.MqttTopic;
+
+/**
+ * <p>
+ * Options for the offline buffer of an {@link MqttAndroidClient}: messages
+ * published while the client is not connected, kept in files by the
+ * {@link MqttService} until the client connects again.
+ * </p>
+ * <p>
+ * Unlike the buffer set up by
+ * {@link MqttAndroidClient#setBufferOpts(org.eclipse.paho.client.mqttv3.DisconnectedBufferOptions)},
+ * which is held in memory, the offline buffer survives the service being
+ * killed. It is bounded both by the number of messages and by their size;
+ * when either bound is reached the {@link OfflineBufferEvictionPolicy}
+ * decides which message is given up.
+ * </p>
+ * <p>
+ * Topics which carry state, where only the latest value matters, can be
+ * conflated with {@link #setConflatedTopics(String[])}: a message buffered
+ * on such a topic replaces the one before it, in its place in the queue, so
+ * that only the latest value is sent on reconnect.
+ * </p>
+ */
+public class OfflineBufferOptions {
+
+	/**
+	 * The largest number of messages held, unless set otherwise
+	 */
+	public static final int DEFAULT_MAX_MESSAGES = 10000;
+
+	/**
+	 * The largest number of bytes held, unless set otherwise
+	 */
+	public static final long DEFAULT_MAX_BYTES = 16 * 1024 * 1024;
+
+	private boolean bufferEnabled = false;
+	private int maxMessages = DEFAULT_MAX_MESSAGES;
+	private long maxBytes = DEFAULT_MAX_BYTES;
+	private OfflineBufferEvictionPolicy evictionPolicy = OfflineBufferEvictionPolicy.DROP_OLDEST;
+	private String[] conflatedTopics = new String[0];
+
+	/**
+	 * @return true if messages published while not connected are buffered
+	 */
+	public boolean isBufferEnabled() {
+		return bufferEnabled;
+	}
+
+	/**
+	 * @param bufferEnabled
+	 *            whether messages published while not connected are buffered
+	 */
+	public void setBufferEnabled(boolean bufferEnabled) {
+		this.bufferEnabled = bufferEnabled;
+	}
+
+	/**
+	 * @return the largest number of messages held
+	 */
+	public int getMaxMessages() {
+		return maxMessages;
+	}
+
+	/**
+	 * @param maxMessages
+	 *            the largest number of messages held
+	 */
+	public void setMaxMessages(int maxMessages) {
+		if (maxMessages < 1) {
+			throw new IllegalArgumentException("maxMessages must be positive");
+		}
+		this.maxMessages = maxMessages;
+	}
+
+	/**
+	 * @return the largest number of bytes held, counting each message's
+	 *         topic, payload and a few bytes more
+	 */
+	public long getMaxBytes() {
+		return maxBytes;
+	}
+
+	/**
+	 * @param maxBytes
+	 *            the largest number of bytes held, counting each message's
+	 *            topic, payload and a few bytes more
+	 */
+	public void setMaxBytes(long maxBytes) {
+		if (maxBytes < 1) {
+			throw new IllegalArgumentException("maxBytes must be positive");
+		}
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * @return which message is given up when the buffer is full
+	 */
+	public OfflineBufferEvictionPolicy getEvictionPolicy() {
+		return evictionPolicy;
+	}
+
+	/**
+	 * @param evictionPolicy
+	 *            which message is given up when the buffer is full
+	 */
+	public void setEvictionPolicy(OfflineBufferEvictionPolicy evictionPolicy) {
+		if (evictionPolicy == null) {
+			throw new IllegalArgumentException("evictionPolicy is null");
+		}
+		this.evictionPolicy = evictionPolicy;
+	}
+
+	/**
+	 * @return the topic filters whose topics keep only their latest value
+	 */
+	public String[] getConflatedTopics() {
+		return conflatedTopics.clone();
+	}
+
+	/**
+	 * Conflate the messages buffered on some topics: a message buffered on a
+	 * topic which matches one of the filters replaces the last message on
+	 * that topic, unless that one is already being sent.
+	 * 
+	 * @param topicFilters
+	 *            the filters, such as "device/123/battery" or
+	 *            "device/+/battery", or an empty array for none
+	 * @throws IllegalArgumentException
+	 *             if a filter is not a valid topic filter
+	 */
+	public void setConflatedTopics(String[] topicFilters) {
+		for (String topicFilter : topicFilters) {
+			MqttTopic.validate(topicFilter, true);
+		}
+		this.conflatedTopics = topicFilters.clone();
+	}
+}
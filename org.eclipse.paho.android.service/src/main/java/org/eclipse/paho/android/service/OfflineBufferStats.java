@@ -0,0 +1,98 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ */
+package org.eclipse.paho.android.service;
+
+/**
+ * A snapshot of a client's offline buffer, from
+ * {@link MqttAndroidClient#getOfflineBufferStats()}. The counts are since the
+ * buffer was opened by the service.
+ */
+public final class OfflineBufferStats {
+
+	private final int messages;
+	private final long bytes;
+	private final long added;
+	private final long delivered;
+	private final long evicted;
+	private final long refused;
+	private final long conflated;
+
+	OfflineBufferStats(int messages, long bytes, long added, long delivered,
+			long evicted, long refused, long conflated) {
+		this.messages = messages;
+		this.bytes = bytes;
+		this.added = added;
+		this.delivered = delivered;
+		this.evicted = evicted;
+		this.refused = refused;
+		this.conflated = conflated;
+	}
+
+	/**
+	 * @return the number of messages held now, including any being sent
+	 */
+	public int getMessages() {
+		return messages;
+	}
+
+	/**
+	 * @return the size of the messages held now
+	 */
+	public long getBytes() {
+		return bytes;
+	}
+
+	/**
+	 * @return the number of messages buffered
+	 */
+	public long getAdded() {
+		return added;
+	}
+
+	/**
+	 * @return the number of buffered messages since delivered
+	 */
+	public long getDelivered() {
+		return delivered;
+	}
+
+	/**
+	 * @return the number of buffered messages dropped to make room for others
+	 */
+	public long getEvicted() {
+		return evicted;
+	}
+
+	/**
+	 * @return the number of messages refused because the buffer was full
+	 */
+	public long getRefused() {
+		return refused;
+	}
+
+	/**
+	 * @return the number of buffered messages replaced by a later message on
+	 *         the same conflated topic
+	 */
+	public long getConflated() {
+		return conflated;
+	}
+
+	@Override
+	public String toString() {
+		return "OfflineBufferStats [messages=" + messages + ", bytes=" + bytes
+				+ ", added=" + added + ", delivered=" + delivered
+				+ ", evicted=" + evicted + ", refused=" + refused
+				+ ", conflated=" + conflated + "]";
+	}
+}
@@ -0,0 +1,952 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ */
+package org.eclipse.paho.android.service;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.eclipse.paho.client.mqttv3.MqttTopic;
+
+/**
+ * <p>
+ * The messages a client has published while not connected, waiting to be
+ * sent when it connects again - kept in a log of segment files, so that they
+ * survive the service being killed.
+ * </p>
+ * <p>
+ * Each message is written as one record at the end of the newest segment,
+ * and a small tombstone record naming it is appended once it has been
+ * delivered, or dropped to make room for another. Which messages are still
+ * held is kept in memory, and rebuilt by reading the segments in order when
+ * the buffer is opened; a torn record at the end of a segment is cut off.
+ * A segment is deleted once it and every older segment hold no live
+ * messages, so a tombstone is never lost while the message it names
+ * survives. Should a few live messages keep an old segment alive, they are
+ * copied to the end of the log, keeping their ids and so their order.
+ * </p>
+ * <p>
+ * A message is written to its file before {@link #add(String, MqttMessage)}
+ * returns, so it survives the process being killed. The files are only
+ * forced to disk every {@link #FORCE_INTERVAL_BYTES}, so a power failure may
+ * lose the last few messages, or deliver a few again.
+ * </p>
+ * <p>
+ * Messages are taken for sending, oldest first, by {@link #next()}. One
+ * taken stays held until {@link #remove(long)} says it was delivered; if it
+ * was not, {@link #unsend(long)} or {@link #resetSending()} return it to be
+ * taken again, unless {@link #discard(long)} says it can never be sent.
+ * </p>
+ * <p>
+ * Messages on topics matching one of the conflated topic filters keep only
+ * their latest value: the newest message held for each such topic is found
+ * by topic, and a message which is not yet being sent is replaced by the next
+ * one published to its topic. The replacement is appended with the id of the
+ * message it replaces, so it keeps that message's place in the queue, and
+ * replaces it again when the log is replayed.
+ * </p>
+ */
+class OfflinePublishBuffer {
+
+	// TAG used for indentify trace data etc.
+	private static final String TAG = "OfflinePublishBuffer";
+
+	private static final String SEGMENT_PREFIX = "offline-";
+	private static final String SEGMENT_SUFFIX = ".log";
+
+	// the size at which a new segment is started, by default
+	static final long DEFAULT_SEGMENT_BYTES = 1024 * 1024;
+
+	// how much is written between forcing the files to disk
+	static final long FORCE_INTERVAL_BYTES = 256 * 1024;
+
+	// record types
+	private static final byte RECORD_MESSAGE = 1;
+	private static final byte RECORD_REMOVED = 2;
+
+	// every record starts with the length of its body, and a CRC32 of it
+	private static final int RECORD_HEADER_BYTES = 8;
+
+	// no record body is larger than the largest MQTT payload, plus a little
+	private static final int MAX_RECORD_BYTES = 257 * 1024 * 1024;
+
+	private static final byte FLAG_RETAINED = 1;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/**
+	 * A buffered message taken for sending
+	 */
+	static final class Message {
+		final long id;
+		final String topic;
+		final MqttMessage message;
+
+		Message(long id, String topic, MqttMessage message) {
+			this.id = id;
+			this.topic = topic;
+			this.message = message;
+		}
+	}
+
+	/**
+	 * One file of the log
+	 */
+	private static class Segment {
+		final long number;
+		final File file;
+		final RandomAccessFile access;
+		final FileChannel channel;
+		// bytes written to the file
+		long size = 0;
+		// bytes of records for messages which are still held
+		long liveBytes = 0;
+
+		Segment(File directory, long number) throws IOException {
+			this.number = number;
+			this.file = new File(directory, SEGMENT_PREFIX + number
+					+ SEGMENT_SUFFIX);
+			this.access = new RandomAccessFile(file, "rw");
+			this.channel = access.getChannel();
+		}
+
+		void close() {
+			try {
+				access.close();
+			} catch (IOException e) {
+				// nothing more we can do with it
+			}
+		}
+	}
+
+	/**
+	 * Where a message still held is in the log
+	 */
+	private static class Entry {
+		final long id;
+		final String topic;
+		final int qos;
+		Segment segment;
+		long offset;
+		final int length;
+		// taken by next(), and not yet delivered or returned
+		boolean sending = false;
+
+		Entry(long id, String topic, int qos, Segment segment, long offset,
+				int length) {
+			this.id = id;
+			this.topic = topic;
+			this.qos = qos;
+			this.segment = segment;
+			this.offset = offset;
+			this.length = length;
+		}
+	}
+
+	private final MqttTraceHandler traceHandler;
+	private final File directory;
+	private final long maxSegmentBytes;
+
+	// the segments, by number, and the one being appended to
+	private final TreeMap<Long, Segment> segments = new TreeMap<>();
+	private Segment activeSegment;
+	private long unforcedBytes = 0;
+
+	// the messages held, by id, and by QoS - ids are handed out in order
+	private final TreeMap<Long, Entry> entries = new TreeMap<>();
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private final TreeMap<Long, Entry>[] entriesByQos = new TreeMap[] {
+			new TreeMap<Long, Entry>(), new TreeMap<Long, Entry>(),
+			new TreeMap<Long, Entry>() };
+	private long liveBytes = 0;
+	private long nextId = 1;
+	// every message up to this id has been taken by next()
+	private long drainCursor = 0;
+
+	// the topic filters whose topics keep only their latest value, and the
+	// newest message held for each such topic
+	private String[] conflatedTopics = new String[0];
+	private final Map<String, Entry> latestByTopic = new HashMap<>();
+
+	private int maxMessages = OfflineBufferOptions.DEFAULT_MAX_MESSAGES;
+	private long maxBytes = OfflineBufferOptions.DEFAULT_MAX_BYTES;
+	private OfflineBufferEvictionPolicy evictionPolicy = OfflineBufferEvictionPolicy.DROP_OLDEST;
+
+	private long added = 0;
+	private long delivered = 0;
+	private long evicted = 0;
+	private long refused = 0;
+	private long conflated = 0;
+
+	private boolean closed = false;
+
+	/**
+	 * Constructor - open the buffer in a directory, creating it if need be,
+	 * and read which messages it holds
+	 *
+	 * @param traceHandler
+	 *            where to send trace
+	 * @param directory
+	 *            the directory holding the segments, used by nothing else
+	 * @param maxSegmentBytes
+	 *            the size at which a new segment is started
+	 * @throws IOException
+	 *             if the buffer cannot be opened
+	 */
+	OfflinePublishBuffer(MqttTraceHandler traceHandler, File directory,
+			long maxSegmentBytes) throws IOException {
+		this.traceHandler = traceHandler;
+		this.directory = directory;
+		this.maxSegmentBytes = maxSegmentBytes;
+		open();
+		traceHandler.traceDebug(TAG, "OfflinePublishBuffer<init> complete - "
+				+ entries.size() + " messages in " + segments.size()
+				+ " segments");
+	}
+
+	/**
+	 * Find the segments in the directory and replay them, oldest first
+	 */
+	private synchronized void open() throws IOException {
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Cannot create " + directory);
+		}
+		File[] files = directory.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				String name = file.getName();
+				if (!name.startsWith(SEGMENT_PREFIX)
+						|| !name.endsWith(SEGMENT_SUFFIX)) {
+					continue;
+				}
+				long number;
+				try {
+					number = Long.parseLong(name.substring(
+							SEGMENT_PREFIX.length(), name.length()
+									- SEGMENT_SUFFIX.length()));
+				} catch (NumberFormatException e) {
+					continue;
+				}
+				segments.put(number, new Segment(directory, number));
+			}
+		}
+		for (Segment segment : segments.values()) {
+			replay(segment);
+		}
+		if (segments.isEmpty()) {
+			activeSegment = openSegment(1);
+		} else {
+			activeSegment = segments.lastEntry().getValue();
+		}
+		deleteDrainedSegments();
+	}
+
+	/**
+	 * Read every record in a segment, cutting off anything after the last
+	 * complete one
+	 */
+	private void replay(Segment segment) throws IOException {
+		long fileSize = segment.channel.size();
+		ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_BYTES);
+		CRC32 crc = new CRC32();
+		long position = 0;
+		while (position < fileSize) {
+			header.clear();
+			if (!readFully(segment.channel, header, position)) {
+				break;
+			}
+			header.flip();
+			int length = header.getInt();
+			int checksum = header.getInt();
+			if (length <= 0 || length > MAX_RECORD_BYTES
+					|| position + RECORD_HEADER_BYTES + length > fileSize) {
+				break;
+			}
+			ByteBuffer body = ByteBuffer.allocate(length);
+			if (!readFully(segment.channel, body, position
+					+ RECORD_HEADER_BYTES)) {
+				break;
+			}
+			crc.reset();
+			crc.update(body.array(), 0, length);
+			if ((int) crc.getValue() != checksum) {
+				break;
+			}
+			body.flip();
+			if (!apply(segment, position, RECORD_HEADER_BYTES + length, body)) {
+				break;
+			}
+			position += RECORD_HEADER_BYTES + length;
+		}
+		if (position < fileSize) {
+			traceHandler.traceError(TAG, "replay: discarding "
+					+ (fileSize - position) + " bytes after offset "
+					+ position + " of " + segment.file.getName());
+			segment.channel.truncate(position);
+		}
+		segment.size = position;
+	}
+
+	/**
+	 * Apply one record read from the log to what we hold in memory
+	 *
+	 * @return false if the record is not one we understand
+	 */
+	private boolean apply(Segment segment, long offset, int length,
+			ByteBuffer body) {
+		switch (body.get()) {
+		case RECORD_MESSAGE: {
+			long id = body.getLong();
+			int qos = body.get();
+			body.get();
+			String topic = getString(body);
+			// a later copy of a message, or its replacement by a later value,
+			// replaces the earlier one
+			removeEntry(id);
+			addEntry(new Entry(id, topic, qos, segment, offset, length));
+			nextId = Math.max(nextId, id + 1);
+			return true;
+		}
+		case RECORD_REMOVED:
+			removeEntry(body.getLong());
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	/**
+	 * Set the bounds of the buffer, dropping messages as the policy says if
+	 * it now holds too many
+	 *
+	 * @param maxMessages
+	 *            the largest number of messages held
+	 * @param maxBytes
+	 *            the largest number of bytes held
+	 * @param evictionPolicy
+	 *            which message is given up when the buffer is full
+	 */
+	synchronized void setLimits(int maxMessages, long maxBytes,
+			OfflineBufferEvictionPolicy evictionPolicy) {
+		this.maxMessages = maxMessages;
+		this.maxBytes = maxBytes;
+		this.evictionPolicy = evictionPolicy;
+		try {
+			while (entries.size() > maxMessages || liveBytes > maxBytes) {
+				Entry victim;
+				switch (evictionPolicy) {
+				case DROP_NEWEST:
+					victim = entries.lastEntry().getValue();
+					break;
+				case DROP_LOWEST_QOS:
+					victim = oldestOfLowestQos();
+					break;
+				default:
+					victim = entries.firstEntry().getValue();
+				}
+				evict(victim);
+			}
+		} catch (IOException e) {
+			traceHandler.traceException(TAG, "setLimits", e);
+		}
+	}
+
+	/**
+	 * Set the topic filters whose topics keep only their latest value
+	 *
+	 * @param topicFilters
+	 *            the filters, which may be wildcarded, or an empty array for
+	 *            none
+	 */
+	synchronized void setConflatedTopics(String[] topicFilters) {
+		conflatedTopics = topicFilters.clone();
+		latestByTopic.clear();
+		for (Entry entry : entries.values()) {
+			if (isConflated(entry.topic)) {
+				latestByTopic.put(entry.topic, entry);
+			}
+		}
+	}
+
+	private boolean isConflated(String topic) {
+		for (String topicFilter : conflatedTopics) {
+			if (MqttTopic.isMatched(topicFilter, topic)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Buffer a message, first dropping others if the buffer is full and the
+	 * eviction policy says so. If the message's topic is conflated, and the
+	 * last message on it is not yet being sent, this message replaces it.
+	 *
+	 * @param topic
+	 *            the topic to publish the message to
+	 * @param message
+	 *            the message
+	 * @return false if the buffer is full, and the message was refused
+	 * @throws IOException
+	 *             if the message could not be written
+	 */
+	synchronized boolean add(String topic, MqttMessage message)
+			throws IOException {
+		if (closed) {
+			throw new IOException("Offline buffer is closed");
+		}
+		// only conflated topics are indexed
+		Entry replaced = latestByTopic.get(topic);
+		if (replaced != null && replaced.sending) {
+			// too late to replace it - this one goes after it
+			replaced = null;
+		}
+		long id = replaced == null ? nextId : replaced.id;
+		ByteBuffer record = encodeMessage(id, topic, message);
+		int length = record.remaining();
+		if (!makeRoom(message.getQos(), length, replaced)) {
+			refused++;
+			return false;
+		}
+		if (replaced == null) {
+			nextId++;
+		}
+		long offset = append(record);
+		if (replaced != null) {
+			removeEntry(id);
+		}
+		addEntry(new Entry(id, topic, message.getQos(), activeSegment, offset,
+				length));
+		added++;
+		if (replaced != null) {
+			conflated++;
+		}
+		return true;
+	}
+
+	/**
+	 * Drop messages until there is room for one more of the given QoS and
+	 * size, if the eviction policy allows. Nothing is dropped unless enough
+	 * can be.
+	 *
+	 * @param replaced
+	 *            the message the new one replaces, whose room it takes, or
+	 *            null
+	 * @return false if the new message is to be refused instead
+	 */
+	private boolean makeRoom(int qos, int length, Entry replaced)
+			throws IOException {
+		if (length > maxBytes) {
+			return false;
+		}
+		int count = entries.size();
+		long bytes = liveBytes;
+		if (replaced != null) {
+			count--;
+			bytes -= replaced.length;
+		}
+		if (count < maxMessages && bytes + length <= maxBytes) {
+			return true;
+		}
+		if (evictionPolicy == OfflineBufferEvictionPolicy.DROP_NEWEST) {
+			return false;
+		}
+		// the candidates, in the order the policy gives them up
+		List<Iterable<Entry>> candidates = new ArrayList<>();
+		if (evictionPolicy == OfflineBufferEvictionPolicy.DROP_LOWEST_QOS) {
+			for (int i = 0; i <= qos; i++) {
+				candidates.add(entriesByQos[i].values());
+			}
+		} else {
+			candidates.add(entries.values());
+		}
+		List<Entry> victims = new ArrayList<>();
+		for (Iterable<Entry> each : candidates) {
+			for (Entry entry : each) {
+				if (count < maxMessages && bytes + length <= maxBytes) {
+					break;
+				}
+				if (entry != replaced) {
+					victims.add(entry);
+					count--;
+					bytes -= entry.length;
+				}
+			}
+		}
+		if (count >= maxMessages || bytes + length > maxBytes) {
+			return false;
+		}
+		for (Entry victim : victims) {
+			evict(victim);
+		}
+		return true;
+	}
+
+	private Entry oldestOfLowestQos() {
+		for (TreeMap<Long, Entry> byQos : entriesByQos) {
+			if (!byQos.isEmpty()) {
+				return byQos.firstEntry().getValue();
+			}
+		}
+		return null;
+	}
+
+	private void evict(Entry victim) throws IOException {
+		appendRemoved(victim.id);
+		removeEntry(victim.id);
+		evicted++;
+		compactIfWorthwhile();
+	}
+
+	/**
+	 * Take the oldest message which is not already being sent, reading it
+	 * from its file
+	 *
+	 * @return the message, or null if there is none to send
+	 */
+	synchronized Message next() {
+		while (!closed) {
+			Map.Entry<Long, Entry> next = entries.higherEntry(drainCursor);
+			if (next == null) {
+				return null;
+			}
+			Entry entry = next.getValue();
+			drainCursor = entry.id;
+			if (entry.sending) {
+				continue;
+			}
+			try {
+				Message message = readMessage(entry);
+				entry.sending = true;
+				return message;
+			} catch (IOException e) {
+				// nothing can be done with a message which cannot be read
+				traceHandler.traceException(TAG, "next", e);
+				try {
+					appendRemoved(entry.id);
+				} catch (IOException e2) {
+					// it will be dropped again when the log is next opened
+				}
+				removeEntry(entry.id);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Forget a message which has been delivered
+	 *
+	 * @param id
+	 *            the message's id
+	 * @return true if the message was held
+	 */
+	synchronized boolean remove(long id) {
+		if (closed || !entries.containsKey(id)) {
+			return false;
+		}
+		try {
+			appendRemoved(id);
+		} catch (IOException e) {
+			// it will be sent again, which at least once allows
+			traceHandler.traceException(TAG, "remove", e);
+		}
+		removeEntry(id);
+		delivered++;
+		deleteDrainedSegments();
+		return true;
+	}
+
+	/**
+	 * Drop a message which was taken for sending but can never be sent - the
+	 * client refused it outright - so that it does not hold up those behind
+	 * it
+	 *
+	 * @param id
+	 *            the message's id
+	 * @return true if the message was held
+	 */
+	synchronized boolean discard(long id) {
+		if (closed || !entries.containsKey(id)) {
+			return false;
+		}
+		try {
+			appendRemoved(id);
+		} catch (IOException e) {
+			// it will be refused again, and dropped again
+			traceHandler.traceException(TAG, "discard", e);
+		}
+		removeEntry(id);
+		deleteDrainedSegments();
+		return true;
+	}
+
+	/**
+	 * Return a message which was taken for sending but not delivered, so that
+	 * it is taken again
+	 *
+	 * @param id
+	 *            the message's id
+	 */
+	synchronized void unsend(long id) {
+		Entry entry = entries.get(id);
+		if (entry != null && entry.sending) {
+			entry.sending = false;
+			drainCursor = Math.min(drainCursor, id - 1);
+		}
+	}
+
+	/**
+	 * Return every message taken for sending but not delivered, as the
+	 * connection has been lost
+	 */
+	synchronized void resetSending() {
+		for (Entry entry : entries.values()) {
+			entry.sending = false;
+		}
+		drainCursor = 0;
+	}
+
+	/**
+	 * @return the number of messages held, including those being sent
+	 */
+	synchronized int size() {
+		return entries.size();
+	}
+
+	/**
+	 * Read a message held, by its position in the queue
+	 *
+	 * @param index
+	 *            the position, from 0 for the oldest
+	 * @return the message
+	 * @throws ArrayIndexOutOfBoundsException
+	 *             if there is no such message
+	 * @throws IOException
+	 *             if the message cannot be read
+	 */
+	synchronized MqttMessage get(int index) throws IOException {
+		return readMessage(entryAt(index)).message;
+	}
+
+	/**
+	 * Drop a message held, by its position in the queue
+	 *
+	 * @param index
+	 *            the position, from 0 for the oldest
+	 * @throws ArrayIndexOutOfBoundsException
+	 *             if there is no such message
+	 * @throws IOException
+	 *             if the message's tombstone cannot be written
+	 */
+	synchronized void delete(int index) throws IOException {
+		Entry entry = entryAt(index);
+		appendRemoved(entry.id);
+		removeEntry(entry.id);
+		deleteDrainedSegments();
+	}
+
+	/**
+	 * Find a message by its position - by walking the queue, as positions are
+	 * only asked for when the application looks through the buffer
+	 */
+	private Entry entryAt(int index) {
+		if (index < 0 || index >= entries.size()) {
+			throw new ArrayIndexOutOfBoundsException(index);
+		}
+		Iterator<Entry> it = entries.values().iterator();
+		for (int i = 0; i < index; i++) {
+			it.next();
+		}
+		return it.next();
+	}
+
+	/**
+	 * @return true if there are messages held which are not being sent
+	 */
+	synchronized boolean hasUnsent() {
+		Map.Entry<Long, Entry> next = entries.higherEntry(drainCursor);
+		while (next != null) {
+			if (!next.getValue().sending) {
+				return true;
+			}
+			next = entries.higherEntry(next.getKey());
+		}
+		return false;
+	}
+
+	/**
+	 * @return a snapshot of the buffer's counters
+	 */
+	synchronized OfflineBufferStats getStats() {
+		return new OfflineBufferStats(entries.size(), liveBytes, added,
+				delivered, evicted, refused, conflated);
+	}
+
+	/**
+	 * Force what has been written to disk, and close the files
+	 */
+	synchronized void close() {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		try {
+			activeSegment.channel.force(false);
+		} catch (IOException e) {
+			traceHandler.traceException(TAG, "close", e);
+		}
+		for (Segment segment : segments.values()) {
+			segment.close();
+		}
+	}
+
+	/**
+	 * Read a message held in the log
+	 */
+	private Message readMessage(Entry entry) throws IOException {
+		ByteBuffer record = ByteBuffer.allocate(entry.length);
+		if (!readFully(entry.segment.channel, record, entry.offset)) {
+			throw new IOException("Unexpected end of "
+					+ entry.segment.file.getName());
+		}
+		record.flip();
+		record.position(RECORD_HEADER_BYTES + 1 + 8);
+		int qos = record.get();
+		byte flags = record.get();
+		String topic = getString(record);
+		byte[] payload = new byte[record.getInt()];
+		record.get(payload);
+
+		MqttMessage message = new MqttMessage(payload);
+		message.setQos(qos);
+		message.setRetained((flags & FLAG_RETAINED) != 0);
+		return new Message(entry.id, topic, message);
+	}
+
+	private void addEntry(Entry entry) {
+		entries.put(entry.id, entry);
+		entriesByQos[entry.qos].put(entry.id, entry);
+		entry.segment.liveBytes += entry.length;
+		liveBytes += entry.length;
+		if (conflatedTopics.length > 0) {
+			Entry latest = latestByTopic.get(entry.topic);
+			if ((latest != null && latest.id <= entry.id)
+					|| (latest == null && isConflated(entry.topic))) {
+				latestByTopic.put(entry.topic, entry);
+			}
+		}
+	}
+
+	private Entry removeEntry(long id) {
+		Entry entry = entries.remove(id);
+		if (entry != null) {
+			entriesByQos[entry.qos].remove(id);
+			entry.segment.liveBytes -= entry.length;
+			liveBytes -= entry.length;
+			if (latestByTopic.get(entry.topic) == entry) {
+				latestByTopic.remove(entry.topic);
+			}
+		}
+		return entry;
+	}
+
+	/**
+	 * Delete the oldest segments, for as long as they hold no live messages
+	 */
+	private void deleteDrainedSegments() {
+		while (segments.size() > 1) {
+			Segment oldest = segments.firstEntry().getValue();
+			if (oldest.liveBytes > 0) {
+				return;
+			}
+			deleteSegment(oldest);
+		}
+	}
+
+	/**
+	 * If a few live messages in the oldest segment are keeping much more of
+	 * the log alive, copy them to the end of the log and delete the segment
+	 */
+	private void compactIfWorthwhile() throws IOException {
+		deleteDrainedSegments();
+		if (segments.size() < 3) {
+			return;
+		}
+		Segment oldest = segments.firstEntry().getValue();
+		long size = 0;
+		for (Segment segment : segments.values()) {
+			size += segment.size;
+		}
+		if (oldest.liveBytes * 2 > oldest.size || liveBytes * 2 > size) {
+			return;
+		}
+		Iterator<Entry> it = entries.values().iterator();
+		while (it.hasNext()) {
+			Entry entry = it.next();
+			if (entry.segment != oldest) {
+				continue;
+			}
+			ByteBuffer record = ByteBuffer.allocate(entry.length);
+			if (!readFully(oldest.channel, record, entry.offset)) {
+				throw new IOException("Unexpected end of "
+						+ oldest.file.getName());
+			}
+			record.flip();
+			long offset = append(record);
+			oldest.liveBytes -= entry.length;
+			entry.segment = activeSegment;
+			entry.offset = offset;
+			activeSegment.liveBytes += entry.length;
+		}
+		// the copies must be on disk before the originals go
+		force();
+		deleteSegment(oldest);
+		deleteDrainedSegments();
+	}
+
+	/**
+	 * Delete a segment which is not the active one
+	 */
+	private void deleteSegment(Segment segment) {
+		segments.remove(segment.number);
+		segment.close();
+		if (!segment.file.delete()) {
+			traceHandler.traceError(TAG, "cannot delete "
+					+ segment.file.getName());
+		}
+	}
+
+	private void appendRemoved(long id) throws IOException {
+		ByteBuffer tombstone = newRecord(1 + 8);
+		tombstone.put(RECORD_REMOVED);
+		tombstone.putLong(id);
+		append(seal(tombstone));
+	}
+
+	/**
+	 * Append a record to the active segment, first starting a new segment if
+	 * this one is full, and force the log to disk every so often
+	 *
+	 * @return the offset of the record in the active segment
+	 */
+	private long append(ByteBuffer record) throws IOException {
+		int length = record.remaining();
+		if (activeSegment.size > 0
+				&& activeSegment.size + length > maxSegmentBytes) {
+			force();
+			activeSegment = openSegment(activeSegment.number + 1);
+		}
+		long offset = activeSegment.size;
+		while (record.hasRemaining()) {
+			activeSegment.channel.write(record, offset + length
+					- record.remaining());
+		}
+		activeSegment.size += length;
+		unforcedBytes += length;
+		if (unforcedBytes >= FORCE_INTERVAL_BYTES) {
+			force();
+		}
+		return offset;
+	}
+
+	private void force() throws IOException {
+		activeSegment.channel.force(false);
+		unforcedBytes = 0;
+	}
+
+	private Segment openSegment(long number) throws IOException {
+		Segment segment = new Segment(directory, number);
+		segments.put(number, segment);
+		return segment;
+	}
+
+	/**
+	 * Encode a message as a complete record
+	 */
+	private static ByteBuffer encodeMessage(long id, String topic,
+			MqttMessage message) {
+		byte[] topicBytes = topic.getBytes(UTF8);
+		byte[] payload = message.getPayload();
+		ByteBuffer record = newRecord(1 + 8 + 1 + 1 + 4 + topicBytes.length
+				+ 4 + payload.length);
+		record.put(RECORD_MESSAGE);
+		record.putLong(id);
+		record.put((byte) message.getQos());
+		record.put(message.isRetained() ? FLAG_RETAINED : 0);
+		putBytes(record, topicBytes);
+		putBytes(record, payload);
+		return seal(record);
+	}
+
+	/**
+	 * @return a buffer for a record with a body of the given length,
+	 *         positioned at the start of the body
+	 */
+	private static ByteBuffer newRecord(int bodyLength) {
+		ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_BYTES
+				+ bodyLength);
+		record.putInt(bodyLength);
+		record.putInt(0);
+		return record;
+	}
+
+	/**
+	 * Fill in the checksum of a record whose body has been written, and ready
+	 * it for writing
+	 */
+	private static ByteBuffer seal(ByteBuffer record) {
+		CRC32 crc = new CRC32();
+		crc.update(record.array(), RECORD_HEADER_BYTES, record.position()
+				- RECORD_HEADER_BYTES);
+		record.putInt(4, (int) crc.getValue());
+		record.flip();
+		return record;
+	}
+
+	private static void putBytes(ByteBuffer buffer, byte[] bytes) {
+		buffer.putInt(bytes.length);
+		buffer.put(bytes);
+	}
+
+	private static String getString(ByteBuffer buffer) {
+		byte[] bytes = new byte[buffer.getInt()];
+		buffer.get(bytes);
+		return new String(bytes, UTF8);
+	}
+
+	/**
+	 * Fill a buffer from a channel, starting at a position in the file
+	 *
+	 * @return false if the end of the file was reached first
+	 */
+	private static boolean readFully(FileChannel channel, ByteBuffer buffer,
+			long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, position + buffer.position()) < 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
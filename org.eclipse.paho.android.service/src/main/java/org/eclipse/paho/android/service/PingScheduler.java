@@ -0,0 +1,315 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ */
+package org.eclipse.paho.android.service;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>
+ * When each connection's next keep-alive ping is due, and the one wake-up
+ * that serves them all.
+ * </p>
+ * <p>
+ * A connection asks for its ping a delay from now, its deadline. It may be
+ * pinged late by up to the slack - the least of the slack set and a quarter
+ * of the delay, so that a server waiting one and a half keep-alive intervals
+ * never gives up on it. The wake-up is set for the earliest time any
+ * connection must be pinged by, and every connection whose deadline has
+ * passed by then is pinged in it. Connections with the same keep-alive
+ * interval, once pinged together, stay together, so the device wakes once
+ * an interval rather than once for each connection.
+ * </p>
+ * <p>
+ * Traffic that has kept a connection alive is noted with
+ * {@link #activity(Object, long)}, pushing its deadline back by the time
+ * since it was set. The wake-up is moved only once the earliest time it is
+ * needed has gone back by the slack, or by {@link #MIN_REARM_MILLIS} if that
+ * is more, so steady traffic sets the alarm once a slack rather than once a
+ * packet, and a wake-up that does go off still finds the ping due.
+ * </p>
+ * <p>
+ * The scheduler knows nothing of Android: it is told the time, and sets the
+ * wake-up through an {@link Alarm}.
+ * </p>
+ *
+ * @param <K>
+ *            identifies a connection
+ */
+class PingScheduler<K> {
+
+	/**
+	 * The longest a ping is delayed to share a wake-up, unless set otherwise
+	 */
+	static final long DEFAULT_SLACK_MILLIS = 10000;
+
+	/**
+	 * The least that traffic must push the wake-up back by for it to be moved
+	 */
+	static final long MIN_REARM_MILLIS = 1000;
+
+	/**
+	 * Wakes the device at a given time
+	 */
+	interface Alarm {
+		/**
+		 * Wake at a time, in place of any wake-up set before
+		 *
+		 * @param time
+		 *            when to wake, on the scheduler's clock
+		 */
+		void wakeAt(long time);
+
+		/**
+		 * Do not wake
+		 */
+		void cancel();
+	}
+
+	private static final class Entry {
+		final long delay;
+		final long slack;
+		// the deadline as scheduled, before any traffic
+		final long scheduled;
+		long deadline;
+		long latest;
+
+		Entry(long now, long delay, long slack) {
+			this.delay = delay;
+			this.slack = slack;
+			this.scheduled = now + delay;
+			this.deadline = scheduled;
+			this.latest = scheduled + slack;
+		}
+
+		/**
+		 * @return the number of pings traffic has made unnecessary
+		 */
+		long pingsAvoided() {
+			return delay <= 0 ? 0 : (deadline - scheduled) / delay;
+		}
+	}
+
+	private final Alarm alarm;
+	private final Map<K, Entry> entries = new HashMap<>();
+	private long slackMillis = DEFAULT_SLACK_MILLIS;
+	private long armedAt = Long.MAX_VALUE;
+
+	private long wakeUps = 0;
+	private long pings = 0;
+	private long alarmsSet = 0;
+	private long activityNoted = 0;
+	// the pings avoided by connections since pinged or removed
+	private long pingsAvoided = 0;
+
+	/**
+	 * Constructor
+	 *
+	 * @param alarm
+	 *            sets the wake-ups
+	 */
+	PingScheduler(Alarm alarm) {
+		this.alarm = alarm;
+	}
+
+	/**
+	 * @param slackMillis
+	 *            the longest a ping is delayed to share a wake-up, or 0 to
+	 *            wake for each ping when it is due. It applies to pings
+	 *            scheduled from now on.
+	 */
+	synchronized void setSlack(long slackMillis) {
+		this.slackMillis = Math.max(0, slackMillis);
+	}
+
+	/**
+	 * @return the longest a ping is delayed to share a wake-up
+	 */
+	synchronized long getSlack() {
+		return slackMillis;
+	}
+
+	/**
+	 * Ask for a connection to be pinged, in place of any ping it asked for
+	 * before
+	 *
+	 * @param key
+	 *            the connection
+	 * @param now
+	 *            the time now
+	 * @param delay
+	 *            how long from now the ping is due
+	 */
+	synchronized void schedule(K key, long now, long delay) {
+		long slack = Math.min(slackMillis, delay / 4);
+		finish(entries.put(key, new Entry(now, delay, slack)));
+		arm();
+	}
+
+	/**
+	 * Note that traffic has kept a connection alive, so its ping is not due
+	 * until a delay from now. The wake-up is moved only if it would otherwise
+	 * go off at least the connection's slack early.
+	 *
+	 * @param key
+	 *            the connection
+	 * @param now
+	 *            the time now
+	 */
+	synchronized void activity(K key, long now) {
+		Entry entry = entries.get(key);
+		if (entry == null || now + entry.delay <= entry.deadline) {
+			return;
+		}
+		activityNoted++;
+		entry.deadline = now + entry.delay;
+		entry.latest = entry.deadline + entry.slack;
+		long threshold = Math.max(entry.slack, MIN_REARM_MILLIS);
+		if (entry.latest - armedAt >= threshold
+				&& earliest() - armedAt >= threshold) {
+			arm();
+		}
+	}
+
+	/**
+	 * Stop pinging a connection
+	 *
+	 * @param key
+	 *            the connection
+	 */
+	synchronized void remove(K key) {
+		Entry entry = entries.remove(key);
+		if (entry != null) {
+			finish(entry);
+			arm();
+		}
+	}
+
+	/**
+	 * The device has woken: take the connections whose pings are due, which
+	 * each schedule their next ping once they have sent this one
+	 *
+	 * @param now
+	 *            the time now
+	 * @return the connections to ping, which may be none if the wake-up was
+	 *         for a connection since removed
+	 */
+	synchronized List<K> wake(long now) {
+		armedAt = Long.MAX_VALUE;
+		List<K> due = new ArrayList<>();
+		Iterator<Map.Entry<K, Entry>> it = entries.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<K, Entry> entry = it.next();
+			if (entry.getValue().deadline <= now) {
+				due.add(entry.getKey());
+				finish(entry.getValue());
+				it.remove();
+			}
+		}
+		if (!due.isEmpty()) {
+			wakeUps++;
+			pings += due.size();
+		}
+		arm();
+		return due;
+	}
+
+	/**
+	 * @return the number of connections waiting for a ping
+	 */
+	synchronized int size() {
+		return entries.size();
+	}
+
+	/**
+	 * @return the number of wake-ups in which pings were sent
+	 */
+	synchronized long getWakeUps() {
+		return wakeUps;
+	}
+
+	/**
+	 * @return the number of pings sent
+	 */
+	synchronized long getPings() {
+		return pings;
+	}
+
+	/**
+	 * @return the number of times the wake-up was set
+	 */
+	synchronized long getAlarmsSet() {
+		return alarmsSet;
+	}
+
+	/**
+	 * @return the number of times traffic pushed a connection's ping back
+	 */
+	synchronized long getActivityNoted() {
+		return activityNoted;
+	}
+
+	/**
+	 * @return the number of pings that traffic made unnecessary - for each
+	 *         time a connection was scheduled, the whole delays its deadline
+	 *         was pushed back by
+	 */
+	synchronized long getPingsAvoided() {
+		long avoided = pingsAvoided;
+		for (Entry entry : entries.values()) {
+			avoided += entry.pingsAvoided();
+		}
+		return avoided;
+	}
+
+	/**
+	 * Count the pings a connection's traffic avoided, as it is pinged,
+	 * rescheduled or removed
+	 */
+	private void finish(Entry entry) {
+		if (entry != null) {
+			pingsAvoided += entry.pingsAvoided();
+		}
+	}
+
+	/**
+	 * @return the earliest time a connection must be pinged by
+	 */
+	private long earliest() {
+		long earliest = Long.MAX_VALUE;
+		for (Entry entry : entries.values()) {
+			earliest = Math.min(earliest, entry.latest);
+		}
+		return earliest;
+	}
+
+	/**
+	 * Set the wake-up for the earliest time a connection must be pinged by
+	 */
+	private void arm() {
+		long earliest = earliest();
+		if (earliest == armedAt) {
+			return;
+		}
+		armedAt = earliest;
+		if (earliest == Long.MAX_VALUE) {
+			alarm.cancel();
+		} else {
+			alarmsSet++;
+			alarm.wakeAt(earliest);
+		}
+	}
+}
@@ -0,0 +1,191 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ */
+package org.eclipse.paho.android.service;
+
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import android.os.SystemClock;
+
+/**
+ * <p>
+ * Reconnects the service's connections, a few at a time, backing off with
+ * jitter, on a thread of its own rather than the thread that heard the
+ * network come back.
+ * </p>
+ * <p>
+ * A connection asks with {@link #request(String)}, and a
+ * {@link ReconnectScheduler} decides when it makes each attempt. Each attempt
+ * is reported back with {@link #connected(String)} or
+ * {@link #failed(String)}; a client with automatic reconnect turned on
+ * reports only when it connects, so an attempt of its that fails is counted
+ * when the handshake times out, while the client tries again itself. A
+ * connection that is still connecting when its next attempt is due keeps
+ * waiting for the attempt it is making; one that can no longer reconnect at
+ * all is given up on.
+ * </p>
+ */
+class ReconnectCoordinator implements Runnable {
+	// Identifier for Intents, log messages, etc..
+	private static final String TAG = "ReconnectCoordinator";
+
+	private final MqttService service;
+	private final ReconnectScheduler<String> scheduler = new ReconnectScheduler<>(
+			new Random());
+	private final ScheduledExecutorService executor;
+	private Future<?> next = null;
+
+	/**
+	 * Constructor - starts the coordinator's thread, so {@link #close()} must
+	 * be called when the service is destroyed
+	 *
+	 * @param service
+	 *            the service whose connections are reconnected
+	 */
+	ReconnectCoordinator(MqttService service) {
+		this.service = service;
+		this.executor = Executors
+				.newSingleThreadScheduledExecutor(new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread thread = new Thread(r, MqttService.TAG
+								+ ".reconnect");
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+	}
+
+	/**
+	 * Reconnect a connection, after a random delay
+	 *
+	 * @param clientHandle
+	 *            identifies the connection
+	 */
+	void request(String clientHandle) {
+		scheduler.request(clientHandle, SystemClock.elapsedRealtime());
+		wake();
+	}
+
+	/**
+	 * Stop trying to reconnect a connection
+	 *
+	 * @param clientHandle
+	 *            identifies the connection
+	 */
+	void cancel(String clientHandle) {
+		scheduler.cancel(clientHandle);
+		wake();
+	}
+
+	/**
+	 * Stop trying to reconnect every connection - there is no network
+	 */
+	void clear() {
+		scheduler.clear();
+	}
+
+	/**
+	 * A connection has connected
+	 *
+	 * @param clientHandle
+	 *            identifies the connection
+	 */
+	void connected(String clientHandle) {
+		scheduler.succeeded(clientHandle, SystemClock.elapsedRealtime());
+		wake();
+	}
+
+	/**
+	 * A connection's attempt to reconnect has failed
+	 *
+	 * @param clientHandle
+	 *            identifies the connection
+	 */
+	void failed(String clientHandle) {
+		scheduler.failed(clientHandle, SystemClock.elapsedRealtime());
+		wake();
+	}
+
+	/**
+	 * @see ReconnectScheduler#setBackoff(long, long, int)
+	 */
+	void setBackoff(long baseDelayMillis, long maxDelayMillis,
+			int maxConcurrent) {
+		scheduler.setBackoff(baseDelayMillis, maxDelayMillis, maxConcurrent);
+		wake();
+	}
+
+	/**
+	 * @return a snapshot of the counters
+	 */
+	ReconnectStats getStats() {
+		return scheduler.getStats();
+	}
+
+	/**
+	 * Stop the coordinator's thread
+	 */
+	synchronized void close() {
+		scheduler.clear();
+		executor.shutdownNow();
+	}
+
+	private synchronized void wake() {
+		if (executor.isShutdown()) {
+			return;
+		}
+		if (next != null) {
+			next.cancel(false);
+		}
+		next = executor.submit(this);
+	}
+
+	/**
+	 * Start the attempts now due, and poll again when the next is
+	 */
+	@Override
+	public void run() {
+		for (String clientHandle : scheduler.poll(SystemClock
+				.elapsedRealtime())) {
+			MqttConnection connection = service.findConnection(clientHandle);
+			if (connection == null || !service.isOnline()
+					|| !connection.canReconnect()) {
+				service.traceDebug(TAG, "Not reconnecting " + clientHandle);
+				scheduler.cancel(clientHandle);
+			} else if (connection.isConnecting()) {
+				// an attempt that outlived the handshake timeout is still
+				// running, and reports how it ends
+				service.traceDebug(TAG, "Still connecting " + clientHandle);
+			} else if (!connection.reconnect()) {
+				scheduler.failed(clientHandle, SystemClock.elapsedRealtime());
+			}
+		}
+		synchronized (this) {
+			long at = scheduler.nextPollAt();
+			if (next != null) {
+				next.cancel(false);
+				next = null;
+			}
+			if (at >= 0 && !executor.isShutdown()) {
+				next = executor.schedule(this,
+						Math.max(0, at - SystemClock.elapsedRealtime()),
+						TimeUnit.MILLISECONDS);
+			}
+		}
+	}
+}
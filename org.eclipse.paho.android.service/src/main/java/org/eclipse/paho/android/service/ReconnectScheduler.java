@@ -0,0 +1,322 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ */
+package org.eclipse.paho.android.service;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * <p>
+ * When each connection that needs to reconnect makes its next attempt.
+ * </p>
+ * <p>
+ * A connection asks to reconnect and waits a random time, up to the base
+ * delay, before its first attempt. Each attempt that fails doubles the most
+ * it may wait before the next, up to the maximum delay, and it waits a random
+ * time up to that ("full jitter"). So devices that all get their network back
+ * at the same moment, after a cell tower outage, say, do not all reach for the
+ * server together, and back off further while the server is overwhelmed.
+ * </p>
+ * <p>
+ * No more than a set number of handshakes are in progress at once. A
+ * connection that is due waits for one of them to finish, and one that has
+ * not heard of its attempt's outcome within the handshake timeout counts it
+ * as having failed.
+ * </p>
+ * <p>
+ * The scheduler knows nothing of Android, or of how a connection is made: it
+ * is told the time, is polled for the connections that should attempt now,
+ * and told how each attempt went.
+ * </p>
+ *
+ * @param <K>
+ *            identifies a connection
+ */
+class ReconnectScheduler<K> {
+
+	/**
+	 * The most a connection waits before its first attempt, unless set
+	 * otherwise
+	 */
+	static final long DEFAULT_BASE_DELAY_MILLIS = 1000;
+
+	/**
+	 * The most a connection waits between attempts, unless set otherwise -
+	 * the same as the client's own automatic reconnect
+	 */
+	static final long DEFAULT_MAX_DELAY_MILLIS = 128000;
+
+	/**
+	 * The number of handshakes in progress at once, unless set otherwise
+	 */
+	static final int DEFAULT_MAX_CONCURRENT = 2;
+
+	/**
+	 * How long an attempt is waited for before it is counted as failed -
+	 * longer than the client's default connection timeout of 30 seconds, so
+	 * that the client gives up on a handshake first and reports it
+	 */
+	static final long HANDSHAKE_TIMEOUT_MILLIS = 60000;
+
+	/**
+	 * A connection waiting to reconnect
+	 */
+	private static final class Entry {
+		final long lostAt;
+		int failures = 0;
+		long due;
+		boolean connecting = false;
+		long startedAt;
+
+		Entry(long lostAt) {
+			this.lostAt = lostAt;
+		}
+	}
+
+	private static final Comparator<Map.Entry<?, Entry>> BY_DUE = new Comparator<Map.Entry<?, Entry>>() {
+		@Override
+		public int compare(Map.Entry<?, Entry> first,
+				Map.Entry<?, Entry> second) {
+			// not Long.compare, which is only from API level 19
+			long a = first.getValue().due;
+			long b = second.getValue().due;
+			return a < b ? -1 : (a == b ? 0 : 1);
+		}
+	};
+
+	private final Random random;
+	private final Map<K, Entry> entries = new LinkedHashMap<>();
+	private long baseDelay = DEFAULT_BASE_DELAY_MILLIS;
+	private long maxDelay = DEFAULT_MAX_DELAY_MILLIS;
+	private int maxConcurrent = DEFAULT_MAX_CONCURRENT;
+	private int connecting = 0;
+
+	private long attempts = 0;
+	private long successes = 0;
+	private long failures = 0;
+	private long timeouts = 0;
+	private long reconnectMillis = 0;
+	private long maxReconnectMillis = 0;
+
+	/**
+	 * @param random
+	 *            where the jitter comes from
+	 */
+	ReconnectScheduler(Random random) {
+		this.random = random;
+	}
+
+	/**
+	 * Set how connections back off, for their next attempts
+	 *
+	 * @param baseDelayMillis
+	 *            the most a connection waits before its first attempt
+	 * @param maxDelayMillis
+	 *            the most a connection waits between attempts
+	 * @param maxConcurrent
+	 *            the number of handshakes in progress at once
+	 * @throws IllegalArgumentException
+	 *             if a delay is not positive, the maximum is less than the
+	 *             base, or maxConcurrent is less than 1
+	 */
+	synchronized void setBackoff(long baseDelayMillis, long maxDelayMillis,
+			int maxConcurrent) {
+		if (baseDelayMillis <= 0 || maxDelayMillis < baseDelayMillis
+				|| maxConcurrent < 1) {
+			throw new IllegalArgumentException();
+		}
+		this.baseDelay = baseDelayMillis;
+		this.maxDelay = maxDelayMillis;
+		this.maxConcurrent = maxConcurrent;
+	}
+
+	/**
+	 * A connection needs to reconnect. If it is already waiting, it carries
+	 * on with the attempts it has made.
+	 *
+	 * @param key
+	 *            the connection
+	 * @param now
+	 *            the time, in milliseconds
+	 */
+	synchronized void request(K key, long now) {
+		if (!entries.containsKey(key)) {
+			Entry entry = new Entry(now);
+			entry.due = now + delay(0);
+			entries.put(key, entry);
+		}
+	}
+
+	/**
+	 * A connection no longer needs to reconnect - any attempt in progress is
+	 * no longer counted
+	 *
+	 * @param key
+	 *            the connection
+	 */
+	synchronized void cancel(K key) {
+		Entry entry = entries.remove(key);
+		if (entry != null && entry.connecting) {
+			connecting--;
+		}
+	}
+
+	/**
+	 * No connection needs to reconnect - there is no network
+	 */
+	synchronized void clear() {
+		entries.clear();
+		connecting = 0;
+	}
+
+	/**
+	 * Find the connections that should attempt to reconnect now, and count
+	 * them as connecting
+	 *
+	 * @param now
+	 *            the time, in milliseconds
+	 * @return the connections, those that have been due longest first
+	 */
+	synchronized List<K> poll(long now) {
+		List<Map.Entry<K, Entry>> due = new ArrayList<>();
+		for (Map.Entry<K, Entry> each : entries.entrySet()) {
+			Entry entry = each.getValue();
+			if (entry.connecting
+					&& now - entry.startedAt >= HANDSHAKE_TIMEOUT_MILLIS) {
+				timeouts++;
+				fail(entry, now);
+			}
+			if (!entry.connecting && entry.due <= now) {
+				due.add(each);
+			}
+		}
+		Collections.sort(due, BY_DUE);
+		List<K> keys = new ArrayList<>();
+		Iterator<Map.Entry<K, Entry>> iterator = due.iterator();
+		while (connecting < maxConcurrent && iterator.hasNext()) {
+			Map.Entry<K, Entry> each = iterator.next();
+			Entry entry = each.getValue();
+			entry.connecting = true;
+			entry.startedAt = now;
+			connecting++;
+			attempts++;
+			keys.add(each.getKey());
+		}
+		return keys;
+	}
+
+	/**
+	 * A connection has connected, whether by an attempt it was polled for or
+	 * not
+	 *
+	 * @param key
+	 *            the connection
+	 * @param now
+	 *            the time, in milliseconds
+	 */
+	synchronized void succeeded(K key, long now) {
+		Entry entry = entries.remove(key);
+		if (entry == null) {
+			return;
+		}
+		if (entry.connecting) {
+			connecting--;
+		}
+		successes++;
+		long took = now - entry.lostAt;
+		reconnectMillis += took;
+		maxReconnectMillis = Math.max(maxReconnectMillis, took);
+	}
+
+	/**
+	 * A connection's attempt has failed - it backs off before the next
+	 *
+	 * @param key
+	 *            the connection
+	 * @param now
+	 *            the time, in milliseconds
+	 */
+	synchronized void failed(K key, long now) {
+		Entry entry = entries.get(key);
+		if (entry != null && entry.connecting) {
+			fail(entry, now);
+		}
+	}
+
+	private void fail(Entry entry, long now) {
+		entry.connecting = false;
+		connecting--;
+		failures++;
+		entry.failures++;
+		entry.due = now + delay(entry.failures);
+	}
+
+	/**
+	 * @return a random delay, up to the base delay doubled for each failure,
+	 *         or the maximum delay if that is less
+	 */
+	private long delay(int failed) {
+		long ceiling = baseDelay;
+		for (int i = 0; i < failed && ceiling < maxDelay; i++) {
+			ceiling *= 2;
+		}
+		ceiling = Math.min(ceiling, maxDelay);
+		return (long) (random.nextDouble() * ceiling);
+	}
+
+	/**
+	 * @return when next to poll, in milliseconds - the earliest that a waiting
+	 *         connection is due, if a handshake may start, or an attempt in
+	 *         progress times out - or -1 if no connection needs to reconnect
+	 */
+	synchronized long nextPollAt() {
+		long next = -1;
+		for (Entry entry : entries.values()) {
+			long at;
+			if (entry.connecting) {
+				at = entry.startedAt + HANDSHAKE_TIMEOUT_MILLIS;
+			} else if (connecting < maxConcurrent) {
+				at = entry.due;
+			} else {
+				continue;
+			}
+			if (next < 0 || at < next) {
+				next = at;
+			}
+		}
+		return next;
+	}
+
+	/**
+	 * @return the number of connections that need to reconnect
+	 */
+	synchronized int size() {
+		return entries.size();
+	}
+
+	/**
+	 * @return a snapshot of the counters
+	 */
+	synchronized ReconnectStats getStats() {
+		return new ReconnectStats(attempts, successes, failures, timeouts,
+				entries.size() - connecting, connecting,
+				successes == 0 ? 0 : reconnectMillis / successes,
+				maxReconnectMillis, baseDelay, maxDelay, maxConcurrent);
+	}
+}
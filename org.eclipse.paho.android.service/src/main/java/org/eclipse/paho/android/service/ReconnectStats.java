@@ -0,0 +1,145 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ */
+package org.eclipse.paho.android.service;
+
+/**
+ * A snapshot of the attempts the service has made to reconnect its
+ * connections, and how long they took to reconnect, from
+ * {@link MqttAndroidClient#getReconnectStats()}. The counts are since the
+ * service was created.
+ */
+public final class ReconnectStats {
+
+	private final long attempts;
+	private final long successes;
+	private final long failures;
+	private final long timeouts;
+	private final int waiting;
+	private final int connecting;
+	private final long meanTimeToReconnectMillis;
+	private final long maxTimeToReconnectMillis;
+	private final long baseDelayMillis;
+	private final long maxDelayMillis;
+	private final int maxConcurrent;
+
+	ReconnectStats(long attempts, long successes, long failures,
+			long timeouts, int waiting, int connecting,
+			long meanTimeToReconnectMillis, long maxTimeToReconnectMillis,
+			long baseDelayMillis, long maxDelayMillis, int maxConcurrent) {
+		this.attempts = attempts;
+		this.successes = successes;
+		this.failures = failures;
+		this.timeouts = timeouts;
+		this.waiting = waiting;
+		this.connecting = connecting;
+		this.meanTimeToReconnectMillis = meanTimeToReconnectMillis;
+		this.maxTimeToReconnectMillis = maxTimeToReconnectMillis;
+		this.baseDelayMillis = baseDelayMillis;
+		this.maxDelayMillis = maxDelayMillis;
+		this.maxConcurrent = maxConcurrent;
+	}
+
+	/**
+	 * @return the number of attempts made to reconnect
+	 */
+	public long getAttempts() {
+		return attempts;
+	}
+
+	/**
+	 * @return the number of times a connection waiting to reconnect was
+	 *         connected
+	 */
+	public long getSuccesses() {
+		return successes;
+	}
+
+	/**
+	 * @return the number of attempts that failed, including those that timed
+	 *         out
+	 */
+	public long getFailures() {
+		return failures;
+	}
+
+	/**
+	 * @return the number of attempts whose outcome was not heard of in time,
+	 *         and were counted as failed
+	 */
+	public long getTimeouts() {
+		return timeouts;
+	}
+
+	/**
+	 * @return the number of connections waiting to make an attempt
+	 */
+	public int getWaiting() {
+		return waiting;
+	}
+
+	/**
+	 * @return the number of attempts in progress
+	 */
+	public int getConnecting() {
+		return connecting;
+	}
+
+	/**
+	 * @return the mean time from a connection needing to reconnect to it
+	 *         being connected, or 0 if none has been
+	 */
+	public long getMeanTimeToReconnectMillis() {
+		return meanTimeToReconnectMillis;
+	}
+
+	/**
+	 * @return the longest time from a connection needing to reconnect to it
+	 *         being connected
+	 */
+	public long getMaxTimeToReconnectMillis() {
+		return maxTimeToReconnectMillis;
+	}
+
+	/**
+	 * @return the most a connection waits before its first attempt
+	 */
+	public long getBaseDelayMillis() {
+		return baseDelayMillis;
+	}
+
+	/**
+	 * @return the most a connection waits between attempts
+	 */
+	public long getMaxDelayMillis() {
+		return maxDelayMillis;
+	}
+
+	/**
+	 * @return the number of attempts allowed in progress at once
+	 */
+	public int getMaxConcurrent() {
+		return maxConcurrent;
+	}
+
+	@Override
+	public String toString() {
+		return "ReconnectStats [attempts=" + attempts + ", successes="
+				+ successes + ", failures=" + failures + ", timeouts="
+				+ timeouts + ", waiting=" + waiting + ", connecting="
+				+ connecting + ", meanTimeToReconnectMillis="
+				+ meanTimeToReconnectMillis + ", maxTimeToReconnectMillis="
+				+ maxTimeToReconnectMillis + ", baseDelayMillis="
+				+ baseDelayMillis + ", maxDelayMillis=" + maxDelayMillis
+				+ ", maxConcurrent=" + maxConcurrent + "]";
+	}
+}
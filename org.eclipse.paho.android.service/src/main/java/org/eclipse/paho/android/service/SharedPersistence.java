@@ -0,0 +1,99 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ */
+package org.eclipse.paho.android.service;
+
+import java.util.Enumeration;
+
+import org.eclipse.paho.client.mqttv3.MqttClientPersistence;
+import org.eclipse.paho.client.mqttv3.MqttPersistable;
+import org.eclipse.paho.client.mqttv3.MqttPersistenceException;
+
+/**
+ * <p>
+ * A connection's persistence, which two clients for the connection may have
+ * open at once.
+ * </p>
+ * <p>
+ * While a connection is handed over to a new network, the client on the new
+ * network is made before the one on the old is closed, and both use the
+ * connection's persistence. A persistence may only be opened once - a file
+ * persistence locks its directory - so this opens it for the first client
+ * and closes it after the last.
+ * </p>
+ */
+class SharedPersistence implements MqttClientPersistence {
+
+	private final MqttClientPersistence persistence;
+	private int opened = 0;
+
+	/**
+	 * Constructor
+	 *
+	 * @param persistence
+	 *            the persistence to share
+	 */
+	SharedPersistence(MqttClientPersistence persistence) {
+		this.persistence = persistence;
+	}
+
+	@Override
+	public synchronized void open(String clientId, String serverURI)
+			throws MqttPersistenceException {
+		if (opened == 0) {
+			persistence.open(clientId, serverURI);
+		}
+		opened++;
+	}
+
+	@Override
+	public synchronized void close() throws MqttPersistenceException {
+		if (opened == 0) {
+			return;
+		}
+		if (--opened == 0) {
+			persistence.close();
+		}
+	}
+
+	@Override
+	public void put(String key, MqttPersistable persistable)
+			throws MqttPersistenceException {
+		persistence.put(key, persistable);
+	}
+
+	@Override
+	public MqttPersistable get(String key) throws MqttPersistenceException {
+		return persistence.get(key);
+	}
+
+	@Override
+	public void remove(String key) throws MqttPersistenceException {
+		persistence.remove(key);
+	}
+
+	@Override
+	@SuppressWarnings("rawtypes")
+	public Enumeration keys() throws MqttPersistenceException {
+		return persistence.keys();
+	}
+
+	@Override
+	public void clear() throws MqttPersistenceException {
+		persistence.clear();
+	}
+
+	@Override
+	public boolean containsKey(String key) throws MqttPersistenceException {
+		return persistence.containsKey(key);
+	}
+}
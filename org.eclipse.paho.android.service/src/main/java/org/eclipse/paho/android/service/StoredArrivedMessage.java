@@ -0,0 +1,53 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ */
+package org.eclipse.paho.android.service;
+
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+
+/**
+ * An arrived message, as held by a {@link MessageStore}
+ */
+class StoredArrivedMessage implements MessageStore.StoredMessage {
+	private final String messageId;
+	private final String clientHandle;
+	private final String topic;
+	private final MqttMessage message;
+
+	StoredArrivedMessage(String messageId, String clientHandle, String topic,
+			MqttMessage message) {
+		this.messageId = messageId;
+		this.clientHandle = clientHandle;
+		this.topic = topic;
+		this.message = message;
+	}
+
+	@Override
+	public String getMessageId() {
+		return messageId;
+	}
+
+	@Override
+	public String getClientHandle() {
+		return clientHandle;
+	}
+
+	@Override
+	public String getTopic() {
+		return topic;
+	}
+
+	@Override
+	public MqttMessage getMessage() {
+		return message;
+	}
+}
@@ -0,0 +1,191 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ */
+package org.eclipse.paho.android.service;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.eclipse.paho.client.mqttv3.MqttTopic;
+
+/**
+ * <p>
+ * The topic filters a client has subscribed to with a message listener, and
+ * the identifier of each filter's listener, so that the service can tell the
+ * client which listeners an arrived message is for.
+ * </p>
+ * <p>
+ * Filters are held in a trie, one level to a node, with "+" and "#" held as
+ * levels of their own. A topic is matched by following, at each of its
+ * levels, the child for that level and the "+" and "#" children - so the
+ * cost depends on the depth of the topic rather than on the number of
+ * filters. As at the server, first-level wildcards do not match topics
+ * starting with "$".
+ * </p>
+ */
+class SubscriptionTrie {
+
+	private static final int[] NONE = new int[0];
+
+	/**
+	 * One level of a topic filter, and the listener of the filter ending
+	 * there, if any
+	 */
+	private static final class Node {
+		final Node parent;
+		final String level;
+		final Map<String, Node> children = new HashMap<>(4);
+		boolean subscribed;
+		int listenerId;
+
+		Node(Node parent, String level) {
+			this.parent = parent;
+			this.level = level;
+		}
+	}
+
+	private final Node root = new Node(null, null);
+	private int size = 0;
+
+	/**
+	 * Route messages matching a filter to a listener, in place of any listener
+	 * the filter had before
+	 *
+	 * @param topicFilter
+	 *            the topic filter, which may contain wildcards
+	 * @param listenerId
+	 *            identifies the listener to the client
+	 * @throws IllegalArgumentException
+	 *             if the filter is not a valid topic filter
+	 */
+	synchronized void add(String topicFilter, int listenerId) {
+		MqttTopic.validate(topicFilter, true);
+		Node node = root;
+		for (String level : topicFilter.split("/", -1)) {
+			Node child = node.children.get(level);
+			if (child == null) {
+				child = new Node(node, level);
+				node.children.put(level, child);
+			}
+			node = child;
+		}
+		if (!node.subscribed) {
+			node.subscribed = true;
+			size++;
+		}
+		node.listenerId = listenerId;
+	}
+
+	/**
+	 * Stop routing messages matching a filter
+	 *
+	 * @param topicFilter
+	 *            the topic filter, exactly as it was added
+	 * @return true if the filter was held
+	 */
+	synchronized boolean remove(String topicFilter) {
+		Node node = root;
+		for (String level : topicFilter.split("/", -1)) {
+			node = node.children.get(level);
+			if (node == null) {
+				return false;
+			}
+		}
+		if (!node.subscribed) {
+			return false;
+		}
+		node.subscribed = false;
+		size--;
+		// prune the nodes left with nothing below them
+		while (node.parent != null && !node.subscribed
+				&& node.children.isEmpty()) {
+			node.parent.children.remove(node.level);
+			node = node.parent;
+		}
+		return true;
+	}
+
+	/**
+	 * @param topic
+	 *            the topic a message arrived on
+	 * @return the identifiers of the listeners of every filter matching the
+	 *         topic, in ascending order, or an empty array if there are none
+	 */
+	synchronized int[] match(String topic) {
+		if (size == 0) {
+			return NONE;
+		}
+		int[] ids = new int[4];
+		int count = match(root, topic.split("/", -1), 0, ids, 0);
+		if (count == 0) {
+			return NONE;
+		}
+		if (count > ids.length) {
+			// more filters matched than there was room for - count again
+			ids = new int[count];
+			match(root, topic.split("/", -1), 0, ids, 0);
+		}
+		ids = Arrays.copyOf(ids, count);
+		Arrays.sort(ids);
+		return ids;
+	}
+
+	/**
+	 * @return the number of filters held
+	 */
+	synchronized int size() {
+		return size;
+	}
+
+	/**
+	 * Add the listeners matching the levels of a topic from a given depth
+	 *
+	 * @return the number of listeners found so far, which may be more than
+	 *         the length of ids, in which case the extra were not stored
+	 */
+	private int match(Node node, String[] levels, int depth, int[] ids,
+			int count) {
+		// "#" also matches the parent level, as "a/#" matches "a"
+		boolean dollar = depth == 0 && levels[0].startsWith("$");
+		if (!dollar) {
+			Node multi = node.children.get("#");
+			if (multi != null && multi.subscribed) {
+				count = add(ids, count, multi.listenerId);
+			}
+		}
+		if (depth == levels.length) {
+			if (node.subscribed) {
+				count = add(ids, count, node.listenerId);
+			}
+			return count;
+		}
+		Node child = node.children.get(levels[depth]);
+		if (child != null) {
+			count = match(child, levels, depth + 1, ids, count);
+		}
+		if (!dollar) {
+			Node single = node.children.get("+");
+			if (single != null) {
+				count = match(single, levels, depth + 1, ids, count);
+			}
+		}
+		return count;
+	}
+
+	private static int add(int[] ids, int count, int id) {
+		if (count < ids.length) {
+			ids[count] = id;
+		}
+		return count + 1;
+	}
+}
@@ -0,0 +1,333 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ */
+package org.eclipse.paho.android.service;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.eclipse.paho.client.mqttv3.MqttTopic;
+
+/**
+ * <p>
+ * Aggregates the numbers arriving on the topic filters a client has set
+ * {@link AggregationOptions} for, one window at a time, so that a summary of
+ * each topic can be passed on in place of its messages.
+ * </p>
+ * <p>
+ * Once a topic has been seen, adding a message to its window is a lookup by
+ * topic and a few arithmetic operations - the payload is read in place, and
+ * nothing is allocated. The filter is matched, in the
+ * {@link SubscriptionTrie}, only for a topic's first message in a window. A
+ * topic with no messages in a window is forgotten when the window closes, so
+ * only the topics active lately are held. When a topic matches several
+ * filters, the one set first aggregates it.
+ * </p>
+ */
+class TelemetryAggregator {
+
+	/**
+	 * The topics aggregated for one filter, and when their window opened
+	 */
+	private static final class Aggregation {
+		final String topicFilter;
+		final AggregationFormat format;
+		final Map<String, Window> windows = new HashMap<>();
+		long openedAt;
+
+		Aggregation(String topicFilter, AggregationOptions options,
+				long openedAt) {
+			this.topicFilter = topicFilter;
+			this.format = options.getFormat();
+			this.openedAt = openedAt;
+		}
+	}
+
+	/**
+	 * The aggregates of one topic in the current window
+	 */
+	private static final class Window {
+		final Aggregation aggregation;
+		final String topic;
+		long count;
+		long unparsed;
+		double min;
+		double max;
+		double sum;
+		double last;
+
+		Window(Aggregation aggregation, String topic) {
+			this.aggregation = aggregation;
+			this.topic = topic;
+			reset();
+		}
+
+		void add(double value) {
+			if (Double.isNaN(value)) {
+				unparsed++;
+				return;
+			}
+			count++;
+			if (value < min) {
+				min = value;
+			}
+			if (value > max) {
+				max = value;
+			}
+			sum += value;
+			last = value;
+		}
+
+		boolean isEmpty() {
+			return count == 0 && unparsed == 0;
+		}
+
+		void reset() {
+			count = 0;
+			unparsed = 0;
+			min = Double.POSITIVE_INFINITY;
+			max = Double.NEGATIVE_INFINITY;
+			sum = 0;
+			last = Double.NaN;
+		}
+	}
+
+	private final SubscriptionTrie filters = new SubscriptionTrie();
+	private final Map<Integer, Aggregation> aggregations = new HashMap<>();
+	private final Map<String, Integer> idsByFilter = new HashMap<>();
+	private final Map<String, Window> windowsByTopic = new HashMap<>();
+	private int nextId = 0;
+
+	/**
+	 * Aggregate the messages arriving on a topic filter, in place of any
+	 * aggregation it had before
+	 *
+	 * @param topicFilter
+	 *            the topic filter, which may contain wildcards
+	 * @param options
+	 *            the window and format, or null to stop aggregating
+	 * @param now
+	 *            the time, in milliseconds since the epoch, at which the
+	 *            first window opens
+	 * @throws IllegalArgumentException
+	 *             if the filter is not a valid topic filter
+	 */
+	synchronized void setAggregation(String topicFilter,
+			AggregationOptions options, long now) {
+		MqttTopic.validate(topicFilter, true);
+		Integer id = idsByFilter.remove(topicFilter);
+		if (id != null) {
+			Aggregation removed = aggregations.remove(id);
+			filters.remove(topicFilter);
+			for (String topic : removed.windows.keySet()) {
+				windowsByTopic.remove(topic);
+			}
+		}
+		if (options != null) {
+			id = ++nextId;
+			aggregations.put(id, new Aggregation(topicFilter, options, now));
+			idsByFilter.put(topicFilter, id);
+			filters.add(topicFilter, id);
+		}
+	}
+
+	/**
+	 * Add an arrived message to its topic's window, if the topic is
+	 * aggregated
+	 *
+	 * @param topic
+	 *            the topic the message arrived on
+	 * @param payload
+	 *            the message's payload, which is not kept
+	 * @return true if the message was aggregated, and so needs no more
+	 *         handling
+	 */
+	synchronized boolean add(String topic, byte[] payload) {
+		Window window = windowsByTopic.get(topic);
+		if (window == null) {
+			if (aggregations.isEmpty()) {
+				return false;
+			}
+			int[] ids = filters.match(topic);
+			if (ids.length == 0) {
+				return false;
+			}
+			// the ids are ascending, so this is the filter set first
+			Aggregation aggregation = aggregations.get(ids[0]);
+			window = new Window(aggregation, topic);
+			aggregation.windows.put(topic, window);
+			windowsByTopic.put(topic, window);
+		}
+		window.add(parse(window.aggregation.format, payload));
+		return true;
+	}
+
+	/**
+	 * Close the current window of a topic filter, and open the next
+	 *
+	 * @param topicFilter
+	 *            the topic filter, exactly as it was set
+	 * @param now
+	 *            the time, in milliseconds since the epoch
+	 * @return a summary of each topic which had messages in the window, or an
+	 *         empty list if there were none or the filter is not aggregated
+	 */
+	synchronized List<AggregateSummary> closeWindows(String topicFilter,
+			long now) {
+		Integer id = idsByFilter.get(topicFilter);
+		if (id == null) {
+			return new ArrayList<>(0);
+		}
+		Aggregation aggregation = aggregations.get(id);
+		List<AggregateSummary> summaries = new ArrayList<>(
+				aggregation.windows.size());
+		Iterator<Window> it = aggregation.windows.values().iterator();
+		while (it.hasNext()) {
+			Window window = it.next();
+			if (window.isEmpty()) {
+				it.remove();
+				windowsByTopic.remove(window.topic);
+				continue;
+			}
+			boolean none = window.count == 0;
+			summaries.add(new AggregateSummary(topicFilter, window.topic,
+					aggregation.openedAt, now, window.count, window.unparsed,
+					none ? Double.NaN : window.min, none ? Double.NaN
+							: window.max, window.sum, window.last));
+			window.reset();
+		}
+		aggregation.openedAt = now;
+		return summaries;
+	}
+
+	/**
+	 * @return the number of topics with a window open
+	 */
+	synchronized int size() {
+		return windowsByTopic.size();
+	}
+
+	/**
+	 * Read a payload as a number
+	 *
+	 * @return the number, or NaN if the payload is not one
+	 */
+	static double parse(AggregationFormat format, byte[] payload) {
+		switch (format) {
+		case INT32:
+			return payload.length == 4 ? (double) readInt(payload, 0)
+					: Double.NaN;
+		case INT64:
+			return payload.length == 8 ? (double) readLong(payload)
+					: Double.NaN;
+		case FLOAT32:
+			return payload.length == 4 ? (double) Float
+					.intBitsToFloat(readInt(payload, 0)) : Double.NaN;
+		case FLOAT64:
+			return payload.length == 8 ? Double
+					.longBitsToDouble(readLong(payload)) : Double.NaN;
+		default:
+			return parseText(payload);
+		}
+	}
+
+	private static int readInt(byte[] payload, int offset) {
+		return (payload[offset] & 0xff) << 24
+				| (payload[offset + 1] & 0xff) << 16
+				| (payload[offset + 2] & 0xff) << 8
+				| (payload[offset + 3] & 0xff);
+	}
+
+	private static long readLong(byte[] payload) {
+		return ((long) readInt(payload, 0) << 32)
+				| (readInt(payload, 4) & 0xffffffffL);
+	}
+
+	/**
+	 * Read a decimal number, such as "-12.5e3", from ASCII without making a
+	 * String of it
+	 */
+	static double parseText(byte[] payload) {
+		int i = 0;
+		int end = payload.length;
+		while (i < end && isSpace(payload[i])) {
+			i++;
+		}
+		while (end > i && isSpace(payload[end - 1])) {
+			end--;
+		}
+		boolean negative = false;
+		if (i < end && (payload[i] == '-' || payload[i] == '+')) {
+			negative = payload[i] == '-';
+			i++;
+		}
+		long mantissa = 0;
+		int scale = 0;
+		int digits = 0;
+		boolean point = false;
+		for (; i < end; i++) {
+			byte b = payload[i];
+			if (b >= '0' && b <= '9') {
+				digits++;
+				if (mantissa < 100000000000000000L) {
+					mantissa = mantissa * 10 + (b - '0');
+					if (point) {
+						scale--;
+					}
+				} else if (!point) {
+					// beyond the precision kept, but still counts
+					scale++;
+				}
+			} else if (b == '.' && !point) {
+				point = true;
+			} else {
+				break;
+			}
+		}
+		if (digits == 0) {
+			return Double.NaN;
+		}
+		if (i < end && (payload[i] == 'e' || payload[i] == 'E')) {
+			i++;
+			boolean negativeExponent = false;
+			if (i < end && (payload[i] == '-' || payload[i] == '+')) {
+				negativeExponent = payload[i] == '-';
+				i++;
+			}
+			int exponent = 0;
+			int exponentDigits = 0;
+			for (; i < end && payload[i] >= '0' && payload[i] <= '9'; i++) {
+				if (exponent < 10000) {
+					exponent = exponent * 10 + (payload[i] - '0');
+				}
+				exponentDigits++;
+			}
+			if (exponentDigits == 0) {
+				return Double.NaN;
+			}
+			scale += negativeExponent ? -exponent : exponent;
+		}
+		if (i != end) {
+			return Double.NaN;
+		}
+		double value = scale == 0 ? mantissa : scale > 0 ? mantissa
+				* Math.pow(10, scale) : mantissa / Math.pow(10, -scale);
+		return negative ? -value : value;
+	}
+
+	private static boolean isSpace(byte b) {
+		return b == ' ' || b == '\t' || b == '\r' || b == '\n';
+	}
+}
@@ -0,0 +1,121 @@
+/*******************************************************************************
+ * Copyright (c) 2016 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *   http://www.eclipse.org/org/documents/edl-v10.php.
+ */
+package org.eclipse.paho.android.service;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * <p>
+ * Holds the tokens of outstanding operations, each under an int key which is
+ * passed to the service and comes back as the operation's
+ * {@link MqttServiceConstants#CALLBACK_ACTIVITY_TOKEN}, without locking.
+ * </p>
+ * <p>
+ * Keys are handed out in sequence, and key n is held in slot n % capacity,
+ * so while fewer than <code>capacity</code> operations are outstanding each
+ * put and remove is a single compare-and-set. If a slot is still held by an
+ * older operation when its turn comes round again, the newer entry goes to an
+ * overflow map instead.
+ * </p>
+ * <p>
+ * Key {@link MqttServiceConstants#NO_ACTIVITY_TOKEN} is never handed out.
+ * </p>
+ *
+ * @param <T> the type of token held
+ */
+class TokenTable<T> {
+
+	private static final class Entry<T> {
+		final int key;
+		final T value;
+
+		Entry(int key, T value) {
+			this.key = key;
+			this.value = value;
+		}
+	}
+
+	private final AtomicInteger nextKey = new AtomicInteger(
+			MqttServiceConstants.NO_ACTIVITY_TOKEN);
+	private final AtomicReferenceArray<Entry<T>> slots;
+	private final int mask;
+	private final ConcurrentHashMap<Integer, T> overflow = new ConcurrentHashMap<>();
+
+	/**
+	 * Constructor
+	 *
+	 * @param capacity
+	 *            the number of slots, rounded up to a power of two
+	 */
+	TokenTable(int capacity) {
+		int size = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+		slots = new AtomicReferenceArray<>(size);
+		mask = size - 1;
+	}
+
+	/**
+	 * Hold a token
+	 *
+	 * @param value
+	 *            the token
+	 * @return the key to get it back with
+	 */
+	int put(T value) {
+		int key = nextKey.incrementAndGet();
+		if (key == MqttServiceConstants.NO_ACTIVITY_TOKEN) {
+			// wrapped all the way round
+			key = nextKey.incrementAndGet();
+		}
+		if (!slots.compareAndSet(key & mask, null, new Entry<>(key, value))) {
+			overflow.put(key, value);
+		}
+		return key;
+	}
+
+	/**
+	 * @param key
+	 *            a key returned by {@link #put(Object)}
+	 * @return the token held under the key, or null if there is none
+	 */
+	T get(int key) {
+		Entry<T> entry = slots.get(key & mask);
+		if (entry != null && entry.key == key) {
+			return entry.value;
+		}
+		return overflow.isEmpty() ? null : overflow.get(key);
+	}
+
+	/**
+	 * @param key
+	 *            a key returned by {@link #put(Object)}
+	 * @return the token held under the key, which is no longer held, or null
+	 *         if there is none
+	 */
+	T remove(int key) {
+		int index = key & mask;
+		Entry<T> entry = slots.get(index);
+		if (entry != null && entry.key == key) {
+			return slots.compareAndSet(index, entry, null) ? entry.value : null;
+		}
+		return overflow.isEmpty() ? null : overflow.remove(key);
+	}
+
+	/**
+	 * @return the number of tokens held in the overflow map
+	 */
+	int overflowSize() {
+		return overflow.size();
+	}
+}
@@ -0,0 +1,317 @@
+package org.eclipse.paho.android.service;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+
+/**
+ * Tests for {@link AppendLogMessageStore}, and a measurement of its insert, ack
+ * and replay rates. The same measurement is made against the
+ * {@link DatabaseMessageStore} by MessageStoreBenchmarkTest, which needs a
+ * device for SQLite.
+ */
+public class AppendLogMessageStoreTest extends TestCase {
+
+    private static final String CLIENT = "client";
+    private static final int BENCHMARK_MESSAGES = 20000;
+
+    private static final MqttTraceHandler NO_TRACE = new MqttTraceHandler() {
+        @Override
+        public void traceDebug(String tag, String message) {
+        }
+
+        @Override
+        public void traceError(String tag, String message) {
+        }
+
+        @Override
+        public void traceException(String tag, String message, Exception e) {
+        }
+    };
+
+    private File directory;
+
+    @Override
+    protected void setUp() throws Exception {
+        directory = File.createTempFile("appendlog", "");
+        assertTrue(directory.delete());
+        assertTrue(directory.mkdir());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    private AppendLogMessageStore open(long segmentBytes) throws IOException {
+        return new AppendLogMessageStore(NO_TRACE, directory, segmentBytes);
+    }
+
+    private static MqttMessage message(int i) {
+        MqttMessage message = new MqttMessage(("message " + i).getBytes());
+        message.setQos(1);
+        return message;
+    }
+
+    private static List<String> payloads(Iterator<MessageStore.StoredMessage> it) {
+        List<String> payloads = new ArrayList<>();
+        while (it.hasNext()) {
+            payloads.add(new String(it.next().getMessage().getPayload()));
+        }
+        return payloads;
+    }
+
+    private File[] segmentFiles() {
+        return directory.listFiles();
+    }
+
+    public void testStoreAndReplayInOrder() throws Exception {
+        AppendLogMessageStore store = open(AppendLogMessageStore.DEFAULT_SEGMENT_BYTES);
+        for (int i = 0; i < 10; i++) {
+            store.storeArrived(i % 2 == 0 ? CLIENT : "other", "topic/" + i, message(i));
+        }
+        assertEquals(5, store.getArrivedMessageCount(CLIENT));
+        assertEquals(10, store.getArrivedMessageCount(null));
+
+        Iterator<MessageStore.StoredMessage> it = store.getAllArrivedMessages(CLIENT);
+        for (int i = 0; i < 10; i += 2) {
+            MessageStore.StoredMessage stored = it.next();
+            assertEquals(CLIENT, stored.getClientHandle());
+            assertEquals("topic/" + i, stored.getTopic());
+            assertEquals("message " + i, new String(stored.getMessage().getPayload()));
+            assertEquals(1, stored.getMessage().getQos());
+        }
+        assertFalse(it.hasNext());
+        store.close();
+    }
+
+    public void testFlagsSurvive() throws Exception {
+        AppendLogMessageStore store = open(AppendLogMessageStore.DEFAULT_SEGMENT_BYTES);
+        MqttMessage message = new MqttMessageHack(new byte[0]);
+        message.setQos(2);
+        message.setRetained(true);
+        ((MqttMessageHack) message).setDuplicate(true);
+        store.storeArrived(CLIENT, "t", message);
+        store.close();
+
+        store = open(AppendLogMessageStore.DEFAULT_SEGMENT_BYTES);
+        MqttMessage read = store.getAllArrivedMessages(CLIENT).next().getMessage();
+        assertEquals(2, read.getQos());
+        assertTrue(read.isRetained());
+        assertTrue(read.isDuplicate());
+        assertEquals(0, read.getPayload().length);
+        store.close();
+    }
+
+    public void testDiscardSurvivesReopen() throws Exception {
+        AppendLogMessageStore store = open(AppendLogMessageStore.DEFAULT_SEGMENT_BYTES);
+        List<String> ids = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            ids.add(store.storeArrived(CLIENT, "t", message(i)));
+        }
+        assertTrue(store.discardArrived(CLIENT, ids.get(1)));
+        assertTrue(store.discardArrived(CLIENT, ids.get(3)));
+        assertFalse(store.discardArrived(CLIENT, ids.get(3)));
+        assertFalse(store.discardArrived("other", ids.get(0)));
+        store.close();
+
+        store = open(AppendLogMessageStore.DEFAULT_SEGMENT_BYTES);
+        assertEquals(3, store.getArrivedMessageCount(CLIENT));
+        List<String> payloads = payloads(store.getAllArrivedMessages(CLIENT));
+        assertEquals("message 0", payloads.get(0));
+        assertEquals("message 2", payloads.get(1));
+        assertEquals("message 4", payloads.get(2));
+
+        // ids carry on from where they were
+        String next = store.storeArrived(CLIENT, "t", message(5));
+        assertTrue(Long.parseLong(next) > Long.parseLong(ids.get(4)));
+        store.close();
+    }
+
+    public void testDiscardBatch() throws Exception {
+        AppendLogMessageStore store = open(AppendLogMessageStore.DEFAULT_SEGMENT_BYTES);
+        List<String> ids = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            ids.add(store.storeArrived(CLIENT, "t", message(i)));
+        }
+        List<String> batch = new ArrayList<>(ids.subList(0, 6));
+        batch.add("not a number");
+        assertEquals(6, store.discardArrived(CLIENT, batch));
+        store.close();
+
+        store = open(AppendLogMessageStore.DEFAULT_SEGMENT_BYTES);
+        assertEquals(4, store.getArrivedMessageCount(CLIENT));
+        assertEquals("message 6", payloads(store.getAllArrivedMessages(CLIENT)).get(0));
+        store.close();
+    }
+
+    public void testClearSurvivesReopen() throws Exception {
+        AppendLogMessageStore store = open(AppendLogMessageStore.DEFAULT_SEGMENT_BYTES);
+        for (int i = 0; i < 6; i++) {
+            store.storeArrived(i < 3 ? CLIENT : "other", "t", message(i));
+        }
+        store.clearArrivedMessages(CLIENT);
+        assertEquals(0, store.getArrivedMessageCount(CLIENT));
+        store.close();
+
+        store = open(AppendLogMessageStore.DEFAULT_SEGMENT_BYTES);
+        assertEquals(0, store.getArrivedMessageCount(CLIENT));
+        assertEquals(3, store.getArrivedMessageCount("other"));
+        store.clearArrivedMessages(null);
+        assertEquals(0, store.getArrivedMessageCount(null));
+        store.close();
+    }
+
+    public void testTornRecordIsCutOff() throws Exception {
+        AppendLogMessageStore store = open(AppendLogMessageStore.DEFAULT_SEGMENT_BYTES);
+        store.storeArrived(CLIENT, "t", message(0));
+        store.storeArrived(CLIENT, "t", message(1));
+        store.close();
+
+        File segment = segmentFiles()[0];
+        long length = segment.length();
+        RandomAccessFile file = new RandomAccessFile(segment, "rw");
+        try {
+            file.setLength(length - 3);
+        } finally {
+            file.close();
+        }
+
+        store = open(AppendLogMessageStore.DEFAULT_SEGMENT_BYTES);
+        assertEquals(1, store.getArrivedMessageCount(CLIENT));
+        store.storeArrived(CLIENT, "t", message(2));
+        store.close();
+
+        store = open(AppendLogMessageStore.DEFAULT_SEGMENT_BYTES);
+        List<String> payloads = payloads(store.getAllArrivedMessages(CLIENT));
+        assertEquals(2, payloads.size());
+        assertEquals("message 0", payloads.get(0));
+        assertEquals("message 2", payloads.get(1));
+        store.close();
+    }
+
+    public void testCompactionDeletesSegmentsAndKeepsOrder() throws Exception {
+        // small segments, so that a few messages fill one
+        AppendLogMessageStore store = open(256);
+        List<String> ids = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            ids.add(store.storeArrived(CLIENT, "t", message(i)));
+        }
+        int segmentsBefore = segmentFiles().length;
+        assertTrue(segmentsBefore > 10);
+
+        // keep every tenth message, starting with the very first
+        for (int i = 0; i < 100; i++) {
+            if (i % 10 != 0) {
+                assertTrue(store.discardArrived(CLIENT, ids.get(i)));
+            }
+        }
+        store.compact();
+        assertTrue(segmentFiles().length < segmentsBefore);
+        store.close();
+
+        store = open(256);
+        List<String> payloads = payloads(store.getAllArrivedMessages(CLIENT));
+        assertEquals(10, payloads.size());
+        for (int i = 0; i < 10; i++) {
+            assertEquals("message " + (i * 10), payloads.get(i));
+        }
+        store.close();
+    }
+
+    public void testGroupCommit() throws Exception {
+        AppendLogMessageStore store = open(AppendLogMessageStore.DEFAULT_SEGMENT_BYTES);
+        store.setGroupCommit(16, 5);
+        final List<String> stored = new ArrayList<>();
+        final CountDownLatch latch = new CountDownLatch(50);
+        for (int i = 0; i < 50; i++) {
+            store.storeArrived(CLIENT, "t", message(i), new MessageStore.StoreListener() {
+                @Override
+                public void onStored(String messageId) {
+                    stored.add(messageId);
+                    latch.countDown();
+                }
+
+                @Override
+                public void onStoreFailure(Exception e) {
+                    fail(e.toString());
+                }
+            });
+        }
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        for (int i = 1; i < stored.size(); i++) {
+            assertTrue(Long.parseLong(stored.get(i)) > Long.parseLong(stored.get(i - 1)));
+        }
+        assertEquals(50, payloads(store.getAllArrivedMessages(CLIENT)).size());
+        store.close();
+    }
+
+    private static long rate(int count, long nanos) {
+        return count * 1000000000L / Math.max(1, nanos);
+    }
+
+    public void testInsertAckReplayRates() throws Exception {
+        AppendLogMessageStore store = open(AppendLogMessageStore.DEFAULT_SEGMENT_BYTES);
+        store.setGroupCommit(64, 10);
+        byte[] payload = new byte[256];
+        final CountDownLatch latch = new CountDownLatch(BENCHMARK_MESSAGES);
+        final String[] ids = new String[BENCHMARK_MESSAGES];
+
+        long start = System.nanoTime();
+        for (int i = 0; i < BENCHMARK_MESSAGES; i++) {
+            final int index = i;
+            store.storeArrived(CLIENT, "benchmark/topic", new MqttMessage(payload),
+                    new MessageStore.StoreListener() {
+                        @Override
+                        public void onStored(String messageId) {
+                            ids[index] = messageId;
+                            latch.countDown();
+                        }
+
+                        @Override
+                        public void onStoreFailure(Exception e) {
+                            fail(e.toString());
+                        }
+                    });
+        }
+        assertTrue(latch.await(60, TimeUnit.SECONDS));
+        long insert = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        int replayed = 0;
+        Iterator<MessageStore.StoredMessage> it = store.getAllArrivedMessages(CLIENT);
+        while (it.hasNext()) {
+            it.next();
+            replayed++;
+        }
+        long replay = System.nanoTime() - start;
+        assertEquals(BENCHMARK_MESSAGES, replayed);
+
+        start = System.nanoTime();
+        for (String id : ids) {
+            assertTrue(store.discardArrived(CLIENT, id));
+        }
+        long ack = System.nanoTime() - start;
+        store.close();
+
+        System.out.println("AppendLogMessageStoreTest: " + BENCHMARK_MESSAGES
+                + " messages, insert (group commit 64) " + rate(BENCHMARK_MESSAGES, insert)
+                + " msgs/s, ack " + rate(BENCHMARK_MESSAGES, ack)
+                + " msgs/s, replay " + rate(BENCHMARK_MESSAGES, replay) + " msgs/s");
+    }
+}
@@ -0,0 +1,198 @@
+package org.eclipse.paho.android.service;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for {@link CallbackDispatcher}
+ */
+public class CallbackDispatcherTest extends TestCase {
+
+    private ExecutorService pool;
+
+    @Override
+    protected void setUp() throws Exception {
+        pool = Executors.newFixedThreadPool(4);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        pool.shutdownNow();
+    }
+
+    public void testOrderKeptOnManyThreads() throws Exception {
+        CallbackDispatcher dispatcher = new CallbackDispatcher(pool, 100, null);
+        final List<Integer> order = Collections.synchronizedList(new ArrayList<Integer>());
+        final CountDownLatch done = new CountDownLatch(1000);
+        for (int i = 0; i < 1000; i++) {
+            final int index = i;
+            dispatcher.execute(new Runnable() {
+                @Override
+                public void run() {
+                    order.add(index);
+                    done.countDown();
+                }
+            });
+        }
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(i, order.get(i).intValue());
+        }
+        CallbackQueueStats stats = dispatcher.getStats();
+        assertEquals(1000, stats.getSubmitted());
+        assertTrue(stats.getHighWaterMark() <= 100);
+    }
+
+    public void testFullQueueMakesSubmitterWait() throws Exception {
+        CallbackDispatcher dispatcher = new CallbackDispatcher(pool, 2, null);
+        final CountDownLatch release = new CountDownLatch(1);
+        dispatcher.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        // wait for the blocking callback to be taken off the queue
+        while (dispatcher.getStats().getQueued() > 0) {
+            Thread.sleep(1);
+        }
+        Runnable nothing = new Runnable() {
+            @Override
+            public void run() {
+            }
+        };
+        dispatcher.execute(nothing);
+        dispatcher.execute(nothing);
+
+        final CallbackDispatcher full = dispatcher;
+        final Runnable last = nothing;
+        Thread submitter = new Thread() {
+            @Override
+            public void run() {
+                full.execute(last);
+            }
+        };
+        submitter.start();
+        submitter.join(200);
+        assertTrue(submitter.isAlive());
+
+        release.countDown();
+        submitter.join(5000);
+        assertFalse(submitter.isAlive());
+        CallbackQueueStats stats = dispatcher.getStats();
+        assertEquals(1, stats.getWaitCount());
+        assertTrue(stats.getWaitMillis() >= 100);
+        assertEquals(0, stats.getOverflowCount());
+        assertEquals(2, stats.getHighWaterMark());
+
+        // let the queue drain before the pool is shut down
+        while (dispatcher.getStats().getDispatched() < 4) {
+            Thread.sleep(1);
+        }
+    }
+
+    public void testShutDownTargetDropsCallbacks() throws Exception {
+        ExecutorService target = Executors.newSingleThreadExecutor();
+        target.shutdown();
+        CallbackDispatcher dispatcher = new CallbackDispatcher(target, 1, null);
+        Runnable nothing = new Runnable() {
+            @Override
+            public void run() {
+            }
+        };
+        // none of these waits for room
+        for (int i = 0; i < 3; i++) {
+            dispatcher.execute(nothing);
+        }
+        CallbackQueueStats stats = dispatcher.getStats();
+        assertEquals(3, stats.getDroppedCount());
+        assertEquals(0, stats.getQueued());
+        assertEquals(0, stats.getWaitCount());
+    }
+
+    public void testTargetShutDownReleasesWaitingSubmitter() throws Exception {
+        ExecutorService target = Executors.newSingleThreadExecutor();
+        final CallbackDispatcher dispatcher = new CallbackDispatcher(target, 1, null);
+        final CountDownLatch release = new CountDownLatch(1);
+        dispatcher.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        while (dispatcher.getStats().getQueued() > 0) {
+            Thread.sleep(1);
+        }
+        final Runnable nothing = new Runnable() {
+            @Override
+            public void run() {
+            }
+        };
+        dispatcher.execute(nothing);
+        Thread submitter = new Thread() {
+            @Override
+            public void run() {
+                dispatcher.execute(nothing);
+            }
+        };
+        submitter.start();
+        submitter.join(200);
+        assertTrue(submitter.isAlive());
+
+        // the running callback finishes, but the next cannot be scheduled
+        target.shutdown();
+        release.countDown();
+        submitter.join(5000);
+        assertFalse(submitter.isAlive());
+        CallbackQueueStats stats = dispatcher.getStats();
+        assertEquals(2, stats.getDroppedCount());
+        assertEquals(0, stats.getQueued());
+        assertEquals(1, stats.getDispatched());
+    }
+
+    public void testNoWaitThreadOverflows() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        CallbackDispatcher dispatcher = new CallbackDispatcher(pool, 1,
+                Thread.currentThread());
+        dispatcher.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        final CountDownLatch done = new CountDownLatch(5);
+        for (int i = 0; i < 5; i++) {
+            dispatcher.execute(new Runnable() {
+                @Override
+                public void run() {
+                    done.countDown();
+                }
+            });
+        }
+        CallbackQueueStats stats = dispatcher.getStats();
+        assertEquals(0, stats.getWaitCount());
+        assertTrue(stats.getOverflowCount() >= 4);
+
+        release.countDown();
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+    }
+}
@@ -0,0 +1,136 @@
+package org.eclipse.paho.android.service;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import junit.framework.TestCase;
+
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+
+import android.os.Bundle;
+
+/**
+ * Tests for {@link CallbackRegistry}
+ */
+public class CallbackRegistryTest extends TestCase {
+
+    private static final String CLIENT = "client";
+
+    /**
+     * Runs tasks when asked to, so that the test can see what was queued
+     */
+    private static class QueueingExecutor implements Executor {
+        final List<Runnable> tasks = new ArrayList<>();
+
+        @Override
+        public void execute(Runnable command) {
+            tasks.add(command);
+        }
+
+        void runAll() {
+            for (Runnable task : tasks) {
+                task.run();
+            }
+            tasks.clear();
+        }
+    }
+
+    private static class RecordingListener implements CallbackRegistry.Listener {
+        final List<String> events = new ArrayList<>();
+
+        @Override
+        public void messageArrived(String messageId, String topic, MqttMessage message, int[] listenerIds) {
+            events.add("arrived " + messageId + " " + topic);
+        }
+
+        @Override
+        public void messagesArrived(List<MessageStore.StoredMessage> messages) {
+            events.add("batch of " + messages.size());
+        }
+
+        @Override
+        public void messageDelivered(int activityToken) {
+            events.add("delivered " + activityToken);
+        }
+
+        @Override
+        public void callback(Bundle data) {
+            events.add("callback");
+        }
+    }
+
+    public void testNothingRegistered() {
+        CallbackRegistry registry = new CallbackRegistry();
+        assertFalse(registry.isRegistered(CLIENT));
+        assertFalse(registry.messageArrived(CLIENT, "1", "t", new MqttMessage(), new int[0]));
+        assertFalse(registry.messageDelivered(CLIENT, 1));
+    }
+
+    public void testCallbacksRunOnExecutorInOrder() {
+        CallbackRegistry registry = new CallbackRegistry();
+        RecordingListener listener = new RecordingListener();
+        QueueingExecutor executor = new QueueingExecutor();
+        registry.register(CLIENT, listener, executor);
+
+        assertTrue(registry.messageArrived(CLIENT, "1", "a", new MqttMessage(), new int[0]));
+        assertTrue(registry.messageDelivered(CLIENT, 7));
+        assertTrue(registry.messageArrived(CLIENT, "2", "b", new MqttMessage(), new int[0]));
+        List<MessageStore.StoredMessage> batch = new ArrayList<>();
+        batch.add(new StoredArrivedMessage("3", CLIENT, "c", new MqttMessage()));
+        batch.add(new StoredArrivedMessage("4", CLIENT, "d", new MqttMessage()));
+        assertTrue(registry.messagesArrived(CLIENT, batch));
+        assertFalse(registry.messageArrived("other", "5", "e", new MqttMessage(), new int[0]));
+
+        assertTrue(listener.events.isEmpty());
+        executor.runAll();
+        assertEquals(4, listener.events.size());
+        assertEquals("arrived 1 a", listener.events.get(0));
+        assertEquals("delivered 7", listener.events.get(1));
+        assertEquals("arrived 2 b", listener.events.get(2));
+        assertEquals("batch of 2", listener.events.get(3));
+    }
+
+    public void testUnregisterFallsBackToBroadcast() {
+        CallbackRegistry registry = new CallbackRegistry();
+        RecordingListener listener = new RecordingListener();
+        QueueingExecutor executor = new QueueingExecutor();
+        registry.register(CLIENT, listener, executor);
+        registry.unregister(CLIENT, listener);
+        assertFalse(registry.isRegistered(CLIENT));
+        assertFalse(registry.messageDelivered(CLIENT, 1));
+        assertTrue(executor.tasks.isEmpty());
+    }
+
+    public void testRegisteringTwiceReplaces() {
+        CallbackRegistry registry = new CallbackRegistry();
+        RecordingListener listener = new RecordingListener();
+        QueueingExecutor first = new QueueingExecutor();
+        QueueingExecutor second = new QueueingExecutor();
+        registry.register(CLIENT, listener, first);
+        registry.register(CLIENT, listener, second);
+        registry.messageDelivered(CLIENT, 1);
+        assertTrue(first.tasks.isEmpty());
+        assertEquals(1, second.tasks.size());
+    }
+
+    public void testEveryListenerForAHandleIsCalled() {
+        CallbackRegistry registry = new CallbackRegistry();
+        RecordingListener one = new RecordingListener();
+        RecordingListener two = new RecordingListener();
+        QueueingExecutor executor = new QueueingExecutor();
+        registry.register(CLIENT, one, executor);
+        registry.register(CLIENT, two, executor);
+        registry.messageDelivered(CLIENT, 1);
+        executor.runAll();
+        assertEquals(1, one.events.size());
+        assertEquals(1, two.events.size());
+
+        registry.unregister(CLIENT, one);
+        assertTrue(registry.isRegistered(CLIENT));
+        registry.messageDelivered(CLIENT, 2);
+        executor.runAll();
+        assertEquals(1, one.events.size());
+        assertEquals(2, two.events.size());
+    }
+}
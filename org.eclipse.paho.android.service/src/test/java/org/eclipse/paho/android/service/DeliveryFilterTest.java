@@ -0,0 +1,209 @@
+package org.eclipse.paho.android.service;
+
+import junit.framework.TestCase;
+
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+
+/**
+ * Tests for {@link DeliveryFilter}
+ */
+public class DeliveryFilterTest extends TestCase {
+
+    private static MqttMessage message(String payload) {
+        return new MqttMessage(payload.getBytes());
+    }
+
+    private static MqttMessage message(byte... payload) {
+        return new MqttMessage(payload);
+    }
+
+    public void testNoPolicyAcceptsEverything() {
+        DeliveryFilter filter = new DeliveryFilter();
+        assertTrue(filter.accept("a/b", message("x"), 0));
+        assertNull(filter.getStats("a/b"));
+    }
+
+    public void testSampleEvery() {
+        DeliveryFilter filter = new DeliveryFilter();
+        DeliveryPolicy policy = new DeliveryPolicy();
+        policy.setSampleEvery(3);
+        filter.setPolicy("sensor/+", policy);
+
+        int accepted = 0;
+        for (int i = 0; i < 9; i++) {
+            if (filter.accept("sensor/1", message("v" + i), 0)) {
+                accepted++;
+            }
+        }
+        assertEquals(3, accepted);
+        // counted per topic, so another topic starts with its first message
+        assertTrue(filter.accept("sensor/2", message("v"), 0));
+        // other topics are not covered by the policy
+        assertTrue(filter.accept("other", message("v"), 0));
+
+        DeliveryPolicyStats stats = filter.getStats("sensor/+");
+        assertEquals(4, stats.getDelivered());
+        assertEquals(6, stats.getSampledOut());
+        assertEquals(6, stats.getFiltered());
+    }
+
+    public void testSampleInterval() {
+        DeliveryFilter filter = new DeliveryFilter();
+        DeliveryPolicy policy = new DeliveryPolicy();
+        policy.setSampleInterval(1000);
+        filter.setPolicy("sensor/#", policy);
+
+        assertTrue(filter.accept("sensor/1", message("a"), 0));
+        assertFalse(filter.accept("sensor/1", message("b"), 500));
+        assertTrue(filter.accept("sensor/2", message("c"), 500));
+        assertFalse(filter.accept("sensor/1", message("d"), 999));
+        assertTrue(filter.accept("sensor/1", message("e"), 1000));
+        assertFalse(filter.accept("sensor/1", message("f"), 1999));
+        assertEquals(3, filter.getStats("sensor/#").getDelivered());
+        assertEquals(3, filter.getStats("sensor/#").getSampledOut());
+    }
+
+    public void testRateLimitAcrossTopics() {
+        DeliveryFilter filter = new DeliveryFilter();
+        DeliveryPolicy policy = new DeliveryPolicy();
+        policy.setMaxMessagesPerSecond(10);
+        filter.setPolicy("#", policy);
+
+        int accepted = 0;
+        for (int i = 0; i < 100; i++) {
+            // 100 messages in the first 200ms, across several topics
+            if (filter.accept("t/" + (i % 7), message("x"), i * 2)) {
+                accepted++;
+            }
+        }
+        // a second's burst, plus what was earned in 200ms
+        assertEquals(11, accepted);
+        assertEquals(89, filter.getStats("#").getRateLimited());
+
+        // after a quiet spell the bucket holds at most a second's worth
+        accepted = 0;
+        for (int i = 0; i < 50; i++) {
+            if (filter.accept("t/1", message("x"), 60000)) {
+                accepted++;
+            }
+        }
+        assertEquals(10, accepted);
+    }
+
+    public void testDropDuplicates() {
+        DeliveryFilter filter = new DeliveryFilter();
+        DeliveryPolicy policy = new DeliveryPolicy();
+        policy.setDropDuplicates(true);
+        filter.setPolicy("state/+", policy);
+
+        assertTrue(filter.accept("state/door", message("open"), 0));
+        assertFalse(filter.accept("state/door", message("open"), 1));
+        assertTrue(filter.accept("state/window", message("open"), 2));
+        assertTrue(filter.accept("state/door", message("closed"), 3));
+        assertTrue(filter.accept("state/door", message("open"), 4));
+        assertEquals(1, filter.getStats("state/+").getDuplicates());
+        assertEquals(4, filter.getStats("state/+").getDelivered());
+    }
+
+    public void testDuplicateTrackingIsBounded() {
+        DeliveryFilter filter = new DeliveryFilter();
+        DeliveryPolicy policy = new DeliveryPolicy();
+        policy.setDropDuplicates(true);
+        filter.setPolicy("#", policy);
+
+        assertTrue(filter.accept("t/0", message("x"), 0));
+        for (int i = 1; i <= DeliveryFilter.MAX_TRACKED_TOPICS; i++) {
+            assertTrue(filter.accept("t/" + i, message("x"), 0));
+        }
+        // t/0 was the least recently seen, and so forgotten
+        assertTrue(filter.accept("t/0", message("x"), 0));
+        assertFalse(filter.accept("t/" + DeliveryFilter.MAX_TRACKED_TOPICS, message("x"), 0));
+    }
+
+    public void testPayloadPrefix() {
+        DeliveryFilter filter = new DeliveryFilter();
+        DeliveryPolicy policy = new DeliveryPolicy();
+        policy.setPayloadPrefix("ALARM".getBytes());
+        filter.setPolicy("events", policy);
+
+        assertTrue(filter.accept("events", message("ALARM: smoke"), 0));
+        assertFalse(filter.accept("events", message("INFO: ok"), 0));
+        assertFalse(filter.accept("events", message("AL"), 0));
+        assertEquals(2, filter.getStats("events").getPayloadRejected());
+    }
+
+    public void testPayloadRange() {
+        DeliveryFilter filter = new DeliveryFilter();
+        DeliveryPolicy policy = new DeliveryPolicy();
+        // a big-endian 16 bit reading after a 1 byte header, at least 0x0100
+        policy.setPayloadRange(1, new byte[] { 0x01, 0x00 }, null);
+        filter.setPolicy("temp", policy);
+
+        assertFalse(filter.accept("temp", message((byte) 9, (byte) 0x00, (byte) 0xff), 0));
+        assertTrue(filter.accept("temp", message((byte) 9, (byte) 0x01, (byte) 0x00), 0));
+        // compared unsigned
+        assertTrue(filter.accept("temp", message((byte) 9, (byte) 0x80, (byte) 0x00), 0));
+        // too short to compare
+        assertFalse(filter.accept("temp", message((byte) 9, (byte) 0x01), 0));
+
+        policy.setPayloadRange(0, null, new byte[] { 0x10 });
+        filter.setPolicy("temp", policy);
+        assertTrue(filter.accept("temp", message((byte) 0x10), 0));
+        assertFalse(filter.accept("temp", message((byte) 0x11), 0));
+        assertFalse(filter.accept("temp", message(), 0));
+    }
+
+    public void testRulesApplyInOrder() {
+        DeliveryFilter filter = new DeliveryFilter();
+        DeliveryPolicy policy = new DeliveryPolicy();
+        policy.setPayloadPrefix("v".getBytes());
+        policy.setDropDuplicates(true);
+        policy.setSampleEvery(2);
+        filter.setPolicy("s", policy);
+
+        assertFalse(filter.accept("s", message("x"), 0)); // payload
+        assertTrue(filter.accept("s", message("v1"), 0)); // 1st sampled
+        assertFalse(filter.accept("s", message("v1"), 0)); // duplicate, not counted by sampling
+        assertFalse(filter.accept("s", message("v2"), 0)); // 2nd sampled out
+        assertTrue(filter.accept("s", message("v3"), 0)); // 3rd sampled
+        DeliveryPolicyStats stats = filter.getStats("s");
+        assertEquals(1, stats.getPayloadRejected());
+        assertEquals(1, stats.getDuplicates());
+        assertEquals(1, stats.getSampledOut());
+        assertEquals(2, stats.getDelivered());
+    }
+
+    public void testAnyMatchingPolicyAccepts() {
+        DeliveryFilter filter = new DeliveryFilter();
+        DeliveryPolicy sampled = new DeliveryPolicy();
+        sampled.setSampleEvery(1000);
+        filter.setPolicy("sensor/#", sampled);
+        DeliveryPolicy alarms = new DeliveryPolicy();
+        alarms.setPayloadPrefix("!".getBytes());
+        filter.setPolicy("sensor/+/alarm", alarms);
+
+        assertTrue(filter.accept("sensor/1/alarm", message("first"), 0));
+        assertFalse(filter.accept("sensor/1/alarm", message("quiet"), 0));
+        assertTrue(filter.accept("sensor/1/alarm", message("!fire"), 0));
+    }
+
+    public void testReplaceAndRemovePolicy() {
+        DeliveryFilter filter = new DeliveryFilter();
+        DeliveryPolicy policy = new DeliveryPolicy();
+        policy.setPayloadPrefix("y".getBytes());
+        filter.setPolicy("a", policy);
+        assertFalse(filter.accept("a", message("n"), 0));
+
+        // the policy was copied when it was set
+        policy.setPayloadPrefix(null);
+        assertFalse(filter.accept("a", message("n"), 0));
+
+        // setting it again starts the counters again
+        filter.setPolicy("a", policy);
+        assertTrue(filter.accept("a", message("n"), 0));
+        assertEquals(0, filter.getStats("a").getFiltered());
+
+        filter.setPolicy("a", null);
+        assertNull(filter.getStats("a"));
+    }
+}
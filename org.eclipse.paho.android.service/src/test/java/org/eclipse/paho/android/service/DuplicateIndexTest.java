@@ -0,0 +1,134 @@
+package org.eclipse.paho.android.service;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for {@link DuplicateIndex}
+ */
+public class DuplicateIndexTest extends TestCase {
+
+    private static final int SOAK_MESSAGES = 2000000;
+
+    private static long fingerprint(String topic, String payload) {
+        return DuplicateIndex.fingerprint(topic, payload.getBytes(), 0, -1);
+    }
+
+    private static long usedHeap() throws InterruptedException {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(20);
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    public void testHitsAndMisses() {
+        DuplicateIndex index = new DuplicateIndex(100, 60000, 0);
+        long a = fingerprint("t", "a");
+        long b = fingerprint("t", "b");
+        assertFalse(index.contains(a, 0));
+        index.add(a, 0);
+        index.add(a, 0);
+        assertTrue(index.contains(a, 1));
+        assertFalse(index.contains(b, 1));
+        // zero is the empty slot, but can still be held
+        index.add(0, 1);
+        assertTrue(index.contains(0, 1));
+
+        DuplicateSuppressionStats stats = index.getStats();
+        assertEquals(2, stats.getHits());
+        assertEquals(2, stats.getMisses());
+        assertEquals(2, stats.getEntries());
+        assertEquals(100, stats.getMaxEntries());
+    }
+
+    public void testFingerprint() {
+        assertEquals(fingerprint("a/b", "x"), fingerprint("a/b", "x"));
+        assertFalse(fingerprint("a/b", "x") == fingerprint("a/c", "x"));
+        assertFalse(fingerprint("a/b", "x") == fingerprint("a/b", "y"));
+        // the topic and payload cannot run into each other
+        assertFalse(fingerprint("ab", "c") == fingerprint("a", "bc"));
+
+        // a key range looks only at those bytes of the payload
+        byte[] first = "id=0001;temp=20".getBytes();
+        byte[] second = "id=0001;temp=21".getBytes();
+        assertEquals(DuplicateIndex.fingerprint("t", first, 3, 4),
+                DuplicateIndex.fingerprint("t", second, 3, 4));
+        assertFalse(DuplicateIndex.fingerprint("t", first, 0, -1)
+                == DuplicateIndex.fingerprint("t", second, 0, -1));
+        // a payload too short for the key is taken whole
+        assertEquals(DuplicateIndex.fingerprint("t", "ab".getBytes(), 0, -1),
+                DuplicateIndex.fingerprint("t", "ab".getBytes(), 3, 4));
+    }
+
+    public void testWindowExpires() {
+        DuplicateIndex index = new DuplicateIndex(100, 1000, 0);
+        index.add(1, 0);
+        // half the window on, the fingerprint moves to the older generation
+        index.add(2, 600);
+        assertTrue(index.contains(1, 700));
+        assertTrue(index.contains(2, 700));
+        // and once its generation is dropped, it is forgotten
+        assertFalse(index.contains(1, 1200));
+        assertTrue(index.contains(2, 1200));
+        // after a whole window with nothing, everything is forgotten
+        assertFalse(index.contains(2, 5000));
+        assertEquals(0, index.getStats().getEntries());
+    }
+
+    public void testFullGenerationRotates() {
+        DuplicateIndex index = new DuplicateIndex(100, Long.MAX_VALUE, 0);
+        for (int i = 1; i <= 100; i++) {
+            index.add(i, 0);
+        }
+        // two generations of 50, so everything is still held
+        for (int i = 1; i <= 100; i++) {
+            assertTrue(index.contains(i, 0));
+        }
+        index.add(101, 0);
+        // the oldest 50 were forgotten to make room
+        assertFalse(index.contains(1, 0));
+        assertFalse(index.contains(50, 0));
+        assertTrue(index.contains(51, 0));
+        assertTrue(index.contains(101, 0));
+        assertEquals(51, index.getStats().getEntries());
+        assertEquals(2, index.getStats().getRotations());
+    }
+
+    /**
+     * Two million distinct fingerprints go through an index of 16384 - its
+     * tables never grow, nothing else is kept, and the latest are all held
+     */
+    public void testMemoryIsBounded() throws Exception {
+        DuplicateIndex index = new DuplicateIndex(
+                DuplicateSuppressionOptions.DEFAULT_MAX_ENTRIES, 60000, 0);
+        int slots = index.getSlots();
+        long baseline = 0;
+        for (int i = 0; i < SOAK_MESSAGES; i++) {
+            long fingerprint = fingerprint("sensor/" + (i % 100), "reading " + i);
+            assertFalse(index.contains(fingerprint, i / 1000));
+            index.add(fingerprint, i / 1000);
+            if (i == 100000) {
+                baseline = usedHeap();
+            }
+        }
+        long after = usedHeap();
+        assertEquals(slots, index.getSlots());
+        DuplicateSuppressionStats stats = index.getStats();
+        assertTrue(stats.getEntries() <= DuplicateSuppressionOptions.DEFAULT_MAX_ENTRIES);
+        assertEquals(SOAK_MESSAGES, stats.getMisses());
+        assertEquals(0, stats.getHits());
+        // the most recent half of the entries are all still held
+        for (int i = SOAK_MESSAGES - DuplicateSuppressionOptions.DEFAULT_MAX_ENTRIES / 2;
+                i < SOAK_MESSAGES; i++) {
+            assertTrue(index.contains(fingerprint("sensor/" + (i % 100), "reading " + i),
+                    SOAK_MESSAGES / 1000));
+        }
+        System.out.println("DuplicateIndexTest: " + SOAK_MESSAGES + " messages, "
+                + slots * 8 / 1024 + "KB of tables, heap " + baseline / 1024
+                + "KB after 100000, " + after / 1024 + "KB after " + SOAK_MESSAGES
+                + ", " + index.getStats());
+        assertTrue("heap grew by " + (after - baseline) + " bytes",
+                after - baseline < 2 * 1024 * 1024);
+    }
+}
@@ -0,0 +1,236 @@
+package org.eclipse.paho.android.service;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for {@link GroupCommitQueue}, and a comparison of committing one row
+ * at a time against committing in groups, using an fsync'd file in place of
+ * the SQLite journal.
+ */
+public class GroupCommitQueueTest extends TestCase {
+
+    private static final int BENCHMARK_MESSAGES = 2000;
+    private static final int ROW_SIZE = 256;
+
+    /**
+     * Records what was committed, and counts items reported back
+     */
+    private static class RecordingCommitter implements GroupCommitQueue.Committer<Integer> {
+        final List<List<Integer>> batches = Collections.synchronizedList(new ArrayList<List<Integer>>());
+        final List<Integer> committed = Collections.synchronizedList(new ArrayList<Integer>());
+        final List<Integer> failed = Collections.synchronizedList(new ArrayList<Integer>());
+        final CountDownLatch latch;
+        volatile boolean fail = false;
+
+        RecordingCommitter(int expected) {
+            latch = new CountDownLatch(expected);
+        }
+
+        @Override
+        public void commit(List<Integer> batch) throws Exception {
+            if (fail) {
+                throw new Exception("commit failed");
+            }
+            batches.add(new ArrayList<>(batch));
+        }
+
+        @Override
+        public void onCommitted(List<Integer> batch) {
+            for (Integer item : batch) {
+                committed.add(item);
+                latch.countDown();
+            }
+        }
+
+        @Override
+        public void onCommitFailed(List<Integer> batch, Exception e) {
+            for (Integer item : batch) {
+                failed.add(item);
+                latch.countDown();
+            }
+        }
+    }
+
+    public void testCommitsWhenBatchIsFull() throws Exception {
+        RecordingCommitter committer = new RecordingCommitter(10);
+        GroupCommitQueue<Integer> queue = new GroupCommitQueue<>("test", committer, 5, 60000);
+        for (int i = 0; i < 10; i++) {
+            queue.submit(i);
+        }
+        assertTrue(committer.latch.await(5, TimeUnit.SECONDS));
+        assertEquals(2, committer.batches.size());
+        assertEquals(5, committer.batches.get(0).size());
+        queue.close();
+    }
+
+    public void testCommitsAfterDelay() throws Exception {
+        RecordingCommitter committer = new RecordingCommitter(3);
+        GroupCommitQueue<Integer> queue = new GroupCommitQueue<>("test", committer, 100, 20);
+        for (int i = 0; i < 3; i++) {
+            queue.submit(i);
+        }
+        assertTrue(committer.latch.await(5, TimeUnit.SECONDS));
+        assertEquals(1, committer.batches.size());
+        assertEquals(0, queue.size());
+        queue.close();
+    }
+
+    public void testPreservesOrder() throws Exception {
+        int count = 1000;
+        RecordingCommitter committer = new RecordingCommitter(count);
+        GroupCommitQueue<Integer> queue = new GroupCommitQueue<>("test", committer, 7, 1);
+        for (int i = 0; i < count; i++) {
+            queue.submit(i);
+        }
+        assertTrue(committer.latch.await(5, TimeUnit.SECONDS));
+        for (int i = 0; i < count; i++) {
+            assertEquals(Integer.valueOf(i), committer.committed.get(i));
+        }
+        queue.close();
+    }
+
+    public void testDrainCommitsEverything() throws Exception {
+        RecordingCommitter committer = new RecordingCommitter(3);
+        GroupCommitQueue<Integer> queue = new GroupCommitQueue<>("test", committer, 100, 60000);
+        queue.submit(1);
+        queue.submit(2);
+        queue.submit(3);
+        queue.drain();
+        assertEquals(3, committer.committed.size());
+        queue.close();
+    }
+
+    public void testFailureIsReported() throws Exception {
+        RecordingCommitter committer = new RecordingCommitter(2);
+        committer.fail = true;
+        GroupCommitQueue<Integer> queue = new GroupCommitQueue<>("test", committer, 2, 60000);
+        queue.submit(1);
+        queue.submit(2);
+        assertTrue(committer.latch.await(5, TimeUnit.SECONDS));
+        assertEquals(2, committer.failed.size());
+        assertEquals(0, committer.committed.size());
+        queue.close();
+    }
+
+    public void testSubmitAfterClose() throws Exception {
+        RecordingCommitter committer = new RecordingCommitter(2);
+        GroupCommitQueue<Integer> queue = new GroupCommitQueue<>("test", committer, 100, 60000);
+        queue.submit(1);
+        queue.close();
+        // committed straight away, on this thread
+        queue.submit(2);
+        assertEquals(2, committer.committed.size());
+        assertEquals(Integer.valueOf(2), committer.committed.get(1));
+        queue.drain();
+    }
+
+    public void testReplacedWhileSubmitting() throws Exception {
+        final int count = 20000;
+        final RecordingCommitter committer = new RecordingCommitter(count);
+        final AtomicReference<GroupCommitQueue<Integer>> current = new AtomicReference<>(
+                new GroupCommitQueue<>("test", committer, 8, 1));
+        final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+        Thread submitter = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    for (int i = 0; i < count; i++) {
+                        current.get().submit(i);
+                    }
+                } catch (Throwable t) {
+                    errors.add(t);
+                }
+            }
+        });
+        submitter.start();
+        // as a store's setGroupCommit does: swap in a new queue, close the old
+        while (submitter.isAlive()) {
+            GroupCommitQueue<Integer> old = current.getAndSet(
+                    new GroupCommitQueue<>("test", committer, 8, 1));
+            old.close();
+        }
+        submitter.join();
+        current.get().close();
+
+        assertTrue(errors.toString(), errors.isEmpty());
+        assertTrue(committer.latch.await(5, TimeUnit.SECONDS));
+        assertEquals(count, committer.committed.size());
+        assertEquals(count, new HashSet<>(committer.committed).size());
+    }
+
+    /**
+     * Appends rows to a file, forcing it to disk once per commit - the same
+     * cost structure as a SQLite transaction.
+     */
+    private static class FileCommitter implements GroupCommitQueue.Committer<byte[]> {
+        private final FileChannel channel;
+        final CountDownLatch latch;
+
+        FileCommitter(FileChannel channel, int expected) {
+            this.channel = channel;
+            this.latch = new CountDownLatch(expected);
+        }
+
+        @Override
+        public void commit(List<byte[]> batch) throws Exception {
+            for (byte[] row : batch) {
+                channel.write(ByteBuffer.wrap(row));
+            }
+            channel.force(false);
+        }
+
+        @Override
+        public void onCommitted(List<byte[]> batch) {
+            for (int i = 0; i < batch.size(); i++) {
+                latch.countDown();
+            }
+        }
+
+        @Override
+        public void onCommitFailed(List<byte[]> batch, Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private long runBenchmark(int maxBatchSize) throws Exception {
+        File file = File.createTempFile("groupcommit", ".log");
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            FileCommitter committer = new FileCommitter(raf.getChannel(), BENCHMARK_MESSAGES);
+            GroupCommitQueue<byte[]> queue = new GroupCommitQueue<>("benchmark", committer, maxBatchSize, 10);
+            byte[] row = new byte[ROW_SIZE];
+            long start = System.nanoTime();
+            for (int i = 0; i < BENCHMARK_MESSAGES; i++) {
+                queue.submit(row);
+            }
+            assertTrue(committer.latch.await(60, TimeUnit.SECONDS));
+            long elapsed = System.nanoTime() - start;
+            queue.close();
+            return elapsed;
+        } finally {
+            raf.close();
+            file.delete();
+        }
+    }
+
+    public void testThroughputPerRowVersusGrouped() throws Exception {
+        long perRow = runBenchmark(1);
+        long grouped = runBenchmark(64);
+        System.out.println("GroupCommitQueueTest: " + BENCHMARK_MESSAGES + " messages, per-row commit "
+                + (BENCHMARK_MESSAGES * 1000000000L / perRow) + " msgs/s, grouped commit (64) "
+                + (BENCHMARK_MESSAGES * 1000000000L / grouped) + " msgs/s");
+        assertTrue(perRow > 0 && grouped > 0);
+    }
+}
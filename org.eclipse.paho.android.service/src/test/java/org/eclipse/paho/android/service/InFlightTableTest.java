@@ -0,0 +1,182 @@
+package org.eclipse.paho.android.service;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import junit.framework.TestCase;
+
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+
+/**
+ * Tests for {@link InFlightTable}, including a soak test which publishes a
+ * million messages through the table and checks that the heap stays flat
+ */
+public class InFlightTableTest extends TestCase {
+
+    private static final int SOAK_PUBLISHES = 1000000;
+
+    private static InFlightTable.Record record(int i) {
+        return new InFlightTable.Record("topic/" + (i % 10), new MqttMessage(new byte[64]),
+                null, i);
+    }
+
+    public void testCompleteFailAndClear() {
+        InFlightTable table = new InFlightTable(10);
+        InFlightTable.Record a = record(1);
+        InFlightTable.Record b = record(2);
+        InFlightTable.Record c = record(3);
+        assertTrue(table.add(a));
+        assertTrue(table.add(b));
+        assertTrue(table.add(c));
+        assertEquals(3, table.size());
+
+        assertTrue(table.complete(a));
+        assertFalse(table.complete(a));
+        table.fail(b);
+        assertEquals(1, table.clear());
+        // a delivery reported after the disconnect is not reported twice
+        assertFalse(table.complete(c));
+
+        InFlightStats stats = table.getStats();
+        assertEquals(0, stats.getDepth());
+        assertEquals(3, stats.getHighWaterMark());
+        assertEquals(3, stats.getAdded());
+        assertEquals(1, stats.getCompleted());
+        assertEquals(1, stats.getFailed());
+        assertEquals(1, stats.getReclaimed());
+        assertEquals(0, stats.getRejected());
+    }
+
+    public void testFullTableRejects() {
+        InFlightTable table = new InFlightTable(2);
+        InFlightTable.Record a = record(1);
+        assertTrue(table.add(a));
+        assertTrue(table.add(record(2)));
+        assertFalse(table.add(record(3)));
+        assertEquals(2, table.size());
+        assertEquals(1, table.getStats().getRejected());
+
+        table.complete(a);
+        assertTrue(table.add(record(4)));
+    }
+
+    public void testRefusedReservationOpensAtHalfDrain() throws Exception {
+        final int[] opened = new int[1];
+        InFlightTable table = new InFlightTable(4, new InFlightTable.WindowListener() {
+            @Override
+            public void windowOpened() {
+                opened[0]++;
+            }
+        });
+        InFlightTable.Record[] records = new InFlightTable.Record[4];
+        for (int i = 0; i < records.length; i++) {
+            assertTrue(table.reserve());
+            records[i] = record(i);
+            table.addReserved(records[i]);
+        }
+        assertFalse(table.reserve());
+        assertFalse(table.reserve());
+        Thread.sleep(5);
+
+        table.complete(records[0]);
+        assertEquals(0, opened[0]);
+        table.complete(records[1]);
+        assertEquals(1, opened[0]);
+        // told once for each time the window filled, not for every release
+        table.fail(records[2]);
+        assertEquals(1, opened[0]);
+
+        InFlightStats stats = table.getStats();
+        assertEquals(2, stats.getRefusedCount());
+        assertEquals(1, stats.getBlockedCount());
+        assertTrue(stats.getBlockedMillis() >= 5);
+        assertEquals(1, stats.getDepth());
+    }
+
+    public void testCancelReservationAndResize() {
+        InFlightTable table = new InFlightTable(1);
+        assertTrue(table.reserve());
+        assertFalse(table.reserve());
+        table.cancelReservation();
+        assertEquals(0, table.size());
+        assertTrue(table.reserve());
+        table.addReserved(record(1));
+
+        table.setCapacity(2);
+        assertTrue(table.reserve());
+        assertEquals(2, table.getStats().getHighWaterMark());
+        assertEquals(2, table.getStats().getCapacity());
+    }
+
+    private static long usedHeap() throws InterruptedException {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(20);
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    /**
+     * Publishing threads add records while a callback thread completes them,
+     * failing every hundredth and clearing the table every hundred thousand
+     * publishes, as a disconnect would
+     */
+    public void testSoakMemoryStaysFlat() throws Exception {
+        final InFlightTable table = new InFlightTable(InFlightTable.DEFAULT_CAPACITY);
+        final BlockingQueue<InFlightTable.Record> sent = new ArrayBlockingQueue<>(1000);
+        final InFlightTable.Record done = record(-1);
+
+        Thread callbackThread = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    int count = 0;
+                    InFlightTable.Record record;
+                    while ((record = sent.take()) != done) {
+                        if (++count % 100 == 0) {
+                            table.fail(record);
+                        } else {
+                            table.complete(record);
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        callbackThread.start();
+
+        long baseline = 0;
+        for (int i = 0; i < SOAK_PUBLISHES; i++) {
+            InFlightTable.Record record = record(i);
+            assertTrue(table.add(record));
+            if (i % 1000 != 999) {
+                sent.put(record);
+            }
+            // else the delivery is never reported, until the disconnect
+            if (i % 100000 == 99999) {
+                table.clear();
+                if (i == 99999) {
+                    baseline = usedHeap();
+                }
+            }
+        }
+        sent.put(done);
+        callbackThread.join();
+        table.clear();
+        long after = usedHeap();
+
+        InFlightStats stats = table.getStats();
+        assertEquals(0, stats.getDepth());
+        assertEquals(SOAK_PUBLISHES, stats.getAdded());
+        assertEquals(SOAK_PUBLISHES, stats.getCompleted() + stats.getFailed()
+                + stats.getReclaimed());
+        assertTrue(stats.getHighWaterMark() < InFlightTable.DEFAULT_CAPACITY);
+        System.out.println("InFlightTableTest: " + SOAK_PUBLISHES + " publishes, heap "
+                + baseline / 1024 + "KB after 100000, " + after / 1024 + "KB after "
+                + SOAK_PUBLISHES + ", " + stats);
+        assertTrue("heap grew by " + (after - baseline) + " bytes",
+                after - baseline < 4 * 1024 * 1024);
+    }
+}
@@ -0,0 +1,169 @@
+package org.eclipse.paho.android.service;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for {@link KeepAliveLearner}, against a simulated NAT that drops
+ * connections idle for longer than its timeout
+ */
+public class KeepAliveLearnerTest extends TestCase {
+
+    private static final long MINUTE = 60000;
+    private static final long MIN = MINUTE;
+    private static final long MAX = 30 * MINUTE;
+
+    /**
+     * Keeps what is saved, as the shared preferences would
+     */
+    private static class MapStore implements KeepAliveLearner.Store {
+        final Map<String, String> values = new HashMap<>();
+
+        @Override
+        public String get(String network) {
+            return values.get(network);
+        }
+
+        @Override
+        public void put(String network, String value) {
+            values.put(network, value);
+        }
+    }
+
+    /**
+     * A connection pinging through a NAT, one ping at a time
+     */
+    private static class Simulation {
+        final KeepAliveLearner learner;
+        long natTimeout;
+        long now = 0;
+        int pings = 0;
+        int failures = 0;
+
+        Simulation(KeepAliveLearner learner, long natTimeout) {
+            this.learner = learner;
+            this.natTimeout = natTimeout;
+        }
+
+        long ping() {
+            long interval = learner.getInterval(MIN, MAX, now);
+            now += interval;
+            pings++;
+            if (interval < natTimeout) {
+                learner.pingSucceeded(interval);
+            } else {
+                failures++;
+                learner.pingFailed(interval, now);
+                // reconnecting takes a moment
+                now += 1000;
+            }
+            return interval;
+        }
+
+        void run(int count) {
+            for (int i = 0; i < count; i++) {
+                ping();
+            }
+        }
+    }
+
+    public void testConvergesBelowNatTimeout() {
+        KeepAliveLearner learner = new KeepAliveLearner(new MapStore());
+        learner.setNetwork("mobile:23410");
+        Simulation nat = new Simulation(learner, 7 * MINUTE);
+        nat.run(100);
+
+        long safe = learner.getSafeInterval();
+        System.out.println("KeepAliveLearnerTest: NAT timeout 420000ms, learned "
+                + safe + "ms after " + nat.failures + " failures in " + nat.pings
+                + " pings");
+        assertTrue(safe < 7 * MINUTE);
+        assertTrue(safe >= 7 * MINUTE - 2 * KeepAliveLearner.PRECISION_MILLIS);
+        assertTrue(nat.failures <= 6);
+
+        // once learned, nothing more fails
+        int failures = nat.failures;
+        nat.run(100);
+        assertEquals(failures, nat.failures);
+        assertEquals(safe, learner.getInterval(MIN, MAX, nat.now));
+    }
+
+    public void testGenerousNatReachesMax() {
+        KeepAliveLearner learner = new KeepAliveLearner(new MapStore());
+        learner.setNetwork("wifi:\"home\"");
+        Simulation nat = new Simulation(learner, Long.MAX_VALUE);
+        nat.run(20);
+        assertEquals(0, nat.failures);
+        assertEquals(MAX, learner.getInterval(MIN, MAX, nat.now));
+        // a connection with a shorter keep-alive is held to it
+        assertEquals(5 * MINUTE, learner.getInterval(MIN, 5 * MINUTE, nat.now));
+    }
+
+    public void testRemembersEachNetworkAcrossRestarts() {
+        MapStore store = new MapStore();
+        KeepAliveLearner learner = new KeepAliveLearner(store);
+        learner.setNetwork("mobile:23410");
+        new Simulation(learner, 4 * MINUTE).run(100);
+        long mobile = learner.getSafeInterval();
+        learner.setNetwork("wifi:\"home\"");
+        new Simulation(learner, 20 * MINUTE).run(100);
+        long wifi = learner.getSafeInterval();
+        assertTrue(mobile < 4 * MINUTE);
+        assertTrue(wifi > 4 * MINUTE && wifi < 20 * MINUTE);
+
+        // a new learner, as after the service restarts
+        learner = new KeepAliveLearner(store);
+        learner.setNetwork("mobile:23410");
+        assertEquals(mobile, learner.getInterval(MIN, MAX, 0));
+        learner.setNetwork("wifi:\"home\"");
+        assertEquals(wifi, learner.getInterval(MIN, MAX, 0));
+        // an unknown network starts from the minimum
+        learner.setNetwork("wifi:\"cafe\"");
+        assertEquals(MIN, learner.getInterval(MIN, MAX, 0));
+        // and with no network there is nothing to learn
+        learner.setNetwork(null);
+        assertEquals(MIN, learner.getInterval(MIN, MAX, 0));
+        learner.pingFailed(MIN, 0);
+    }
+
+    public void testBacksOffWhenNatShortens() {
+        KeepAliveLearner learner = new KeepAliveLearner(new MapStore());
+        learner.setNetwork("mobile:23410");
+        Simulation nat = new Simulation(learner, 10 * MINUTE);
+        nat.run(100);
+        assertTrue(learner.getSafeInterval() > 5 * MINUTE);
+
+        // the carrier changes its NAT
+        nat.natTimeout = 3 * MINUTE;
+        nat.run(100);
+        long safe = learner.getSafeInterval();
+        assertTrue(safe < 3 * MINUTE);
+        int failures = nat.failures;
+        nat.run(50);
+        assertEquals(failures, nat.failures);
+    }
+
+    public void testCeilingIsForgotten() {
+        KeepAliveLearner learner = new KeepAliveLearner(new MapStore());
+        learner.setNetwork("mobile:23410");
+        learner.pingSucceeded(4 * MINUTE);
+        learner.pingSucceeded(4 * MINUTE);
+        learner.pingFailed(5 * MINUTE, 0);
+        // probing between the two
+        long probe = learner.getInterval(MIN, MAX, MINUTE);
+        assertTrue(probe > 4 * MINUTE && probe < 5 * MINUTE);
+        // a day later, longer intervals are tried again
+        assertEquals(8 * MINUTE, learner.getInterval(MIN, MAX,
+                KeepAliveLearner.CEILING_LIFETIME_MILLIS + MINUTE));
+    }
+
+    public void testCorruptSavedValueIsIgnored() {
+        MapStore store = new MapStore();
+        store.values.put("mobile:23410", "not,a,number");
+        KeepAliveLearner learner = new KeepAliveLearner(store);
+        learner.setNetwork("mobile:23410");
+        assertEquals(MIN, learner.getInterval(MIN, MAX, 0));
+    }
+}
@@ -0,0 +1,112 @@
+package org.eclipse.paho.android.service;
+
+import java.util.Arrays;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+
+/**
+ * Tests for {@link LastValueCache}
+ */
+public class LastValueCacheTest extends TestCase {
+
+    private static MqttMessage message(String payload) {
+        return new MqttMessage(payload.getBytes());
+    }
+
+    private static String value(MqttMessage message) {
+        return message == null ? null : new String(message.getPayload());
+    }
+
+    public void testLastValueWins() {
+        LastValueCache cache = new LastValueCache(1024 * 1024);
+        cache.put("device/1/battery", message("80"));
+        cache.put("device/1/battery", message("79"));
+        assertEquals("79", value(cache.get("device/1/battery")));
+        assertNull(cache.get("device/2/battery"));
+        assertEquals(1, cache.size());
+
+        // a copy is returned, so the cached value cannot be changed
+        cache.get("device/1/battery").getPayload()[0] = 'x';
+        assertEquals("79", value(cache.get("device/1/battery")));
+    }
+
+    public void testEmptyRetainedMessageClearsTopic() {
+        LastValueCache cache = new LastValueCache(1024 * 1024);
+        cache.put("a/b", message("1"));
+        MqttMessage clear = new MqttMessage(new byte[0]);
+        clear.setRetained(true);
+        cache.put("a/b", clear);
+        assertNull(cache.get("a/b"));
+        assertEquals(0, cache.getBytes());
+        assertTrue(cache.query("#").isEmpty());
+    }
+
+    public void testLeastRecentlyUsedGoesFirst() {
+        LastValueCache cache = new LastValueCache(1024 * 1024);
+        cache.put("t/1", message("1"));
+        long oneEntry = cache.getBytes();
+        cache.setMaxBytes(oneEntry * 3);
+        cache.put("t/2", message("2"));
+        cache.put("t/3", message("3"));
+        // reading t/1 makes t/2 the least recently used
+        assertNotNull(cache.get("t/1"));
+        cache.put("t/4", message("4"));
+
+        assertEquals(3, cache.size());
+        assertNull(cache.get("t/2"));
+        assertEquals(Arrays.asList("t/1", "t/3", "t/4"),
+                Arrays.asList(cache.query("t/+").keySet().toArray()));
+        assertTrue(cache.getBytes() <= oneEntry * 3);
+
+        cache.setMaxBytes(oneEntry);
+        assertEquals(1, cache.size());
+        assertEquals("4", value(cache.get("t/4")));
+    }
+
+    public void testWildcardQueries() {
+        LastValueCache cache = new LastValueCache(1024 * 1024);
+        cache.put("device/1/battery", message("b1"));
+        cache.put("device/2/battery", message("b2"));
+        cache.put("device/1/temperature", message("t1"));
+        cache.put("device", message("d"));
+        cache.put("$SYS/uptime", message("s"));
+        cache.put("/leading", message("l"));
+
+        assertEquals(Arrays.asList("device/1/battery", "device/2/battery"),
+                Arrays.asList(cache.query("device/+/battery").keySet().toArray()));
+        Map<String, MqttMessage> device1 = cache.query("device/1/#");
+        assertEquals(2, device1.size());
+        assertEquals("t1", value(device1.get("device/1/temperature")));
+        // "device/#" matches "device" itself
+        assertEquals(4, cache.query("device/#").size());
+        assertEquals(1, cache.query("device").size());
+        // wildcards at the first level do not match $ topics
+        assertEquals(5, cache.query("#").size());
+        assertEquals(1, cache.query("$SYS/#").size());
+        assertEquals(1, cache.query("+/leading").size());
+        assertTrue(cache.query("device/+").isEmpty());
+
+        try {
+            cache.query("device/#/battery");
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    public void testTrieIsPrunedAsTopicsGo() {
+        LastValueCache cache = new LastValueCache(1024 * 1024);
+        for (int i = 0; i < 1000; i++) {
+            cache.put("a/" + i + "/b/c", message("v"));
+        }
+        cache.setMaxBytes(1);
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.getBytes());
+        cache.setMaxBytes(1024 * 1024);
+        cache.put("a/x", message("v"));
+        assertEquals(1, cache.query("a/#").size());
+    }
+}
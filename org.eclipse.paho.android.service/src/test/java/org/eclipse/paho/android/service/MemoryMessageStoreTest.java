@@ -0,0 +1,156 @@
+package org.eclipse.paho.android.service;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+
+/**
+ * Tests for {@link MemoryMessageStore}, and for which messages each
+ * {@link ArrivedMessageStorePolicy} sends to it
+ */
+public class MemoryMessageStoreTest extends TestCase {
+
+    private static final String CLIENT = "client";
+
+    private static final MqttTraceHandler NO_TRACE = new MqttTraceHandler() {
+        @Override
+        public void traceDebug(String tag, String message) {
+        }
+
+        @Override
+        public void traceError(String tag, String message) {
+        }
+
+        @Override
+        public void traceException(String tag, String message, Exception e) {
+        }
+    };
+
+    private static MqttMessage message(int i) {
+        return new MqttMessage(("message " + i).getBytes());
+    }
+
+    private static List<String> payloads(Iterator<MessageStore.StoredMessage> it) {
+        List<String> payloads = new ArrayList<>();
+        while (it.hasNext()) {
+            payloads.add(new String(it.next().getMessage().getPayload()));
+        }
+        return payloads;
+    }
+
+    public void testStoreDiscardAndReplay() {
+        MemoryMessageStore store = new MemoryMessageStore(NO_TRACE, 10);
+        List<String> ids = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            ids.add(store.storeArrived(CLIENT, "t", message(i)));
+        }
+        store.storeArrived("other", "t", message(99));
+        assertTrue(MemoryMessageStore.isMemoryId(ids.get(0)));
+        assertFalse(MemoryMessageStore.isMemoryId("42"));
+
+        assertTrue(store.discardArrived(CLIENT, ids.get(0)));
+        assertTrue(store.discardArrived(CLIENT, ids.get(2)));
+        assertFalse(store.discardArrived(CLIENT, ids.get(2)));
+        assertFalse(store.discardArrived("other", ids.get(1)));
+        assertFalse(store.discardArrived(CLIENT, "42"));
+
+        assertEquals(3, store.getArrivedMessageCount(CLIENT));
+        assertEquals(4, store.getArrivedMessageCount(null));
+        List<String> payloads = payloads(store.getAllArrivedMessages(CLIENT));
+        assertEquals(3, payloads.size());
+        assertEquals("message 1", payloads.get(0));
+        assertEquals("message 3", payloads.get(1));
+        assertEquals("message 4", payloads.get(2));
+    }
+
+    public void testOldestDroppedWhenFull() {
+        MemoryMessageStore store = new MemoryMessageStore(NO_TRACE, 3);
+        List<String> ids = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            ids.add(store.storeArrived(CLIENT, "t", message(i)));
+        }
+        assertEquals(3, store.getArrivedMessageCount(CLIENT));
+        assertEquals(2, store.getDroppedCount());
+        assertFalse(store.discardArrived(CLIENT, ids.get(0)));
+
+        List<String> payloads = payloads(store.getAllArrivedMessages(CLIENT));
+        assertEquals("message 2", payloads.get(0));
+        assertEquals("message 4", payloads.get(2));
+
+        // a discarded slot is reused without dropping anything
+        assertTrue(store.discardArrived(CLIENT, ids.get(2)));
+        store.storeArrived(CLIENT, "t", message(5));
+        assertEquals(2, store.getDroppedCount());
+        assertEquals(3, store.getArrivedMessageCount(CLIENT));
+    }
+
+    public void testOldMessageKeptWhileOthersAreAcknowledged() {
+        MemoryMessageStore store = new MemoryMessageStore(NO_TRACE, 3);
+        store.storeArrived(CLIENT, "t", message(0));
+        for (int i = 1; i < 5; i++) {
+            String id = store.storeArrived(CLIENT, "t", message(i));
+            assertTrue(store.discardArrived(CLIENT, id));
+        }
+        // the ring only ever held two messages, so nothing was dropped
+        assertEquals(0, store.getDroppedCount());
+        assertEquals(1, store.getArrivedMessageCount(CLIENT));
+
+        String next = store.storeArrived(CLIENT, "t", message(100));
+        assertEquals(0, store.getDroppedCount());
+        List<String> payloads = payloads(store.getAllArrivedMessages(CLIENT));
+        assertEquals(2, payloads.size());
+        assertEquals("message 0", payloads.get(0));
+        assertEquals("message 100", payloads.get(1));
+        assertTrue(store.discardArrived(CLIENT, next));
+    }
+
+    public void testSpanBehindAnOldMessageIsBounded() {
+        MemoryMessageStore store = new MemoryMessageStore(NO_TRACE, 3);
+        String oldest = store.storeArrived(CLIENT, "t", message(0));
+        for (int i = 1; i < 1000; i++) {
+            String id = store.storeArrived(CLIENT, "t", message(i));
+            assertTrue(store.discardArrived(CLIENT, id));
+        }
+        // once the ring spans twice its capacity, the old message goes
+        // rather than the ring growing without end
+        assertEquals(1, store.getDroppedCount());
+        assertFalse(store.discardArrived(CLIENT, oldest));
+        assertEquals(0, store.getArrivedMessageCount(CLIENT));
+
+        // and the others are still found once the ring has shrunk back
+        String first = store.storeArrived(CLIENT, "t", message(1000));
+        String second = store.storeArrived(CLIENT, "t", message(1001));
+        assertTrue(store.discardArrived(CLIENT, first));
+        assertEquals("message 1001", payloads(store.getAllArrivedMessages(CLIENT)).get(0));
+        assertTrue(store.discardArrived(CLIENT, second));
+    }
+
+    public void testIdsNotReusedAfterClear() {
+        MemoryMessageStore store = new MemoryMessageStore(NO_TRACE, 3);
+        String first = store.storeArrived(CLIENT, "t", message(0));
+        store.clearArrivedMessages(CLIENT);
+        assertEquals(0, store.getArrivedMessageCount(CLIENT));
+        String second = store.storeArrived(CLIENT, "t", message(1));
+        assertFalse(first.equals(second));
+        assertFalse(store.discardArrived(CLIENT, first));
+        assertTrue(store.discardArrived(CLIENT, second));
+    }
+
+    public void testPolicies() {
+        assertFalse(ArrivedMessageStorePolicy.DURABLE.inMemory(0, true));
+
+        assertTrue(ArrivedMessageStorePolicy.MEMORY_FOR_QOS0.inMemory(0, false));
+        assertFalse(ArrivedMessageStorePolicy.MEMORY_FOR_QOS0.inMemory(1, true));
+
+        assertTrue(ArrivedMessageStorePolicy.MEMORY_FOR_VOLATILE.inMemory(0, false));
+        assertTrue(ArrivedMessageStorePolicy.MEMORY_FOR_VOLATILE.inMemory(2, true));
+        assertFalse(ArrivedMessageStorePolicy.MEMORY_FOR_VOLATILE.inMemory(1, false));
+        assertFalse(ArrivedMessageStorePolicy.MEMORY_FOR_VOLATILE.inMemory(2, false));
+
+        assertTrue(ArrivedMessageStorePolicy.MEMORY.inMemory(2, false));
+    }
+}
@@ -0,0 +1,59 @@
+package org.eclipse.paho.android.service;
+
+import junit.framework.TestCase;
+
+import org.eclipse.paho.android.service.NetworkTracker.Action;
+
+/**
+ * Tests for {@link NetworkTracker}
+ */
+public class NetworkTrackerTest extends TestCase {
+
+    public void testWifiHandover() {
+        NetworkTracker<String> tracker = new NetworkTracker<>();
+        tracker.available("mobile");
+        assertEquals(Action.RECONNECT, tracker.update("mobile", true));
+        assertEquals("mobile", tracker.getCurrent());
+        // nothing changes while the default stays the same
+        assertEquals(Action.NONE, tracker.update("mobile", true));
+
+        // Wi-Fi comes up, but is not yet known to reach the internet
+        tracker.available("wifi");
+        assertEquals(Action.NONE, tracker.update("wifi", false));
+        assertEquals("mobile", tracker.getCurrent());
+        assertEquals(Action.HANDOVER, tracker.update("wifi", true));
+        assertEquals("wifi", tracker.getCurrent());
+
+        // those left on the mobile network reconnect when it goes, only once
+        tracker.lost("mobile");
+        assertEquals(Action.RELEASE, tracker.update("wifi", true));
+        assertEquals(Action.NONE, tracker.update("wifi", true));
+    }
+
+    public void testSwitchWhenCurrentIsLost() {
+        NetworkTracker<String> tracker = new NetworkTracker<>();
+        tracker.available("wifi");
+        tracker.available("mobile");
+        assertEquals(Action.RECONNECT, tracker.update("wifi", true));
+
+        tracker.lost("wifi");
+        // the new default is taken even before it is validated
+        assertEquals(Action.SWITCH, tracker.update("mobile", false));
+        assertEquals("mobile", tracker.getCurrent());
+    }
+
+    public void testOffline() {
+        NetworkTracker<String> tracker = new NetworkTracker<>();
+        assertEquals(Action.NONE, tracker.update(null, false));
+        tracker.available("wifi");
+        assertEquals(Action.RECONNECT, tracker.update("wifi", true));
+        tracker.lost("wifi");
+        assertEquals(Action.OFFLINE, tracker.update(null, false));
+        assertNull(tracker.getCurrent());
+        assertEquals(Action.NONE, tracker.update(null, false));
+
+        // and back again
+        tracker.available("wifi");
+        assertEquals(Action.RECONNECT, tracker.update("wifi", true));
+    }
+}
@@ -0,0 +1,421 @@
+package org.eclipse.paho.android.service;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Queue;
+
+import junit.framework.TestCase;
+
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+
+/**
+ * Tests for {@link OfflinePublishBuffer}, and a measurement of the rate at
+ * which 100,000 buffered messages are drained through an in-flight window
+ */
+public class OfflinePublishBufferTest extends TestCase {
+
+    private static final int BENCHMARK_MESSAGES = 100000;
+    private static final int BENCHMARK_WINDOW = 1000;
+
+    private static final MqttTraceHandler NO_TRACE = new MqttTraceHandler() {
+        @Override
+        public void traceDebug(String tag, String message) {
+        }
+
+        @Override
+        public void traceError(String tag, String message) {
+        }
+
+        @Override
+        public void traceException(String tag, String message, Exception e) {
+        }
+    };
+
+    private File directory;
+
+    @Override
+    protected void setUp() throws Exception {
+        directory = File.createTempFile("offline", "");
+        assertTrue(directory.delete());
+        assertTrue(directory.mkdir());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    private OfflinePublishBuffer open(long segmentBytes) throws IOException {
+        return new OfflinePublishBuffer(NO_TRACE, directory, segmentBytes);
+    }
+
+    private static MqttMessage message(int i, int qos) {
+        MqttMessage message = new MqttMessage(("message " + i).getBytes());
+        message.setQos(qos);
+        return message;
+    }
+
+    private static String payload(OfflinePublishBuffer.Message message) {
+        return new String(message.message.getPayload());
+    }
+
+    public void testMessagesSurviveReopen() throws Exception {
+        OfflinePublishBuffer buffer = open(OfflinePublishBuffer.DEFAULT_SEGMENT_BYTES);
+        MqttMessage retained = message(2, 2);
+        retained.setRetained(true);
+        assertTrue(buffer.add("a", message(1, 1)));
+        assertTrue(buffer.add("b", retained));
+        assertTrue(buffer.add("c", message(3, 0)));
+
+        OfflinePublishBuffer.Message first = buffer.next();
+        assertEquals("message 1", payload(first));
+        assertTrue(buffer.remove(first.id));
+        assertFalse(buffer.remove(first.id));
+        // taken, but not delivered before the service was killed
+        assertNotNull(buffer.next());
+        buffer.close();
+
+        buffer = open(OfflinePublishBuffer.DEFAULT_SEGMENT_BYTES);
+        assertEquals(2, buffer.size());
+        OfflinePublishBuffer.Message second = buffer.next();
+        assertEquals("b", second.topic);
+        assertEquals("message 2", payload(second));
+        assertEquals(2, second.message.getQos());
+        assertTrue(second.message.isRetained());
+        OfflinePublishBuffer.Message third = buffer.next();
+        assertEquals("c", third.topic);
+        assertEquals(0, third.message.getQos());
+        assertNull(buffer.next());
+        buffer.close();
+    }
+
+    public void testUnsendAndReset() throws Exception {
+        OfflinePublishBuffer buffer = open(OfflinePublishBuffer.DEFAULT_SEGMENT_BYTES);
+        for (int i = 0; i < 3; i++) {
+            buffer.add("t", message(i, 1));
+        }
+        OfflinePublishBuffer.Message m0 = buffer.next();
+        OfflinePublishBuffer.Message m1 = buffer.next();
+        buffer.next();
+        assertFalse(buffer.hasUnsent());
+        assertNull(buffer.next());
+
+        buffer.unsend(m1.id);
+        assertTrue(buffer.hasUnsent());
+        assertEquals(m1.id, buffer.next().id);
+
+        buffer.resetSending();
+        assertEquals(m0.id, buffer.next().id);
+        buffer.close();
+    }
+
+    public void testDiscardedMessageDoesNotHoldUpTheRest() throws Exception {
+        OfflinePublishBuffer buffer = open(OfflinePublishBuffer.DEFAULT_SEGMENT_BYTES);
+        buffer.add("bad/#", message(0, 1));
+        buffer.add("t", message(1, 1));
+        OfflinePublishBuffer.Message bad = buffer.next();
+        assertTrue(buffer.discard(bad.id));
+        assertFalse(buffer.discard(bad.id));
+        assertEquals("message 1", payload(buffer.next()));
+        assertEquals(0, buffer.getStats().getDelivered());
+        buffer.close();
+
+        // and it stays gone
+        buffer = open(OfflinePublishBuffer.DEFAULT_SEGMENT_BYTES);
+        assertEquals(1, buffer.size());
+        assertEquals("t", buffer.next().topic);
+        buffer.close();
+    }
+
+    public void testDropOldest() throws Exception {
+        OfflinePublishBuffer buffer = open(OfflinePublishBuffer.DEFAULT_SEGMENT_BYTES);
+        buffer.setLimits(3, Long.MAX_VALUE, OfflineBufferEvictionPolicy.DROP_OLDEST);
+        for (int i = 0; i < 5; i++) {
+            assertTrue(buffer.add("t", message(i, 1)));
+        }
+        assertEquals(3, buffer.size());
+        assertEquals("message 2", payload(buffer.next()));
+        OfflineBufferStats stats = buffer.getStats();
+        assertEquals(5, stats.getAdded());
+        assertEquals(2, stats.getEvicted());
+        buffer.close();
+
+        // the evictions are remembered
+        buffer = open(OfflinePublishBuffer.DEFAULT_SEGMENT_BYTES);
+        assertEquals(3, buffer.size());
+        buffer.close();
+    }
+
+    public void testDropNewest() throws Exception {
+        OfflinePublishBuffer buffer = open(OfflinePublishBuffer.DEFAULT_SEGMENT_BYTES);
+        buffer.setLimits(2, Long.MAX_VALUE, OfflineBufferEvictionPolicy.DROP_NEWEST);
+        assertTrue(buffer.add("t", message(0, 1)));
+        assertTrue(buffer.add("t", message(1, 1)));
+        assertFalse(buffer.add("t", message(2, 1)));
+        assertEquals(1, buffer.getStats().getRefused());
+        assertEquals("message 0", payload(buffer.next()));
+
+        // shrinking the buffer drops the newest
+        buffer.setLimits(1, Long.MAX_VALUE, OfflineBufferEvictionPolicy.DROP_NEWEST);
+        assertEquals(1, buffer.size());
+        buffer.resetSending();
+        assertEquals("message 0", payload(buffer.next()));
+        buffer.close();
+    }
+
+    public void testDropLowestQos() throws Exception {
+        OfflinePublishBuffer buffer = open(OfflinePublishBuffer.DEFAULT_SEGMENT_BYTES);
+        buffer.setLimits(3, Long.MAX_VALUE, OfflineBufferEvictionPolicy.DROP_LOWEST_QOS);
+        buffer.add("t", message(0, 2));
+        buffer.add("t", message(1, 0));
+        buffer.add("t", message(2, 1));
+        // the QoS 0 message goes first, then the QoS 1
+        assertTrue(buffer.add("t", message(3, 1)));
+        assertTrue(buffer.add("t", message(4, 2)));
+        // nothing held is of lower QoS than this
+        assertFalse(buffer.add("t", message(5, 0)));
+
+        assertEquals("message 0", payload(buffer.next()));
+        assertEquals("message 3", payload(buffer.next()));
+        assertEquals("message 4", payload(buffer.next()));
+        assertEquals(2, buffer.getStats().getEvicted());
+        assertEquals(1, buffer.getStats().getRefused());
+        buffer.close();
+    }
+
+    public void testNothingDroppedForARefusedMessage() throws Exception {
+        OfflinePublishBuffer buffer = open(OfflinePublishBuffer.DEFAULT_SEGMENT_BYTES);
+        MqttMessage small = new MqttMessage(new byte[10]);
+        buffer.add("t", small);
+        MqttMessage large = new MqttMessage(new byte[100]);
+        large.setQos(2);
+        buffer.add("t", large);
+        long bytes = buffer.getStats().getBytes();
+        buffer.setLimits(100, bytes, OfflineBufferEvictionPolicy.DROP_LOWEST_QOS);
+
+        // dropping the QoS 0 message would not make room without the QoS 2
+        MqttMessage next = new MqttMessage(new byte[50]);
+        next.setQos(1);
+        assertFalse(buffer.add("t", next));
+        assertEquals(2, buffer.size());
+        assertEquals(0, buffer.getStats().getEvicted());
+        assertEquals(1, buffer.getStats().getRefused());
+
+        // but one that fits in the QoS 0 message's room goes in its place
+        next = new MqttMessage(new byte[5]);
+        next.setQos(1);
+        assertTrue(buffer.add("t", next));
+        assertEquals(2, buffer.size());
+        assertEquals(1, buffer.getStats().getEvicted());
+        assertTrue(buffer.getStats().getBytes() <= bytes);
+        buffer.close();
+    }
+
+    public void testRefusedReplacementKeepsTheOldValue() throws Exception {
+        OfflinePublishBuffer buffer = open(OfflinePublishBuffer.DEFAULT_SEGMENT_BYTES);
+        buffer.setConflatedTopics(new String[] {"state"});
+        buffer.add("state", message(0, 1));
+        buffer.setLimits(100, buffer.getStats().getBytes(),
+                OfflineBufferEvictionPolicy.DROP_NEWEST);
+
+        // too large even in the old value's room
+        assertFalse(buffer.add("state", new MqttMessage(new byte[100])));
+        // the same size takes its room
+        assertTrue(buffer.add("state", message(1, 1)));
+        assertEquals(1, buffer.size());
+        assertEquals("message 1", new String(buffer.get(0).getPayload()));
+        buffer.close();
+    }
+
+    public void testByteLimit() throws Exception {
+        OfflinePublishBuffer buffer = open(OfflinePublishBuffer.DEFAULT_SEGMENT_BYTES);
+        buffer.add("t", new MqttMessage(new byte[100]));
+        long oneMessage = buffer.getStats().getBytes();
+        buffer.setLimits(100, oneMessage * 2, OfflineBufferEvictionPolicy.DROP_OLDEST);
+        for (int i = 0; i < 5; i++) {
+            assertTrue(buffer.add("t", new MqttMessage(new byte[100])));
+        }
+        assertEquals(2, buffer.size());
+        assertEquals(oneMessage * 2, buffer.getStats().getBytes());
+        // larger than the whole buffer
+        assertFalse(buffer.add("t", new MqttMessage(new byte[1000])));
+        buffer.close();
+    }
+
+    public void testConflatedTopicsKeepTheirPlace() throws Exception {
+        OfflinePublishBuffer buffer = open(OfflinePublishBuffer.DEFAULT_SEGMENT_BYTES);
+        buffer.setConflatedTopics(new String[] {"device/+/battery"});
+        buffer.add("device/1/battery", message(0, 1));
+        buffer.add("device/1/log", message(1, 1));
+        buffer.add("device/2/battery", message(2, 1));
+        buffer.add("device/1/battery", message(3, 1));
+        buffer.add("device/1/log", message(4, 1));
+        buffer.add("device/1/battery", message(5, 1));
+
+        assertEquals(4, buffer.size());
+        assertEquals(2, buffer.getStats().getConflated());
+        assertEquals("message 5", new String(buffer.get(0).getPayload()));
+        assertEquals("message 1", new String(buffer.get(1).getPayload()));
+        assertEquals("message 2", new String(buffer.get(2).getPayload()));
+        assertEquals("message 4", new String(buffer.get(3).getPayload()));
+        buffer.close();
+
+        // the replacements survive a replay
+        buffer = open(OfflinePublishBuffer.DEFAULT_SEGMENT_BYTES);
+        buffer.setConflatedTopics(new String[] {"device/+/battery"});
+        assertEquals(4, buffer.size());
+        OfflinePublishBuffer.Message first = buffer.next();
+        assertEquals("device/1/battery", first.topic);
+        assertEquals("message 5", payload(first));
+
+        // a value already being sent is not replaced, but followed
+        buffer.add("device/1/battery", message(6, 1));
+        assertEquals(5, buffer.size());
+        buffer.add("device/1/battery", message(7, 1));
+        assertEquals(5, buffer.size());
+        assertEquals("message 7", new String(buffer.get(4).getPayload()));
+        buffer.remove(first.id);
+        buffer.add("device/1/battery", message(8, 1));
+        assertEquals(4, buffer.size());
+        assertEquals("message 8", new String(buffer.get(3).getPayload()));
+        buffer.close();
+    }
+
+    public void testDeleteByIndex() throws Exception {
+        OfflinePublishBuffer buffer = open(OfflinePublishBuffer.DEFAULT_SEGMENT_BYTES);
+        for (int i = 0; i < 3; i++) {
+            buffer.add("t", message(i, 1));
+        }
+        buffer.delete(1);
+        assertEquals(2, buffer.size());
+        assertEquals("message 2", new String(buffer.get(1).getPayload()));
+        try {
+            buffer.get(2);
+            fail();
+        } catch (ArrayIndexOutOfBoundsException e) {
+            // expected
+        }
+        buffer.close();
+    }
+
+    /**
+     * A QoS 2 message held at the start keeps its segment alive while QoS 0
+     * messages behind it are evicted - the log must not grow without limit
+     */
+    public void testLogStaysBoundedBehindAnOldMessage() throws Exception {
+        OfflinePublishBuffer buffer = open(1024);
+        buffer.setLimits(10, Long.MAX_VALUE, OfflineBufferEvictionPolicy.DROP_LOWEST_QOS);
+        assertTrue(buffer.add("keep", message(-1, 2)));
+        for (int i = 0; i < 10000; i++) {
+            assertTrue(buffer.add("t", message(i, 0)));
+        }
+        assertTrue(directory.listFiles().length < 10);
+        buffer.close();
+
+        buffer = open(1024);
+        assertEquals(10, buffer.size());
+        OfflinePublishBuffer.Message first = buffer.next();
+        assertEquals("keep", first.topic);
+        assertEquals("message 9991", payload(buffer.next()));
+        buffer.close();
+    }
+
+    public void testTornRecordIsCutOff() throws Exception {
+        OfflinePublishBuffer buffer = open(OfflinePublishBuffer.DEFAULT_SEGMENT_BYTES);
+        buffer.add("t", message(0, 1));
+        buffer.add("t", message(1, 1));
+        buffer.close();
+
+        File segment = directory.listFiles()[0];
+        RandomAccessFile file = new RandomAccessFile(segment, "rw");
+        try {
+            file.setLength(file.length() - 3);
+        } finally {
+            file.close();
+        }
+
+        buffer = open(OfflinePublishBuffer.DEFAULT_SEGMENT_BYTES);
+        assertEquals(1, buffer.size());
+        assertTrue(buffer.add("t", message(2, 1)));
+        assertEquals("message 0", payload(buffer.next()));
+        assertEquals("message 2", payload(buffer.next()));
+        buffer.close();
+    }
+
+    /**
+     * Buffers 100,000 messages, then drains them as a connection would: each
+     * is sent only when the in-flight window has room, and the server
+     * acknowledges them in order. Once drained, the log is deleted.
+     */
+    public void testDrainBenchmark() throws Exception {
+        OfflinePublishBuffer buffer = open(OfflinePublishBuffer.DEFAULT_SEGMENT_BYTES);
+        buffer.setLimits(BENCHMARK_MESSAGES, Long.MAX_VALUE,
+                OfflineBufferEvictionPolicy.DROP_OLDEST);
+        byte[] payload = new byte[128];
+        Arrays.fill(payload, (byte) 'x');
+
+        long start = System.nanoTime();
+        for (int i = 0; i < BENCHMARK_MESSAGES; i++) {
+            MqttMessage message = new MqttMessage(payload);
+            message.setQos(1);
+            assertTrue(buffer.add("benchmark/topic", message));
+        }
+        long addNanos = System.nanoTime() - start;
+        buffer.close();
+
+        start = System.nanoTime();
+        buffer = open(OfflinePublishBuffer.DEFAULT_SEGMENT_BYTES);
+        long openNanos = System.nanoTime() - start;
+        assertEquals(BENCHMARK_MESSAGES, buffer.size());
+
+        InFlightTable window = new InFlightTable(BENCHMARK_WINDOW);
+        Queue<InFlightTable.Record> sent = new ArrayDeque<>();
+        Queue<Long> ids = new ArrayDeque<>();
+        int drained = 0;
+        start = System.nanoTime();
+        while (drained < BENCHMARK_MESSAGES) {
+            while (window.reserve()) {
+                OfflinePublishBuffer.Message next = buffer.next();
+                if (next == null) {
+                    window.cancelReservation();
+                    break;
+                }
+                InFlightTable.Record record = new InFlightTable.Record(next.topic,
+                        next.message, null, MqttServiceConstants.NO_ACTIVITY_TOKEN);
+                window.addReserved(record);
+                sent.add(record);
+                ids.add(next.id);
+            }
+            // the server acknowledges what it has been sent
+            while (!sent.isEmpty()) {
+                assertTrue(window.complete(sent.poll()));
+                assertTrue(buffer.remove(ids.poll()));
+                drained++;
+            }
+        }
+        long drainNanos = System.nanoTime() - start;
+
+        assertEquals(0, buffer.size());
+        assertEquals(BENCHMARK_MESSAGES, buffer.getStats().getDelivered());
+        assertEquals(1, directory.listFiles().length);
+        buffer.close();
+
+        System.out.println("OfflinePublishBuffer: " + BENCHMARK_MESSAGES
+                + " messages buffered at " + rate(addNanos) + " msgs/s, reopened in "
+                + openNanos / 1000000 + " ms, drained at " + rate(drainNanos)
+                + " msgs/s");
+    }
+
+    private static long rate(long nanos) {
+        return BENCHMARK_MESSAGES * 1000000000L / Math.max(1, nanos);
+    }
+}
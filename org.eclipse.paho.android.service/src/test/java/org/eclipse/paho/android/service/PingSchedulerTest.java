@@ -0,0 +1,203 @@
+package org.eclipse.paho.android.service;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for {@link PingScheduler}, on a fake clock
+ */
+public class PingSchedulerTest extends TestCase {
+
+    private static final long HOUR = 3600000;
+
+    /**
+     * Remembers the wake-up the scheduler set
+     */
+    private static class FakeAlarm implements PingScheduler.Alarm {
+        long time = Long.MAX_VALUE;
+        int sets = 0;
+
+        @Override
+        public void wakeAt(long time) {
+            this.time = time;
+            sets++;
+        }
+
+        @Override
+        public void cancel() {
+            time = Long.MAX_VALUE;
+        }
+    }
+
+    public void testWakesForEarliestLatest() {
+        FakeAlarm alarm = new FakeAlarm();
+        PingScheduler<String> scheduler = new PingScheduler<>(alarm);
+        scheduler.setSlack(10000);
+
+        scheduler.schedule("a", 0, 60000);
+        // due at 60s, but may wait up to the slack
+        assertEquals(70000, alarm.time);
+        scheduler.schedule("b", 0, 65000);
+        assertEquals(70000, alarm.time);
+        // a short delay allows a quarter of itself
+        scheduler.schedule("c", 0, 20000);
+        assertEquals(25000, alarm.time);
+        scheduler.remove("c");
+        assertEquals(70000, alarm.time);
+
+        // both pings are sent in the one wake-up
+        List<String> due = scheduler.wake(70000);
+        assertEquals(2, due.size());
+        assertEquals(0, scheduler.size());
+        assertEquals(1, scheduler.getWakeUps());
+        assertEquals(2, scheduler.getPings());
+    }
+
+    public void testNotDueYetIsLeft() {
+        FakeAlarm alarm = new FakeAlarm();
+        PingScheduler<String> scheduler = new PingScheduler<>(alarm);
+        scheduler.setSlack(1000);
+        scheduler.schedule("a", 0, 10000);
+        scheduler.schedule("b", 0, 30000);
+        assertEquals(11000, alarm.time);
+
+        List<String> due = scheduler.wake(11000);
+        assertEquals(1, due.size());
+        assertEquals("a", due.get(0));
+        assertEquals(31000, alarm.time);
+        assertEquals(1, scheduler.size());
+    }
+
+    public void testWakeForRemovedConnection() {
+        FakeAlarm alarm = new FakeAlarm();
+        PingScheduler<String> scheduler = new PingScheduler<>(alarm);
+        scheduler.schedule("a", 0, 10000);
+        // the alarm was already going off as the connection was removed
+        scheduler.remove("a");
+        assertTrue(scheduler.wake(20000).isEmpty());
+        assertEquals(0, scheduler.getWakeUps());
+    }
+
+    public void testRescheduleReplaces() {
+        FakeAlarm alarm = new FakeAlarm();
+        PingScheduler<String> scheduler = new PingScheduler<>(alarm);
+        scheduler.setSlack(0);
+        scheduler.schedule("a", 0, 10000);
+        scheduler.schedule("a", 5000, 10000);
+        assertEquals(15000, alarm.time);
+        assertTrue(scheduler.wake(10000).isEmpty());
+        assertEquals(1, scheduler.wake(15000).size());
+    }
+
+    public void testActivityPushesPingBack() {
+        FakeAlarm alarm = new FakeAlarm();
+        PingScheduler<String> scheduler = new PingScheduler<>(alarm);
+        scheduler.setSlack(10000);
+        scheduler.schedule("a", 0, 60000);
+        assertEquals(70000, alarm.time);
+        int sets = alarm.sets;
+
+        // too little to move the alarm
+        scheduler.activity("a", 5000);
+        assertEquals(70000, alarm.time);
+        assertEquals(sets, alarm.sets);
+        // but enough now
+        scheduler.activity("a", 10000);
+        assertEquals(80000, alarm.time);
+        assertEquals(sets + 1, alarm.sets);
+
+        // going off at the unmoved time, the ping is still due
+        scheduler.activity("a", 15000);
+        assertEquals(80000, alarm.time);
+        assertEquals(1, scheduler.wake(80000).size());
+        assertEquals(0, scheduler.getPingsAvoided());
+
+        // activity for a connection not scheduled is ignored
+        scheduler.activity("b", 90000);
+        assertEquals(0, scheduler.size());
+    }
+
+    /**
+     * An hour of traffic every two seconds on one connection, then silence
+     */
+    public void testSteadyTraffic() {
+        FakeAlarm alarm = new FakeAlarm();
+        PingScheduler<String> scheduler = new PingScheduler<>(alarm);
+        scheduler.setSlack(10000);
+        scheduler.schedule("a", 0, 60000);
+
+        for (long now = 2000; now <= HOUR; now += 2000) {
+            assertTrue(alarm.time > now);
+            scheduler.activity("a", now);
+        }
+        System.out.println("PingSchedulerTest: an hour of traffic every 2s set the alarm "
+                + scheduler.getAlarmsSet() + " times for 1800 packets, avoiding "
+                + scheduler.getPingsAvoided() + " pings");
+        assertEquals(0, scheduler.getWakeUps());
+        assertEquals(1800, scheduler.getActivityNoted());
+        assertEquals(60, scheduler.getPingsAvoided());
+        assertTrue(scheduler.getAlarmsSet() <= HOUR / 10000 + 1);
+
+        // once the traffic stops, the ping is sent within the slack
+        assertTrue(alarm.time >= HOUR + 60000);
+        assertTrue(alarm.time <= HOUR + 70000);
+        assertEquals(1, scheduler.wake(alarm.time).size());
+        assertEquals(60, scheduler.getPingsAvoided());
+    }
+
+    /**
+     * An hour of connections with a mix of keep-alive intervals, started at
+     * random times, with and without slack
+     */
+    public void testSimulatedConnections() {
+        long aligned = simulate(20, 10000);
+        long unaligned = simulate(20, 0);
+        System.out.println("PingSchedulerTest: 20 connections for an hour woke "
+                + unaligned + " times without slack, " + aligned + " with 10s");
+        assertTrue(aligned * 3 < unaligned);
+    }
+
+    /**
+     * @return the number of wake-ups
+     */
+    private static long simulate(int connections, long slack) {
+        long[] keepAlives = { 30000, 60000, 60000, 120000, 300000 };
+        Random random = new Random(42);
+        FakeAlarm alarm = new FakeAlarm();
+        PingScheduler<Integer> scheduler = new PingScheduler<>(alarm);
+        scheduler.setSlack(slack);
+
+        Map<Integer, Long> keepAlive = new HashMap<>();
+        Map<Integer, Long> deadline = new HashMap<>();
+        for (int i = 0; i < connections; i++) {
+            long start = random.nextInt(60000);
+            keepAlive.put(i, keepAlives[i % keepAlives.length]);
+            deadline.put(i, start + keepAlive.get(i));
+            scheduler.schedule(i, start, keepAlive.get(i));
+        }
+        assertEquals(connections, scheduler.size());
+
+        long now = 0;
+        long pings = 0;
+        while (alarm.time <= HOUR) {
+            assertTrue(alarm.time >= now);
+            now = alarm.time;
+            for (Integer connection : scheduler.wake(now)) {
+                long late = now - deadline.get(connection);
+                // never early, and never later than the slack allows
+                assertTrue(late >= 0);
+                assertTrue(late <= Math.min(slack, keepAlive.get(connection) / 4));
+                pings++;
+                deadline.put(connection, now + keepAlive.get(connection));
+                scheduler.schedule(connection, now, keepAlive.get(connection));
+            }
+        }
+        assertEquals(connections, scheduler.size());
+        assertEquals(pings, scheduler.getPings());
+        return scheduler.getWakeUps();
+    }
+}
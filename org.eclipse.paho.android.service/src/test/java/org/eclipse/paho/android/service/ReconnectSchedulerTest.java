@@ -0,0 +1,249 @@
+package org.eclipse.paho.android.service;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for {@link ReconnectScheduler}
+ */
+public class ReconnectSchedulerTest extends TestCase {
+
+    private static final int DEVICES = 1000;
+    private static final int CONNECTIONS_PER_DEVICE = 2;
+    private static final int BROKER_CAPACITY = 50;
+    private static final long HANDSHAKE_MILLIS = 200;
+    private static final long REFUSE_MILLIS = 50;
+    private static final long STEP_MILLIS = 10;
+    private static final long GIVE_UP_MILLIS = 30 * 60 * 1000;
+
+    /**
+     * Always waits the most it may - backoff without jitter
+     */
+    private static class NoJitter extends Random {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public double nextDouble() {
+            return 0.999999;
+        }
+    }
+
+    public void testFirstAttemptIsJittered() {
+        Random random = new Random(1);
+        ReconnectScheduler<String> scheduler = new ReconnectScheduler<>(random);
+        long earliest = Long.MAX_VALUE;
+        long latest = 0;
+        for (int i = 0; i < 100; i++) {
+            ReconnectScheduler<String> one = new ReconnectScheduler<>(random);
+            one.request("a", 1000);
+            earliest = Math.min(earliest, one.nextPollAt());
+            latest = Math.max(latest, one.nextPollAt());
+        }
+        assertTrue(earliest >= 1000);
+        assertTrue(latest < 1000 + ReconnectScheduler.DEFAULT_BASE_DELAY_MILLIS);
+        assertTrue(latest - earliest > ReconnectScheduler.DEFAULT_BASE_DELAY_MILLIS / 2);
+        assertEquals(-1, scheduler.nextPollAt());
+        assertTrue(scheduler.poll(0).isEmpty());
+    }
+
+    public void testBackoffDoublesToTheMaximum() {
+        ReconnectScheduler<String> scheduler = new ReconnectScheduler<>(new NoJitter());
+        scheduler.setBackoff(1000, 5000, 1);
+        scheduler.request("a", 0);
+        long now = scheduler.nextPollAt();
+        assertEquals(999, now);
+        long[] delays = new long[5];
+        for (int i = 0; i < delays.length; i++) {
+            assertEquals(Collections.singletonList("a"), scheduler.poll(now));
+            scheduler.failed("a", now);
+            delays[i] = scheduler.nextPollAt() - now;
+            now = scheduler.nextPollAt();
+        }
+        assertTrue(Arrays.equals(new long[] { 1999, 3999, 4999, 4999, 4999 }, delays));
+
+        // asking again carries on with the same backoff
+        scheduler.request("a", now);
+        assertEquals(now, scheduler.nextPollAt());
+        assertEquals(5, scheduler.getStats().getFailures());
+    }
+
+    public void testConcurrencyCap() {
+        ReconnectScheduler<String> scheduler = new ReconnectScheduler<>(new Random(2));
+        for (String key : new String[] { "a", "b", "c", "d", "e" }) {
+            scheduler.request(key, 0);
+        }
+        List<String> first = scheduler.poll(5000);
+        assertEquals(ReconnectScheduler.DEFAULT_MAX_CONCURRENT, first.size());
+        assertTrue(scheduler.poll(5000).isEmpty());
+        // with every slot taken, only the handshakes' timeout is waited for
+        assertEquals(5000 + ReconnectScheduler.HANDSHAKE_TIMEOUT_MILLIS, scheduler.nextPollAt());
+
+        scheduler.succeeded(first.get(0), 5100);
+        // with a slot free, the waiting connections are due again
+        assertTrue(scheduler.nextPollAt() < 5000);
+        assertEquals(1, scheduler.poll(5100).size());
+        // a connection that is cancelled gives up its slot
+        scheduler.cancel(first.get(1));
+        assertEquals(1, scheduler.poll(5100).size());
+        assertTrue(scheduler.poll(5100).isEmpty());
+
+        ReconnectStats stats = scheduler.getStats();
+        assertEquals(4, stats.getAttempts());
+        assertEquals(1, stats.getSuccesses());
+        assertEquals(2, stats.getConnecting());
+        assertEquals(1, stats.getWaiting());
+        assertEquals(5100, stats.getMeanTimeToReconnectMillis());
+    }
+
+    public void testHandshakeTimeout() {
+        ReconnectScheduler<String> scheduler = new ReconnectScheduler<>(new NoJitter());
+        scheduler.request("a", 0);
+        assertEquals(1, scheduler.poll(1000).size());
+        // no outcome is heard of, so the attempt counts as failed
+        long timeout = 1000 + ReconnectScheduler.HANDSHAKE_TIMEOUT_MILLIS;
+        assertTrue(scheduler.poll(timeout - 1).isEmpty());
+        assertTrue(scheduler.poll(timeout).isEmpty());
+        assertEquals(timeout + 1999, scheduler.nextPollAt());
+        // a late report of the failure is not counted twice
+        scheduler.failed("a", timeout + 1);
+        ReconnectStats stats = scheduler.getStats();
+        assertEquals(1, stats.getTimeouts());
+        assertEquals(1, stats.getFailures());
+        assertEquals(1, stats.getWaiting());
+
+        // and connecting anyway ends the wait
+        scheduler.succeeded("a", timeout + 10000);
+        assertEquals(0, scheduler.size());
+        assertEquals(-1, scheduler.nextPollAt());
+        assertEquals(timeout + 10000, scheduler.getStats().getMaxTimeToReconnectMillis());
+    }
+
+    public void testClear() {
+        ReconnectScheduler<String> scheduler = new ReconnectScheduler<>(new Random(3));
+        scheduler.request("a", 0);
+        scheduler.request("b", 0);
+        assertEquals(2, scheduler.poll(1000).size());
+        scheduler.clear();
+        assertEquals(0, scheduler.size());
+        scheduler.request("c", 2000);
+        assertEquals(1, scheduler.poll(3000).size());
+    }
+
+    /**
+     * What a simulated outage cost the broker and the devices
+     */
+    private static class Outage {
+        int peakHandshakes = 0;
+        long attempts = 0;
+        long refused = 0;
+        long allConnectedAt = -1;
+        long meanTimeToReconnect = 0;
+
+        @Override
+        public String toString() {
+            return "peak " + peakHandshakes + " handshakes, " + attempts + " attempts ("
+                    + refused + " refused), all connected after " + allConnectedAt
+                    + "ms, mean " + meanTimeToReconnect + "ms";
+        }
+    }
+
+    /**
+     * A handshake in progress at the fake broker
+     */
+    private static class Handshake {
+        final int device;
+        final Integer connection;
+        final long endsAt;
+        final boolean accepted;
+
+        Handshake(int device, Integer connection, long endsAt, boolean accepted) {
+            this.device = device;
+            this.connection = connection;
+            this.endsAt = endsAt;
+            this.accepted = accepted;
+        }
+    }
+
+    /**
+     * Every device gets its network back at once, and each reconnects its
+     * connections to a broker that refuses handshakes beyond its capacity
+     */
+    private static Outage simulate(boolean jitter) {
+        Random random = jitter ? new Random(4) : new NoJitter();
+        List<ReconnectScheduler<Integer>> devices = new ArrayList<>();
+        for (int i = 0; i < DEVICES; i++) {
+            ReconnectScheduler<Integer> device = new ReconnectScheduler<>(random);
+            for (int c = 0; c < CONNECTIONS_PER_DEVICE; c++) {
+                device.request(c, 0);
+            }
+            devices.add(device);
+        }
+
+        Outage outage = new Outage();
+        List<Handshake> handshakes = new ArrayList<>();
+        int connected = 0;
+        long now = 0;
+        while (connected < DEVICES * CONNECTIONS_PER_DEVICE && now < GIVE_UP_MILLIS) {
+            // the broker answers the handshakes that have finished
+            for (int i = handshakes.size() - 1; i >= 0; i--) {
+                Handshake handshake = handshakes.get(i);
+                if (handshake.endsAt <= now) {
+                    handshakes.remove(i);
+                    if (handshake.accepted) {
+                        devices.get(handshake.device).succeeded(handshake.connection, now);
+                        connected++;
+                    } else {
+                        devices.get(handshake.device).failed(handshake.connection, now);
+                    }
+                }
+            }
+            // and the devices start the attempts now due
+            for (int i = 0; i < DEVICES; i++) {
+                ReconnectScheduler<Integer> device = devices.get(i);
+                long at = device.nextPollAt();
+                if (at < 0 || at > now) {
+                    continue;
+                }
+                for (Integer connection : device.poll(now)) {
+                    boolean accepted = handshakes.size() < BROKER_CAPACITY;
+                    if (!accepted) {
+                        outage.refused++;
+                    }
+                    handshakes.add(new Handshake(i, connection,
+                            now + (accepted ? HANDSHAKE_MILLIS : REFUSE_MILLIS), accepted));
+                }
+            }
+            outage.peakHandshakes = Math.max(outage.peakHandshakes, handshakes.size());
+            now += STEP_MILLIS;
+        }
+
+        long totalTime = 0;
+        for (ReconnectScheduler<Integer> device : devices) {
+            ReconnectStats stats = device.getStats();
+            outage.attempts += stats.getAttempts();
+            totalTime += stats.getMeanTimeToReconnectMillis() * stats.getSuccesses();
+        }
+        outage.meanTimeToReconnect = totalTime / (DEVICES * CONNECTIONS_PER_DEVICE);
+        outage.allConnectedAt = connected == DEVICES * CONNECTIONS_PER_DEVICE ? now : -1;
+        return outage;
+    }
+
+    public void testOutageWithFakeBroker() {
+        Outage jittered = simulate(true);
+        Outage synchronised = simulate(false);
+        System.out.println("ReconnectSchedulerTest: " + DEVICES + " devices, "
+                + CONNECTIONS_PER_DEVICE + " connections each, broker capacity "
+                + BROKER_CAPACITY + " - full jitter: " + jittered
+                + "; backoff without jitter: " + synchronised);
+        assertTrue(jittered.allConnectedAt > 0);
+        assertTrue(jittered.peakHandshakes < synchronised.peakHandshakes);
+        assertTrue(jittered.refused < synchronised.refused);
+        assertTrue(synchronised.allConnectedAt < 0
+                || jittered.allConnectedAt < synchronised.allConnectedAt);
+    }
+}
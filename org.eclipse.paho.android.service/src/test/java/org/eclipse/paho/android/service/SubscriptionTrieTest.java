@@ -0,0 +1,220 @@
+package org.eclipse.paho.android.service;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+import org.eclipse.paho.client.mqttv3.MqttTopic;
+
+/**
+ * Tests for {@link SubscriptionTrie}, and a microbenchmark of it against
+ * matching each filter in turn
+ */
+public class SubscriptionTrieTest extends TestCase {
+
+    private static final int BENCHMARK_SUBSCRIPTIONS = 10000;
+    private static final int BENCHMARK_TOPICS = 100000;
+
+    private static void assertMatch(SubscriptionTrie trie, String topic, int... ids) {
+        assertEquals(topic, Arrays.toString(ids), Arrays.toString(trie.match(topic)));
+    }
+
+    public void testExactAndWildcards() {
+        SubscriptionTrie trie = new SubscriptionTrie();
+        trie.add("sport/tennis/player1", 1);
+        trie.add("sport/+/player1", 2);
+        trie.add("sport/#", 3);
+        trie.add("+/+/+", 4);
+        trie.add("#", 5);
+        assertEquals(5, trie.size());
+
+        assertMatch(trie, "sport/tennis/player1", 1, 2, 3, 4, 5);
+        assertMatch(trie, "sport/golf/player1", 2, 3, 4, 5);
+        assertMatch(trie, "sport/tennis/player2", 3, 4, 5);
+        assertMatch(trie, "sport/tennis", 3, 5);
+        // "#" matches the parent level too
+        assertMatch(trie, "sport", 3, 5);
+        assertMatch(trie, "news", 5);
+        assertMatch(trie, "sport/tennis/player1/ranking", 3, 5);
+    }
+
+    public void testEmptyLevels() {
+        SubscriptionTrie trie = new SubscriptionTrie();
+        trie.add("/finance", 1);
+        trie.add("+/+", 2);
+        trie.add("a//b", 3);
+        assertMatch(trie, "/finance", 1, 2);
+        assertMatch(trie, "finance");
+        assertMatch(trie, "a//b", 3);
+    }
+
+    public void testDollarTopicsNeedExplicitFirstLevel() {
+        SubscriptionTrie trie = new SubscriptionTrie();
+        trie.add("#", 1);
+        trie.add("+/monitor/Clients", 2);
+        trie.add("$SYS/#", 3);
+        trie.add("$SYS/monitor/+", 4);
+        assertMatch(trie, "$SYS/monitor/Clients", 3, 4);
+        assertMatch(trie, "x/monitor/Clients", 1, 2);
+    }
+
+    public void testReplaceAndRemove() {
+        SubscriptionTrie trie = new SubscriptionTrie();
+        trie.add("a/b", 1);
+        trie.add("a/b", 2);
+        assertEquals(1, trie.size());
+        assertMatch(trie, "a/b", 2);
+
+        trie.add("a/#", 3);
+        assertTrue(trie.remove("a/b"));
+        assertFalse(trie.remove("a/b"));
+        assertFalse(trie.remove("a/+"));
+        assertMatch(trie, "a/b", 3);
+        assertTrue(trie.remove("a/#"));
+        assertEquals(0, trie.size());
+        assertMatch(trie, "a/b");
+    }
+
+    public void testInvalidFilterRejected() {
+        SubscriptionTrie trie = new SubscriptionTrie();
+        try {
+            trie.add("a/#/b", 1);
+            fail("expected IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        assertEquals(0, trie.size());
+    }
+
+    public void testManyMatches() {
+        SubscriptionTrie trie = new SubscriptionTrie();
+        String[] filters = { "#", "a/#", "a/b/#", "a/b/c/#", "a/b/c/d", "+/b/c/d", "a/+/c/d",
+                "a/b/+/d", "a/b/c/+", "+/+/+/+", "a/+/+/+" };
+        int[] expected = new int[filters.length];
+        for (int i = 0; i < filters.length; i++) {
+            trie.add(filters[i], i + 1);
+            expected[i] = i + 1;
+        }
+        assertMatch(trie, "a/b/c/d", expected);
+    }
+
+    /**
+     * Agrees with matching each filter in turn, for random filters and topics
+     * - which do not start with "$", as isMatched lets wildcards match those
+     */
+    public void testAgreesWithLinearMatching() {
+        Random random = new Random(17);
+        List<String> filters = randomFilters(random, 2000);
+        SubscriptionTrie trie = new SubscriptionTrie();
+        for (int i = 0; i < filters.size(); i++) {
+            trie.add(filters.get(i), i);
+        }
+        for (int t = 0; t < 2000; t++) {
+            String topic = randomTopic(random);
+            assertEquals(topic, Arrays.toString(linearMatch(filters, topic)),
+                    Arrays.toString(trie.match(topic)));
+        }
+    }
+
+    public void testBenchmark() {
+        Random random = new Random(42);
+        List<String> filters = randomFilters(random, BENCHMARK_SUBSCRIPTIONS);
+        SubscriptionTrie trie = new SubscriptionTrie();
+        for (int i = 0; i < filters.size(); i++) {
+            trie.add(filters.get(i), i);
+        }
+        String[] topics = new String[BENCHMARK_TOPICS];
+        for (int i = 0; i < topics.length; i++) {
+            topics[i] = randomTopic(random);
+        }
+
+        long matched = 0;
+        long start = System.nanoTime();
+        for (String topic : topics) {
+            matched += trie.match(topic).length;
+        }
+        long trieNanos = System.nanoTime() - start;
+
+        // matching every filter in turn is far slower, so time fewer topics
+        int linearTopics = BENCHMARK_TOPICS / 100;
+        long linearMatched = 0;
+        start = System.nanoTime();
+        for (int i = 0; i < linearTopics; i++) {
+            linearMatched += linearMatch(filters, topics[i]).length;
+        }
+        long linearNanos = System.nanoTime() - start;
+
+        long trieRate = BENCHMARK_TOPICS * 1000000000L / Math.max(1, trieNanos);
+        long linearRate = linearTopics * 1000000000L / Math.max(1, linearNanos);
+        System.out.println("SubscriptionTrieTest: " + BENCHMARK_SUBSCRIPTIONS
+                + " subscriptions, trie " + trieRate + " msgs/s (" + matched
+                + " matches), linear " + linearRate + " msgs/s (" + linearMatched
+                + " matches)");
+        assertTrue(matched > 0);
+    }
+
+    private static int[] linearMatch(List<String> filters, String topic) {
+        List<Integer> ids = new ArrayList<>();
+        for (int i = 0; i < filters.size(); i++) {
+            String filter = filters.get(i);
+            // isMatched does not let "a/#" match "a", as the specification does
+            if (MqttTopic.isMatched(filter, topic)
+                    || (filter.endsWith("/#") && MqttTopic.isMatched(
+                            filter.substring(0, filter.length() - 2), topic))) {
+                ids.add(i);
+            }
+        }
+        int[] result = new int[ids.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = ids.get(i);
+        }
+        return result;
+    }
+
+    private static String randomLevel(Random random) {
+        return "l" + random.nextInt(20);
+    }
+
+    private static String randomTopic(Random random) {
+        int depth = 1 + random.nextInt(5);
+        StringBuilder topic = new StringBuilder(randomLevel(random));
+        for (int i = 1; i < depth; i++) {
+            topic.append('/').append(randomLevel(random));
+        }
+        return topic.toString();
+    }
+
+    /**
+     * Distinct filters, mostly exact, some with "+" or a trailing "#"
+     */
+    private static List<String> randomFilters(Random random, int count) {
+        List<String> filters = new ArrayList<>(count);
+        Set<String> seen = new HashSet<>();
+        while (filters.size() < count) {
+            int depth = 1 + random.nextInt(5);
+            StringBuilder filter = new StringBuilder();
+            for (int i = 0; i < depth; i++) {
+                if (i > 0) {
+                    filter.append('/');
+                }
+                int roll = random.nextInt(100);
+                if (i == depth - 1 && roll < 3) {
+                    filter.append('#');
+                } else if (roll < 10) {
+                    filter.append('+');
+                } else {
+                    filter.append(randomLevel(random));
+                }
+            }
+            if (seen.add(filter.toString())) {
+                filters.add(filter.toString());
+            }
+        }
+        return filters;
+    }
+}
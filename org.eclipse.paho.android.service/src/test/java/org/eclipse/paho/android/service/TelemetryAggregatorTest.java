@@ -0,0 +1,157 @@
+package org.eclipse.paho.android.service;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for {@link TelemetryAggregator}
+ */
+public class TelemetryAggregatorTest extends TestCase {
+
+    private static final int BENCHMARK_MESSAGES = 1000000;
+
+    private static AggregationOptions options(AggregationFormat format) {
+        AggregationOptions options = new AggregationOptions();
+        options.setFormat(format);
+        return options;
+    }
+
+    private static double text(String payload) {
+        return TelemetryAggregator.parseText(payload.getBytes());
+    }
+
+    public void testParseText() {
+        assertEquals(21.5, text("21.5"), 0);
+        assertEquals(-3.0, text("-3"), 0);
+        assertEquals(3.0, text("+3."), 0);
+        assertEquals(0.25, text(".25"), 0);
+        assertEquals(0.001, text("1e-3"), 1e-15);
+        assertEquals(1500.0, text("1.5E3"), 0);
+        assertEquals(42.0, text("  42\r\n"), 0);
+        assertEquals(12345678901234567890.0, text("12345678901234567890"), 1e5);
+        assertTrue(Double.isNaN(text("")));
+        assertTrue(Double.isNaN(text("-")));
+        assertTrue(Double.isNaN(text(".")));
+        assertTrue(Double.isNaN(text("12abc")));
+        assertTrue(Double.isNaN(text("1e")));
+        assertTrue(Double.isNaN(text("1 2")));
+        assertTrue(Double.isNaN(text("{\"t\":1}")));
+    }
+
+    public void testParseBinary() {
+        assertEquals(-2.0, TelemetryAggregator.parse(AggregationFormat.INT32,
+                ByteBuffer.allocate(4).putInt(-2).array()), 0);
+        assertEquals(1L << 40, TelemetryAggregator.parse(AggregationFormat.INT64,
+                ByteBuffer.allocate(8).putLong(1L << 40).array()), 0);
+        assertEquals(1.5, TelemetryAggregator.parse(AggregationFormat.FLOAT32,
+                ByteBuffer.allocate(4).putFloat(1.5f).array()), 0);
+        assertEquals(-0.1, TelemetryAggregator.parse(AggregationFormat.FLOAT64,
+                ByteBuffer.allocate(8).putDouble(-0.1).array()), 0);
+        // the wrong length is not read
+        assertTrue(Double.isNaN(TelemetryAggregator.parse(AggregationFormat.INT32, new byte[3])));
+        assertTrue(Double.isNaN(TelemetryAggregator.parse(AggregationFormat.FLOAT64, new byte[4])));
+    }
+
+    public void testWindowSummaries() {
+        TelemetryAggregator aggregator = new TelemetryAggregator();
+        aggregator.setAggregation("sensor/+/temp", options(AggregationFormat.TEXT), 1000);
+
+        assertTrue(aggregator.add("sensor/1/temp", "20".getBytes()));
+        assertTrue(aggregator.add("sensor/1/temp", "23".getBytes()));
+        assertTrue(aggregator.add("sensor/1/temp", "bad".getBytes()));
+        assertTrue(aggregator.add("sensor/1/temp", "21".getBytes()));
+        assertTrue(aggregator.add("sensor/2/temp", "bad".getBytes()));
+        assertFalse(aggregator.add("sensor/1/humidity", "50".getBytes()));
+        assertEquals(2, aggregator.size());
+
+        List<AggregateSummary> summaries = aggregator.closeWindows("sensor/+/temp", 2000);
+        assertEquals(2, summaries.size());
+        AggregateSummary one = summaries.get(0).getTopic().equals("sensor/1/temp")
+                ? summaries.get(0) : summaries.get(1);
+        AggregateSummary two = one == summaries.get(0) ? summaries.get(1) : summaries.get(0);
+
+        assertEquals("sensor/+/temp", one.getTopicFilter());
+        assertEquals(1000, one.getWindowStart());
+        assertEquals(2000, one.getWindowEnd());
+        assertEquals(3, one.getCount());
+        assertEquals(1, one.getUnparsed());
+        assertEquals(20.0, one.getMin(), 0);
+        assertEquals(23.0, one.getMax(), 0);
+        assertEquals(64.0, one.getSum(), 0);
+        assertEquals(64.0 / 3, one.getMean(), 1e-12);
+        assertEquals(21.0, one.getLast(), 0);
+
+        assertEquals(0, two.getCount());
+        assertEquals(1, two.getUnparsed());
+        assertTrue(Double.isNaN(two.getMin()));
+        assertTrue(Double.isNaN(two.getMean()));
+        assertTrue(Double.isNaN(two.getLast()));
+
+        // the next window starts afresh
+        aggregator.add("sensor/1/temp", "5".getBytes());
+        summaries = aggregator.closeWindows("sensor/+/temp", 3000);
+        assertEquals(1, summaries.size());
+        assertEquals(2000, summaries.get(0).getWindowStart());
+        assertEquals(1, summaries.get(0).getCount());
+        assertEquals(5.0, summaries.get(0).getMin(), 0);
+        assertEquals(5.0, summaries.get(0).getMax(), 0);
+        // sensor/2/temp had nothing, so was forgotten
+        assertEquals(1, aggregator.size());
+
+        // and an empty window forgets sensor/1/temp too
+        assertTrue(aggregator.closeWindows("sensor/+/temp", 4000).isEmpty());
+        assertEquals(0, aggregator.size());
+    }
+
+    public void testFirstFilterSetWins() {
+        TelemetryAggregator aggregator = new TelemetryAggregator();
+        aggregator.setAggregation("a/#", options(AggregationFormat.TEXT), 0);
+        aggregator.setAggregation("a/b", options(AggregationFormat.INT32), 0);
+        assertTrue(aggregator.add("a/b", "7".getBytes()));
+        assertTrue(aggregator.closeWindows("a/b", 1).isEmpty());
+        List<AggregateSummary> summaries = aggregator.closeWindows("a/#", 1);
+        assertEquals(1, summaries.size());
+        assertEquals(7.0, summaries.get(0).getLast(), 0);
+    }
+
+    public void testRemoveAggregation() {
+        TelemetryAggregator aggregator = new TelemetryAggregator();
+        aggregator.setAggregation("a/+", options(AggregationFormat.TEXT), 0);
+        assertTrue(aggregator.add("a/b", "1".getBytes()));
+        aggregator.setAggregation("a/+", null, 0);
+        assertEquals(0, aggregator.size());
+        assertFalse(aggregator.add("a/b", "1".getBytes()));
+        assertTrue(aggregator.closeWindows("a/+", 1).isEmpty());
+    }
+
+    public void testBenchmark() {
+        TelemetryAggregator aggregator = new TelemetryAggregator();
+        aggregator.setAggregation("sensor/+/temp", options(AggregationFormat.TEXT), 0);
+        String[] topics = new String[100];
+        for (int i = 0; i < topics.length; i++) {
+            topics[i] = "sensor/" + i + "/temp";
+        }
+        byte[][] payloads = new byte[1000][];
+        for (int i = 0; i < payloads.length; i++) {
+            payloads[i] = String.valueOf(i / 10.0).getBytes();
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < BENCHMARK_MESSAGES; i++) {
+            aggregator.add(topics[i % topics.length], payloads[i % payloads.length]);
+        }
+        long nanos = System.nanoTime() - start;
+        List<AggregateSummary> summaries = aggregator.closeWindows("sensor/+/temp", 1);
+        long count = 0;
+        for (AggregateSummary summary : summaries) {
+            count += summary.getCount();
+        }
+        System.out.println("TelemetryAggregatorTest: " + BENCHMARK_MESSAGES + " messages on "
+                + topics.length + " topics aggregated at "
+                + (BENCHMARK_MESSAGES * 1000000000L / Math.max(1, nanos)) + " msgs/s into "
+                + summaries.size() + " summaries");
+        assertEquals(BENCHMARK_MESSAGES, count);
+    }
+}
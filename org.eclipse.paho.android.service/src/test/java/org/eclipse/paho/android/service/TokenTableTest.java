@@ -0,0 +1,177 @@
+package org.eclipse.paho.android.service;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for {@link TokenTable}, and a measurement of it under contention
+ * against a synchronized map whose keys go through strings, as the
+ * SparseArray it replaced did (SparseArray itself needs a device)
+ */
+public class TokenTableTest extends TestCase {
+
+    private static final int THREADS = 4;
+    private static final int OPERATIONS = 200000;
+    private static final int IN_FLIGHT = 256;
+
+    public void testPutGetRemove() {
+        TokenTable<String> table = new TokenTable<>(8);
+        int a = table.put("a");
+        int b = table.put("b");
+        assertTrue(a != MqttServiceConstants.NO_ACTIVITY_TOKEN);
+        assertTrue(a != b);
+        assertEquals("a", table.get(a));
+        assertEquals("a", table.remove(a));
+        assertNull(table.get(a));
+        assertNull(table.remove(a));
+        assertEquals("b", table.remove(b));
+        assertNull(table.remove(MqttServiceConstants.NO_ACTIVITY_TOKEN));
+    }
+
+    public void testOutstandingTokenOverflows() {
+        TokenTable<Integer> table = new TokenTable<>(4);
+        int[] keys = new int[6];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = table.put(i);
+        }
+        // the first two slots came round again while their tokens were held
+        assertEquals(2, table.overflowSize());
+        for (int i = 0; i < keys.length; i++) {
+            assertEquals(i, table.get(keys[i]).intValue());
+        }
+        for (int i = keys.length - 1; i >= 0; i--) {
+            assertEquals(i, table.remove(keys[i]).intValue());
+        }
+        assertEquals(0, table.overflowSize());
+
+        // with the slots free again, nothing overflows
+        int key = table.put(6);
+        assertEquals(0, table.overflowSize());
+        assertEquals(6, table.remove(key).intValue());
+    }
+
+    public void testConcurrentPutAndRemove() throws Exception {
+        final TokenTable<Integer> table = new TokenTable<>(IN_FLIGHT);
+        final AtomicInteger missing = new AtomicInteger();
+        final Set<Integer> seen = new HashSet<>();
+        Thread[] threads = new Thread[THREADS];
+        for (int t = 0; t < THREADS; t++) {
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    Set<Integer> keys = new HashSet<>();
+                    for (int i = 0; i < 10000; i++) {
+                        int key = table.put(i);
+                        keys.add(key);
+                        Integer value = table.remove(key);
+                        if (value == null || value != i) {
+                            missing.incrementAndGet();
+                        }
+                    }
+                    synchronized (seen) {
+                        for (Integer key : keys) {
+                            assertTrue(seen.add(key));
+                        }
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(0, missing.get());
+        assertEquals(THREADS * 10000, seen.size());
+    }
+
+    /**
+     * What each benchmark thread does: keep IN_FLIGHT tokens outstanding,
+     * completing the oldest as each new one is stored
+     */
+    private interface Registry {
+        Object store(Object token);
+
+        Object remove(Object key);
+    }
+
+    private static long measure(final Registry registry) throws Exception {
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] threads = new Thread[THREADS];
+        for (int t = 0; t < THREADS; t++) {
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    Object token = new Object();
+                    Object[] outstanding = new Object[IN_FLIGHT];
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int i = 0; i < OPERATIONS; i++) {
+                        int slot = i % IN_FLIGHT;
+                        if (outstanding[slot] != null) {
+                            assertSame(token, registry.remove(outstanding[slot]));
+                        }
+                        outstanding[slot] = registry.store(token);
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        long began = System.nanoTime();
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        long nanos = Math.max(1, System.nanoTime() - began);
+        return THREADS * (long) OPERATIONS * 1000000000L / nanos;
+    }
+
+    public void testContendedRates() throws Exception {
+        final TokenTable<Object> table = new TokenTable<>(4096);
+        Registry lockFree = new Registry() {
+            @Override
+            public Object store(Object token) {
+                return table.put(token);
+            }
+
+            @Override
+            public Object remove(Object key) {
+                return table.remove((Integer) key);
+            }
+        };
+        Registry synchronizedMap = new Registry() {
+            private final Map<Integer, Object> map = new HashMap<>();
+            private int tokenNumber = 0;
+
+            @Override
+            public synchronized Object store(Object token) {
+                map.put(tokenNumber, token);
+                return Integer.toString(tokenNumber++);
+            }
+
+            @Override
+            public synchronized Object remove(Object key) {
+                int tokenNumber = Integer.parseInt((String) key);
+                return map.remove(tokenNumber);
+            }
+        };
+
+        // warm up both, then measure
+        measure(lockFree);
+        measure(synchronizedMap);
+        long lockFreeRate = measure(lockFree);
+        long synchronizedRate = measure(synchronizedMap);
+
+        System.out.println("TokenTableTest: " + THREADS + " threads, " + IN_FLIGHT
+                + " in flight each, synchronized map " + synchronizedRate
+                + " ops/s, TokenTable " + lockFreeRate + " ops/s");
+    }
+}